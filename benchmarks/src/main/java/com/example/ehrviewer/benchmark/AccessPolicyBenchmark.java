@@ -0,0 +1,103 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.policy.AccessPolicy;
+import com.example.ehrviewer.policy.Action;
+import com.example.ehrviewer.policy.CareTeamIndex;
+import com.example.ehrviewer.session.SessionPrincipal;
+import com.example.ehrviewer.store.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one {@link AccessPolicy} decision, as the access interceptor makes on every request:
+ * a grant to all users, a patient viewing themselves, and a doctor updating patients of whom
+ * {@link #careTeamSize} are on their care team (so most targets are refused).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessPolicyBenchmark {
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"100000"})
+    public int population;
+
+    @Param({"1000"})
+    public int careTeamSize;
+
+    private AnnotationConfigApplicationContext context;
+    private AccessPolicy policy;
+    private SessionPrincipal admin;
+    private SessionPrincipal doctor;
+    private SessionPrincipal[] patients;
+    private String[] targets;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ehr.policy.rules.ADMIN", "*:ALL");
+        properties.put("ehr.policy.rules.DOCTOR", "LIST:ALL,VIEW:ALL,UPDATE:CARE_TEAM");
+        properties.put("ehr.policy.rules.PATIENT", "LIST:SELF,VIEW:SELF");
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(MetricsRegistry.class, UserDirectory.class, CareTeamIndex.class, AccessPolicy.class);
+        context.refresh();
+        policy = context.getBean(AccessPolicy.class);
+        CareTeamIndex careTeams = context.getBean(CareTeamIndex.class);
+
+        admin = new SessionPrincipal("ADMIN-BENCH", UserType.ADMIN, 1);
+        doctor = new SessionPrincipal("DOCTOR-BENCH", UserType.DOCTOR, 1);
+        for (int i = 0; i < careTeamSize; i++) {
+            careTeams.assign(doctor.getUserId(), "USER-" + i);
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        patients = new SessionPrincipal[SAMPLES];
+        targets = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            String userId = "USER-" + random.nextInt(population);
+            patients[i] = new SessionPrincipal(userId, UserType.PATIENT, 1);
+            targets[i] = userId;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next() {
+            return random.nextInt(SAMPLES);
+        }
+    }
+
+    @Benchmark
+    public boolean adminView(Cursor cursor) {
+        return policy.allows(admin, Action.VIEW, targets[cursor.next()]);
+    }
+
+    @Benchmark
+    public boolean patientViewSelf(Cursor cursor) {
+        int i = cursor.next();
+        return policy.allows(patients[i], Action.VIEW, targets[i]);
+    }
+
+    @Benchmark
+    public boolean doctorUpdateCareTeam(Cursor cursor) {
+        return policy.allows(doctor, Action.UPDATE, targets[cursor.next()]);
+    }
+}
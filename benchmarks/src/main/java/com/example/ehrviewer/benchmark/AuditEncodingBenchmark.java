@@ -0,0 +1,119 @@
+package com.example.ehrviewer.benchmark;
+
+import com.enterprise.audit.logging.model.AuditEvent;
+import com.enterprise.audit.logging.model.AuditResult;
+import com.example.ehrviewer.audit.AuditContext;
+import com.example.ehrviewer.audit.AuditDurability;
+import com.example.ehrviewer.audit.AuditPipeline;
+import com.example.ehrviewer.audit.AuditSegments;
+import com.example.ehrviewer.audit.AuditTemplate;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What logging one audit event costs the calling thread and the audit writer together: an event
+ * built as before (builder, details map, random UUIDs, concatenated message) against the same event
+ * logged as an {@link com.example.ehrviewer.audit.AuditRecord}, with the segmented sink writing
+ * through the audit library or taking directly encoded lines. The GC profiler's
+ * {@code gc.alloc.rate.norm} is the allocation per event, writer thread included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditEncodingBenchmark {
+    private static final AuditTemplate REVALIDATION = AuditTemplate.of("USER_VIEW", "EHRViewer", "UserService",
+            "VIEW", AuditResult.SUCCESS, "not_modified");
+
+    @Param({"false", "true"})
+    public boolean directEncoding;
+
+    private Path auditDirectory;
+    private AnnotationConfigApplicationContext context;
+    private AuditPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        auditDirectory = Fixtures.tempDirectory("ehr-bench-audit-encoding");
+        context = new AnnotationConfigApplicationContext();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ehr.audit.directory", auditDirectory.toString());
+        properties.put("ehr.audit.direct-encoding", directEncoding);
+        context.getEnvironment().getPropertySources().addFirst(
+                new MapPropertySource("benchmark", properties));
+        context.register(AuditSegments.class);
+        context.refresh();
+        pipeline = new AuditPipeline(context.getBean(AuditSegments.class), AuditDurability.FIRE_AND_FORGET,
+                8192, 256, 10_000, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pipeline.close();
+        context.close();
+        Fixtures.deleteRecursively(auditDirectory);
+    }
+
+    /**
+     * The request the events are logged for, with a session, as the web tier would set up.
+     */
+    @State(Scope.Thread)
+    public static class Request {
+        final String requesterId = "ADMIN-" + Thread.currentThread().getId();
+        final String resource = "user/BENCH-1";
+
+        @Setup(Level.Trial)
+        public void begin() {
+            AuditContext.begin();
+            AuditContext.bindSession("benchmark-session-" + requesterId);
+        }
+
+        @TearDown(Level.Trial)
+        public void end() {
+            AuditContext.attach(null);
+        }
+    }
+
+    @Benchmark
+    public void builder(Request request) throws Exception {
+        Map<String, Object> details = new HashMap<>();
+        details.put("not_modified", true);
+        pipeline.logEvent(AuditEvent.builder()
+                .eventType("USER_VIEW")
+                .userId(request.requesterId)
+                .sessionId(UUID.randomUUID().toString())
+                .application("EHRViewer")
+                .component("UserService")
+                .action("VIEW")
+                .resource(request.resource)
+                .result(AuditResult.SUCCESS)
+                .message("User " + request.requesterId + " revalidated a cached view of " + request.resource)
+                .details(details)
+                .correlationId(UUID.randomUUID().toString())
+                .build());
+    }
+
+    @Benchmark
+    public void record(Request request) throws Exception {
+        pipeline.record(REVALIDATION)
+                .user(request.requesterId)
+                .resource(request.resource)
+                .text("User ").text(request.requesterId).text(" revalidated a cached view of ").text(request.resource)
+                .detail("not_modified", true)
+                .commit();
+    }
+
+    @Benchmark
+    public void logSuccess(Request request) throws Exception {
+        pipeline.logSuccess("USER_VIEW", "VIEW", request.resource, "User bench viewed user: Bench User");
+    }
+}
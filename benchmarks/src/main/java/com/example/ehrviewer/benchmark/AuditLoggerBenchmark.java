@@ -0,0 +1,99 @@
+package com.example.ehrviewer.benchmark;
+
+import com.enterprise.audit.logging.config.AuditConfiguration;
+import com.enterprise.audit.logging.model.AuditEvent;
+import com.enterprise.audit.logging.model.AuditResult;
+import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+import com.example.ehrviewer.audit.AuditDurability;
+import com.example.ehrviewer.audit.AuditPipeline;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw audit write throughput: {@link FileSystemAuditLogger} called directly, and the
+ * same events submitted through the {@link AuditPipeline} in each durability mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditLoggerBenchmark {
+
+    @Param({"FIRE_AND_FORGET", "ACK_AFTER_FLUSH"})
+    public AuditDurability durability;
+
+    private Path directLogDirectory;
+    private Path pipelineLogDirectory;
+    private FileSystemAuditLogger direct;
+    private AuditPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directLogDirectory = Fixtures.tempDirectory("ehr-bench-audit-direct");
+        pipelineLogDirectory = Fixtures.tempDirectory("ehr-bench-audit-pipeline");
+        direct = new FileSystemAuditLogger(config(directLogDirectory));
+        pipeline = new AuditPipeline(new FileSystemAuditLogger(config(pipelineLogDirectory)), durability,
+                8192, 256, 10_000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        direct.close();
+        pipeline.close();
+        Fixtures.deleteRecursively(directLogDirectory);
+        Fixtures.deleteRecursively(pipelineLogDirectory);
+    }
+
+    private static AuditConfiguration config(Path directory) {
+        AuditConfiguration config = new AuditConfiguration();
+        config.setLogDirectory(directory.toString());
+        config.setAutoCreateDirectory(true);
+        return config;
+    }
+
+    @Benchmark
+    public void directLogSuccess() throws Exception {
+        direct.logSuccess("USER_VIEW", "VIEW", "user/BENCH-1", "User bench viewed user: Bench User");
+    }
+
+    @Benchmark
+    public void directLogEvent() throws Exception {
+        direct.logEvent(event());
+    }
+
+    @Benchmark
+    public void pipelineLogSuccess() throws Exception {
+        pipeline.logSuccess("USER_VIEW", "VIEW", "user/BENCH-1", "User bench viewed user: Bench User");
+    }
+
+    @Benchmark
+    public void pipelineLogEvent() throws Exception {
+        pipeline.logEvent(event());
+    }
+
+    // Built the same way UserService builds its add/remove events
+    private static AuditEvent event() {
+        Map<String, Object> details = new HashMap<>();
+        details.put("reason", "benchmark");
+        return AuditEvent.builder()
+                .eventType("USER_ADD")
+                .userId("bench")
+                .sessionId(UUID.randomUUID().toString())
+                .application("EHRViewer")
+                .component("UserService")
+                .action("ADD")
+                .resource("user/BENCH-1")
+                .result(AuditResult.SUCCESS)
+                .message("Added user: Bench User")
+                .details(details)
+                .correlationId(UUID.randomUUID().toString())
+                .build();
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.ehrviewer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Method;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler attached, so every
+ * result includes allocations per operation (gc.alloc.rate.norm).
+ *
+ * Usage: {@code java [-Dthreads=1,4,16] [-Dpopulation=1000,100000] -jar benchmarks.jar [regex]}.
+ * Any other arguments are passed straight to the JMH command line instead.
+ */
+public class BenchmarkRunner {
+    // Benchmarks swept across thread counts; everything else runs single-threaded
+    private static final Class<?>[] CONCURRENT = {
+            UserServiceBenchmark.class,
+            UserMutationBenchmark.class,
+            AuditLoggerBenchmark.class,
+            AccessPolicyBenchmark.class
+    };
+    // Single-threaded, or with thread groups declared by the benchmark itself
+    private static final Class<?>[] SINGLE_THREADED = {
+            UserStoreRecoveryBenchmark.class,
+            LoginStormBenchmark.class,
+            UserEncodingBenchmark.class,
+            AuditEncodingBenchmark.class,
+            DuplicateScanBenchmark.class
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 || (args.length == 1 && args[0].startsWith("-"))) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Pattern include = Pattern.compile(args.length == 1 ? args[0] : ".*");
+
+        if (matchesAny(include, CONCURRENT)) {
+            for (String threads : System.getProperty("threads", "1,4,16").split(",")) {
+                ChainedOptionsBuilder options = base(include, CONCURRENT).threads(Integer.parseInt(threads.trim()));
+                new Runner(options.build()).run();
+            }
+        }
+        if (matchesAny(include, SINGLE_THREADED)) {
+            new Runner(base(include, SINGLE_THREADED).threads(1).build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder base(Pattern include, Class<?>[] classes) {
+        ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class);
+        for (Class<?> benchmarkClass : classes) {
+            for (Method method : benchmarkClass.getMethods()) {
+                String name = benchmarkName(benchmarkClass, method);
+                if (method.isAnnotationPresent(Benchmark.class) && include.matcher(name).find()) {
+                    options.include(Pattern.quote(name) + "$");
+                }
+            }
+        }
+        String population = System.getProperty("population");
+        if (population != null) {
+            options.param("population", population.split(","));
+        }
+        return options;
+    }
+
+    private static boolean matchesAny(Pattern include, Class<?>[] classes) {
+        for (Class<?> benchmarkClass : classes) {
+            for (Method method : benchmarkClass.getMethods()) {
+                if (method.isAnnotationPresent(Benchmark.class)
+                        && include.matcher(benchmarkName(benchmarkClass, method)).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * JMH names grouped benchmark methods after their group.
+     */
+    private static String benchmarkName(Class<?> benchmarkClass, Method method) {
+        Group group = method.getAnnotation(Group.class);
+        return benchmarkClass.getName() + "." + (group == null ? method.getName() : group.value());
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.linkage.DuplicateIndex;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.DuplicateCandidate;
+import com.example.ehrviewer.model.DuplicateReport;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.store.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate patient detection over a synthetic population in which one patient in a hundred is
+ * registered again with a typo in the name, another address or phone number, or the day and month
+ * of birth swapped. {@code scan} compares all patients on {@code parallelism} fork-join workers, whose
+ * times across parallelism levels show how the scan scales with cores; {@code check} is the check
+ * made on each patient added.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Threads(1)
+@State(Scope.Benchmark)
+public class DuplicateScanBenchmark {
+    private static final int PROBES = 1024;
+    private static final String CONSONANTS = "bcdfghjklmnprstvwz";
+    private static final String VOWELS = "aeiou";
+
+    @Param({"100000", "1000000"})
+    public int population;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private AnnotationConfigApplicationContext context;
+    private DuplicateIndex index;
+    private User[] probes;
+    private int nextProbe;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark",
+                Collections.<String, Object>singletonMap("ehr.duplicates.parallelism", parallelism)));
+        context.register(MetricsRegistry.class, UserDirectory.class, DuplicateIndex.class);
+        context.refresh();
+        UserDirectory directory = context.getBean(UserDirectory.class);
+        index = context.getBean(DuplicateIndex.class);
+
+        SplittableRandom random = new SplittableRandom(42);
+        User[] patients = new User[population];
+        for (int i = 0; i < population; i++) {
+            patients[i] = i % 100 == 99 ? variant(patients[random.nextInt(i)], "PATIENT-" + i, random)
+                    : patient("PATIENT-" + i, random);
+            directory.add(patients[i]);
+        }
+        probes = new User[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = variant(patients[random.nextInt(population)], "PROBE-" + i, random);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DuplicateReport scan() {
+        return index.scan(100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<DuplicateCandidate> check() {
+        return index.candidatesFor(probes[nextProbe++ & (PROBES - 1)]);
+    }
+
+    private static User patient(String userId, SplittableRandom random) {
+        String name = capitalize(word(random, 2)) + " " + capitalize(word(random, 2 + random.nextInt(2)));
+        LocalDate dob = LocalDate.of(1930, 1, 1).plusDays(random.nextInt(33_000));
+        String address = (1 + random.nextInt(999)) + " " + capitalize(word(random, 2)) + " St";
+        String phone = "555-" + (1_000_000 + random.nextInt(9_000_000));
+        return new User(userId, name, dob.toString(), address, 30, UserType.PATIENT, "F", phone, userId, "password");
+    }
+
+    // The same patient entered again, with one field mistyped or changed
+    private static User variant(User original, String userId, SplittableRandom random) {
+        String name = original.getName();
+        String dob = original.getDob();
+        String address = original.getAddress();
+        String phone = original.getContactInfo();
+        switch (random.nextInt(4)) {
+            case 0: {
+                int at = 1 + random.nextInt(name.length() - 2);
+                name = name.substring(0, at) + name.charAt(at + 1) + name.charAt(at) + name.substring(at + 2);
+                break;
+            }
+            case 1:
+                address = (1 + random.nextInt(999)) + " " + capitalize(word(random, 2)) + " Rd";
+                break;
+            case 2:
+                phone = "555-" + (1_000_000 + random.nextInt(9_000_000));
+                break;
+            default:
+                dob = dob.substring(0, 5) + dob.substring(8) + dob.substring(4, 7);
+        }
+        return new User(userId, name, dob, address, 30, UserType.PATIENT, "F", phone, userId, "password");
+    }
+
+    private static String word(SplittableRandom random, int syllables) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            word.append(CONSONANTS.charAt(random.nextInt(CONSONANTS.length())))
+                    .append(VOWELS.charAt(random.nextInt(VOWELS.length())));
+        }
+        return word.toString();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
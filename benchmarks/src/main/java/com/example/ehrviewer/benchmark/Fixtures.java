@@ -0,0 +1,116 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.audit.AuditLogIndex;
+import com.example.ehrviewer.audit.AuditSegments;
+import com.example.ehrviewer.auth.CredentialService;
+import com.example.ehrviewer.auth.LoginThrottle;
+import com.example.ehrviewer.controller.RequestExecutor;
+import com.example.ehrviewer.feed.ChangeFeed;
+import com.example.ehrviewer.linkage.DuplicateIndex;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.policy.AccessPolicy;
+import com.example.ehrviewer.policy.CareTeamIndex;
+import com.example.ehrviewer.replication.Replication;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.startup.StartupReadiness;
+import com.example.ehrviewer.store.StoreConfiguration;
+import com.example.ehrviewer.store.UserDirectory;
+import com.example.ehrviewer.store.UserSearchIndex;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Shared setup for the benchmarks: a Spring context holding only the service
+ * layer, with audit logs written to a scratch directory, and synthetic users.
+ */
+final class Fixtures {
+    private static final UserType[] TYPES = UserType.values();
+
+    /**
+     * PBKDF2 cost the service is started with unless a benchmark sets {@code ehr.auth.pbkdf2-iterations}
+     * itself: low enough to hash a thousand passwords in about a second, as {@link #hashPasswords} does.
+     * It is also the lowest cost accepted, below the application's default.
+     */
+    static final int PBKDF2_ITERATIONS = 1000;
+
+    private Fixtures() {}
+
+    /**
+     * Start the service layer without the web tier. Extra properties override the application defaults.
+     */
+    static AnnotationConfigApplicationContext serviceContext(Path auditDirectory, Map<String, Object> properties) {
+        Map<String, Object> all = new HashMap<>(properties);
+        all.put("ehr.audit.directory", auditDirectory.toString());
+        all.put("ehr.audit.index-directory", auditDirectory.resolve("index").toString());
+        all.putIfAbsent("ehr.auth.pbkdf2-iterations", PBKDF2_ITERATIONS);
+        all.putIfAbsent("ehr.auth.pbkdf2-min-iterations", PBKDF2_ITERATIONS);
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", all));
+        context.register(MetricsRegistry.class, UserDirectory.class, UserSearchIndex.class, DuplicateIndex.class,
+                StoreConfiguration.class, CredentialService.class, LoginThrottle.class, ChangeFeed.class,
+                CareTeamIndex.class, AccessPolicy.class, Replication.class, AuditSegments.class, AuditLogIndex.class,
+                StartupReadiness.class, UserService.class, RequestExecutor.class);
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * Add synthetic users directly to the directory, bypassing auditing.
+     */
+    static void populate(UserDirectory directory, int population) {
+        for (int i = 0; i < population; i++) {
+            directory.add(user(i));
+        }
+    }
+
+    /**
+     * Replace the plaintext passwords of synthetic users 0 to {@code count - 1} with hashes at the
+     * service's cost, so that logging in as one of them is one PBKDF2 verification and never a rehash.
+     */
+    static void hashPasswords(UserDirectory directory, CredentialService credentials, int count) {
+        for (int i = 0; i < count; i++) {
+            User user = directory.remove(user(i).getUserId());
+            user.setPassword(credentials.hash(user.getPassword()));
+            directory.add(user);
+        }
+    }
+
+    /**
+     * Synthetic user i: mostly patients, with username "user{i}" and password "password{i}".
+     */
+    static User user(int i) {
+        UserType type = i % 10 == 0 ? TYPES[1 + (i / 10) % (TYPES.length - 1)] : UserType.PATIENT;
+        return new User("USER-" + i, "Patient " + i, "1980-01-" + (10 + i % 18), i + " Main St", 20 + i % 70, type,
+                i % 2 == 0 ? "M" : "F", "555-" + (1000000 + i), "user" + i, "password" + i);
+    }
+
+    static Path tempDirectory(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteRecursively(Path directory) {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.auth.CredentialService;
+import com.example.ehrviewer.controller.RequestExecutor;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPage;
+import com.example.ehrviewer.model.UserQuery;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.store.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logins at full tilt next to ordinary reads. In the "storm" group eight threads log in back to
+ * back while two threads each read single users and pages of users; "baseline" runs the same
+ * readers alone. Compare the readers' p99 between the two groups (SampleTime mode), and read
+ * login throughput from the storm group's login score (Throughput mode).
+ *
+ * A rejected login is retried after {@link #RETRY_BACKOFF_NANOS}, as a client honouring
+ * Retry-After would, so each login operation is one successful login.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoginStormBenchmark {
+    private static final int LOGIN_USERS = 256;
+    private static final int SAMPLES = 1 << 16;
+    private static final long RETRY_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"100000"})
+    public int population;
+
+    @Param({"100000", "310000"})
+    public int iterations;
+
+    @Param({"4", "64"})
+    public int queueCapacity;
+
+    private Path auditDirectory;
+    private AnnotationConfigApplicationContext context;
+    private UserService service;
+    private RequestExecutor requests;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        auditDirectory = Fixtures.tempDirectory("ehr-bench-audit");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ehr.auth.pbkdf2-iterations", iterations);
+        properties.put("ehr.auth.hash-queue-capacity", queueCapacity);
+        context = Fixtures.serviceContext(auditDirectory, properties);
+        service = context.getBean(UserService.class);
+        requests = context.getBean(RequestExecutor.class);
+        UserDirectory directory = context.getBean(UserDirectory.class);
+        Fixtures.populate(directory, population);
+
+        // Log in as users whose passwords are already hashed at the current cost, so no login rehashes
+        Fixtures.hashPasswords(directory, context.getBean(CredentialService.class), LOGIN_USERS);
+
+        SplittableRandom random = new SplittableRandom(42);
+        userIds = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            userIds[i] = Fixtures.user(random.nextInt(population)).getUserId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        Fixtures.deleteRecursively(auditDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(8)
+    public User login(Cursor cursor) {
+        int i = cursor.next(LOGIN_USERS);
+        while (true) {
+            try {
+                return service.authenticate("user" + i, "password" + i, null, requests.continuation()).join();
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof RejectedExecutionException)) {
+                    throw e;
+                }
+                LockSupport.parkNanos(RETRY_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(2)
+    public User getUserDuringStorm(Cursor cursor) throws Exception {
+        return service.getUser(userIds[cursor.next(SAMPLES)], "bench");
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(2)
+    public UserPage getUsersPageDuringStorm() throws Exception {
+        return service.getUsersPage(new UserQuery(null, null, null, null, null, UserQuery.DEFAULT_LIMIT), "bench");
+    }
+
+    @Benchmark
+    @Group("baseline")
+    @GroupThreads(2)
+    public User getUser(Cursor cursor) throws Exception {
+        return service.getUser(userIds[cursor.next(SAMPLES)], "bench");
+    }
+
+    @Benchmark
+    @Group("baseline")
+    @GroupThreads(2)
+    public UserPage getUsersPage() throws Exception {
+        return service.getUsersPage(new UserQuery(null, null, null, null, null, UserQuery.DEFAULT_LIMIT), "bench");
+    }
+}
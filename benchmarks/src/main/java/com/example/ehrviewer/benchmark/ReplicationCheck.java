@@ -0,0 +1,179 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.metrics.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks a running primary and its replicas: writes sent to replicas reach the primary, each writer
+ * reads its own write on another replica at once, and every replica ends at the primary's sequence.
+ *
+ * It logs in on the first replica as the sample admin, then adds {@code REPL-n} users, each through
+ * the next replica in turn, following the 307 to the primary, and reads each back right away from
+ * the replica after it with the position cookie the primary set. A read answered 404 breaks
+ * read-your-writes; one redirected to the primary is followed and counted. The users are then
+ * removed the same way, and the replicas are polled until they have applied the primary's last change.
+ * Reports read latencies and exits non-zero on any failure.
+ *
+ * The nodes need {@code --ehr.session.mode=TOKEN} and the same {@code ehr.session.token-secret}.
+ *
+ * Usage: {@code java -cp benchmarks.jar com.example.ehrviewer.benchmark.ReplicationCheck
+ * writes primary-url replica-url...}, e.g. {@code 200 http://localhost:8081 http://localhost:8082
+ * http://localhost:8083}.
+ */
+public class ReplicationCheck {
+    private static final Pattern SEQUENCE = Pattern.compile("\"sequence\":(\\d+)");
+    private static final long CONVERGE_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ReplicationCheck writes primary-url replica-url...");
+            System.exit(2);
+        }
+        int writes = Integer.parseInt(args[0]);
+        String primary = args[1];
+        List<String> replicas = Arrays.asList(args).subList(2, args.length);
+
+        Map<String, String> cookies = new HashMap<>();
+        Response login = send("POST", replicas.get(0) + "/api/users/login?username=adminjane&password=adminpass",
+                null, cookies);
+        if (login.status != 200) {
+            throw new IllegalStateException("Login failed with status " + login.status);
+        }
+
+        LatencyHistogram reads = new LatencyHistogram();
+        int failures = 0;
+        int routedToPrimary = 0;
+        for (int i = 0; i < writes; i++) {
+            String userId = "REPL-" + i;
+            String body = "{\"user_id\":\"" + userId + "\",\"name\":\"Replication Check " + i + "\",\"dob\":\"1990-01-01\","
+                    + "\"address\":\"" + i + " Replica Rd\",\"age\":34,\"type\":\"PATIENT\",\"gender\":\"F\","
+                    + "\"contact_info\":\"555-" + i + "\",\"username\":\"replcheck" + i + "\",\"password\":\"pw-" + i + "\"}";
+            Response added = sendFollowing("POST", replicas.get(i % replicas.size()) + "/api/users/add", body, cookies);
+            if (added.status != 200) {
+                System.out.println("add " + userId + " failed with status " + added.status);
+                failures++;
+                continue;
+            }
+            long start = System.nanoTime();
+            Response read = send("GET", replicas.get((i + 1) % replicas.size()) + "/api/users/" + userId, null, cookies);
+            if (read.status == 307) {
+                routedToPrimary++;
+                read = send("GET", read.location, null, cookies);
+            }
+            reads.record(System.nanoTime() - start);
+            if (read.status != 200) {
+                System.out.println("read of own write " + userId + " answered " + read.status);
+                failures++;
+            }
+        }
+        for (int i = 0; i < writes; i++) {
+            Response removed = sendFollowing("POST", replicas.get(i % replicas.size()) + "/api/users/remove",
+                    "{\"user_id\":\"REPL-" + i + "\",\"reason\":\"replication check\"}", cookies);
+            if (removed.status != 200) {
+                System.out.println("remove REPL-" + i + " failed with status " + removed.status);
+                failures++;
+            }
+        }
+
+        long target = sequence(primary);
+        long deadline = System.currentTimeMillis() + CONVERGE_MILLIS;
+        for (String replica : replicas) {
+            long applied;
+            while ((applied = sequence(replica)) < target && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            System.out.println(replica + " at sequence " + applied + " of " + target);
+            if (applied < target) {
+                failures++;
+            }
+        }
+        System.out.printf(Locale.ROOT, "writes=%d own reads routed to the primary=%d failures=%d%n",
+                writes, routedToPrimary, failures);
+        System.out.printf(Locale.ROOT, "read-your-writes latency ms: p50=%.2f p99=%.2f max=%.2f%n",
+                reads.quantileNanos(0.5) / 1e6, reads.quantileNanos(0.99) / 1e6, reads.maxNanos() / 1e6);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static long sequence(String node) throws IOException {
+        Matcher matcher = SEQUENCE.matcher(send("GET", node + "/api/users/replication", null, null).body);
+        if (!matcher.find()) {
+            throw new IllegalStateException("No replication status from " + node);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    // Repeats a write redirected by a replica on the primary, as a client following a 307 would
+    private static Response sendFollowing(String method, String url, String body, Map<String, String> cookies)
+            throws IOException {
+        Response response = send(method, url, body, cookies);
+        return response.status == 307 ? send(method, response.location, body, cookies) : response;
+    }
+
+    private static Response send(String method, String url, String body, Map<String, String> cookies)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        if (cookies != null && !cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+                header.append(header.length() == 0 ? "" : "; ").append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            connection.setRequestProperty("Cookie", header.toString());
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.location = connection.getHeaderField("Location");
+        List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+        if (cookies != null && setCookies != null) {
+            for (String setCookie : setCookies) {
+                String[] pair = setCookie.split(";", 2)[0].split("=", 2);
+                if (pair.length == 2 && !pair[1].isEmpty()) {
+                    cookies.put(pair[0], pair[1]);
+                } else {
+                    cookies.remove(pair[0]);
+                }
+            }
+        }
+        InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = stream.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, n);
+                }
+            }
+        }
+        response.body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static final class Response {
+        int status;
+        String location;
+        String body;
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.metrics.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Closed-loop HTTP load test against a running EHR viewer, for comparing request execution modes
+ * ({@code ehr.web.execution}) at the same thread count.
+ *
+ * Each client keeps one keep-alive connection and sends its next request as soon as the previous
+ * one is answered: 70% {@code GET /api/users/{id}}, 20% {@code GET /api/users/page}, and 10%
+ * {@code PATCH /api/users/{id}} with the ETag just read. It logs in as an admin, imports
+ * {@code LOAD-n} users if they are missing, runs a warmup, then reports throughput, latency
+ * quantiles and the share of 503s and errors over the measured interval.
+ *
+ * The server needs no special setup beyond the default admin user; start it with cheap password
+ * hashing if it has to import the users, e.g. {@code --ehr.auth.pbkdf2-iterations=1000
+ * --ehr.auth.pbkdf2-min-iterations=1000}.
+ *
+ * Usage: {@code java -cp benchmarks.jar com.example.ehrviewer.benchmark.RequestLoadTest
+ * [base-url] [clients] [seconds] [warmup-seconds] [users]}.
+ */
+public class RequestLoadTest {
+    private static final String USERNAME = "adminjane";
+    private static final String PASSWORD = "adminpass";
+
+    public static void main(String[] args) throws Exception {
+        URI base = URI.create(args.length > 0 ? args[0] : "http://localhost:8081");
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int warmupSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int users = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+        String cookie;
+        try (Connection connection = new Connection(base, null)) {
+            Response login = connection.send("POST", "/api/users/login?username=" + USERNAME + "&password=" + PASSWORD,
+                    null, null, null);
+            String setCookie = login.header("set-cookie");
+            if (login.status != 200 || setCookie == null) {
+                throw new IllegalStateException("Login failed with status " + login.status);
+            }
+            cookie = setCookie.split(";", 2)[0];
+            seed(new Connection(base, cookie), users);
+        }
+
+        Stats warmup = new Stats();
+        Stats measured = new Stats();
+        AtomicReference<Stats> current = new AtomicReference<>(warmup);
+        long end = System.nanoTime() + (warmupSeconds + seconds) * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread thread = new Thread(() -> client(base, cookie, users, end, current), "load-client-" + c);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        long start = System.nanoTime();
+        current.set(measured);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram latency = measured.latency;
+        System.out.printf(Locale.ROOT, "clients=%d seconds=%.1f requests=%d rps=%.0f%n",
+                clients, elapsed, latency.count(), latency.count() / elapsed);
+        System.out.printf(Locale.ROOT, "latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                millis(latency.quantileNanos(0.5)), millis(latency.quantileNanos(0.9)),
+                millis(latency.quantileNanos(0.99)), millis(latency.quantileNanos(0.999)),
+                millis(latency.maxNanos()));
+        System.out.printf(Locale.ROOT, "conflicts=%d unavailable=%d errors=%d%n",
+                measured.conflicts.get(), measured.unavailable.get(), measured.errors.get());
+    }
+
+    private static void client(URI base, String cookie, int users, long end, AtomicReference<Stats> current) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Connection connection = null;
+        while (System.nanoTime() < end) {
+            Stats stats = current.get();
+            String userId = "LOAD-" + random.nextInt(users);
+            int kind = random.nextInt(10);
+            long started = System.nanoTime();
+            try {
+                if (connection == null) {
+                    connection = new Connection(base, cookie);
+                }
+                Response response;
+                try {
+                    response = request(connection, kind, userId, random);
+                } catch (StaleConnectionException e) {
+                    // The server closed a used-up keep-alive connection; any client would reconnect
+                    connection.close();
+                    connection = new Connection(base, cookie);
+                    response = request(connection, kind, userId, random);
+                }
+                stats.latency.record(System.nanoTime() - started);
+                if (response.status == 409) {
+                    stats.conflicts.incrementAndGet();
+                } else if (response.status == 503) {
+                    stats.unavailable.incrementAndGet();
+                } else if (response.status != 200) {
+                    stats.errors.incrementAndGet();
+                }
+                if (response.closed) {
+                    connection.close();
+                    connection = null;
+                }
+            } catch (IOException e) {
+                stats.latency.record(System.nanoTime() - started);
+                stats.errors.incrementAndGet();
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static Response request(Connection connection, int kind, String userId, ThreadLocalRandom random)
+            throws IOException {
+        if (kind < 7) {
+            return connection.send("GET", "/api/users/" + userId, null, null, null);
+        }
+        if (kind < 9) {
+            return connection.send("GET", "/api/users/page?limit=20", null, null, null);
+        }
+        Response read = connection.send("GET", "/api/users/" + userId, null, null, null);
+        return read.status != 200 ? read : connection.send("PATCH", "/api/users/" + userId, read.header("etag"),
+                "application/json", "{\"address\":\"" + random.nextInt(1_000_000) + " Load St\"}");
+    }
+
+    /**
+     * Import the {@code LOAD-n} users unless the last one already exists.
+     */
+    private static void seed(Connection connection, int users) throws IOException {
+        try {
+            if (connection.send("GET", "/api/users/LOAD-" + (users - 1), null, null, null).status == 200) {
+                return;
+            }
+            StringBuilder csv = new StringBuilder("user_id,name,type,username,age\n");
+            for (int i = 0; i < users; i++) {
+                csv.append("LOAD-").append(i).append(",Load User ").append(i).append(",PATIENT,load")
+                        .append(i).append(',').append(i % 90).append('\n');
+            }
+            Response response = connection.send("POST", "/api/users/import", null, "text/csv", csv.toString());
+            if (response.status != 200) {
+                throw new IllegalStateException("Import failed with status " + response.status);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong unavailable = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /**
+     * A reused connection was found closed before the server answered.
+     */
+    private static final class StaleConnectionException extends IOException {
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final Map<String, String> headers;
+        final boolean closed;
+
+        Response(int status, Map<String, String> headers) {
+            this.status = status;
+            this.headers = headers;
+            this.closed = "close".equalsIgnoreCase(headers.get("connection"));
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 keep-alive client; {@code HttpURLConnection} cannot send PATCH.
+     */
+    private static final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String host;
+        private final String cookie;
+        private int exchanges;
+
+        Connection(URI base, String cookie) throws IOException {
+            this.host = base.getHost() + ":" + base.getPort();
+            this.cookie = cookie;
+            this.socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(base.getHost(), base.getPort()), 5000);
+            socket.setSoTimeout(60_000);
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        Response send(String method, String path, String ifMatch, String contentType, String body)
+                throws IOException {
+            byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            StringBuilder request = new StringBuilder(256);
+            request.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host)
+                    .append("\r\nAccept: application/json\r\n");
+            if (cookie != null) {
+                request.append("Cookie: ").append(cookie).append("\r\n");
+            }
+            if (ifMatch != null) {
+                request.append("If-Match: ").append(ifMatch).append("\r\n");
+            }
+            if (contentType != null) {
+                request.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            request.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+            String statusLine;
+            try {
+                out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+                out.write(content);
+                out.flush();
+                statusLine = line();
+            } catch (IOException e) {
+                throw exchanges > 0 ? new StaleConnectionException(e) : e;
+            }
+            exchanges++;
+            if (statusLine.length() < 12) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            Map<String, String> headers = new HashMap<>();
+            String header;
+            while (!(header = line()).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0) {
+                    headers.put(header.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            header.substring(colon + 1).trim());
+                }
+            }
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                long size;
+                while ((size = Long.parseLong(line().trim(), 16)) > 0) {
+                    skip(size);
+                    line();
+                }
+                while (!line().isEmpty()) {
+                    // Trailers
+                }
+            } else if (headers.containsKey("content-length")) {
+                skip(Long.parseLong(headers.get("content-length")));
+            }
+            return new Response(status, headers);
+        }
+
+        private String line() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        private void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                long skipped = in.skip(bytes);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Connection closed");
+                    }
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.ehrviewer.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from launching the EHR viewer to its first successful request, over several cold starts.
+ *
+ * Each run starts the given command with {@code --server.port=<port>} appended, then polls until it
+ * answers anything over HTTP (port open) and until a login as the sample admin succeeds, which
+ * needs the users loaded. The process is then stopped, as a deploy would, and waited for, so a file
+ * store's shutdown snapshot is written before the next run. Reports each run and the median.
+ *
+ * Usage: {@code java -cp benchmarks.jar com.example.ehrviewer.benchmark.StartupTimeTest
+ * runs port command...}, e.g. with {@code java -XX:SharedArchiveFile=target/ehr_viewer.jsa -jar
+ * target/ehr_viewer-1.0.0-fast-startup.jar --spring.profiles.active=fast-startup} as the command. The server's
+ * output goes to {@code startup-run-<n>.log} in the working directory.
+ */
+public class StartupTimeTest {
+    private static final String LOGIN = "/api/users/login?username=adminjane&password=adminpass";
+    private static final long POLL_MILLIS = 10;
+    private static final long TIMEOUT_MILLIS = 600_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: StartupTimeTest runs port command...");
+            System.exit(2);
+        }
+        int runs = Integer.parseInt(args[0]);
+        int port = Integer.parseInt(args[1]);
+        List<String> command = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+        command.add("--server.port=" + port);
+        String base = "http://localhost:" + port;
+
+        long[] portOpen = new long[runs];
+        long[] firstSuccess = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            Process server = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(new File("startup-run-" + run + ".log")).start();
+            try {
+                portOpen[run] = -1;
+                while (true) {
+                    if (!server.isAlive()) {
+                        throw new IllegalStateException("Server exited with status " + server.exitValue());
+                    }
+                    if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)) {
+                        throw new IllegalStateException("No successful request within " + TIMEOUT_MILLIS + " ms");
+                    }
+                    int status = status(base + LOGIN);
+                    long elapsed = System.nanoTime() - start;
+                    if (status > 0 && portOpen[run] < 0) {
+                        portOpen[run] = elapsed;
+                    }
+                    if (status == 200) {
+                        firstSuccess[run] = elapsed;
+                        break;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                }
+            } finally {
+                server.destroy();
+                if (!server.waitFor(2, TimeUnit.MINUTES)) {
+                    server.destroyForcibly().waitFor();
+                }
+            }
+            System.out.printf(Locale.ROOT, "run %d: port open %.0f ms, first successful request %.0f ms%n",
+                    run, millis(portOpen[run]), millis(firstSuccess[run]));
+        }
+        System.out.printf(Locale.ROOT, "median of %d: port open %.0f ms, first successful request %.0f ms%n",
+                runs, millis(median(portOpen)), millis(median(firstSuccess)));
+    }
+
+    // The status of a POST, or 0 if nothing answered
+    private static int status(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(60_000);
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                body.close();
+            }
+            return status;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
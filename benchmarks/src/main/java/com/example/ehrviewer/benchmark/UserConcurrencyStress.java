@@ -0,0 +1,204 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.audit.AuditLogIndex;
+import com.example.ehrviewer.model.AuditPage;
+import com.example.ehrviewer.model.AuditQuery;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPatch;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.service.UserConflictException;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.store.UserDirectory;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Races writers against each other on the same users and checks that no write is lost or
+ * audited twice:
+ * <ul>
+ *   <li>every thread adds the same users; exactly one add of each must succeed,</li>
+ *   <li>every thread increments the age of the same few users with If-Match updates, retrying
+ *       on conflict; each final age must equal the number of successful updates,</li>
+ *   <li>every thread removes the same users; exactly one remove of each must succeed,</li>
+ * </ul>
+ * and that the audit log holds exactly one success entry per successful operation.
+ *
+ * Usage: {@code java -cp benchmarks.jar com.example.ehrviewer.benchmark.UserConcurrencyStress [threads] [updates-per-thread]}.
+ * Exits with status 1 if any check fails.
+ */
+public class UserConcurrencyStress {
+    private static final int CONTENDED_USERS = 200;
+    private static final int HOT_USERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int updatesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        Path auditDirectory = Fixtures.tempDirectory("ehr-stress-audit");
+        Map<String, Object> properties = new HashMap<>();
+        // Adds hash passwords; keep that from dominating the run
+        properties.put("ehr.auth.pbkdf2-iterations", 1000);
+        List<String> failures = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            AtomicIntegerArray adds = new AtomicIntegerArray(CONTENDED_USERS);
+            AtomicIntegerArray updates = new AtomicIntegerArray(HOT_USERS);
+            AtomicIntegerArray removes = new AtomicIntegerArray(CONTENDED_USERS);
+            int[] finalAges = new int[HOT_USERS];
+            long conflicts;
+
+            try (AnnotationConfigApplicationContext context = Fixtures.serviceContext(auditDirectory, properties)) {
+                UserService service = context.getBean(UserService.class);
+                UserDirectory directory = context.getBean(UserDirectory.class);
+
+                run(pool, threads, () -> {
+                    for (int i = 0; i < CONTENDED_USERS; i++) {
+                        try {
+                            service.addUser(user("STRESS-" + i, 0), "stress", "add race");
+                            adds.incrementAndGet(i);
+                        } catch (IllegalArgumentException e) {
+                            // Lost the race
+                        }
+                    }
+                    return 0L;
+                });
+
+                for (int i = 0; i < HOT_USERS; i++) {
+                    directory.add(user("HOT-" + i, 0));
+                }
+                conflicts = run(pool, threads, () -> {
+                    long lost = 0;
+                    for (int n = 0; n < updatesPerThread; n++) {
+                        int i = n % HOT_USERS;
+                        String userId = "HOT-" + i;
+                        while (true) {
+                            // Tag first: the user read after it is at least that new, so a stale read only conflicts
+                            String tag = service.getUserTag(userId);
+                            UserPatch patch = new UserPatch();
+                            patch.setAge(directory.get(userId).getAge() + 1);
+                            try {
+                                service.updateUser(userId, patch, tag, "stress", "update race");
+                                updates.incrementAndGet(i);
+                                break;
+                            } catch (UserConflictException e) {
+                                lost++;
+                            }
+                        }
+                    }
+                    return lost;
+                });
+                for (int i = 0; i < HOT_USERS; i++) {
+                    finalAges[i] = directory.get("HOT-" + i).getAge();
+                }
+
+                run(pool, threads, () -> {
+                    for (int i = 0; i < CONTENDED_USERS; i++) {
+                        try {
+                            service.removeUser("STRESS-" + i, "stress", "remove race");
+                            removes.incrementAndGet(i);
+                        } catch (IllegalArgumentException e) {
+                            // Lost the race
+                        }
+                    }
+                    return 0L;
+                });
+            }
+
+            // Reopen on the same directory, so every audit entry has been written out
+            try (AnnotationConfigApplicationContext context = Fixtures.serviceContext(auditDirectory, properties)) {
+                AuditLogIndex index = context.getBean(AuditLogIndex.class);
+                Map<String, Integer> added = successes(index, "USER_ADD");
+                Map<String, Integer> updated = successes(index, "USER_UPDATE");
+                Map<String, Integer> removed = successes(index, "USER_REMOVE");
+                for (int i = 0; i < CONTENDED_USERS; i++) {
+                    String resource = "user/STRESS-" + i;
+                    check(failures, adds.get(i) == 1, "STRESS-" + i + " added " + adds.get(i) + " times");
+                    check(failures, removes.get(i) == 1, "STRESS-" + i + " removed " + removes.get(i) + " times");
+                    check(failures, added.getOrDefault(resource, 0) == 1,
+                            resource + " has " + added.getOrDefault(resource, 0) + " add audits");
+                    check(failures, removed.getOrDefault(resource, 0) == 1,
+                            resource + " has " + removed.getOrDefault(resource, 0) + " remove audits");
+                }
+                int totalUpdates = 0;
+                for (int i = 0; i < HOT_USERS; i++) {
+                    String resource = "user/HOT-" + i;
+                    totalUpdates += updates.get(i);
+                    check(failures, finalAges[i] == updates.get(i),
+                            "HOT-" + i + " age " + finalAges[i] + " after " + updates.get(i) + " updates");
+                    check(failures, updated.getOrDefault(resource, 0) == updates.get(i),
+                            resource + " has " + updated.getOrDefault(resource, 0) + " update audits for "
+                                    + updates.get(i) + " updates");
+                }
+                check(failures, totalUpdates == threads * updatesPerThread,
+                        totalUpdates + " updates succeeded of " + threads * updatesPerThread);
+            }
+
+            System.out.printf("threads=%d adds=%d updates=%d conflicts-retried=%d removes=%d%n",
+                    threads, CONTENDED_USERS, threads * updatesPerThread, conflicts, CONTENDED_USERS);
+        } finally {
+            pool.shutdownNow();
+            Fixtures.deleteRecursively(auditDirectory);
+        }
+
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.out.println("FAIL: " + failure));
+            System.exit(1);
+        }
+        System.out.println("OK: no lost updates or duplicate audits");
+    }
+
+    /**
+     * Run the task on every thread at once and return the sum of the results.
+     */
+    private static long run(ExecutorService pool, int threads, Callable<Long> task) throws Exception {
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(task));
+        }
+        long total = 0;
+        for (Future<Long> future : futures) {
+            total += future.get();
+        }
+        return total;
+    }
+
+    /**
+     * Count the successful audit entries of one event type by resource.
+     */
+    private static Map<String, Integer> successes(AuditLogIndex index, String eventType) throws Exception {
+        Map<String, Integer> counts = new HashMap<>();
+        String cursor = null;
+        do {
+            AuditPage page = index.query(new AuditQuery(null, null, null, null, eventType, cursor, AuditQuery.MAX_LIMIT));
+            for (JsonNode entry : page.getEntries()) {
+                if ("SUCCESS".equals(entry.path("result").asText())) {
+                    counts.merge(entry.path("resource").asText(), 1, Integer::sum);
+                }
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return counts;
+    }
+
+    private static void check(List<String> failures, boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+
+    private static User user(String userId, int age) {
+        return new User(userId, "Stress User " + userId, "1990-06-15", "1 Stress Rd", age, UserType.PATIENT, "F",
+                "555-0000", userId.toLowerCase(), "secret");
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.encoding.UserStreamWriter;
+import com.example.ehrviewer.encoding.WireFormat;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.store.UserDirectory;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of answering {@code GET /api/users} in each {@link WireFormat}: the former way, copying
+ * every user into a map and serializing it into one byte array, against writing the directory's
+ * live view straight to the output with {@link UserStreamWriter}. The payload size of each format
+ * is printed at setup; the GC profiler's {@code gc.alloc.rate.norm} shows what each way allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserEncodingBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int population;
+
+    @Param({"JSON", "SMILE", "CBOR"})
+    public WireFormat format;
+
+    private AnnotationConfigApplicationContext context;
+    private UserDirectory directory;
+    private ObjectMapper mapper;
+    private UserStreamWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new AnnotationConfigApplicationContext(MetricsRegistry.class, UserDirectory.class);
+        directory = context.getBean(UserDirectory.class);
+        Fixtures.populate(directory, population);
+        mapper = new ObjectMapper(factory(format));
+        writer = new UserStreamWriter(mapper);
+
+        CountingSink sink = new CountingSink();
+        writer.write(directory.values(), sink);
+        System.out.printf("%n%s payload for %d users: %d bytes, %.1f per user%n",
+                format, population, sink.bytes, (double) sink.bytes / population);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public byte[] mapToBytes() throws IOException {
+        return mapper.writeValueAsBytes(directory.snapshot());
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        CountingSink sink = new CountingSink();
+        writer.write(directory.values(), sink);
+        return sink.bytes;
+    }
+
+    private static JsonFactory factory(WireFormat format) {
+        switch (format) {
+            case SMILE:
+                return new SmileFactory();
+            case CBOR:
+                return new CBORFactory();
+            default:
+                return new JsonFactory();
+        }
+    }
+
+    /**
+     * Stands in for the response: counts what is written and keeps none of it.
+     */
+    private static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPatch;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.store.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserService#addUser}, {@link UserService#updateUser} and {@link UserService#removeUser}
+ * under contention: every thread repeatedly writes its own users while the others do the same.
+ * Run with several thread counts to see how writes scale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserMutationBenchmark {
+
+    @Param({"1000", "100000", "1000000", "5000000"})
+    public int population;
+
+    private Path auditDirectory;
+    private AnnotationConfigApplicationContext context;
+    private UserService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        auditDirectory = Fixtures.tempDirectory("ehr-bench-audit");
+        context = Fixtures.serviceContext(auditDirectory, Collections.<String, Object>emptyMap());
+        service = context.getBean(UserService.class);
+        Fixtures.populate(context.getBean(UserDirectory.class), population);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        Fixtures.deleteRecursively(auditDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        private User[] users;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams thread) {
+            users = new User[1024];
+            for (int i = 0; i < users.length; i++) {
+                String id = "BENCH-" + thread.getThreadIndex() + "-" + i;
+                users[i] = new User(id, "Bench User " + i, "1990-06-15", "1 Bench Rd", 30, UserType.PATIENT, "F",
+                        "555-0000", id.toLowerCase(), "secret");
+            }
+        }
+
+        User nextUser() {
+            User user = users[next];
+            next = (next + 1) & (users.length - 1);
+            return user;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Updater {
+        private String userId;
+        private String tag;
+        private final UserPatch patch = new UserPatch();
+
+        @Setup(Level.Trial)
+        public void setUp(UserMutationBenchmark benchmark, ThreadParams thread) throws Exception {
+            userId = "BENCH-UPDATE-" + thread.getThreadIndex();
+            benchmark.service.addUser(new User(userId, "Bench User", "1990-06-15", "1 Bench Rd", 30, UserType.PATIENT,
+                    "F", "555-0000", userId.toLowerCase(), "secret"), "bench", "benchmark");
+            tag = benchmark.service.getUserTag(userId);
+        }
+    }
+
+    @Benchmark
+    public User addThenRemove(Writer writer) throws Exception {
+        User user = writer.nextUser();
+        service.addUser(user, "bench", "benchmark");
+        return service.removeUser(user.getUserId(), "bench", "benchmark");
+    }
+
+    @Benchmark
+    public User update(Updater updater) throws Exception {
+        // Alternate the age, each update against the tag the last one returned
+        updater.patch.setAge(updater.patch.getAge() == null || updater.patch.getAge() == 31 ? 30 : 31);
+        User user = service.updateUser(updater.userId, updater.patch, updater.tag, "bench", "benchmark");
+        updater.tag = service.getUserTag(updater.userId);
+        return user;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.ehrviewer.benchmark;
+
+import com.example.ehrviewer.auth.CredentialService;
+import com.example.ehrviewer.controller.RequestExecutor;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPage;
+import com.example.ehrviewer.model.UserQuery;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.store.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read paths of {@link UserService} against a pre-populated directory.
+ * Audit events go through the default fire-and-forget pipeline to a scratch directory.
+ *
+ * {@code authenticate} logs in as one of {@link #LOGIN_USERS} users whose passwords are hashed at
+ * {@link Fixtures#PBKDF2_ITERATIONS}, the cost the service runs at, so each login is one verification
+ * at that cost. {@link LoginStormBenchmark} measures logins at production costs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserServiceBenchmark {
+    private static final int SAMPLES = 1 << 16;
+    private static final int LOGIN_USERS = 1024;
+
+    @Param({"1000", "100000", "1000000", "5000000"})
+    public int population;
+
+    private Path auditDirectory;
+    private AnnotationConfigApplicationContext context;
+    private UserService service;
+    private RequestExecutor requests;
+
+    // Pre-built arguments, so the benchmark loop does not allocate on its own account
+    private String[] userIds;
+    private String[] usernames;
+    private String[] passwords;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        auditDirectory = Fixtures.tempDirectory("ehr-bench-audit");
+        context = Fixtures.serviceContext(auditDirectory, Collections.<String, Object>emptyMap());
+        service = context.getBean(UserService.class);
+        requests = context.getBean(RequestExecutor.class);
+        UserDirectory directory = context.getBean(UserDirectory.class);
+        Fixtures.populate(directory, population);
+        Fixtures.hashPasswords(directory, context.getBean(CredentialService.class), Math.min(LOGIN_USERS, population));
+
+        SplittableRandom random = new SplittableRandom(42);
+        userIds = new String[SAMPLES];
+        usernames = new String[SAMPLES];
+        passwords = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            userIds[i] = Fixtures.user(random.nextInt(population)).getUserId();
+            User login = Fixtures.user(random.nextInt(Math.min(LOGIN_USERS, population)));
+            usernames[i] = login.getUsername();
+            passwords[i] = login.getPassword();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        Fixtures.deleteRecursively(auditDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next() {
+            return random.nextInt(SAMPLES);
+        }
+    }
+
+    @Benchmark
+    public User authenticate(Cursor cursor) throws Exception {
+        int i = cursor.next();
+        return service.authenticate(usernames[i], passwords[i], null, requests.continuation()).join();
+    }
+
+    @Benchmark
+    public User getUser(Cursor cursor) throws Exception {
+        return service.getUser(userIds[cursor.next()], "bench");
+    }
+
+    @Benchmark
+    public Map<String, User> getAllUsers() throws Exception {
+        return service.getAllUsers("bench");
+    }
+
+    @Benchmark
+    public UserPage getUsersPage(Cursor cursor) throws Exception {
+        UserQuery query = new UserQuery(null, null, null, null, null, UserQuery.DEFAULT_LIMIT);
+        return service.getUsersPage(query, "bench");
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.ehrviewer.audit;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP request an audited operation runs for, bound to the thread doing its work: the
+ * correlation id every event the request logs shares, and the session it came in.
+ *
+ * A correlation id is a random per-process prefix and a request counter ({@code 1f3a9c2e-00000000000004d2}),
+ * so ids are unique across restarts and processes yet cost one increment, and sort in request order
+ * within a process. Events logged outside any request each take the next counter value of their own.
+ * The session id is a keyed hash of the session cookie: the same for every request with that cookie,
+ * but not the cookie itself, which is a credential. In {@code TOKEN} session mode it changes whenever
+ * the token is reissued.
+ *
+ * {@link AuditContextFilter} opens a context for each request; work handed to another thread takes it
+ * along with {@link #attach}.
+ */
+public final class AuditContext {
+    private static final ThreadLocal<AuditContext> CURRENT = new ThreadLocal<>();
+    private static final AtomicLong REQUESTS = new AtomicLong();
+
+    private static final long PREFIX;
+    private static final long SESSION_KEY;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        PREFIX = random.nextInt() & 0xffffffffL;
+        SESSION_KEY = random.nextLong();
+    }
+
+    private final long sequence;
+    private volatile boolean hasSession;
+    private volatile long session;
+
+    private AuditContext(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Open a context for a new request on this thread. The caller must {@link #attach} the previous
+     * one, usually null, when the request is done.
+     */
+    public static AuditContext begin() {
+        AuditContext context = new AuditContext(REQUESTS.incrementAndGet());
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * The context of the request this thread is working for, or null if there is none.
+     */
+    public static AuditContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make a context, or none if null, this thread's current one. Returns the one it replaces.
+     */
+    public static AuditContext attach(AuditContext context) {
+        AuditContext previous = CURRENT.get();
+        if (context == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+        return previous;
+    }
+
+    /**
+     * Record the session cookie the current request came with, if there is a current request.
+     */
+    public static void bindSession(String cookieValue) {
+        AuditContext context = CURRENT.get();
+        if (context != null && cookieValue != null) {
+            context.session = hash(cookieValue);
+            context.hasSession = true;
+        }
+    }
+
+    /**
+     * The current request's correlation id, or a new one if there is no current request.
+     */
+    public static String currentCorrelationId() {
+        AuditContext context = CURRENT.get();
+        return correlationId(context == null ? REQUESTS.incrementAndGet() : context.sequence);
+    }
+
+    /**
+     * The current request's session id, or null if it has no session.
+     */
+    public static String currentSessionId() {
+        AuditContext context = CURRENT.get();
+        return context == null ? null : context.sessionId();
+    }
+
+    public String correlationId() {
+        return correlationId(sequence);
+    }
+
+    public String sessionId() {
+        if (!hasSession) {
+            return null;
+        }
+        AuditEncoder encoder = new AuditEncoder(16);
+        encoder.hex(session, 16);
+        return new String(encoder.bytes(), 0, encoder.length(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Append the JSON string of the correlation id, taking a new sequence number if there is no context.
+     */
+    static void encodeCorrelationId(AuditContext context, AuditEncoder encoder) {
+        encoder.quote();
+        encodeId(context == null ? REQUESTS.incrementAndGet() : context.sequence, encoder);
+        encoder.quote();
+    }
+
+    /**
+     * Append the JSON string of the session id, or null.
+     */
+    static void encodeSessionId(AuditContext context, AuditEncoder encoder) {
+        if (context == null || !context.hasSession) {
+            encoder.nullValue();
+            return;
+        }
+        encoder.quote();
+        encoder.hex(context.session, 16);
+        encoder.quote();
+    }
+
+    private static String correlationId(long sequence) {
+        AuditEncoder encoder = new AuditEncoder(32);
+        encodeId(sequence, encoder);
+        return new String(encoder.bytes(), 0, encoder.length(), StandardCharsets.US_ASCII);
+    }
+
+    private static void encodeId(long sequence, AuditEncoder encoder) {
+        encoder.hex(PREFIX, 8);
+        encoder.raw((byte) '-');
+        encoder.hex(sequence, 16);
+    }
+
+    // FNV-1a over the key and the value, then a 64-bit finalizer so that close values spread
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L ^ SESSION_KEY;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.ehrviewer.audit;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Opens an {@link AuditContext} for every request and returns its correlation id in the
+ * {@value #HEADER} response header, so a client can name the audit events of a request it made.
+ */
+@Component
+public class AuditContextFilter extends OncePerRequestFilter {
+    public static final String HEADER = "X-Request-ID";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        AuditContext previous = AuditContext.current();
+        AuditContext context = AuditContext.begin();
+        response.setHeader(HEADER, context.correlationId());
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            AuditContext.attach(previous);
+        }
+    }
+}
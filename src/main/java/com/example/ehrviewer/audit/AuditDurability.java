@@ -0,0 +1,11 @@
+package com.example.ehrviewer.audit;
+
+/**
+ * When an audit call returns relative to the event reaching the audit log.
+ */
+public enum AuditDurability {
+    /** Return as soon as the event is queued. */
+    FIRE_AND_FORGET,
+    /** Return once the batch containing the event has been written and synced to disk. */
+    ACK_AFTER_FLUSH
+}
@@ -0,0 +1,332 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.model.AuditResult;
+import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Appends audit log JSON to a reusable byte array, byte for byte as {@link FileSystemAuditLogger}
+ * writes it: fields in its order, {@code "} and {@code \} escaped with a backslash, other control
+ * characters as {@code \}{@code u00XX}, everything else as UTF-8 with unpaired surrogates written as
+ * {@code ?}. Appending allocates nothing once the array has grown to fit, except for values that are
+ * neither text nor whole numbers, which are converted with {@code toString()} as the logger does.
+ *
+ * A line is the timestamp, written by the audit writer, followed by a tail ({@code ,"eventType":...}
+ * up to and including the newline) that the thread logging the event encodes.
+ */
+final class AuditEncoder {
+    static final byte[] TIMESTAMP = ascii("{\"timestamp\":");
+    static final byte[] EVENT_TYPE = ascii(",\"eventType\":");
+    static final byte[] USER_ID = ascii(",\"userId\":");
+    static final byte[] SESSION_ID = ascii(",\"sessionId\":");
+    static final byte[] APPLICATION = ascii(",\"application\":");
+    static final byte[] COMPONENT = ascii(",\"component\":");
+    static final byte[] ACTION = ascii(",\"action\":");
+    static final byte[] RESOURCE = ascii(",\"resource\":");
+    static final byte[] RESULT = ascii(",\"result\":");
+    static final byte[] MESSAGE = ascii(",\"message\":");
+    static final byte[] DETAILS = ascii(",\"details\":");
+    static final byte[] CORRELATION_ID = ascii(",\"correlationId\":");
+    static final byte[] END = ascii("}\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    // The fields logSuccess and logFailure leave unset, between userId and action
+    private static final byte[] SIMPLE_UNSET = concat(USER_ID, NULL, SESSION_ID, NULL, APPLICATION, NULL,
+            COMPONENT, NULL);
+    private static final byte[] SIMPLE_SUCCESS = concat(RESULT, quoted(AuditResult.SUCCESS), MESSAGE);
+    private static final byte[] SIMPLE_FAILURE = concat(RESULT, quoted(AuditResult.FAILURE), MESSAGE);
+    private static final byte[] SIMPLE_END = concat(DETAILS, NULL, CORRELATION_ID, NULL, END);
+
+    // Last instants written fall in this second, formatted as yyyy-MM-ddTHH:mm:ss
+    private static final long LAST_FORMATTABLE_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedDateTime = new byte[19];
+
+    private byte[] bytes;
+    private int length;
+
+    AuditEncoder(int capacity) {
+        this.bytes = new byte[Math.max(16, capacity)];
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    /**
+     * Append the tail of the line {@code logSuccess} or {@code logFailure} writes.
+     */
+    void simple(boolean success, String eventType, String action, String resource, String message) {
+        raw(EVENT_TYPE);
+        string(eventType);
+        raw(SIMPLE_UNSET);
+        raw(ACTION);
+        string(action);
+        raw(RESOURCE);
+        string(resource);
+        raw(success ? SIMPLE_SUCCESS : SIMPLE_FAILURE);
+        string(message);
+        raw(SIMPLE_END);
+    }
+
+    /**
+     * Append a line's opening up to the end of its timestamp.
+     */
+    void timestamp(Instant instant) {
+        raw(TIMESTAMP);
+        long second = instant.getEpochSecond();
+        if (second < 0 || second > LAST_FORMATTABLE_SECOND) {
+            string(instant.toString());
+            return;
+        }
+        if (second != cachedSecond) {
+            byte[] formatted = ascii(LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC).toString());
+            // LocalDateTime leaves out zero seconds, Instant does not
+            System.arraycopy(formatted, 0, cachedDateTime, 0, 16);
+            cachedDateTime[16] = ':';
+            cachedDateTime[17] = formatted.length > 16 ? formatted[17] : (byte) '0';
+            cachedDateTime[18] = formatted.length > 16 ? formatted[18] : (byte) '0';
+            cachedSecond = second;
+        }
+        ensure(32);
+        bytes[length++] = '"';
+        System.arraycopy(cachedDateTime, 0, bytes, length, cachedDateTime.length);
+        length += cachedDateTime.length;
+        // As Instant.toString: no fraction, or milli, micro or nano digits, whichever is exact
+        int nanos = instant.getNano();
+        if (nanos != 0) {
+            bytes[length++] = '.';
+            int digits = nanos % 1_000_000 == 0 ? 3 : nanos % 1_000 == 0 ? 6 : 9;
+            int value = digits == 3 ? nanos / 1_000_000 : digits == 6 ? nanos / 1_000 : nanos;
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+        bytes[length++] = 'Z';
+        bytes[length++] = '"';
+    }
+
+    void raw(byte[] run) {
+        ensure(run.length);
+        System.arraycopy(run, 0, bytes, length, run.length);
+        length += run.length;
+    }
+
+    void raw(byte[] source, int offset, int count) {
+        ensure(count);
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+    }
+
+    void nullValue() {
+        raw(NULL);
+    }
+
+    /**
+     * Append text as a JSON string, or null.
+     */
+    void string(CharSequence text) {
+        if (text == null) {
+            raw(NULL);
+            return;
+        }
+        quote();
+        chars(text);
+        quote();
+    }
+
+    void quote() {
+        ensure(1);
+        bytes[length++] = '"';
+    }
+
+    /**
+     * Append text escaped for the inside of a JSON string.
+     */
+    void chars(CharSequence text) {
+        int count = text.length();
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                if (length == bytes.length) {
+                    ensure(count - i);
+                }
+                bytes[length++] = (byte) c;
+            } else {
+                i = escaped(text, i, c);
+            }
+        }
+    }
+
+    // Returns the index of the last char consumed
+    private int escaped(CharSequence text, int i, char c) {
+        ensure(6);
+        if (c == '"' || c == '\\') {
+            bytes[length++] = '\\';
+            bytes[length++] = (byte) c;
+        } else if (c < 0x20) {
+            bytes[length++] = '\\';
+            bytes[length++] = 'u';
+            bytes[length++] = '0';
+            bytes[length++] = '0';
+            bytes[length++] = HEX[c >> 4];
+            bytes[length++] = HEX[c & 0xf];
+        } else if (c < 0x800) {
+            bytes[length++] = (byte) (0xc0 | c >> 6);
+            bytes[length++] = (byte) (0x80 | c & 0x3f);
+        } else if (!Character.isSurrogate(c)) {
+            bytes[length++] = (byte) (0xe0 | c >> 12);
+            bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+            bytes[length++] = (byte) (0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int code = Character.toCodePoint(c, text.charAt(++i));
+            bytes[length++] = (byte) (0xf0 | code >> 18);
+            bytes[length++] = (byte) (0x80 | code >> 12 & 0x3f);
+            bytes[length++] = (byte) (0x80 | code >> 6 & 0x3f);
+            bytes[length++] = (byte) (0x80 | code & 0x3f);
+        } else {
+            // What the logger's UTF-8 writer substitutes for a malformed char
+            bytes[length++] = '?';
+        }
+        return i;
+    }
+
+    void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            raw(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    void hex(long value, int digits) {
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = HEX[(int) value & 0xf];
+            value >>>= 4;
+        }
+        length += digits;
+    }
+
+    /**
+     * Append any detail value as the logger does: numbers and booleans bare, maps as objects with
+     * their keys as strings, iterables as arrays, and anything else as the string of its {@code toString()}.
+     */
+    void value(Object value) {
+        if (value == null) {
+            raw(NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            appendAscii(value.toString());
+        } else if (value instanceof Map) {
+            raw((byte) '{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    raw((byte) ',');
+                }
+                first = false;
+                string(String.valueOf(entry.getKey()));
+                raw((byte) ':');
+                value(entry.getValue());
+            }
+            raw((byte) '}');
+        } else if (value instanceof Iterable) {
+            raw((byte) '[');
+            boolean first = true;
+            for (Object element : (Iterable<?>) value) {
+                if (!first) {
+                    raw((byte) ',');
+                }
+                first = false;
+                value(element);
+            }
+            raw((byte) ']');
+        } else if (value instanceof CharSequence) {
+            string((CharSequence) value);
+        } else {
+            string(value.toString());
+        }
+    }
+
+    void raw(byte b) {
+        ensure(1);
+        bytes[length++] = b;
+    }
+
+    private void appendAscii(String text) {
+        int count = text.length();
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void ensure(int more) {
+        if (length + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+        }
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The JSON string of a constant, encoded once.
+     */
+    static byte[] quoted(Object constant) {
+        AuditEncoder encoder = new AuditEncoder(64);
+        encoder.value(constant == null ? null : constant.toString());
+        return Arrays.copyOf(encoder.bytes, encoder.length);
+    }
+
+    static byte[] concat(byte[]... runs) {
+        int total = 0;
+        for (byte[] run : runs) {
+            total += run.length;
+        }
+        byte[] joined = new byte[total];
+        int offset = 0;
+        for (byte[] run : runs) {
+            System.arraycopy(run, 0, joined, offset, run.length);
+            offset += run.length;
+        }
+        return joined;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.ehrviewer.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fixed-width on-disk index with one entry per audit log line, memory-mapped in 32 MB chunks.
+ *
+ * Layout: a 32-byte header (magic, version, entry count, log bytes covered), then 32-byte entries
+ * of [log offset][timestamp millis][line length][event type hash][resource hash][user id hash].
+ * A single writer appends entries and then publishes them; readers only see published entries.
+ */
+final class AuditEntryIndex implements Closeable {
+    static final int ENTRY_BYTES = 32;
+    private static final int HEADER_BYTES = 32;
+    private static final int MAGIC = 0x45485249; // "EHRI"
+    private static final int VERSION = 1;
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_ENTRIES = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_BYTES = (long) CHUNK_ENTRIES * ENTRY_BYTES;
+
+    private static final int OFFSET = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int LENGTH = 16;
+    private static final int EVENT_TYPE = 20;
+    private static final int RESOURCE = 24;
+    private static final int USER = 28;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private volatile long count;
+    private long logOffset;
+    private long appended;
+
+    AuditEntryIndex(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            reset();
+        } else {
+            count = header.getLong(8);
+            logOffset = header.getLong(16);
+            appended = count;
+            ensureCapacity(count);
+        }
+    }
+
+    /**
+     * Number of published entries.
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Log bytes covered by the published entries, including lines that were skipped.
+     */
+    long logOffset() {
+        return logOffset;
+    }
+
+    /**
+     * Stage an entry and return its number. It becomes visible to readers at the next {@link #publish(long)}.
+     */
+    long append(long offset, int length, long timestamp, int eventTypeHash, int resourceHash, int userHash)
+            throws IOException {
+        ensureCapacity(appended + 1);
+        ByteBuffer chunk = chunks[(int) (appended >>> CHUNK_SHIFT)];
+        int base = (int) (appended & (CHUNK_ENTRIES - 1)) * ENTRY_BYTES;
+        chunk.putLong(base + OFFSET, offset);
+        chunk.putLong(base + TIMESTAMP, timestamp);
+        chunk.putInt(base + LENGTH, length);
+        chunk.putInt(base + EVENT_TYPE, eventTypeHash);
+        chunk.putInt(base + RESOURCE, resourceHash);
+        chunk.putInt(base + USER, userHash);
+        return appended++;
+    }
+
+    /**
+     * Make staged entries visible and record how far into the log they reach.
+     */
+    void publish(long newLogOffset) {
+        logOffset = newLogOffset;
+        header.putLong(16, newLogOffset);
+        header.putLong(8, appended);
+        count = appended;
+    }
+
+    /**
+     * Drop every entry, e.g. because the log it described was replaced.
+     */
+    void reset() {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putLong(8, 0L);
+        header.putLong(16, 0L);
+        count = 0;
+        appended = 0;
+        logOffset = 0;
+    }
+
+    long offset(long entry) {
+        return entryChunk(entry).getLong(entryBase(entry) + OFFSET);
+    }
+
+    long timestamp(long entry) {
+        return entryChunk(entry).getLong(entryBase(entry) + TIMESTAMP);
+    }
+
+    int length(long entry) {
+        return entryChunk(entry).getInt(entryBase(entry) + LENGTH);
+    }
+
+    int eventTypeHash(long entry) {
+        return entryChunk(entry).getInt(entryBase(entry) + EVENT_TYPE);
+    }
+
+    int resourceHash(long entry) {
+        return entryChunk(entry).getInt(entryBase(entry) + RESOURCE);
+    }
+
+    int userHash(long entry) {
+        return entryChunk(entry).getInt(entryBase(entry) + USER);
+    }
+
+    private ByteBuffer entryChunk(long entry) {
+        return chunks[(int) (entry >>> CHUNK_SHIFT)];
+    }
+
+    private static int entryBase(long entry) {
+        return (int) (entry & (CHUNK_ENTRIES - 1)) * ENTRY_BYTES;
+    }
+
+    private void ensureCapacity(long entries) throws IOException {
+        int needed = (int) ((entries + CHUNK_ENTRIES - 1) >>> CHUNK_SHIFT);
+        MappedByteBuffer[] current = chunks;
+        if (needed <= current.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(current, needed);
+        for (int i = current.length; i < needed; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * CHUNK_BYTES, CHUNK_BYTES);
+        }
+        chunks = grown;
+    }
+
+    /**
+     * Write mapped entries and the header back to disk.
+     */
+    void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.ehrviewer.audit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only, memory-mapped view of an audit log that another writer keeps appending to.
+ *
+ * The file is mapped in 64 MB windows. A window mapped while the file was shorter is
+ * remapped the first time a read needs bytes past its end. Reads that straddle two
+ * windows fall back to a positional read.
+ */
+final class AuditLogFile implements AuditLogReader {
+    private static final int WINDOW_SHIFT = 26;
+    private static final long WINDOW_BYTES = 1L << WINDOW_SHIFT;
+
+    private final FileChannel channel;
+    private final ConcurrentMap<Long, MappedByteBuffer> windows = new ConcurrentHashMap<>();
+
+    AuditLogFile(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int length) throws IOException {
+        long window = offset >>> WINDOW_SHIFT;
+        int start = (int) (offset & (WINDOW_BYTES - 1));
+        if (start + (long) length > WINDOW_BYTES) {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            while (copy.hasRemaining()) {
+                if (channel.read(copy, offset + copy.position()) < 0) {
+                    throw new IOException("Unexpected end of audit log at offset " + (offset + copy.position()));
+                }
+            }
+            copy.flip();
+            return copy;
+        }
+        MappedByteBuffer mapped = windows.get(window);
+        if (mapped == null || mapped.capacity() < start + length) {
+            long base = window << WINDOW_SHIFT;
+            long available = Math.min(WINDOW_BYTES, channel.size() - base);
+            if (available < start + length) {
+                throw new IOException("Unexpected end of audit log at offset " + (base + available));
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, base, available);
+            windows.put(window, mapped);
+        }
+        ByteBuffer slice = mapped.duplicate();
+        slice.limit(start + length).position(start);
+        return slice.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.ehrviewer.audit;
+
+import com.example.ehrviewer.model.AuditPage;
+import com.example.ehrviewer.model.AuditQuery;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Query index over the segmented audit log kept by {@link AuditSegments}.
+ *
+ * Each segment has its own {@link SegmentIndex} under {@code <index-directory>/segment-NNNNNNNNNN}.
+ * The index follows the log incrementally: the audit writer calls {@link #requestRefresh()} after
+ * each batch, and queries catch up before they run. Segments whose time range misses the query are
+ * skipped without being read, and indexes of segments removed by retention are deleted.
+ */
+@Component
+public class AuditLogIndex {
+    private static final Logger log = LoggerFactory.getLogger(AuditLogIndex.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    // Index files from before the log was split into segments
+    private static final String[] LEGACY_FILES = {"entries.idx", "time.idx"};
+
+    // Upper bound on entries examined per page, so sparse filters cannot turn a page into a full scan
+    private static final int MAX_SCAN_PER_PAGE = 100_000;
+
+    @Value("${ehr.audit.index-directory:./ehr-audit-index}")
+    private String indexDirectory;
+
+    @Autowired
+    private AuditSegments auditSegments;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Path directory;
+    private final NavigableMap<Long, SegmentIndex> segments = new ConcurrentSkipListMap<>();
+
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "audit-indexer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        long start = System.nanoTime();
+        directory = Paths.get(indexDirectory);
+        Files.createDirectories(directory);
+        for (String legacy : LEGACY_FILES) {
+            Files.deleteIfExists(directory.resolve(legacy));
+        }
+        sync();
+        long count = 0;
+        for (SegmentIndex segment : segments.values()) {
+            count += segment.count();
+        }
+        log.info("Opened audit index over {} segments with {} entries in {} ms", segments.size(), count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        // Lines written since the index was last closed are indexed in the background; queries wait for them
+        requestRefresh();
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        refresher.shutdown();
+        try {
+            refresher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (SegmentIndex segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Schedule a catch-up with the log on the background indexer. Cheap enough to call after every write.
+     */
+    public void requestRefresh() {
+        if (refreshQueued.compareAndSet(false, true)) {
+            try {
+                refresher.execute(() -> {
+                    refreshQueued.set(false);
+                    try {
+                        refresh();
+                    } catch (IOException e) {
+                        log.warn("Failed to index audit log", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Index every complete line appended to any segment since the last refresh.
+     */
+    public synchronized void refresh() throws IOException {
+        sync();
+        for (SegmentIndex segment : segments.values()) {
+            if (!segment.isComplete()) {
+                segment.refresh();
+            }
+        }
+    }
+
+    /**
+     * Find audit entries matching every given filter, in log order.
+     */
+    public AuditPage query(AuditQuery query) throws IOException {
+        refresh();
+        long from = query.getFrom() == null ? Long.MIN_VALUE : query.getFrom().toEpochMilli();
+        long to = query.getTo() == null ? Long.MAX_VALUE : query.getTo().toEpochMilli();
+        int limit = Math.max(1, Math.min(query.getLimit(), AuditQuery.MAX_LIMIT));
+        long[] cursor = decodeCursor(query.getCursor());
+
+        SegmentIndex.Scan scan = new SegmentIndex.Scan(limit, MAX_SCAN_PER_PAGE);
+        for (SegmentIndex segment : segments.tailMap(cursor[0], true).values()) {
+            if (!segment.overlaps(from, to)) {
+                continue;
+            }
+            long next = segment.scan(segment.id == cursor[0] ? cursor[1] : 0, from, to, query, scan);
+            if (next >= 0) {
+                return new AuditPage(scan.results, segment.id + ":" + next);
+            }
+        }
+        return new AuditPage(scan.results, null);
+    }
+
+    /**
+     * Open indexes for new segments and drop those of segments removed by retention.
+     */
+    private void sync() throws IOException {
+        List<AuditSegments.Segment> live = auditSegments.list();
+        Set<Long> ids = new HashSet<>();
+        for (AuditSegments.Segment segment : live) {
+            ids.add(segment.getId());
+        }
+        Iterator<Map.Entry<Long, SegmentIndex>> iterator = segments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, SegmentIndex> entry = iterator.next();
+            if (!ids.contains(entry.getKey())) {
+                iterator.remove();
+                entry.getValue().close();
+            }
+        }
+        for (AuditSegments.Segment segment : live) {
+            long id = segment.getId();
+            if (!segments.containsKey(id)) {
+                segments.put(id, new SegmentIndex(id, segmentDirectory(id),
+                        auditSegments.logFile(id), auditSegments.compressedFile(id), objectMapper));
+            }
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path stale : directories) {
+                long id = parseSegmentId(stale.getFileName().toString().substring(SEGMENT_PREFIX.length()));
+                if (id < 0 || !ids.contains(id)) {
+                    deleteRecursively(stale);
+                }
+            }
+        }
+    }
+
+    private Path segmentDirectory(long id) {
+        return directory.resolve(String.format("%s%010d", SEGMENT_PREFIX, id));
+    }
+
+    private static long parseSegmentId(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Cursors are {@code <segment id>:<entry number>}.
+     */
+    private static long[] decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return new long[] {Long.MIN_VALUE, 0};
+        }
+        int separator = cursor.indexOf(':');
+        try {
+            if (separator < 0) {
+                throw new NumberFormatException();
+            }
+            long segment = Long.parseLong(cursor.substring(0, separator));
+            long entry = Long.parseLong(cursor.substring(separator + 1));
+            if (segment < 0 || entry < 0) {
+                throw new NumberFormatException();
+            }
+            return new long[] {segment, entry};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.ehrviewer.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the uncompressed bytes of one audit log segment.
+ */
+interface AuditLogReader extends Closeable {
+
+    /**
+     * Uncompressed length of the segment so far.
+     */
+    long size() throws IOException;
+
+    /**
+     * Get a read-only buffer over {@code length} bytes starting at {@code offset}.
+     */
+    ByteBuffer read(long offset, int length) throws IOException;
+}
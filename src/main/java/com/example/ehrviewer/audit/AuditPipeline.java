@@ -0,0 +1,498 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.exception.AuditLoggingException;
+import com.enterprise.audit.logging.model.AuditEvent;
+import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous stage in front of an {@link AuditSink}, normally the segmented
+ * {@link FileSystemAuditLogger} output of {@link AuditSegments}.
+ *
+ * Request threads publish events into a bounded, lock-free multi-producer ring
+ * and a single writer thread drains it in batches. When the ring is full,
+ * producers wait up to the configured offer timeout before failing, so events
+ * are never silently dropped. {@link #close()} stops intake, drains every
+ * queued event and only then closes the underlying logger.
+ *
+ * Under {@code ACK_AFTER_FLUSH} a caller that must not be held until its events
+ * are written can run its work {@link #deferringAcks deferring acks}, and wait
+ * on them without a thread.
+ *
+ * When the sink {@link AuditSink#acceptsEncoded accepts encoded lines}, events
+ * logged as {@link #record records} or with {@link #logSuccess}/{@link #logFailure}
+ * are encoded by the calling thread into its reusable buffer and copied into the
+ * ring slot's own buffer, so logging them allocates nothing; the writer stamps
+ * each batch's lines with the time and hands them to the sink in one write.
+ * Events built as {@link AuditEvent}s still go through the sink's log methods.
+ */
+public class AuditPipeline {
+    private static final Logger log = LoggerFactory.getLogger(AuditPipeline.class);
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    // Set while a thread runs deferringAcks: its acks go here instead of being awaited
+    private static final ThreadLocal<List<CompletableFuture<Void>>> DEFERRED_ACKS = new ThreadLocal<>();
+
+    private static final int ENCODED_BUFFER_BYTES = 256 * 1024;
+
+    private enum Kind { EVENT, SUCCESS, FAILURE, ENCODED }
+
+    /**
+     * A ring slot, filled in place by the producer that claims it and read by the writer, which
+     * only releases it to the next producer after writing it.
+     */
+    private static final class Entry {
+        Kind kind;
+        AuditEvent event;
+        String eventType;
+        String action;
+        String resource;
+        String message;
+        CompletableFuture<Void> ack;
+        // The line's tail for ENCODED, grown as needed and kept for the slot's next use
+        byte[] line = new byte[0];
+        int length;
+
+        void clear() {
+            event = null;
+            eventType = null;
+            action = null;
+            resource = null;
+            message = null;
+            ack = null;
+        }
+    }
+
+    private final AuditSink delegate;
+    private final MetricsRegistry metrics;
+    private final AuditDurability durability;
+    private final int batchSize;
+    private final long offerTimeoutNanos;
+
+    private final boolean encoding;
+    private final ThreadLocal<AuditRecord> records = ThreadLocal.withInitial(() -> new AuditRecord(this));
+
+    private final int mask;
+    private final Entry[] slots;
+    // published[i] holds (sequence + 1) once the slot for that sequence is readable
+    private final AtomicLongArray published;
+    // next sequence to claim; the sign bit marks the pipeline as closed
+    private final AtomicLong tail = new AtomicLong();
+    // next sequence to write; slots before it are free to claim
+    private volatile long head;
+
+    // Owned by the writer thread
+    private final AuditEncoder stamp = new AuditEncoder(64);
+    private ByteBuffer encoded;
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile Runnable batchListener;
+
+    public AuditPipeline(FileSystemAuditLogger delegate, AuditDurability durability, int capacity, int batchSize,
+                         long offerTimeoutMillis) {
+        this(AuditSink.of(delegate), durability, capacity, batchSize, offerTimeoutMillis, null);
+    }
+
+    /**
+     * Create a pipeline that also reports enqueue and write latencies and failures to the given metrics.
+     */
+    public AuditPipeline(AuditSink delegate, AuditDurability durability, int capacity, int batchSize,
+                         long offerTimeoutMillis, MetricsRegistry metrics) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Audit queue capacity must be a power of two: " + capacity);
+        }
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.durability = durability;
+        this.batchSize = Math.max(1, batchSize);
+        this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+        this.mask = capacity - 1;
+        this.slots = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Entry();
+        }
+        this.published = new AtomicLongArray(capacity);
+        this.encoding = delegate.acceptsEncoded();
+        this.encoded = encoding ? ByteBuffer.allocateDirect(ENCODED_BUFFER_BYTES) : null;
+        this.writer = new Thread(this::runWriter, "audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a fully built audit event.
+     */
+    public void logEvent(AuditEvent event) throws AuditLoggingException {
+        submit(Kind.EVENT, event, null, null, null, null, null);
+    }
+
+    /**
+     * Queue a success event.
+     */
+    public void logSuccess(String eventType, String action, String resource, String message) throws AuditLoggingException {
+        logSimple(true, eventType, action, resource, message);
+    }
+
+    /**
+     * Queue a failure event.
+     */
+    public void logFailure(String eventType, String action, String resource, String message) throws AuditLoggingException {
+        logSimple(false, eventType, action, resource, message);
+    }
+
+    /**
+     * Start an event of the given kind on this thread's reusable record. It is queued, as by
+     * {@link #logEvent}, when the record is committed.
+     */
+    public AuditRecord record(AuditTemplate template) {
+        return records.get().start(template);
+    }
+
+    void submit(AuditRecord record) throws AuditLoggingException {
+        AuditContext context = AuditContext.current();
+        if (encoding) {
+            record.encode(context);
+            submit(Kind.ENCODED, null, null, null, null, null, record.encoder);
+        } else {
+            submit(Kind.EVENT, record.toEvent(context), null, null, null, null, null);
+        }
+    }
+
+    private void logSimple(boolean success, String eventType, String action, String resource, String message)
+            throws AuditLoggingException {
+        if (encoding) {
+            AuditEncoder encoder = records.get().encoder;
+            encoder.reset();
+            encoder.simple(success, eventType, action, resource, message);
+            submit(Kind.ENCODED, null, null, null, null, null, encoder);
+        } else {
+            submit(success ? Kind.SUCCESS : Kind.FAILURE, null, eventType, action, resource, message, null);
+        }
+    }
+
+    /**
+     * Run work on this thread with the acks of the events it logs added to {@code acks} instead of
+     * awaited. Only events needing an ack, under {@code ACK_AFTER_FLUSH}, add one. The caller must not
+     * report the work done until every ack has completed, and must treat a failed ack as a failed audit.
+     */
+    public static <T> T deferringAcks(Callable<T> work, List<CompletableFuture<Void>> acks) throws Exception {
+        List<CompletableFuture<Void>> previous = DEFERRED_ACKS.get();
+        DEFERRED_ACKS.set(acks);
+        try {
+            return work.call();
+        } finally {
+            if (previous == null) {
+                DEFERRED_ACKS.remove();
+            } else {
+                DEFERRED_ACKS.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Register a callback run on the writer thread after each batch has been written. It must not block.
+     */
+    public void setBatchListener(Runnable batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Get the number of events queued but not yet written.
+     */
+    public int pending() {
+        long t = tail.get() & ~CLOSED;
+        return (int) (t - head);
+    }
+
+    /**
+     * Stop accepting events, write everything already queued and close the underlying logger.
+     */
+    public void close() throws AuditLoggingException {
+        long t;
+        do {
+            t = tail.get();
+            if (t < 0) {
+                return;
+            }
+        } while (!tail.compareAndSet(t, t | CLOSED));
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    private void submit(Kind kind, AuditEvent event, String eventType, String action, String resource, String message,
+                        AuditEncoder line) throws AuditLoggingException {
+        long start = System.nanoTime();
+        CompletableFuture<Void> ack = durability == AuditDurability.ACK_AFTER_FLUSH ? new CompletableFuture<>() : null;
+        long seq;
+        try {
+            seq = claim();
+        } catch (AuditLoggingException e) {
+            if (metrics != null) {
+                metrics.recordAuditRejected();
+            }
+            throw e;
+        }
+        int index = (int) seq & mask;
+        Entry entry = slots[index];
+        entry.kind = kind;
+        entry.event = event;
+        entry.eventType = eventType;
+        entry.action = action;
+        entry.resource = resource;
+        entry.message = message;
+        entry.ack = ack;
+        if (line != null) {
+            if (entry.line.length < line.length()) {
+                entry.line = new byte[Math.max(line.length(), 256)];
+            }
+            System.arraycopy(line.bytes(), 0, entry.line, 0, line.length());
+            entry.length = line.length();
+        }
+        published.set(index, seq + 1);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        try {
+            if (ack != null) {
+                List<CompletableFuture<Void>> deferred = DEFERRED_ACKS.get();
+                if (deferred != null) {
+                    deferred.add(ack);
+                } else {
+                    awaitAck(ack);
+                }
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.recordAuditEnqueue(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private long claim() throws AuditLoggingException {
+        long deadline = 0L;
+        while (true) {
+            long t = tail.get();
+            if (t < 0) {
+                throw new AuditLoggingException("Audit pipeline is closed");
+            }
+            if (t - head < slots.length) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    return t;
+                }
+                continue;
+            }
+            // Ring is full: apply backpressure to the caller instead of dropping the event
+            long now = System.nanoTime();
+            if (deadline == 0L) {
+                deadline = now + offerTimeoutNanos;
+            } else if (now - deadline >= 0) {
+                throw new AuditLoggingException("Audit queue full, event rejected after "
+                        + TimeUnit.NANOSECONDS.toMillis(offerTimeoutNanos) + " ms");
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50_000L);
+        }
+    }
+
+    private static void awaitAck(CompletableFuture<Void> ack) throws AuditLoggingException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    ack.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof AuditLoggingException) {
+                        throw (AuditLoggingException) cause;
+                    }
+                    throw new AuditLoggingException("Audit write failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            int count = available();
+            if (count > 0) {
+                commit(head, count);
+                // Only now may producers reuse the slots
+                head += count;
+                continue;
+            }
+            long t = tail.get();
+            if (t < 0 && (t & ~CLOSED) == head) {
+                return;
+            }
+            writerParked = true;
+            if (published.get((int) head & mask) != head + 1 && tail.get() >= 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            writerParked = false;
+        }
+    }
+
+    private int available() {
+        long h = head;
+        int count = 0;
+        while (count < batchSize && published.get((int) (h + count) & mask) == h + count + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write one batch through the underlying sink, then release the callers waiting on it.
+     */
+    private void commit(long first, int count) {
+        // A batch's encoded lines are written together, at one time
+        stamp.reset();
+        if (encoding) {
+            stamp.timestamp(Instant.now());
+        }
+        int pendingFrom = -1;
+        for (int i = 0; i < count; i++) {
+            Entry entry = slots[(int) (first + i) & mask];
+            if (entry.kind == Kind.ENCODED) {
+                if (pendingFrom >= 0 && encoded.remaining() < stamp.length() + entry.length) {
+                    writeEncoded(first, pendingFrom, i);
+                    pendingFrom = -1;
+                }
+                if (pendingFrom < 0) {
+                    pendingFrom = i;
+                    if (encoded.capacity() < stamp.length() + entry.length) {
+                        encoded = ByteBuffer.allocateDirect(Integer.highestOneBit(stamp.length() + entry.length) * 2);
+                    }
+                }
+                encoded.put(stamp.bytes(), 0, stamp.length()).put(entry.line, 0, entry.length);
+                continue;
+            }
+            if (pendingFrom >= 0) {
+                // Keep the log in queue order
+                writeEncoded(first, pendingFrom, i);
+                pendingFrom = -1;
+            }
+            long start = System.nanoTime();
+            try {
+                switch (entry.kind) {
+                    case EVENT:
+                        delegate.logEvent(entry.event);
+                        break;
+                    case SUCCESS:
+                        delegate.logSuccess(entry.eventType, entry.action, entry.resource, entry.message);
+                        break;
+                    default:
+                        delegate.logFailure(entry.eventType, entry.action, entry.resource, entry.message);
+                        break;
+                }
+                if (metrics != null) {
+                    metrics.recordAuditWrite(System.nanoTime() - start);
+                }
+            } catch (Exception e) {
+                failed(entry, e);
+            }
+        }
+        if (pendingFrom >= 0) {
+            writeEncoded(first, pendingFrom, count);
+        }
+        // Acks wait for the sink to sync the batch
+        Exception unsynced = null;
+        try {
+            delegate.batchWritten();
+        } catch (Exception e) {
+            unsynced = e;
+            log.error("Audit sink failed after writing a batch", e);
+        }
+        for (int i = 0; i < count; i++) {
+            Entry entry = slots[(int) (first + i) & mask];
+            if (entry.ack != null) {
+                if (unsynced == null) {
+                    entry.ack.complete(null);
+                } else {
+                    entry.ack.completeExceptionally(unsynced);
+                }
+            }
+            entry.clear();
+        }
+        Runnable listener = batchListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Write the encoded lines of the batch's entries from {@code from} up to {@code to}.
+     */
+    private void writeEncoded(long first, int from, int to) {
+        long start = System.nanoTime();
+        encoded.flip();
+        try {
+            delegate.write(encoded);
+            if (metrics != null) {
+                // Each event's share of the write
+                long share = (System.nanoTime() - start) / (to - from);
+                for (int i = from; i < to; i++) {
+                    metrics.recordAuditWrite(share);
+                }
+            }
+        } catch (Exception e) {
+            int unacknowledged = 0;
+            for (int i = from; i < to; i++) {
+                Entry entry = slots[(int) (first + i) & mask];
+                if (entry.ack == null) {
+                    unacknowledged++;
+                }
+                failed(entry, e);
+            }
+            if (unacknowledged > 0) {
+                log.error("Failed to write {} audit events", unacknowledged, e);
+            }
+        } finally {
+            encoded.clear();
+        }
+    }
+
+    private void failed(Entry entry, Exception e) {
+        if (metrics != null) {
+            metrics.recordAuditWriteError();
+        }
+        if (entry.ack != null) {
+            entry.ack.completeExceptionally(e);
+        } else if (entry.kind != Kind.ENCODED) {
+            log.error("Failed to write audit event {} for {}", entry.kind, entry.resource, e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.exception.AuditLoggingException;
+import com.enterprise.audit.logging.model.AuditEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An audit event being filled in from an {@link AuditTemplate}, obtained from
+ * {@link AuditPipeline#record} and logged with {@link #commit()}.
+ *
+ * Each thread has one record per pipeline that it reuses, so a record must be committed before the
+ * thread starts the next one, and must not be kept. The record holds on to the values it is given
+ * until it is committed and encodes them then, with the current {@link AuditContext}'s correlation
+ * and session ids; text values should not change in between. The message is the concatenation of
+ * the {@code text} parts.
+ */
+public final class AuditRecord {
+    private static final int MAX_PARTS = 16;
+    private static final Object NUMBER = new Object();
+
+    private final AuditPipeline pipeline;
+    final AuditEncoder encoder = new AuditEncoder(512);
+
+    private AuditTemplate template;
+    private CharSequence userId;
+    private String resourcePrefix;
+    private CharSequence resource;
+
+    // Message parts; a number part is NUMBER here and its value in numbers
+    private final Object[] parts = new Object[MAX_PARTS];
+    private final long[] numbers = new long[MAX_PARTS];
+    private int partCount;
+
+    // Detail values by template slot; a number is NUMBER here and its value in detailNumbers
+    private Object[] details = new Object[0];
+    private long[] detailNumbers = new long[0];
+    private boolean[] detailSet = new boolean[0];
+
+    AuditRecord(AuditPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    AuditRecord start(AuditTemplate template) {
+        this.template = template;
+        int keys = template.detailKeys.length;
+        if (details.length < keys) {
+            details = new Object[keys];
+            detailNumbers = new long[keys];
+            detailSet = new boolean[keys];
+        }
+        return this;
+    }
+
+    /**
+     * The user the event is about or was done by; null by default.
+     */
+    public AuditRecord user(CharSequence userId) {
+        this.userId = userId;
+        return this;
+    }
+
+    public AuditRecord resource(CharSequence resource) {
+        this.resourcePrefix = null;
+        this.resource = resource;
+        return this;
+    }
+
+    /**
+     * Set the resource to a constant prefix followed by an id, e.g. {@code "user/"} and a userId.
+     */
+    public AuditRecord resource(String prefix, CharSequence id) {
+        this.resourcePrefix = prefix;
+        this.resource = id;
+        return this;
+    }
+
+    /**
+     * Append a part to the message; null appends {@code "null"}, other objects their {@code toString()}.
+     */
+    public AuditRecord text(Object part) {
+        addPart(part, 0L);
+        return this;
+    }
+
+    public AuditRecord text(long part) {
+        addPart(NUMBER, part);
+        return this;
+    }
+
+    public AuditRecord detail(String key, Object value) {
+        setDetail(key, value, 0L);
+        return this;
+    }
+
+    public AuditRecord detail(String key, long value) {
+        setDetail(key, NUMBER, value);
+        return this;
+    }
+
+    public AuditRecord detail(String key, boolean value) {
+        setDetail(key, value ? Boolean.TRUE : Boolean.FALSE, 0L);
+        return this;
+    }
+
+    /**
+     * Log the event, as {@link AuditPipeline#logEvent} would, and clear the record for reuse.
+     */
+    public void commit() throws AuditLoggingException {
+        try {
+            pipeline.submit(this);
+        } finally {
+            clear();
+        }
+    }
+
+    private void addPart(Object part, long number) {
+        if (partCount == MAX_PARTS) {
+            throw new IllegalStateException("An audit message has at most " + MAX_PARTS + " parts");
+        }
+        parts[partCount] = part;
+        numbers[partCount] = number;
+        partCount++;
+    }
+
+    private void setDetail(String key, Object value, long number) {
+        int slot = template.slot(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No detail " + key + " in " + template);
+        }
+        details[slot] = value;
+        detailNumbers[slot] = number;
+        detailSet[slot] = true;
+    }
+
+    void clear() {
+        template = null;
+        userId = null;
+        resourcePrefix = null;
+        resource = null;
+        for (int i = 0; i < partCount; i++) {
+            parts[i] = null;
+        }
+        partCount = 0;
+        for (int i = 0; i < details.length; i++) {
+            details[i] = null;
+            detailSet[i] = false;
+        }
+    }
+
+    /**
+     * Encode the tail of the event's log line into {@link #encoder}, replacing what it held.
+     */
+    void encode(AuditContext context) {
+        AuditEncoder out = encoder;
+        out.reset();
+        out.raw(template.eventTypeRun);
+        out.string(userId);
+        out.raw(AuditEncoder.SESSION_ID);
+        AuditContext.encodeSessionId(context, out);
+        out.raw(template.constantRun);
+        if (resource == null && resourcePrefix == null) {
+            out.nullValue();
+        } else {
+            out.quote();
+            if (resourcePrefix != null) {
+                out.chars(resourcePrefix);
+            }
+            out.chars(resource == null ? "null" : resource);
+            out.quote();
+        }
+        out.raw(template.resultRun);
+        if (partCount == 0) {
+            out.nullValue();
+        } else {
+            out.quote();
+            for (int i = 0; i < partCount; i++) {
+                Object part = parts[i];
+                if (part == NUMBER) {
+                    out.number(numbers[i]);
+                } else {
+                    out.chars(part instanceof CharSequence ? (CharSequence) part : String.valueOf(part));
+                }
+            }
+            out.quote();
+        }
+        out.raw(AuditEncoder.DETAILS);
+        if (template.detailKeys.length == 0) {
+            out.nullValue();
+        } else {
+            out.raw((byte) '{');
+            boolean first = true;
+            for (int slot : template.detailOrder) {
+                if (!detailSet[slot]) {
+                    continue;
+                }
+                if (!first) {
+                    out.raw((byte) ',');
+                }
+                first = false;
+                out.raw(template.detailKeyRuns[slot]);
+                if (details[slot] == NUMBER) {
+                    out.number(detailNumbers[slot]);
+                } else {
+                    out.value(details[slot]);
+                }
+            }
+            out.raw((byte) '}');
+        }
+        out.raw(AuditEncoder.CORRELATION_ID);
+        AuditContext.encodeCorrelationId(context, out);
+        out.raw(AuditEncoder.END);
+    }
+
+    /**
+     * Build the event for the audit library, for a sink that writes through it.
+     */
+    AuditEvent toEvent(AuditContext context) {
+        StringBuilder message = null;
+        if (partCount > 0) {
+            message = new StringBuilder();
+            for (int i = 0; i < partCount; i++) {
+                if (parts[i] == NUMBER) {
+                    message.append(numbers[i]);
+                } else {
+                    message.append(parts[i]);
+                }
+            }
+        }
+        Map<String, Object> eventDetails = null;
+        if (template.detailKeys.length > 0) {
+            eventDetails = new HashMap<>();
+            for (int slot = 0; slot < template.detailKeys.length; slot++) {
+                if (detailSet[slot]) {
+                    eventDetails.put(template.detailKeys[slot],
+                            details[slot] == NUMBER ? (Object) detailNumbers[slot] : details[slot]);
+                }
+            }
+        }
+        String resourceText = resource == null && resourcePrefix == null ? null
+                : (resourcePrefix == null ? "" : resourcePrefix) + resource;
+        return AuditEvent.builder()
+                .eventType(template.eventType)
+                .userId(userId == null ? null : userId.toString())
+                .sessionId(context == null ? null : context.sessionId())
+                .application(template.application)
+                .component(template.component)
+                .action(template.action)
+                .resource(resourceText)
+                .result(template.result)
+                .message(message == null ? null : message.toString())
+                .details(eventDetails)
+                .correlationId(context == null ? AuditContext.currentCorrelationId() : context.correlationId())
+                .build();
+    }
+}
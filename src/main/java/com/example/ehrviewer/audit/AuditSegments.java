@@ -0,0 +1,652 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.config.AuditConfiguration;
+import com.enterprise.audit.logging.exception.AuditLoggingException;
+import com.enterprise.audit.logging.model.AuditEvent;
+import com.enterprise.audit.logging.model.AuditResult;
+import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Segmented audit storage under {@code ehr.audit.directory}.
+ *
+ * Each segment is a directory with its own {@link FileSystemAuditLogger}. The audit writer thread
+ * syncs the active file to disk after every batch, and rolls to a new segment between batches once
+ * the active one reaches a size or age threshold, so the active file stays small. Sealed segments
+ * are compressed by a low-priority background thread (see {@link CompressedLogFile}), which also
+ * applies the retention policy: segments past the age or total size limit are moved to the archive
+ * directory, or deleted if there is none. {@code manifest.json} lists the live segments with their
+ * state, times and sizes.
+ *
+ * With {@code ehr.audit.direct-encoding} the sink also takes lines encoded by the {@link AuditPipeline}
+ * and appends them to the active file itself. That is only switched on if, at startup, probe events
+ * written by the audit library and encoded by {@link AuditEncoder} come out byte for byte the same;
+ * otherwise every event goes through the library as before.
+ */
+@Component
+public class AuditSegments implements AuditSink {
+    private static final Logger log = LoggerFactory.getLogger(AuditSegments.class);
+
+    static final String LOG_FILE = "audit.log";
+    static final String COMPRESSED_FILE = "audit.log.gz";
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    public enum State { ACTIVE, SEALED, COMPRESSED }
+
+    /**
+     * One segment as recorded in the manifest.
+     */
+    public static class Segment {
+        @JsonProperty("id")
+        private long id;
+
+        @JsonProperty("state")
+        private State state;
+
+        @JsonProperty("created_at")
+        private long createdAt; // epoch millis
+
+        @JsonProperty("sealed_at")
+        private long sealedAt; // epoch millis, 0 while active
+
+        @JsonProperty("size_bytes")
+        private long sizeBytes; // uncompressed size, set when sealed
+
+        @JsonProperty("compressed_bytes")
+        private long compressedBytes; // set when compressed
+
+        // Default constructor for JSON deserialization
+        public Segment() {}
+
+        Segment(long id, long createdAt) {
+            this.id = id;
+            this.state = State.ACTIVE;
+            this.createdAt = createdAt;
+        }
+
+        Segment copy() {
+            Segment copy = new Segment(id, createdAt);
+            copy.state = state;
+            copy.sealedAt = sealedAt;
+            copy.sizeBytes = sizeBytes;
+            copy.compressedBytes = compressedBytes;
+            return copy;
+        }
+
+        public long getId() { return id; }
+        public State getState() { return state; }
+        public long getCreatedAt() { return createdAt; }
+        public long getSealedAt() { return sealedAt; }
+        public long getSizeBytes() { return sizeBytes; }
+        public long getCompressedBytes() { return compressedBytes; }
+
+        long diskBytes() {
+            return state == State.COMPRESSED ? compressedBytes : sizeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "id=" + id +
+                    ", state=" + state +
+                    ", createdAt=" + createdAt +
+                    ", sealedAt=" + sealedAt +
+                    ", sizeBytes=" + sizeBytes +
+                    ", compressedBytes=" + compressedBytes +
+                    '}';
+        }
+    }
+
+    @Value("${ehr.audit.directory:./ehr-audit-logs}")
+    private String auditDirectory;
+
+    @Value("${ehr.audit.segment.max-bytes:67108864}")
+    private long segmentMaxBytes;
+
+    @Value("${ehr.audit.segment.max-age-minutes:1440}")
+    private long segmentMaxAgeMinutes;
+
+    @Value("${ehr.audit.retention.max-age-days:0}")
+    private long retentionMaxAgeDays;
+
+    @Value("${ehr.audit.retention.max-total-bytes:0}")
+    private long retentionMaxTotalBytes;
+
+    @Value("${ehr.audit.archive-directory:}")
+    private String archiveDirectory;
+
+    @Value("${ehr.audit.direct-encoding:true}")
+    private boolean directEncoding;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Path root;
+
+    // Live segments in id order, guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+
+    // Owned by the audit writer thread once open
+    private FileSystemAuditLogger active;
+    private FileChannel activeChannel; // the same file as active; written to in direct mode, and synced
+    private Segment activeSegment;
+    private Path activeLog;
+    private boolean closed;
+    private boolean direct;
+
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "audit-segment-maintenance");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @PostConstruct
+    public void open() throws IOException, AuditLoggingException {
+        if (segmentMaxBytes <= 0 || segmentMaxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ehr.audit.segment.max-bytes must be between 1 and 2^31-1: " + segmentMaxBytes);
+        }
+        root = Paths.get(auditDirectory);
+        Files.createDirectories(root);
+        direct = directEncoding && encodingMatchesLibrary();
+        synchronized (this) {
+            loadManifest();
+            adoptLegacyLog();
+            recoverSegments();
+            startSegment(nextId());
+            writeManifest();
+            for (Segment segment : segments) {
+                if (segment.state == State.SEALED) {
+                    maintenance.execute(() -> compress(segment));
+                }
+            }
+        }
+        maintenance.execute(this::applyRetention);
+        log.info("Opened {} audit segments in {}, writing to segment {}{}", segments.size(), root, activeSegment.id,
+                direct ? " with direct encoding" : "");
+    }
+
+    /**
+     * Close the active segment. It is sealed and compressed on the next start.
+     */
+    @Override
+    @PreDestroy
+    public void close() throws AuditLoggingException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // Compression in progress needs the monitor to finish
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            active.close();
+            closeChannel(activeChannel);
+            try {
+                writeManifest();
+            } catch (IOException e) {
+                throw new AuditLoggingException("Failed to write audit segment manifest", e);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the live segments in id order.
+     */
+    public synchronized List<Segment> list() {
+        List<Segment> copy = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            copy.add(segment.copy());
+        }
+        return copy;
+    }
+
+    Path logFile(long id) {
+        return directory(id).resolve(LOG_FILE);
+    }
+
+    Path compressedFile(long id) {
+        return directory(id).resolve(COMPRESSED_FILE);
+    }
+
+    private Path directory(long id) {
+        return root.resolve(String.format("%s%010d", SEGMENT_PREFIX, id));
+    }
+
+    @Override
+    public void logEvent(AuditEvent event) throws AuditLoggingException {
+        active.logEvent(event);
+    }
+
+    @Override
+    public void logSuccess(String eventType, String action, String resource, String message) throws AuditLoggingException {
+        active.logSuccess(eventType, action, resource, message);
+    }
+
+    @Override
+    public void logFailure(String eventType, String action, String resource, String message) throws AuditLoggingException {
+        active.logFailure(eventType, action, resource, message);
+    }
+
+    @Override
+    public boolean acceptsEncoded() {
+        return direct;
+    }
+
+    @Override
+    public void write(ByteBuffer lines) throws AuditLoggingException {
+        try {
+            while (lines.hasRemaining()) {
+                activeChannel.write(lines);
+            }
+        } catch (IOException e) {
+            throw new AuditLoggingException("Failed to write audit segment " + activeSegment.id, e);
+        }
+    }
+
+    /**
+     * Sync the batch to disk, then roll to a new segment once the active one is too large or too old.
+     */
+    @Override
+    public void batchWritten() throws AuditLoggingException {
+        try {
+            // The logger flushes each event to the file, so this syncs its writes as well as ours
+            activeChannel.force(false);
+        } catch (IOException e) {
+            throw new AuditLoggingException("Failed to sync audit segment " + activeSegment.id, e);
+        }
+        long size;
+        try {
+            size = Files.exists(activeLog) ? Files.size(activeLog) : 0L;
+        } catch (IOException e) {
+            throw new AuditLoggingException("Failed to check audit segment size", e);
+        }
+        long age = System.currentTimeMillis() - activeSegment.createdAt;
+        if (size >= segmentMaxBytes || (size > 0 && age >= TimeUnit.MINUTES.toMillis(segmentMaxAgeMinutes))) {
+            roll();
+        }
+    }
+
+    private void roll() throws AuditLoggingException {
+        FileSystemAuditLogger previous = active;
+        FileChannel previousChannel = activeChannel;
+        Segment sealed;
+        synchronized (this) {
+            sealed = activeSegment;
+            startSegment(sealed.id + 1);
+        }
+        // The new segment takes writes before the old logger flushes and closes
+        previous.close();
+        closeChannel(previousChannel);
+        synchronized (this) {
+            seal(sealed);
+            try {
+                writeManifest();
+            } catch (IOException e) {
+                throw new AuditLoggingException("Failed to write audit segment manifest", e);
+            }
+        }
+        log.info("Rolled audit log to segment {} after {} bytes", activeSegment.id, sealed.sizeBytes);
+        maintenance.execute(() -> compress(sealed));
+    }
+
+    private void startSegment(long id) throws AuditLoggingException {
+        Path directory = directory(id);
+        AuditConfiguration config = new AuditConfiguration();
+        config.setLogDirectory(directory.toString());
+        config.setAutoCreateDirectory(true);
+        active = new FileSystemAuditLogger(config);
+        activeSegment = new Segment(id, System.currentTimeMillis());
+        activeLog = directory.resolve(LOG_FILE);
+        segments.add(activeSegment);
+        try {
+            Files.createDirectories(directory);
+            activeChannel = FileChannel.open(activeLog, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new AuditLoggingException("Failed to open audit segment " + id, e);
+        }
+    }
+
+    private static void closeChannel(FileChannel channel) throws AuditLoggingException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new AuditLoggingException("Failed to close audit segment", e);
+        }
+    }
+
+    /**
+     * Write probe events through the audit library into a scratch directory and check that
+     * {@link AuditEncoder} encodes each exactly as the library wrote it, timestamp included.
+     */
+    private boolean encodingMatchesLibrary() {
+        Path scratch = null;
+        try {
+            scratch = Files.createTempDirectory("ehr-audit-probe");
+            AuditConfiguration config = new AuditConfiguration();
+            config.setLogDirectory(scratch.toString());
+            config.setAutoCreateDirectory(true);
+            FileSystemAuditLogger library = new FileSystemAuditLogger(config);
+
+            String awkward = "quote \" \\ tab\t nul\u0000 del\u007f \u00e9\u20ac \ud83d\ude00 lone \ud83d end";
+            Map<String, Object> nested = new LinkedHashMap<>();
+            nested.put("list", Arrays.asList("a", 1, null, 2.5, Collections.singletonMap("k", false)));
+            nested.put("text", awkward);
+            AuditTemplate template = AuditTemplate.of("PROBE", "EHRViewer", awkward, "PROBE", AuditResult.SUCCESS,
+                    "text", "number", "negative", "flag", "nested", "unset");
+            AuditRecord record = new AuditRecord(null).start(template);
+            record.user(awkward).resource("probe/", awkward).text("Probe ").text(awkward).text(" ").text(-42L)
+                    .detail("text", awkward).detail("number", Long.MAX_VALUE).detail("negative", Long.MIN_VALUE)
+                    .detail("flag", true).detail("nested", nested);
+            AuditContext previous = AuditContext.current();
+            AuditContext context = AuditContext.begin();
+            AuditContext.bindSession(awkward);
+            AuditContext.attach(previous);
+            AuditRecord empty = new AuditRecord(null).start(AuditTemplate.of("PROBE", null, null, null,
+                    AuditResult.FAILURE));
+
+            List<AuditEncoder> expected = new ArrayList<>();
+            library.logEvent(record.toEvent(context));
+            record.encode(context);
+            expected.add(record.encoder);
+            library.logEvent(empty.toEvent(context));
+            empty.encode(context);
+            expected.add(empty.encoder);
+            library.logSuccess("PROBE", "PROBE", awkward, awkward);
+            expected.add(simple(true, awkward));
+            library.logFailure("PROBE", "PROBE", null, null);
+            expected.add(simple(false, null));
+            library.close();
+
+            byte[] written = Files.readAllBytes(scratch.resolve(LOG_FILE));
+            int offset = 0;
+            for (AuditEncoder tail : expected) {
+                int end = indexOf(written, (byte) '\n', offset) + 1;
+                if (end == 0 || !lineMatches(Arrays.copyOfRange(written, offset, end), tail)) {
+                    log.warn("Audit library output differs from the direct encoding, writing through the library: {}",
+                            end == 0 ? "missing line" : new String(written, offset, end - offset, StandardCharsets.UTF_8));
+                    return false;
+                }
+                offset = end;
+            }
+            if (offset != written.length) {
+                log.warn("Audit library wrote more than expected, writing through it");
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Failed to check the direct audit encoding, writing through the library", e);
+            return false;
+        } finally {
+            try {
+                deleteRecursively(scratch);
+            } catch (IOException e) {
+                log.warn("Failed to delete {}", scratch, e);
+            }
+        }
+    }
+
+    private static AuditEncoder simple(boolean success, String text) {
+        AuditEncoder encoder = new AuditEncoder(256);
+        encoder.simple(success, "PROBE", "PROBE", text, text);
+        return encoder;
+    }
+
+    // Re-encode the line with its own timestamp and compare
+    private static boolean lineMatches(byte[] line, AuditEncoder tail) {
+        String text = new String(line, StandardCharsets.UTF_8);
+        int open = text.indexOf('"', "{\"timestamp\":".length());
+        int close = text.indexOf('"', open + 1);
+        if (!text.startsWith("{\"timestamp\":\"") || close < 0) {
+            return false;
+        }
+        AuditEncoder encoded = new AuditEncoder(line.length);
+        encoded.timestamp(Instant.parse(text.substring(open + 1, close)));
+        encoded.raw(tail.bytes(), 0, tail.length());
+        return Arrays.equals(Arrays.copyOf(encoded.bytes(), encoded.length()), line);
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void seal(Segment segment) {
+        segment.state = State.SEALED;
+        segment.sealedAt = System.currentTimeMillis();
+        try {
+            Path file = logFile(segment.id);
+            segment.sizeBytes = Files.exists(file) ? Files.size(file) : 0L;
+        } catch (IOException e) {
+            log.warn("Failed to size audit segment {}", segment.id, e);
+        }
+    }
+
+    private void compress(Segment segment) {
+        try {
+            Path source = logFile(segment.id);
+            long compressed = Files.exists(source) ? CompressedLogFile.compress(source, compressedFile(segment.id)) : -1L;
+            synchronized (this) {
+                if (!segments.contains(segment)) {
+                    return;
+                }
+                if (compressed < 0) {
+                    // Nothing was ever written to this segment
+                    segments.remove(segment);
+                } else {
+                    segment.state = State.COMPRESSED;
+                    segment.compressedBytes = compressed;
+                }
+                writeManifest();
+            }
+            if (compressed < 0) {
+                deleteRecursively(directory(segment.id));
+            } else {
+                Files.deleteIfExists(source);
+                log.info("Compressed audit segment {} from {} to {} bytes", segment.id, segment.sizeBytes, compressed);
+            }
+        } catch (IOException e) {
+            log.error("Failed to compress audit segment {}", segment.id, e);
+        }
+        applyRetention();
+    }
+
+    /**
+     * Archive or delete sealed segments older than the retention age, then the oldest sealed
+     * segments until the total size is within the limit.
+     */
+    private void applyRetention() {
+        List<Segment> expired = new ArrayList<>();
+        synchronized (this) {
+            long cutoff = retentionMaxAgeDays > 0
+                    ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionMaxAgeDays) : Long.MIN_VALUE;
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.diskBytes();
+            }
+            for (Segment segment : segments) {
+                if (segment.state == State.ACTIVE) {
+                    break;
+                }
+                boolean tooOld = segment.sealedAt < cutoff;
+                boolean overSize = retentionMaxTotalBytes > 0 && total > retentionMaxTotalBytes;
+                if (!tooOld && !overSize) {
+                    break;
+                }
+                expired.add(segment);
+                total -= segment.diskBytes();
+            }
+            if (expired.isEmpty()) {
+                return;
+            }
+            segments.removeAll(expired);
+            try {
+                writeManifest();
+            } catch (IOException e) {
+                log.error("Failed to write audit segment manifest", e);
+                segments.addAll(0, expired);
+                return;
+            }
+        }
+        for (Segment segment : expired) {
+            try {
+                if (archiveDirectory.isEmpty()) {
+                    deleteRecursively(directory(segment.id));
+                    log.info("Deleted expired audit segment {}", segment.id);
+                } else {
+                    archive(segment);
+                    log.info("Archived expired audit segment {} to {}", segment.id, archiveDirectory);
+                }
+            } catch (IOException e) {
+                log.error("Failed to remove expired audit segment {}", segment.id, e);
+            }
+        }
+    }
+
+    private void archive(Segment segment) throws IOException {
+        Path source = directory(segment.id);
+        Path target = Paths.get(archiveDirectory).resolve(source.getFileName());
+        Files.createDirectories(target);
+        // Move file by file, which also works across file systems
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+            for (Path file : files) {
+                Files.move(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.delete(source);
+    }
+
+    private void loadManifest() throws IOException {
+        Path manifest = root.resolve(MANIFEST_FILE);
+        if (Files.exists(manifest)) {
+            segments.addAll(objectMapper.readValue(manifest.toFile(), new TypeReference<List<Segment>>() {}));
+            return;
+        }
+        // No manifest: rebuild it from the segment directories
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, SEGMENT_PREFIX + "*")) {
+            for (Path directory : directories) {
+                try {
+                    long id = Long.parseLong(directory.getFileName().toString().substring(SEGMENT_PREFIX.length()));
+                    Segment segment = new Segment(id, Files.getLastModifiedTime(directory).toMillis());
+                    segment.state = State.SEALED;
+                    segments.add(segment);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected directory {}", directory);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(Segment::getId));
+    }
+
+    /**
+     * Move an {@code audit.log} written before segmentation into a sealed segment of its own.
+     */
+    private void adoptLegacyLog() throws IOException {
+        Path legacy = root.resolve(LOG_FILE);
+        if (!Files.exists(legacy)) {
+            return;
+        }
+        long id = nextId();
+        Files.createDirectories(directory(id));
+        Files.move(legacy, logFile(id));
+        Segment segment = new Segment(id, Files.getLastModifiedTime(logFile(id)).toMillis());
+        segments.add(segment);
+        log.info("Moved {} into audit segment {}", legacy, id);
+    }
+
+    /**
+     * Bring each segment's state in line with its files after a restart or crash.
+     */
+    private void recoverSegments() throws IOException {
+        List<Segment> missing = new ArrayList<>();
+        for (Segment segment : segments) {
+            Path plain = logFile(segment.id);
+            Path compressed = compressedFile(segment.id);
+            Files.deleteIfExists(compressed.resolveSibling(COMPRESSED_FILE + ".tmp"));
+            Files.deleteIfExists(CompressedLogFile.blocksFile(compressed.resolveSibling(COMPRESSED_FILE + ".tmp")));
+            if (segment.state == State.ACTIVE) {
+                seal(segment);
+            }
+            if (Files.exists(compressed)) {
+                // Compression finished, possibly without removing the plain file or updating the manifest
+                if (segment.state != State.COMPRESSED) {
+                    segment.state = State.COMPRESSED;
+                    segment.compressedBytes = Files.size(compressed);
+                }
+                Files.deleteIfExists(plain);
+            } else if (segment.state == State.COMPRESSED || !Files.isDirectory(directory(segment.id))) {
+                missing.add(segment);
+            }
+        }
+        for (Segment segment : missing) {
+            log.warn("Audit segment {} is missing from {}, dropping it from the manifest", segment.id, root);
+        }
+        segments.removeAll(missing);
+    }
+
+    private long nextId() {
+        return segments.isEmpty() ? 0L : segments.get(segments.size() - 1).id + 1;
+    }
+
+    private void writeManifest() throws IOException {
+        Path manifest = root.resolve(MANIFEST_FILE);
+        Path tmp = root.resolve(MANIFEST_FILE + ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), segments);
+        Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
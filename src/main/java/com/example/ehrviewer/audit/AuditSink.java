@@ -0,0 +1,73 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.exception.AuditLoggingException;
+import com.enterprise.audit.logging.model.AuditEvent;
+import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination the {@link AuditPipeline} writer thread hands events to. Only that thread calls it.
+ */
+public interface AuditSink {
+
+    void logEvent(AuditEvent event) throws AuditLoggingException;
+
+    void logSuccess(String eventType, String action, String resource, String message) throws AuditLoggingException;
+
+    void logFailure(String eventType, String action, String resource, String message) throws AuditLoggingException;
+
+    /**
+     * Whether the sink takes complete log lines, encoded as {@link FileSystemAuditLogger} would
+     * write them, through {@link #write}. Asked once, when the pipeline is created.
+     */
+    default boolean acceptsEncoded() {
+        return false;
+    }
+
+    /**
+     * Append the buffer's remaining bytes, whole log lines, in order with the events passed to the
+     * log methods. Only called if {@link #acceptsEncoded()}.
+     */
+    default void write(ByteBuffer lines) throws AuditLoggingException {
+        throw new UnsupportedOperationException("Sink does not take encoded lines");
+    }
+
+    /**
+     * Called after each batch has been written, between batches. Acks for the batch's events are only
+     * completed once this returns, so a sink that syncs to disk does it here; if it throws, they fail.
+     */
+    default void batchWritten() throws AuditLoggingException {
+    }
+
+    void close() throws AuditLoggingException;
+
+    /**
+     * Write straight to a single logger.
+     */
+    static AuditSink of(FileSystemAuditLogger logger) {
+        return new AuditSink() {
+            @Override
+            public void logEvent(AuditEvent event) throws AuditLoggingException {
+                logger.logEvent(event);
+            }
+
+            @Override
+            public void logSuccess(String eventType, String action, String resource, String message)
+                    throws AuditLoggingException {
+                logger.logSuccess(eventType, action, resource, message);
+            }
+
+            @Override
+            public void logFailure(String eventType, String action, String resource, String message)
+                    throws AuditLoggingException {
+                logger.logFailure(eventType, action, resource, message);
+            }
+
+            @Override
+            public void close() throws AuditLoggingException {
+                logger.close();
+            }
+        };
+    }
+}
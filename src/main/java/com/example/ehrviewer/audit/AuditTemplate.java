@@ -0,0 +1,107 @@
+package com.example.ehrviewer.audit;
+
+import com.enterprise.audit.logging.model.AuditResult;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The constant part of a kind of audit event: its type, application, component, action, result and
+ * detail keys, encoded once so that {@link AuditRecord} only encodes what varies per event.
+ *
+ * Details are written in the order a {@link HashMap} of the keys iterates in, which is the order
+ * events built with a map of the same keys have always been logged in.
+ */
+public final class AuditTemplate {
+    final String eventType;
+    final String application;
+    final String component;
+    final String action;
+    final AuditResult result;
+    final String[] detailKeys;
+
+    final byte[] eventTypeRun;    // ,"eventType":"..","userId":
+    final byte[] constantRun;     // ,"application":"..","component":"..","action":"..","resource":
+    final byte[] resultRun;       // ,"result":"..","message":
+    // Indexes into detailKeys in the order they are written, and each key's "key": run
+    final int[] detailOrder;
+    final byte[][] detailKeyRuns;
+
+    private AuditTemplate(String eventType, String application, String component, String action,
+                          AuditResult result, String[] detailKeys) {
+        this.eventType = eventType;
+        this.application = application;
+        this.component = component;
+        this.action = action;
+        this.result = result;
+        this.detailKeys = detailKeys;
+        this.eventTypeRun = AuditEncoder.concat(AuditEncoder.EVENT_TYPE, AuditEncoder.quoted(eventType),
+                AuditEncoder.USER_ID);
+        this.constantRun = AuditEncoder.concat(AuditEncoder.APPLICATION, AuditEncoder.quoted(application),
+                AuditEncoder.COMPONENT, AuditEncoder.quoted(component), AuditEncoder.ACTION,
+                AuditEncoder.quoted(action), AuditEncoder.RESOURCE);
+        this.resultRun = AuditEncoder.concat(AuditEncoder.RESULT, AuditEncoder.quoted(result), AuditEncoder.MESSAGE);
+
+        Map<String, Integer> ordered = new HashMap<>();
+        for (int i = 0; i < detailKeys.length; i++) {
+            ordered.put(detailKeys[i], i);
+        }
+        this.detailOrder = new int[detailKeys.length];
+        this.detailKeyRuns = new byte[detailKeys.length][];
+        int position = 0;
+        for (Map.Entry<String, Integer> entry : ordered.entrySet()) {
+            detailOrder[position++] = entry.getValue();
+            detailKeyRuns[entry.getValue()] = AuditEncoder.concat(AuditEncoder.quoted(entry.getKey()),
+                    AuditEncoder.ascii(":"));
+        }
+    }
+
+    /**
+     * Define a kind of event. Its details, if it has any, may only use the given keys.
+     */
+    public static AuditTemplate of(String eventType, String application, String component, String action,
+                                   AuditResult result, String... detailKeys) {
+        if (Arrays.asList(detailKeys).contains(null)
+                || Arrays.stream(detailKeys).distinct().count() != detailKeys.length) {
+            throw new IllegalArgumentException("Detail keys must be distinct and not null: "
+                    + Arrays.toString(detailKeys));
+        }
+        return new AuditTemplate(eventType, application, component, action, result, detailKeys.clone());
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * The slot of a detail key, or -1 if the template does not have it.
+     */
+    int slot(String key) {
+        for (int i = 0; i < detailKeys.length; i++) {
+            if (detailKeys[i] == key) {
+                return i;
+            }
+        }
+        for (int i = 0; i < detailKeys.length; i++) {
+            if (detailKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditTemplate{" +
+                "eventType='" + eventType + '\'' +
+                ", action='" + action + '\'' +
+                ", result=" + result +
+                ", detailKeys=" + Arrays.toString(detailKeys) +
+                '}';
+    }
+}
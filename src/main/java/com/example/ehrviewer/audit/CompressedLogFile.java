@@ -0,0 +1,212 @@
+package com.example.ehrviewer.audit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A sealed audit log segment compressed as a series of independent gzip members, each holding whole
+ * lines (about 64 KB uncompressed). Concatenated members are still one valid gzip file, so standard
+ * tools can read it, while the sidecar block table lets a reader inflate only the member it needs.
+ *
+ * Block table ({@code <file>.blocks}): [uncompressed start][compressed start] per member, then the
+ * uncompressed and compressed totals.
+ */
+final class CompressedLogFile implements AuditLogReader {
+    static final String BLOCKS_SUFFIX = ".blocks";
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int CACHED_BLOCKS = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final long[] uncompressedStarts; // one per block, plus the total
+    private final long[] compressedStarts;
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    CompressedLogFile(Path file) throws IOException {
+        byte[] table = Files.readAllBytes(blocksFile(file));
+        int entries = table.length / 16;
+        if (entries == 0 || table.length % 16 != 0) {
+            throw new IOException("Corrupt block table for " + file);
+        }
+        uncompressedStarts = new long[entries];
+        compressedStarts = new long[entries];
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(table))) {
+            for (int i = 0; i < entries; i++) {
+                uncompressedStarts[i] = in.readLong();
+                compressedStarts[i] = in.readLong();
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (channel.size() != compressedStarts[entries - 1] || channel.size() > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Unexpected size for compressed segment " + file);
+        }
+        data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    static Path blocksFile(Path file) {
+        return file.resolveSibling(file.getFileName() + BLOCKS_SUFFIX);
+    }
+
+    /**
+     * Compress {@code source} into {@code target} and its block table. Both appear atomically, the
+     * block table first, so an existing {@code target} is always complete. Returns the compressed size.
+     */
+    static long compress(Path source, Path target) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Path blocksTmp = blocksFile(tmp);
+        ByteArrayOutputStream member = new ByteArrayOutputStream(BLOCK_BYTES / 4);
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+        long uncompressed = 0;
+        long compressed = 0;
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            byte[] pending = new byte[2 * BLOCK_BYTES];
+            int pendingLength = 0;
+            byte[] read = new byte[BLOCK_BYTES];
+            boolean eof = false;
+            while (!eof || pendingLength > 0) {
+                int n = eof ? -1 : in.read(read);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    if (pendingLength + n > pending.length) {
+                        pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + n));
+                    }
+                    System.arraycopy(read, 0, pending, pendingLength, n);
+                    pendingLength += n;
+                }
+                // Cut members at the first line break after BLOCK_BYTES, or take the rest at the end
+                int cut = -1;
+                if (eof) {
+                    cut = pendingLength;
+                } else if (pendingLength >= BLOCK_BYTES) {
+                    for (int i = BLOCK_BYTES - 1; i < pendingLength; i++) {
+                        if (pending[i] == '\n') {
+                            cut = i + 1;
+                            break;
+                        }
+                    }
+                }
+                if (cut <= 0) {
+                    continue;
+                }
+                member.reset();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(pending, 0, cut);
+                }
+                tableOut.writeLong(uncompressed);
+                tableOut.writeLong(compressed);
+                member.writeTo(out);
+                uncompressed += cut;
+                compressed += member.size();
+                System.arraycopy(pending, cut, pending, 0, pendingLength - cut);
+                pendingLength -= cut;
+            }
+        }
+        tableOut.writeLong(uncompressed);
+        tableOut.writeLong(compressed);
+        Files.write(blocksTmp, table.toByteArray());
+        force(tmp);
+        force(blocksTmp);
+        Files.move(blocksTmp, blocksFile(target), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return compressed;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public long size() {
+        return uncompressedStarts[uncompressedStarts.length - 1];
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > size()) {
+            throw new IOException("Read past end of compressed segment at offset " + offset);
+        }
+        int block = blockOf(offset);
+        int start = (int) (offset - uncompressedStarts[block]);
+        if (offset + length <= uncompressedStarts[block + 1]) {
+            return ByteBuffer.wrap(inflate(block), start, length).slice().asReadOnlyBuffer();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        while (copy.hasRemaining()) {
+            byte[] bytes = inflate(block);
+            int n = Math.min(bytes.length - start, copy.remaining());
+            copy.put(bytes, start, n);
+            block++;
+            start = 0;
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    private int blockOf(long offset) {
+        int index = Arrays.binarySearch(uncompressedStarts, 0, uncompressedStarts.length - 1, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private byte[] inflate(int block) throws IOException {
+        synchronized (cache) {
+            byte[] cached = cache.get(block);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] compressed = new byte[(int) (compressedStarts[block + 1] - compressedStarts[block])];
+        ByteBuffer source = data.duplicate();
+        source.position((int) compressedStarts[block]);
+        source.get(compressed);
+        byte[] bytes = new byte[(int) (uncompressedStarts[block + 1] - uncompressedStarts[block])];
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            int filled = 0;
+            while (filled < bytes.length) {
+                int n = in.read(bytes, filled, bytes.length - filled);
+                if (n < 0) {
+                    throw new EOFException("Truncated block " + block + " in compressed audit segment");
+                }
+                filled += n;
+            }
+        }
+        synchronized (cache) {
+            cache.put(block, bytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,629 @@
+package com.example.ehrviewer.audit;
+
+import com.example.ehrviewer.model.AuditQuery;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Query index over one audit segment.
+ *
+ * Every log line gets a fixed-width entry in {@code entries.idx} (see {@link AuditEntryIndex}).
+ * Each block of 256 entries adds its smallest and largest timestamp to the sparse {@code time.idx},
+ * so time-range queries skip whole blocks. Resource and user id postings are kept in memory, keyed
+ * by hash, and rebuilt from the entry index on open. Lines are read from the plain log while the
+ * segment is written, and from its compressed form once that exists.
+ *
+ * {@link #refresh()} is called by one thread at a time; {@link #scan} may run concurrently with it.
+ */
+final class SegmentIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SegmentIndex.class);
+
+    private static final String ENTRIES_FILE = "entries.idx";
+    private static final String TIME_FILE = "time.idx";
+
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_ENTRIES = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_BYTES = 16;
+    private static final int READ_CHUNK = 4 << 20;
+
+    // Field names are matched in both camelCase and snake_case
+    private static final String[] TIMESTAMP_FIELDS = {"timestamp", "time", "@timestamp", "eventTime", "event_time"};
+    private static final String[] EVENT_TYPE_FIELDS = {"eventType", "event_type"};
+    private static final String[] RESOURCE_FIELDS = {"resource"};
+    private static final String[] USER_ID_FIELDS = {"userId", "user_id"};
+
+    final long id;
+    private final Path logPath;
+    private final Path compressedPath;
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+
+    // The reader is swapped for the compressed one under the write lock
+    private final ReadWriteLock readerLock = new ReentrantReadWriteLock();
+    private AuditLogReader reader; // null until the logger has created the log
+    private boolean compressed;
+    private boolean closed;
+
+    private final AuditEntryIndex entries;
+    private final FileChannel timeIndex;
+
+    // Sealed time blocks as [min, max] pairs; written before sealedBlocks is advanced
+    private volatile long[] blockBounds = new long[2 * 64];
+    private volatile int sealedBlocks;
+    private long openBlockMin = Long.MAX_VALUE;
+    private long openBlockMax = Long.MIN_VALUE;
+    private volatile long minTimestamp = Long.MAX_VALUE;
+    private volatile long maxTimestamp = Long.MIN_VALUE;
+
+    // Entry numbers by hash of resource and of user id, guarded by their own monitors
+    private final Map<Integer, Postings> resourcePostings = new HashMap<>();
+    private final Map<Integer, Postings> userPostings = new HashMap<>();
+
+    private long lastTimestamp = Long.MIN_VALUE;
+    private byte[] lineBuffer = new byte[1024];
+    private volatile boolean complete;
+
+    SegmentIndex(long id, Path directory, Path logPath, Path compressedPath, ObjectMapper objectMapper)
+            throws IOException {
+        this.id = id;
+        this.logPath = logPath;
+        this.compressedPath = compressedPath;
+        this.objectMapper = objectMapper;
+        this.jsonFactory = objectMapper.getFactory();
+        Files.createDirectories(directory);
+        entries = new AuditEntryIndex(directory.resolve(ENTRIES_FILE));
+        timeIndex = FileChannel.open(directory.resolve(TIME_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            openReader();
+            if (!matchesLog()) {
+                log.info("Index for audit segment {} does not match its log, rebuilding it", id);
+                clear();
+            }
+            loadTimeBlocks();
+            loadPostings();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of indexed lines.
+     */
+    long count() {
+        return entries.count();
+    }
+
+    /**
+     * Whether the segment is compressed and fully indexed, so it will never change again.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Whether any indexed line may fall in [from, to).
+     */
+    boolean overlaps(long from, long to) {
+        return maxTimestamp >= from && minTimestamp < to;
+    }
+
+    /**
+     * Index every complete line appended to the log since the last refresh, switching to the
+     * compressed log once it appears.
+     */
+    void refresh() throws IOException {
+        if (!compressed && Files.exists(compressedPath)) {
+            readerLock.writeLock().lock();
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+                reader = new CompressedLogFile(compressedPath);
+                compressed = true;
+            } finally {
+                readerLock.writeLock().unlock();
+            }
+        }
+        if (reader == null) {
+            openReader();
+            if (reader == null) {
+                return;
+            }
+        }
+        long size = reader.size();
+        long position = entries.logOffset();
+        if (size < position) {
+            log.warn("Audit segment {} is shorter than its index, rebuilding the index", id);
+            clear();
+            position = 0;
+        }
+        int chunkSize = READ_CHUNK;
+        while (position < size) {
+            int length = (int) Math.min(size - position, chunkSize);
+            ByteBuffer buffer = reader.read(position, length);
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(i) == '\n') {
+                    indexLine(position + lineStart, buffer, lineStart, i - lineStart);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0) {
+                if (position + length == size) {
+                    break; // the last line is still being written
+                }
+                chunkSize *= 2; // a single line longer than the read size
+                continue;
+            }
+            position += lineStart;
+            entries.publish(position);
+        }
+        if (compressed && position == size) {
+            complete = true;
+            entries.flush();
+            timeIndex.force(false);
+        }
+    }
+
+    /**
+     * Collect matching lines from {@code entry} on into {@code scan}. Returns the entry to resume
+     * from when the page filled up or ran out of scan budget, or -1 once the segment is exhausted.
+     */
+    long scan(long entry, long from, long to, AuditQuery query, Scan scan) throws IOException {
+        readerLock.readLock().lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            long stop = entries.count();
+
+            // Drive from the smaller posting list when filtering by resource or user, otherwise scan blocks
+            int[] candidates = null;
+            if (query.getResource() != null || query.getUserId() != null) {
+                int[] byResource = query.getResource() == null ? null
+                        : postings(resourcePostings, query.getResource().hashCode(), entry, stop, scan.budget);
+                int[] byUser = query.getUserId() == null ? null
+                        : postings(userPostings, query.getUserId().hashCode(), entry, stop, scan.budget);
+                candidates = byUser == null || (byResource != null && byResource.length <= byUser.length)
+                        ? byResource : byUser;
+            }
+
+            int next = 0;
+            while (scan.results.size() < scan.limit && scan.budget > 0) {
+                if (candidates != null) {
+                    if (next == candidates.length) {
+                        return -1; // a truncated list runs out of budget first
+                    }
+                    entry = candidates[next++];
+                } else {
+                    if (entry >= stop) {
+                        return -1;
+                    }
+                    int block = (int) (entry >>> BLOCK_SHIFT);
+                    if (!blockOverlaps(block, from, to)) {
+                        entry = (long) (block + 1) << BLOCK_SHIFT;
+                        continue;
+                    }
+                }
+                scan.budget--;
+                JsonNode node = match(entry, from, to, query);
+                if (node != null) {
+                    scan.results.add(node);
+                }
+                entry++;
+            }
+            return entry;
+        } finally {
+            readerLock.readLock().unlock();
+        }
+    }
+
+    private JsonNode match(long entry, long from, long to, AuditQuery query) throws IOException {
+        if (!blockOverlaps((int) (entry >>> BLOCK_SHIFT), from, to)) {
+            return null;
+        }
+        long timestamp = entries.timestamp(entry);
+        if (timestamp < from || timestamp >= to) {
+            return null;
+        }
+        if ((query.getEventType() != null && entries.eventTypeHash(entry) != query.getEventType().hashCode())
+                || (query.getResource() != null && entries.resourceHash(entry) != query.getResource().hashCode())
+                || (query.getUserId() != null && entries.userHash(entry) != query.getUserId().hashCode())) {
+            return null;
+        }
+        // Hashes can collide, so confirm against the line itself
+        ByteBuffer line = reader.read(entries.offset(entry), entries.length(entry));
+        JsonNode node = objectMapper.readTree(new ByteBufferBackedInputStream(line));
+        if (!matches(node, EVENT_TYPE_FIELDS, query.getEventType())
+                || !matches(node, RESOURCE_FIELDS, query.getResource())
+                || !matches(node, USER_ID_FIELDS, query.getUserId())) {
+            return null;
+        }
+        return node;
+    }
+
+    private static boolean matches(JsonNode node, String[] names, String expected) {
+        if (expected == null) {
+            return true;
+        }
+        for (String name : names) {
+            JsonNode value = node.get(name);
+            if (value != null && !value.isNull()) {
+                return expected.equals(value.asText());
+            }
+        }
+        return false;
+    }
+
+    private boolean blockOverlaps(int block, long from, long to) {
+        if (block >= sealedBlocks) {
+            return true;
+        }
+        long[] bounds = blockBounds;
+        return bounds[2 * block + 1] >= from && bounds[2 * block] < to;
+    }
+
+    private static int[] postings(Map<Integer, Postings> index, int hash, long from, long stop, int max) {
+        synchronized (index) {
+            Postings postings = index.get(hash);
+            return postings == null ? new int[0] : postings.range(from, stop, max);
+        }
+    }
+
+    private void indexLine(long offset, ByteBuffer buffer, int start, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (lineBuffer.length < length) {
+            lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(lineBuffer, 0, length);
+
+        long timestamp = Long.MIN_VALUE;
+        String eventType = null;
+        String resource = null;
+        String userId = null;
+        try (JsonParser parser = jsonFactory.createParser(lineBuffer, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                } else if (contains(TIMESTAMP_FIELDS, name)) {
+                    timestamp = parseTimestamp(parser, value);
+                } else if (contains(EVENT_TYPE_FIELDS, name)) {
+                    eventType = parser.getText();
+                } else if (contains(RESOURCE_FIELDS, name)) {
+                    resource = parser.getText();
+                } else if (contains(USER_ID_FIELDS, name)) {
+                    userId = parser.getText();
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Skipping unparseable line at offset {} in audit segment {}", offset, id);
+            return;
+        }
+        // Lines without a readable timestamp sort with the line before them
+        if (timestamp == Long.MIN_VALUE) {
+            timestamp = lastTimestamp == Long.MIN_VALUE ? 0L : lastTimestamp;
+        }
+        lastTimestamp = timestamp;
+
+        long entry = entries.append(offset, length, timestamp, hash(eventType), hash(resource), hash(userId));
+        if (resource != null) {
+            addPosting(resourcePostings, resource.hashCode(), entry);
+        }
+        if (userId != null) {
+            addPosting(userPostings, userId.hashCode(), entry);
+        }
+        extendBlock(entry, timestamp);
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String candidate : names) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseTimestamp(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            long number = parser.getLongValue();
+            return number < 100_000_000_000L ? number * 1000 : number; // seconds or millis since the epoch
+        }
+        if (value != JsonToken.VALUE_STRING) {
+            return Long.MIN_VALUE;
+        }
+        String text = parser.getText();
+        long millis = parseUtc(text);
+        if (millis != Long.MIN_VALUE) {
+            return millis;
+        }
+        try {
+            return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                return Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Parse the common yyyy-MM-ddTHH:mm:ss[.fraction]Z form without a formatter, or return Long.MIN_VALUE.
+     */
+    private static long parseUtc(String text) {
+        int length = text.length();
+        if (length < 20 || text.charAt(length - 1) != 'Z' || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        int millis = 0;
+        if (length > 20) {
+            if (text.charAt(19) != '.') {
+                return Long.MIN_VALUE;
+            }
+            for (int i = 20; i < length - 1; i++) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Long.MIN_VALUE;
+                }
+                if (i < 23) {
+                    millis = millis * 10 + digit;
+                }
+            }
+            for (int i = Math.min(length - 1, 23); i < 23; i++) {
+                millis *= 10;
+            }
+        }
+        if ((year | month | day | hour | minute | second) < 0 || month < 1 || month > 12 || day < 1
+                || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            long epochDay = LocalDate.of(year, month, day).toEpochDay();
+            return ((epochDay * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static void addPosting(Map<Integer, Postings> index, int hash, long entry) {
+        synchronized (index) {
+            index.computeIfAbsent(hash, h -> new Postings()).add((int) entry);
+        }
+    }
+
+    private void extendBlock(long entry, long timestamp) throws IOException {
+        openBlockMin = Math.min(openBlockMin, timestamp);
+        openBlockMax = Math.max(openBlockMax, timestamp);
+        extendBounds(timestamp, timestamp);
+        if (((entry + 1) & (BLOCK_ENTRIES - 1)) == 0) {
+            ByteBuffer record = ByteBuffer.allocate(BLOCK_BYTES);
+            record.putLong(openBlockMin).putLong(openBlockMax).flip();
+            timeIndex.write(record, (long) sealedBlocks * BLOCK_BYTES);
+            sealBlock(openBlockMin, openBlockMax);
+            openBlockMin = Long.MAX_VALUE;
+            openBlockMax = Long.MIN_VALUE;
+        }
+    }
+
+    private void sealBlock(long min, long max) {
+        int block = sealedBlocks;
+        long[] bounds = blockBounds;
+        if (2 * block + 2 > bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        bounds[2 * block] = min;
+        bounds[2 * block + 1] = max;
+        blockBounds = bounds;
+        sealedBlocks = block + 1;
+        extendBounds(min, max);
+    }
+
+    private void extendBounds(long min, long max) {
+        if (min < minTimestamp) {
+            minTimestamp = min;
+        }
+        if (max > maxTimestamp) {
+            maxTimestamp = max;
+        }
+    }
+
+    private void openReader() throws IOException {
+        if (Files.exists(compressedPath)) {
+            reader = new CompressedLogFile(compressedPath);
+            compressed = true;
+        } else if (Files.exists(logPath)) {
+            reader = new AuditLogFile(logPath);
+        }
+    }
+
+    /**
+     * Check that the entry index still describes the log on disk: its last entry must end on a line break.
+     */
+    private boolean matchesLog() throws IOException {
+        long count = entries.count();
+        if (count == 0) {
+            return true;
+        }
+        if (reader == null || reader.size() < entries.logOffset()) {
+            return false;
+        }
+        long last = count - 1;
+        long end = entries.offset(last) + entries.length(last);
+        return end < reader.size() && reader.read(end, 1).get(0) == '\n';
+    }
+
+    private void clear() throws IOException {
+        entries.reset();
+        timeIndex.truncate(0);
+        sealedBlocks = 0;
+        openBlockMin = Long.MAX_VALUE;
+        openBlockMax = Long.MIN_VALUE;
+        minTimestamp = Long.MAX_VALUE;
+        maxTimestamp = Long.MIN_VALUE;
+        lastTimestamp = Long.MIN_VALUE;
+        synchronized (resourcePostings) {
+            resourcePostings.clear();
+        }
+        synchronized (userPostings) {
+            userPostings.clear();
+        }
+    }
+
+    private void loadTimeBlocks() throws IOException {
+        long count = entries.count();
+        int expected = (int) (count >>> BLOCK_SHIFT);
+        int stored = (int) Math.min(expected, timeIndex.size() / BLOCK_BYTES);
+        timeIndex.truncate((long) stored * BLOCK_BYTES);
+        ByteBuffer record = ByteBuffer.allocate(BLOCK_BYTES);
+        for (int block = 0; block < stored; block++) {
+            record.clear();
+            timeIndex.read(record, (long) block * BLOCK_BYTES);
+            sealBlock(record.getLong(0), record.getLong(8));
+        }
+        // Blocks sealed after time.idx was last written, and the open block, come from the entries
+        for (long entry = (long) stored << BLOCK_SHIFT; entry < count; entry++) {
+            extendBlock(entry, entries.timestamp(entry));
+        }
+        if (count > 0) {
+            lastTimestamp = entries.timestamp(count - 1);
+        }
+    }
+
+    private void loadPostings() {
+        long count = entries.count();
+        for (long entry = 0; entry < count; entry++) {
+            int resource = entries.resourceHash(entry);
+            int user = entries.userHash(entry);
+            if (resource != 0) {
+                addPosting(resourcePostings, resource, entry);
+            }
+            if (user != 0) {
+                addPosting(userPostings, user, entry);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        readerLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            entries.close();
+            timeIndex.force(false);
+            timeIndex.close();
+            if (reader != null) {
+                reader.close();
+            }
+        } finally {
+            readerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Results and remaining scan budget of one page, carried across segments.
+     */
+    static final class Scan {
+        final List<JsonNode> results = new ArrayList<>();
+        final int limit;
+        int budget;
+
+        Scan(int limit, int budget) {
+            this.limit = limit;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Ascending entry numbers for one hash.
+     */
+    private static final class Postings {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int entry) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = entry;
+        }
+
+        int[] range(long from, long stop, int max) {
+            int start = Arrays.binarySearch(values, 0, size, (int) Math.min(from, Integer.MAX_VALUE));
+            if (start < 0) {
+                start = -start - 1;
+            }
+            int end = start;
+            while (end < size && end - start < max && values[end] < stop) {
+                end++;
+            }
+            return Arrays.copyOfRange(values, start, end);
+        }
+    }
+}
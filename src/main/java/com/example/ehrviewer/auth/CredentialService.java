@@ -0,0 +1,192 @@
+package com.example.ehrviewer.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Password hashing and verification, isolated from the request threads.
+ *
+ * Verification runs on a fixed pool of {@code ehr.auth.hash-threads} workers (default: half the
+ * cores) behind a queue of {@code ehr.auth.hash-queue-capacity}. When both are full, new work is
+ * rejected at once with a {@link RejectedExecutionException} instead of queueing, so a login
+ * burst costs at most that many cores and never ties up the threads serving other requests.
+ *
+ * Batches of passwords to store, as from an import, are hashed on a separate pool of
+ * {@code ehr.auth.bulk-hash-threads} workers (default 1) with room for one more batch queued, so
+ * however many imports run, the verification workers stay free for logins.
+ *
+ * Every password is hashed here, even one that looks like a hash already. Only a trusted restore
+ * stores hashes as given, after checking them with {@link #accepts}; stored hashes at a cost outside
+ * {@code ehr.auth.pbkdf2-min-iterations} to {@code ehr.auth.pbkdf2-max-iterations} never verify.
+ */
+@Service
+public class CredentialService {
+    private static final Logger log = LoggerFactory.getLogger(CredentialService.class);
+
+    /**
+     * Outcome of {@link #verify}.
+     */
+    public static final class Verification {
+        private static final Verification NO_MATCH = new Verification(false, null);
+
+        private final boolean match;
+        private final String rehash;
+
+        private Verification(boolean match, String rehash) {
+            this.match = match;
+            this.rehash = rehash;
+        }
+
+        public boolean isMatch() { return match; }
+
+        /**
+         * A new hash at the current cost to store in place of the old value, or null if it is current.
+         */
+        public String getRehash() { return rehash; }
+    }
+
+    @Value("${ehr.auth.pbkdf2-iterations:310000}")
+    private int iterations;
+
+    @Value("${ehr.auth.pbkdf2-min-iterations:100000}")
+    private int minIterations;
+
+    @Value("${ehr.auth.pbkdf2-max-iterations:1000000}")
+    private int maxIterations;
+
+    @Value("${ehr.auth.hash-threads:0}")
+    private int threads;
+
+    @Value("${ehr.auth.hash-queue-capacity:64}")
+    private int queueCapacity;
+
+    @Value("${ehr.auth.bulk-hash-threads:1}")
+    private int bulkThreads;
+
+    private PasswordHasher hasher;
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor bulkExecutor;
+    // Verified against when the username is unknown, so unknown and known users take equally long.
+    // Hashed by the first worker rather than during startup; it is queued ahead of every verification
+    private CompletableFuture<String> decoy;
+
+    @PostConstruct
+    public void init() {
+        hasher = new PasswordHasher(iterations, minIterations, maxIterations);
+        int workers = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "credential-hasher-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        if (bulkThreads < 1) {
+            throw new IllegalArgumentException("ehr.auth.bulk-hash-threads must be positive: " + bulkThreads);
+        }
+        AtomicInteger bulkCounter = new AtomicInteger();
+        // Each batch is one task per worker, so this queue holds one batch
+        bulkExecutor = new ThreadPoolExecutor(bulkThreads, bulkThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(bulkThreads), runnable -> {
+                    Thread thread = new Thread(runnable, "credential-bulk-hasher-" + bulkCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        decoy = CompletableFuture.supplyAsync(() -> hasher.hash("decoy"), executor);
+        log.info("Credential verification on {} threads with a queue of {}, bulk hashing on {}, PBKDF2 at {} "
+                + "iterations", workers, queueCapacity, bulkThreads, iterations);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+        bulkExecutor.shutdown();
+    }
+
+    /**
+     * Hash a password for storage on the calling thread. Null is returned as is; anything else is
+     * hashed, even if it looks like a hash.
+     */
+    public String hash(String password) {
+        return password == null ? null : hasher.hash(password);
+    }
+
+    /**
+     * Whether an already hashed password from a trusted restore is well formed at an accepted cost.
+     */
+    public boolean accepts(String hashed) {
+        return hasher.accepts(hashed);
+    }
+
+    /**
+     * Hash passwords for storage on the bulk hashing pool, as {@link #hash} would, and wait for them.
+     * The batch is split into one task per bulk worker.
+     *
+     * @return the hashes, in order
+     * @throws RejectedExecutionException if the bulk workers are busy and a batch is already waiting;
+     *         the batch is abandoned
+     */
+    public List<String> hashAll(List<String> passwords) {
+        String[] hashes = new String[passwords.size()];
+        int tasks = Math.min(passwords.size(), bulkExecutor.getMaximumPoolSize());
+        CompletableFuture<?>[] parts = new CompletableFuture<?>[tasks];
+        AtomicBoolean abandoned = new AtomicBoolean();
+        try {
+            for (int t = 0; t < tasks; t++) {
+                int from = (int) ((long) passwords.size() * t / tasks);
+                int to = (int) ((long) passwords.size() * (t + 1) / tasks);
+                parts[t] = CompletableFuture.runAsync(() -> {
+                    for (int i = from; i < to && !abandoned.get(); i++) {
+                        hashes[i] = hash(passwords.get(i));
+                    }
+                }, bulkExecutor);
+            }
+        } catch (RejectedExecutionException e) {
+            // Parts already queued stop before their next password
+            abandoned.set(true);
+            throw e;
+        }
+        CompletableFuture.allOf(parts).join();
+        return Arrays.asList(hashes);
+    }
+
+    /**
+     * Check a password against a stored value (null for an unknown user) on the worker pool. If it
+     * matches but the stored value is plaintext or hashed at another cost, the result carries a rehash.
+     *
+     * @throws RejectedExecutionException if the workers and their queue are full
+     */
+    public CompletableFuture<Verification> verify(String stored, String password) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (stored == null) {
+                hasher.verify(password, decoy.join());
+                return Verification.NO_MATCH;
+            }
+            if (!hasher.verify(password, stored)) {
+                return Verification.NO_MATCH;
+            }
+            return new Verification(true, hasher.needsRehash(stored) ? hasher.hash(password) : null);
+        }, executor);
+    }
+
+    /**
+     * Verifications waiting for a worker.
+     */
+    public int pending() {
+        return executor.getQueue().size();
+    }
+}
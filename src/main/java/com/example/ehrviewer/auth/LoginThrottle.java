@@ -0,0 +1,188 @@
+package com.example.ehrviewer.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Failed-login limits per username and per client address, checked before any user lookup,
+ * password hashing or auditing.
+ *
+ * Failures are counted over a sliding window in {@link SlidingWindowCounters}, so a check is a
+ * constant-time read and memory does not grow with the number of usernames or addresses tried.
+ * Attempts refused while a key is over its limit are not audited one by one; they are tallied and
+ * handed to the summary listener once per {@code ehr.auth.throttle.summary-interval-seconds}.
+ */
+@Component
+public class LoginThrottle {
+    private static final Logger log = LoggerFactory.getLogger(LoginThrottle.class);
+
+    // Distinct usernames and addresses named in one summary; the rest are only counted
+    private static final int MAX_SUMMARY_KEYS = 100;
+
+    /**
+     * Attempts refused during one summary interval.
+     */
+    public static final class Summary {
+        private final long intervalSeconds;
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder untracked = new LongAdder();
+        private final ConcurrentMap<String, LongAdder> byUsername = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, LongAdder> byClient = new ConcurrentHashMap<>();
+
+        Summary(long intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        void record(String username, String client) {
+            throttled.increment();
+            if (!count(byUsername, username) | !count(byClient, client)) {
+                untracked.increment();
+            }
+        }
+
+        private static boolean count(ConcurrentMap<String, LongAdder> counts, String key) {
+            if (key == null) {
+                return true;
+            }
+            LongAdder count = counts.get(key);
+            if (count == null) {
+                if (counts.size() >= MAX_SUMMARY_KEYS) {
+                    return false;
+                }
+                count = counts.computeIfAbsent(key, k -> new LongAdder());
+            }
+            count.increment();
+            return true;
+        }
+
+        public long getIntervalSeconds() { return intervalSeconds; }
+        public long getThrottled() { return throttled.sum(); }
+
+        /**
+         * Refused attempts whose username or address was not among those named in the summary.
+         */
+        public long getUntracked() { return untracked.sum(); }
+        public Map<String, Long> getByUsername() { return sums(byUsername); }
+        public Map<String, Long> getByClient() { return sums(byClient); }
+
+        private static Map<String, Long> sums(Map<String, LongAdder> counts) {
+            Map<String, Long> sums = new LinkedHashMap<>();
+            for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+                sums.put(entry.getKey(), entry.getValue().sum());
+            }
+            return Collections.unmodifiableMap(sums);
+        }
+    }
+
+    @Value("${ehr.auth.throttle.window-seconds:300}")
+    private long windowSeconds;
+
+    @Value("${ehr.auth.throttle.max-failures-per-username:5}")
+    private int maxFailuresPerUsername;
+
+    @Value("${ehr.auth.throttle.max-failures-per-client:50}")
+    private int maxFailuresPerClient;
+
+    @Value("${ehr.auth.throttle.table-size:65536}")
+    private int tableSize;
+
+    @Value("${ehr.auth.throttle.summary-interval-seconds:60}")
+    private long summaryIntervalSeconds;
+
+    private SlidingWindowCounters usernames;
+    private SlidingWindowCounters clients;
+    private AtomicReference<Summary> summary;
+    private volatile Consumer<Summary> summaryListener;
+
+    private final ScheduledExecutorService summarizer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "login-throttle-summary");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        long windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        usernames = new SlidingWindowCounters(tableSize, windowMillis);
+        clients = new SlidingWindowCounters(tableSize, windowMillis);
+        summary = new AtomicReference<>(new Summary(summaryIntervalSeconds));
+        summarizer.scheduleAtFixedRate(this::publishSummary, summaryIntervalSeconds, summaryIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        summarizer.shutdown();
+        publishSummary();
+    }
+
+    /**
+     * Receive the tally of refused attempts once per interval in which there were any.
+     */
+    public void setSummaryListener(Consumer<Summary> listener) {
+        this.summaryListener = listener;
+    }
+
+    /**
+     * Check an attempt before doing any work for it. Returns 0 if it may proceed, otherwise the
+     * seconds to wait before retrying; a refused attempt is added to the current summary.
+     * The client may be null when it is not known.
+     */
+    public long check(String username, String client) {
+        long now = System.currentTimeMillis();
+        if (usernames.estimate(username, now) < maxFailuresPerUsername
+                && (client == null || clients.estimate(client, now) < maxFailuresPerClient)) {
+            return 0;
+        }
+        summary.get().record(username, client);
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(usernames.millisUntilNextWindow(now) + 999));
+    }
+
+    /**
+     * Count a failed attempt against its username and client.
+     */
+    public void recordFailure(String username, String client) {
+        long now = System.currentTimeMillis();
+        usernames.increment(username, now);
+        if (client != null) {
+            clients.increment(client, now);
+        }
+    }
+
+    /**
+     * Clear a username's failures after it logged in. The client's failures stand, since one
+     * address may be trying many usernames.
+     */
+    public void recordSuccess(String username) {
+        usernames.reset(username);
+    }
+
+    private void publishSummary() {
+        Summary finished = summary.getAndSet(new Summary(summaryIntervalSeconds));
+        Consumer<Summary> listener = summaryListener;
+        if (finished.getThrottled() == 0 || listener == null) {
+            return;
+        }
+        try {
+            listener.accept(finished);
+        } catch (RuntimeException e) {
+            log.warn("Failed to publish login throttle summary", e);
+        }
+    }
+}
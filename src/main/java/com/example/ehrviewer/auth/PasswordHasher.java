@@ -0,0 +1,138 @@
+package com.example.ehrviewer.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, encoded as
+ * {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} with unpadded Base64 salt and hash.
+ *
+ * Stored values without that prefix are plaintext passwords from before hashing was introduced.
+ * They still verify, and {@link #needsRehash(String)} reports them so they get replaced. A hash
+ * at a cost outside the accepted range never verifies: one too cheap is too easily cracked, and
+ * checking one too dear would tie up a verification worker.
+ */
+public final class PasswordHasher {
+    static final String PREFIX = "pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final int iterations;
+    private final int minIterations;
+    private final int maxIterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Hash at {@code iterations}, and accept stored hashes at any cost from {@code minIterations}
+     * to {@code maxIterations}.
+     */
+    public PasswordHasher(int iterations, int minIterations, int maxIterations) {
+        if (minIterations < 1 || iterations < minIterations || iterations > maxIterations) {
+            throw new IllegalArgumentException("PBKDF2 iterations must be positive and within the accepted range: "
+                    + minIterations + " <= " + iterations + " <= " + maxIterations);
+        }
+        this.iterations = iterations;
+        this.minIterations = minIterations;
+        this.maxIterations = maxIterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Whether a stored value is already a hash in this format, at any cost.
+     */
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * Hash a password with a fresh salt at the current cost.
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations, HASH_BITS);
+        return PREFIX + iterations + "$" + ENCODER.encodeToString(salt) + "$" + ENCODER.encodeToString(hash);
+    }
+
+    /**
+     * Check a password against a stored value in constant time for its length.
+     */
+    public boolean verify(String password, String stored) {
+        if (stored == null || password == null) {
+            return false;
+        }
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                    password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            int cost = Integer.parseInt(parts[0]);
+            byte[] salt = DECODER.decode(parts[1]);
+            byte[] expected = DECODER.decode(parts[2]);
+            if (!accepted(cost) || expected.length == 0) {
+                return false;
+            }
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, cost, expected.length * 8));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether a value supplied already hashed, as by a restore, is a well-formed hash in this format
+     * at an accepted cost, and so may be stored as is.
+     */
+    public boolean accepts(String hashed) {
+        if (!isHashed(hashed)) {
+            return false;
+        }
+        String[] parts = hashed.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            return accepted(Integer.parseInt(parts[0])) && DECODER.decode(parts[1]).length > 0
+                    && DECODER.decode(parts[2]).length == HASH_BITS / 8;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether a stored value should be replaced by a hash at the current cost.
+     */
+    public boolean needsRehash(String stored) {
+        return !isHashed(stored) || !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    private boolean accepted(int cost) {
+        return cost >= minIterations && cost <= maxIterations;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.ehrviewer.auth;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate per-key event counts over a sliding window, in a fixed-size table.
+ *
+ * Each slot is one word updated by compare-and-set: a 24-bit key fingerprint, a 16-bit window
+ * number and 12-bit counts for the current and previous window. The sliding count is the current
+ * window's count plus the previous one's, weighted by how much of it still overlaps the sliding
+ * window. Keys hash to a slot with a per-process seed; a key whose slot is taken by another simply
+ * replaces it, so memory stays bounded however many keys are seen, and counts older than two
+ * windows expire without any cleanup.
+ */
+final class SlidingWindowCounters {
+    private static final int COUNT_BITS = 12;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int EPOCH_SHIFT = 2 * COUNT_BITS;
+    private static final long EPOCH_MASK = 0xFFFFL;
+    private static final int FINGERPRINT_SHIFT = 40;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long windowMillis;
+    private final long seed = new SecureRandom().nextLong();
+
+    SlidingWindowCounters(int size, long windowMillis) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Counter table size must be a power of two: " + size);
+        }
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+        }
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Sliding-window count for a key at time {@code now}.
+     */
+    double estimate(String key, long now) {
+        long hash = hash(key);
+        return estimate(slots.get(index(hash)), fingerprint(hash), now);
+    }
+
+    /**
+     * Count one event for a key and return the new sliding-window count.
+     */
+    double increment(String key, long now) {
+        long hash = hash(key);
+        int index = index(hash);
+        long fingerprint = fingerprint(hash);
+        long epoch = epoch(now);
+        while (true) {
+            long current = slots.get(index);
+            long count = 0;
+            long previous = 0;
+            if (current >>> FINGERPRINT_SHIFT == fingerprint) {
+                long slotEpoch = (current >>> EPOCH_SHIFT) & EPOCH_MASK;
+                if (slotEpoch == epoch) {
+                    count = (current >>> COUNT_BITS) & COUNT_MASK;
+                    previous = current & COUNT_MASK;
+                } else if (slotEpoch == ((epoch - 1) & EPOCH_MASK)) {
+                    previous = (current >>> COUNT_BITS) & COUNT_MASK;
+                }
+            }
+            long updated = pack(fingerprint, epoch, Math.min(count + 1, COUNT_MASK), previous);
+            if (slots.compareAndSet(index, current, updated)) {
+                return estimate(updated, fingerprint, now);
+            }
+        }
+    }
+
+    /**
+     * Forget a key's events, unless its slot has since been taken by another key.
+     */
+    void reset(String key) {
+        long hash = hash(key);
+        int index = index(hash);
+        long current = slots.get(index);
+        if (current >>> FINGERPRINT_SHIFT == fingerprint(hash)) {
+            slots.compareAndSet(index, current, 0L);
+        }
+    }
+
+    /**
+     * Milliseconds until the current window ends and older events start to weigh less.
+     */
+    long millisUntilNextWindow(long now) {
+        return windowMillis - Math.floorMod(now, windowMillis);
+    }
+
+    private double estimate(long slot, long fingerprint, long now) {
+        if (slot >>> FINGERPRINT_SHIFT != fingerprint) {
+            return 0;
+        }
+        long epoch = epoch(now);
+        long slotEpoch = (slot >>> EPOCH_SHIFT) & EPOCH_MASK;
+        long count;
+        long previous;
+        if (slotEpoch == epoch) {
+            count = (slot >>> COUNT_BITS) & COUNT_MASK;
+            previous = slot & COUNT_MASK;
+        } else if (slotEpoch == ((epoch - 1) & EPOCH_MASK)) {
+            count = 0;
+            previous = (slot >>> COUNT_BITS) & COUNT_MASK;
+        } else {
+            return 0;
+        }
+        double overlap = 1.0 - (double) Math.floorMod(now, windowMillis) / windowMillis;
+        return count + previous * overlap;
+    }
+
+    private long epoch(long now) {
+        return Math.floorDiv(now, windowMillis) & EPOCH_MASK;
+    }
+
+    private int index(long hash) {
+        return (int) hash & mask;
+    }
+
+    private static long fingerprint(long hash) {
+        long fingerprint = hash >>> FINGERPRINT_SHIFT;
+        return fingerprint == 0 ? 1 : fingerprint; // zero marks an empty slot
+    }
+
+    private static long pack(long fingerprint, long epoch, long count, long previous) {
+        return fingerprint << FINGERPRINT_SHIFT | epoch << EPOCH_SHIFT | count << COUNT_BITS | previous;
+    }
+
+    /**
+     * Seeded FNV-1a over the key's chars, so slot collisions cannot be planned from outside.
+     */
+    private long hash(String key) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // Final mix so both the low (index) and high (fingerprint) bits depend on every char
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.ehrviewer.controller;
+
+import com.example.ehrviewer.model.AuditPage;
+import com.example.ehrviewer.model.AuditQuery;
+import com.example.ehrviewer.policy.Action;
+import com.example.ehrviewer.policy.Authorize;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.session.SessionPrincipal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * REST controller for querying the audit log. Requires a session granted {@link Action#QUERY_AUDIT}.
+ */
+@RestController
+@RequestMapping("/api/audit")
+public class AuditController {
+
+    @Autowired
+    private UserService userService;
+
+    /**
+     * Get one page of audit entries in log order, filtered by time range, resource, user and event type.
+     * Times may be ISO-8601 instants, dates or epoch millis; "to" is exclusive.
+     */
+    @GetMapping
+    @Authorize(Action.QUERY_AUDIT)
+    public ResponseEntity<AuditPage> query(@RequestParam(required = false) String from,
+                                           @RequestParam(required = false) String to,
+                                           @RequestParam(required = false) String resource,
+                                           @RequestParam(required = false) String userId,
+                                           @RequestParam(required = false) String eventType,
+                                           @RequestParam(required = false) String cursor,
+                                           @RequestParam(defaultValue = "50") int limit,
+                                           SessionPrincipal principal) {
+        try {
+            AuditQuery query = new AuditQuery(AuditQuery.parseTime(from), AuditQuery.parseTime(to),
+                    resource, userId, eventType, cursor, limit);
+            return ResponseEntity.ok(userService.queryAuditLog(query, principal.getUserId()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
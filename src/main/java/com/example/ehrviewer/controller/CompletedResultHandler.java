@@ -0,0 +1,107 @@
+package com.example.ehrviewer.controller;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.ResolvableType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandlerComposite;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes a {@link CompletableFuture} that is already complete when its handler returns, as every one
+ * from {@link RequestExecutor} is in {@code SYNC} mode, as if the handler had returned its value.
+ * Spring MVC would otherwise start async processing even for a completed future and dispatch the
+ * request a second time to write it. Futures still running, failed or completed with null are left
+ * to Spring's own handling.
+ *
+ * Handlers added through {@code WebMvcConfigurer} only see return types no built-in handler claims,
+ * so this one is put first in the handler adapter once it is set up.
+ */
+@Component
+public class CompletedResultHandler implements BeanPostProcessor {
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof RequestMappingHandlerAdapter) {
+            RequestMappingHandlerAdapter adapter = (RequestMappingHandlerAdapter) bean;
+            List<HandlerMethodReturnValueHandler> handlers = new ArrayList<>(adapter.getReturnValueHandlers());
+            HandlerMethodReturnValueHandlerComposite delegates =
+                    new HandlerMethodReturnValueHandlerComposite().addHandlers(handlers);
+            handlers.add(0, new Unwrapping(delegates));
+            adapter.setReturnValueHandlers(handlers);
+        }
+        return bean;
+    }
+
+    private static final class Unwrapping implements HandlerMethodReturnValueHandler {
+        private final HandlerMethodReturnValueHandlerComposite delegates;
+
+        Unwrapping(HandlerMethodReturnValueHandlerComposite delegates) {
+            this.delegates = delegates;
+        }
+
+        @Override
+        public boolean supportsReturnType(MethodParameter returnType) {
+            return CompletableFuture.class.isAssignableFrom(returnType.getParameterType());
+        }
+
+        @Override
+        public void handleReturnValue(Object returnValue, MethodParameter returnType,
+                                      ModelAndViewContainer mavContainer, NativeWebRequest webRequest)
+                throws Exception {
+            CompletableFuture<?> future = (CompletableFuture<?>) returnValue;
+            Object value = future != null && future.isDone() && !future.isCompletedExceptionally()
+                    ? future.join() : null;
+            if (value == null) {
+                delegates.handleReturnValue(returnValue, returnType, mavContainer, webRequest);
+            } else {
+                delegates.handleReturnValue(value, new ResultType(returnType, value), mavContainer, webRequest);
+            }
+        }
+    }
+
+    /**
+     * The handler's return type with the future's value in place of the future, for the handler
+     * that writes the value.
+     */
+    private static final class ResultType extends MethodParameter {
+        private final Class<?> type;
+        private final Type genericType;
+
+        ResultType(MethodParameter returnType, Object value) {
+            super(returnType);
+            ResolvableType result = ResolvableType.forMethodParameter(returnType).getGeneric();
+            this.type = value.getClass();
+            this.genericType = result == ResolvableType.NONE ? type : result.getType();
+        }
+
+        private ResultType(ResultType original) {
+            super(original);
+            this.type = original.type;
+            this.genericType = original.genericType;
+        }
+
+        @Override
+        public Class<?> getParameterType() {
+            return type;
+        }
+
+        @Override
+        public Type getGenericParameterType() {
+            return genericType;
+        }
+
+        @Override
+        public ResultType clone() {
+            return new ResultType(this);
+        }
+    }
+}
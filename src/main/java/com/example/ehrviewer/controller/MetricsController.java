@@ -0,0 +1,42 @@
+package com.example.ehrviewer.controller;
+
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+
+/**
+ * Prometheus scrape endpoint. Only loopback clients are served unless
+ * {@code ehr.metrics.allow-remote} is set.
+ */
+@RestController
+public class MetricsController {
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    @Value("${ehr.metrics.allow-remote:false}")
+    private boolean allowRemote;
+
+    /**
+     * Metrics in the Prometheus text exposition format.
+     */
+    @GetMapping("/metrics")
+    public void metrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!allowRemote && !InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        Writer out = response.getWriter();
+        metrics.writePrometheus(out);
+        out.flush();
+    }
+}
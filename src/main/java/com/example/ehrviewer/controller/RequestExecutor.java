@@ -0,0 +1,190 @@
+package com.example.ehrviewer.controller;
+
+import com.example.ehrviewer.audit.AuditContext;
+import com.example.ehrviewer.audit.AuditPipeline;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the store and audit work of controller handlers, which return its result as a
+ * {@link CompletableFuture}.
+ *
+ * In {@code SYNC} mode (the default) the work runs on the servlet thread, which is held until it
+ * is done, audit acks included. The future is then already complete, and its value is written by
+ * {@link CompletedResultHandler} without the second, async dispatch Spring would make for it.
+ *
+ * In {@code ASYNC} mode the work runs on a pool of {@code ehr.web.worker-threads} workers and the
+ * servlet thread is released at once. The worker does not wait for audit acks either
+ * ({@link AuditPipeline#deferringAcks}); the response is completed when they arrive. Work that
+ * finds {@code ehr.web.queue-capacity} tasks already queued, or that has waited longer than
+ * {@code ehr.web.queue-timeout-ms} to start, is not run at all and fails with
+ * {@link RejectedExecutionException}, so a refused request has changed nothing. The work runs in
+ * the request's {@link AuditContext} either way.
+ *
+ * In both modes the workers also run the {@link #continuation} of work that waited on another pool,
+ * such as a login's password check.
+ */
+@Component
+public class RequestExecutor {
+
+    /**
+     * Where handler work runs.
+     */
+    public enum Mode {
+        SYNC,
+        ASYNC
+    }
+
+    @Value("${ehr.web.execution:SYNC}")
+    private Mode mode;
+
+    @Value("${ehr.web.worker-threads:8}")
+    private int workerThreads;
+
+    @Value("${ehr.web.queue-capacity:1024}")
+    private int queueCapacity;
+
+    @Value("${ehr.web.queue-timeout-ms:2000}")
+    private long queueTimeoutMs;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private ThreadPoolExecutor workers;
+    private long queueTimeoutNanos;
+
+    @PostConstruct
+    public void init() {
+        queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        AtomicInteger counter = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "request-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        metrics.registerGauge("ehr_request_workers_active", null, "Request workers running handler work",
+                workers::getActiveCount);
+        metrics.registerGauge("ehr_request_workers_queued", null, "Handler work waiting for a request worker",
+                () -> workers.getQueue().size());
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Run a handler's work. If it throws, or cannot be run, or an audit event it logged fails to be
+     * written, the future completes with {@code onFailure} applied to the error instead; if that
+     * throws in turn, the future completes exceptionally with what it threw.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> work, Function<Throwable, T> onFailure) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (mode != Mode.ASYNC) {
+            try {
+                result.complete(work.call());
+            } catch (Exception e) {
+                fail(result, e, onFailure);
+            }
+            return result;
+        }
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        AuditContext context = AuditContext.current();
+        try {
+            workers.execute(() -> {
+                AuditContext previous = AuditContext.attach(context);
+                try {
+                    run(work, onFailure, result, deadline);
+                } finally {
+                    AuditContext.attach(previous);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(result, e, onFailure);
+        }
+        return result;
+    }
+
+    /**
+     * Where to continue a request's work once a stage it waits on completes: on a worker, in the
+     * request's {@link AuditContext}, instead of on the thread of the pool that completed the stage.
+     * Take it on the request's thread. Work the workers cannot take runs on the completing thread.
+     */
+    public Executor continuation() {
+        AuditContext context = AuditContext.current();
+        return task -> {
+            Runnable attached = () -> {
+                AuditContext previous = AuditContext.attach(context);
+                try {
+                    task.run();
+                } finally {
+                    AuditContext.attach(previous);
+                }
+            };
+            try {
+                workers.execute(attached);
+            } catch (RejectedExecutionException e) {
+                // A stage whose executor throws never completes
+                attached.run();
+            }
+        };
+    }
+
+    private static <T> void run(Callable<T> work, Function<Throwable, T> onFailure, CompletableFuture<T> result,
+                                long deadline) {
+        if (System.nanoTime() - deadline > 0) {
+            fail(result, new RejectedExecutionException("Request waited too long for a worker"), onFailure);
+            return;
+        }
+        List<CompletableFuture<Void>> acks = new ArrayList<>(2);
+        T value;
+        try {
+            value = AuditPipeline.deferringAcks(work, acks);
+        } catch (Exception e) {
+            fail(result, e, onFailure);
+            return;
+        }
+        if (acks.isEmpty()) {
+            result.complete(value);
+            return;
+        }
+        // Completed on the audit writer thread, which only hands the response back to the container
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else {
+                fail(result, error, onFailure);
+            }
+        });
+    }
+
+    private static <T> void fail(CompletableFuture<T> result, Throwable error, Function<Throwable, T> onFailure) {
+        try {
+            result.complete(onFailure.apply(error));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
@@ -1,25 +1,58 @@
 package com.example.ehrviewer.controller;
 
+import com.example.ehrviewer.auth.LoginThrottledException;
+import com.example.ehrviewer.model.DuplicateCandidate;
 import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPage;
+import com.example.ehrviewer.model.UserQuery;
 import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.policy.AccessPolicy;
+import com.example.ehrviewer.policy.Action;
+import com.example.ehrviewer.policy.Anonymous;
+import com.example.ehrviewer.policy.Authorize;
 import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.session.SessionManager;
+import com.example.ehrviewer.session.SessionPrincipal;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
-import javax.servlet.http.HttpSession;
-import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller
 @RequestMapping("/ui")
 public class UIController {
+    // Browsers may keep pages but must revalidate them; shared caches may not keep them at all
+    private static final String REVALIDATE = "no-cache, private";
+
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private SessionManager sessions;
+
+    @Autowired
+    private AccessPolicy accessPolicy;
+
+    @Autowired
+    private RequestExecutor requests;
+
     // Show login page
     @GetMapping({"/login", "/"})
+    @Anonymous
     public String loginPage(@RequestParam(value = "error", required = false) String error, Model model) {
         if (error != null) {
             model.addAttribute("error", error);
@@ -27,46 +60,125 @@ public class UIController {
         return "login";
     }
 
-    // Handle login form
+    // Handle login form; the password is checked off the request thread
     @PostMapping("/login")
-    public String login(@RequestParam String username, @RequestParam String password, HttpSession session, Model model) {
-        try {
-            User user = userService.authenticate(username, password);
-            if (user != null) {
-                session.setAttribute("user", user);
+    @Anonymous
+    public CompletableFuture<String> login(@RequestParam String username, @RequestParam String password,
+                                           HttpServletRequest request, HttpServletResponse response, Model model) {
+        return userService.authenticate(username, password, request.getRemoteAddr(), requests.continuation()).handle((user, error) -> {
+            if (error == null && user != null && sessions.login(user, response)) {
                 return "redirect:/ui/users";
-            } else {
+            }
+            if (error instanceof CompletionException) {
+                error = error.getCause();
+            }
+            if (error == null) {
                 model.addAttribute("error", "Invalid username or password");
-                return "login";
+            } else if (error instanceof LoginThrottledException) {
+                model.addAttribute("error", "Too many failed attempts, please try again later");
+            } else if (error instanceof RejectedExecutionException) {
+                model.addAttribute("error", "Too many logins in progress, please try again in a moment");
+            } else {
+                model.addAttribute("error", "Login failed");
             }
-        } catch (Exception e) {
-            model.addAttribute("error", "Login failed");
             return "login";
-        }
+        });
     }
 
     // Logout
     @PostMapping("/logout")
-    public String logout(HttpSession session) {
-        User user = (User) session.getAttribute("user");
+    @Anonymous
+    public String logout(HttpServletRequest request, HttpServletResponse response) {
+        SessionPrincipal principal = sessions.logout(request, response);
+        User user = principal == null ? null : sessions.resolve(principal);
         if (user != null) {
             try { userService.logLogoutEvent(user); } catch (Exception ignored) {}
         }
-        session.invalidate();
         return "redirect:/ui/login";
     }
 
-    // Show user list
+    // Show user list, one page at a time; answers 304 while no user has changed.
+    // Users who may not list everyone, such as patients, see only themselves.
+    // The 304 is answered on the request thread: a future completing with no view would be rendered.
     @GetMapping("/users")
-    public String userList(HttpSession session, Model model) {
-        User currentUser = (User) session.getAttribute("user");
-        if (currentUser == null) return "redirect:/ui/login";
+    @Authorize(value = Action.LIST, narrowed = true)
+    public CompletableFuture<String> userList(@RequestParam(required = false) UserType type,
+                                              @RequestParam(required = false) String gender,
+                                              @RequestParam(required = false) Integer minAge,
+                                              @RequestParam(required = false) Integer maxAge,
+                                              @RequestParam(required = false) String cursor,
+                                              @RequestParam(value = "q", required = false) String search,
+                                              SessionPrincipal principal, HttpServletResponse response,
+                                              WebRequest webRequest, Model model) {
+        boolean searching = search != null && !search.trim().isEmpty();
+        boolean listAll = accessPolicy.allowsAll(principal, Action.LIST);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, REVALIDATE);
+        if (webRequest.checkNotModified(listTag(principal))) {
+            if (listAll) {
+                try {
+                    userService.logRevalidation(searching ? "USER_SEARCH" : "USER_VIEW_PAGE",
+                            searching ? "SEARCH" : "VIEW_PAGE", "user", principal.getUserId());
+                } catch (Exception ignored) {}
+            }
+            return null;
+        }
+        return requests.submit(() -> listUsers(type, gender, minAge, maxAge, cursor, search, searching, listAll,
+                principal, model), UIController::failed);
+    }
+
+    // Show every user on one page. The rows are rendered from a live view of the directory as the
+    // page is written out, and sent whenever the response buffer fills, so neither the users nor the
+    // page are ever held in memory whole and the first rows go out at once, however many there are.
+    @GetMapping("/users/all")
+    @Authorize(Action.LIST)
+    public CompletableFuture<String> allUsers(SessionPrincipal principal, HttpServletResponse response,
+                                              WebRequest webRequest, Model model) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, REVALIDATE);
+        if (webRequest.checkNotModified(listTag(principal))) {
+            try {
+                userService.logRevalidation("USER_VIEW_ALL", "VIEW_ALL", "user", principal.getUserId());
+            } catch (Exception ignored) {}
+            return null;
+        }
+        return requests.submit(() -> {
+            try {
+                model.addAttribute("canAdd", accessPolicy.allowsAll(principal, Action.ADD));
+                model.addAttribute("canRemove", accessPolicy.allowsAll(principal, Action.REMOVE));
+                model.addAttribute("users", userService.listAllUsers(principal.getUserId()));
+                model.addAttribute("all", true);
+            } catch (Exception e) {
+                model.addAttribute("error", "Failed to load users");
+            }
+            return "user_list";
+        }, UIController::failed);
+    }
+
+    // Users see different pages at the same URL, so the viewer is part of the tag
+    private String listTag(SessionPrincipal principal) {
+        return "ui-" + userService.getUsersTag() + "-" + Integer.toHexString(principal.getUserId().hashCode());
+    }
+
+    private String listUsers(UserType type, String gender, Integer minAge, Integer maxAge, String cursor,
+                             String search, boolean searching, boolean listAll, SessionPrincipal principal,
+                             Model model) {
         try {
-            if (currentUser.getType() == UserType.PATIENT) {
-                model.addAttribute("users", java.util.Collections.singletonList(currentUser));
+            model.addAttribute("canAdd", accessPolicy.allowsAll(principal, Action.ADD));
+            model.addAttribute("canRemove", accessPolicy.allowsAll(principal, Action.REMOVE));
+            if (!listAll) {
+                User self = sessions.resolve(principal);
+                if (self == null) return "redirect:/ui/login";
+                model.addAttribute("users", java.util.Collections.singletonList(self));
+            } else if (searching) {
+                model.addAttribute("users", userService.searchUsers(search, UserQuery.DEFAULT_LIMIT, principal.getUserId()));
+                model.addAttribute("search", search);
             } else {
-                Map<String, User> users = userService.getAllUsers(currentUser.getUserId());
-                model.addAttribute("users", users.values());
+                if (gender != null && gender.isEmpty()) gender = null;
+                UserQuery query = new UserQuery(type, gender, minAge, maxAge, cursor, UserQuery.DEFAULT_LIMIT);
+                UserPage page = userService.getUsersPage(query, principal.getUserId());
+                model.addAttribute("users", page.getUsers());
+                model.addAttribute("nextCursor", page.getNextCursor());
+                model.addAttribute("query", query);
+                model.addAttribute("userTypes", UserType.values());
             }
             return "user_list";
         } catch (Exception e) {
@@ -77,65 +189,94 @@ public class UIController {
 
     // Show add user form
     @GetMapping("/add-user")
-    public String addUserForm(HttpSession session, Model model) {
-        User currentUser = (User) session.getAttribute("user");
-        if (currentUser == null) return "redirect:/ui/login";
+    @Authorize(Action.ADD)
+    public String addUserForm(Model model) {
         model.addAttribute("userTypes", UserType.values());
         return "add_user";
     }
 
-    // Handle add user form
+    // Handle add user form; a patient who may already be on record is still added, and the next page lists the likely duplicates
     @PostMapping("/add-user")
-    public String addUser(@RequestParam String name,
-                         @RequestParam String dob,
-                         @RequestParam String address,
-                         @RequestParam int age,
-                         @RequestParam String type,
-                         @RequestParam String gender,
-                         @RequestParam String contactInfo,
-                         @RequestParam String username,
-                         @RequestParam String password,
-                         HttpSession session,
-                         Model model) {
-        User currentUser = (User) session.getAttribute("user");
-        if (currentUser == null) return "redirect:/ui/login";
-        try {
-            String userId = UUID.randomUUID().toString();
-            User newUser = new User(userId, name, dob, address, age, UserType.valueOf(type), gender, contactInfo, username, password);
-            userService.addUser(newUser, currentUser.getUserId(), "Added via UI");
-            return "redirect:/ui/users";
-        } catch (Exception e) {
-            model.addAttribute("error", "Failed to add user: " + e.getMessage());
-            model.addAttribute("userTypes", UserType.values());
-            return "add_user";
-        }
+    @Authorize(Action.ADD)
+    public CompletableFuture<String> addUser(@RequestParam String name,
+                                             @RequestParam String dob,
+                                             @RequestParam String address,
+                                             @RequestParam int age,
+                                             @RequestParam String type,
+                                             @RequestParam String gender,
+                                             @RequestParam String contactInfo,
+                                             @RequestParam String username,
+                                             @RequestParam String password,
+                                             SessionPrincipal principal,
+                                             Model model, RedirectAttributes redirect) {
+        return requests.submit(() -> {
+            try {
+                String userId = UUID.randomUUID().toString();
+                User newUser = new User(userId, name, dob, address, age, UserType.valueOf(type), gender, contactInfo, username, password);
+                List<DuplicateCandidate> duplicates = new ArrayList<>();
+                userService.addUser(newUser, principal.getUserId(), "Added via UI", duplicates);
+                if (!duplicates.isEmpty()) {
+                    redirect.addFlashAttribute("addedName", name);
+                    redirect.addFlashAttribute("possibleDuplicates", duplicates);
+                }
+                return "redirect:/ui/users";
+            } catch (Exception e) {
+                model.addAttribute("error", "Failed to add user: " + e.getMessage());
+                model.addAttribute("userTypes", UserType.values());
+                return "add_user";
+            }
+        }, UIController::failed);
     }
 
-    // Show user detail
+    // Show user detail; answers 304 while the user is unchanged, on the request thread as for the list
     @GetMapping("/user/{userId}")
-    public String userDetail(@PathVariable String userId, HttpSession session, Model model) {
-        User currentUser = (User) session.getAttribute("user");
-        if (currentUser == null) return "redirect:/ui/login";
-        try {
-            User user = userService.getUser(userId, currentUser.getUserId());
-            model.addAttribute("user", user);
-            return "user_detail";
-        } catch (Exception e) {
-            model.addAttribute("error", "User not found");
-            return "redirect:/ui/users";
+    @Authorize(value = Action.VIEW, target = "userId")
+    public CompletableFuture<String> userDetail(@PathVariable String userId, SessionPrincipal principal,
+                                                HttpServletResponse response, WebRequest webRequest, Model model) {
+        String tag = userService.getUserTag(userId);
+        if (tag != null) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, REVALIDATE);
+            if (webRequest.checkNotModified("ui-" + tag)) {
+                try {
+                    userService.logRevalidation("USER_VIEW", "VIEW", "user/" + userId, principal.getUserId());
+                } catch (Exception ignored) {}
+                return null;
+            }
         }
+        return requests.submit(() -> {
+            try {
+                User user = userService.getUser(userId, principal.getUserId());
+                model.addAttribute("user", user);
+                return "user_detail";
+            } catch (Exception e) {
+                model.addAttribute("error", "User not found");
+                return "redirect:/ui/users";
+            }
+        }, UIController::failed);
     }
 
     // Remove user
     @PostMapping("/remove-user/{userId}")
-    public String removeUser(@PathVariable String userId, HttpSession session, Model model) {
-        User currentUser = (User) session.getAttribute("user");
-        if (currentUser == null) return "redirect:/ui/login";
-        try {
-            userService.removeUser(userId, currentUser.getUserId(), "Removed via UI");
-        } catch (Exception e) {
-            model.addAttribute("error", "Failed to remove user: " + e.getMessage());
+    @Authorize(value = Action.REMOVE, target = "userId")
+    public CompletableFuture<String> removeUser(@PathVariable String userId, SessionPrincipal principal, Model model) {
+        return requests.submit(() -> {
+            try {
+                userService.removeUser(userId, principal.getUserId(), "Removed via UI");
+            } catch (Exception e) {
+                model.addAttribute("error", "Failed to remove user: " + e.getMessage());
+            }
+            return "redirect:/ui/users";
+        }, UIController::failed);
+    }
+
+    // Pages have no body for a refused request, so it becomes an error status instead
+    private static String failed(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof RejectedExecutionException) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many requests in progress");
         }
-        return "redirect:/ui/users";
+        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Request failed", error);
     }
 } 
\ No newline at end of file
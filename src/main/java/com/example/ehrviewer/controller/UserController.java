@@ -1,61 +1,323 @@
 package com.example.ehrviewer.controller;
 
+import com.example.ehrviewer.auth.LoginThrottledException;
+import com.example.ehrviewer.encoding.UserStreams;
+import com.example.ehrviewer.encoding.WireFormat;
+import com.example.ehrviewer.feed.ChangeStreams;
+import com.example.ehrviewer.importer.ImportFormat;
+import com.example.ehrviewer.importer.UserImportService;
+import com.example.ehrviewer.model.DuplicateCandidate;
+import com.example.ehrviewer.model.DuplicateReport;
+import com.example.ehrviewer.model.ImportReport;
+import com.example.ehrviewer.model.ReplicationStatus;
 import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPage;
+import com.example.ehrviewer.model.UserPatch;
+import com.example.ehrviewer.model.UserQuery;
 import com.example.ehrviewer.model.UserRequest;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.policy.Action;
+import com.example.ehrviewer.policy.Anonymous;
+import com.example.ehrviewer.policy.Authorize;
+import com.example.ehrviewer.replication.Replication;
+import com.example.ehrviewer.service.AccessDeniedException;
+import com.example.ehrviewer.service.UserConflictException;
 import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.session.SessionManager;
+import com.example.ehrviewer.session.SessionPrincipal;
+import com.example.ehrviewer.startup.StartupReadiness;
 import com.enterprise.audit.logging.exception.AuditLoggingException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * REST controller for user management operations in EHR.
+ * REST controller for user management operations in EHR. Every endpoint but login, logout and
+ * the health, readiness and replication checks needs a session, and the session's user is the requester of every audited operation.
  */
 @RestController
 @RequestMapping("/api/users")
 public class UserController {
+    // Clients may keep responses but must revalidate them; shared caches may not keep them at all
+    private static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
+    private static final String FEED_POSITION_HEADER = "X-Change-Feed-Position";
+    private static final String DUPLICATES_HEADER = "X-Possible-Duplicates";
 
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private UserImportService userImportService;
+
+    @Autowired
+    private SessionManager sessions;
+
+    @Autowired
+    private ChangeStreams changeStreams;
+
+    @Autowired
+    private RequestExecutor requests;
+
+    @Autowired
+    private UserStreams userStreams;
+
+    @Autowired
+    private StartupReadiness readiness;
+
+    @Autowired
+    private Replication replication;
+
     /**
-     * Get all users.
+     * Get all users as one object keyed by userId, in JSON, Smile or CBOR as the Accept header asks.
+     * The users are written to the response one at a time as they are read, never collected first.
+     * Answers 304 to If-None-Match with the current ETag without reading any user. The ETag is that of
+     * the users, whatever their format. The {@value #FEED_POSITION_HEADER} header is where to resume
+     * the change feed to keep the map current.
      */
     @GetMapping
-    public ResponseEntity<Map<String, User>> getAllUsers(@RequestParam(defaultValue = "system") String requesterId) {
-        try {
-            Map<String, User> users = userService.getAllUsers(requesterId);
-            return ResponseEntity.ok(users);
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().build();
+    @Authorize(Action.LIST)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getAllUsers(@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                                                SessionPrincipal principal, WebRequest webRequest) {
+        WireFormat format = WireFormat.negotiate(accept);
+        if (format == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_ACCEPTABLE).build());
         }
+        return requests.submit(() -> {
+            try {
+                // Read before the users, so resuming from it misses no change
+                String position = changeStreams.position();
+                String tag = userService.getUsersTag();
+                if (webRequest.checkNotModified(tag)) {
+                    userService.logRevalidation("USER_VIEW_ALL", "VIEW_ALL", "user", principal.getUserId());
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(REVALIDATE)
+                            .varyBy(HttpHeaders.ACCEPT).header(FEED_POSITION_HEADER, position).build();
+                }
+                Collection<User> users = userService.listAllUsers(principal.getUserId());
+                // checkNotModified has set the ETag
+                return ResponseEntity.ok().cacheControl(REVALIDATE).varyBy(HttpHeaders.ACCEPT)
+                        .header(FEED_POSITION_HEADER, position).contentType(format.getMediaType())
+                        .body(userStreams.body(users, format));
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
     }
 
     /**
-     * Get a specific user.
+     * Stream user additions and removals as Server-Sent Events. Each "change" event's id is its
+     * position; a stream resumes after the Last-Event-ID header or the "since" position, or starts
+     * now. A "reset" event means changes were missed: reload the users, then resume from its id.
      */
-    @GetMapping("/{userId}")
-    public ResponseEntity<User> getUser(@PathVariable String userId, @RequestParam(defaultValue = "system") String requesterId) {
+    @GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Authorize(Action.WATCH)
+    public ResponseEntity<SseEmitter> streamChanges(@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                                    @RequestParam(required = false) String since,
+                                                    SessionPrincipal principal) {
         try {
-            User user = userService.getUser(userId, requesterId);
-            return ResponseEntity.ok(user);
-        } catch (IllegalArgumentException e) {
-            return ResponseEntity.notFound().build();
+            String position = lastEventId != null ? lastEventId : since;
+            userService.logChangeFeedSubscription(position, principal.getUserId());
+            return ResponseEntity.ok(changeStreams.subscribe(changeStreams.resumeFrom(position)));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(503).header(HttpHeaders.RETRY_AFTER, "5").build();
         } catch (Exception e) {
             return ResponseEntity.internalServerError().build();
         }
     }
 
     /**
-     * Add a new user.
+     * Get one page of users, optionally filtered. Pass the returned next_cursor to get the following page.
+     * Answers 304 to If-None-Match while no user has changed.
+     */
+    @GetMapping("/page")
+    @Authorize(Action.LIST)
+    public CompletableFuture<ResponseEntity<UserPage>> getUsersPage(@RequestParam(required = false) UserType type,
+                                                                    @RequestParam(required = false) String gender,
+                                                                    @RequestParam(required = false) Integer minAge,
+                                                                    @RequestParam(required = false) Integer maxAge,
+                                                                    @RequestParam(required = false) String cursor,
+                                                                    @RequestParam(defaultValue = "50") int limit,
+                                                                    SessionPrincipal principal, WebRequest webRequest) {
+        return requests.submit(() -> {
+            try {
+                UserQuery query = new UserQuery(type, gender, minAge, maxAge, cursor, limit);
+                String tag = userService.getUsersTag();
+                if (webRequest.checkNotModified(tag)) {
+                    userService.logRevalidation("USER_VIEW_PAGE", "VIEW_PAGE", "user", principal.getUserId());
+                    return notModified();
+                }
+                return ResponseEntity.ok().eTag(tag).cacheControl(REVALIDATE).body(userService.getUsersPage(query, principal.getUserId()));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Search users by name, address, contact info or username; the last word matches as a prefix.
+     */
+    @GetMapping("/search")
+    @Authorize(Action.LIST)
+    public CompletableFuture<ResponseEntity<List<User>>> searchUsers(@RequestParam("q") String query,
+                                                                     @RequestParam(defaultValue = "20") int limit,
+                                                                     SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                return ResponseEntity.ok(userService.searchUsers(query, limit, principal.getUserId()));
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Find patient records that are likely the same person, such as one registered twice with a
+     * misspelled name. Compares every patient with those sharing a date of birth, name sound or
+     * phone number, and returns the {@code limit} clusters with the closest matches first.
+     */
+    @GetMapping("/duplicates")
+    @Authorize(Action.LIST)
+    public CompletableFuture<ResponseEntity<DuplicateReport>> findDuplicates(@RequestParam(defaultValue = "100") int limit,
+                                                                             SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                return ResponseEntity.ok().cacheControl(CacheControl.noStore())
+                        .body(userService.findDuplicates(limit, principal.getUserId()));
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Get a specific user. Answers 304 to If-None-Match while the user is unchanged.
+     */
+    @GetMapping("/{userId}")
+    @Authorize(value = Action.VIEW, target = "userId")
+    public CompletableFuture<ResponseEntity<User>> getUser(@PathVariable String userId, SessionPrincipal principal, WebRequest webRequest) {
+        return requests.submit(() -> {
+            try {
+                String tag = userService.getUserTag(userId);
+                if (tag != null && webRequest.checkNotModified(tag)) {
+                    userService.logRevalidation("USER_VIEW", "VIEW", "user/" + userId, principal.getUserId());
+                    return notModified();
+                }
+                User user = userService.getUser(userId, principal.getUserId());
+                return ResponseEntity.ok().eTag(tag).cacheControl(REVALIDATE).body(user);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.notFound().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Add a new user. A patient who may already be on record is added all the same, and the
+     * {@value #DUPLICATES_HEADER} header lists the userIds of the likely duplicates, closest first.
+     * Adding anyone but a patient also needs {@link Action#MANAGE_ACCOUNT}, else 403.
      */
     @PostMapping("/add")
-    public ResponseEntity<User> addUser(@RequestBody UserRequest request, @RequestBody User user) {
+    @Authorize(Action.ADD)
+    public CompletableFuture<ResponseEntity<User>> addUser(@RequestBody User user,
+                                                           @RequestParam(required = false) String reason,
+                                                           SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                List<DuplicateCandidate> duplicates = new ArrayList<>();
+                User addedUser = userService.addUser(user, principal.getUserId(), reason, duplicates);
+                if (duplicates.isEmpty()) {
+                    return ResponseEntity.ok(addedUser);
+                }
+                List<String> duplicateIds = new ArrayList<>(duplicates.size());
+                for (DuplicateCandidate duplicate : duplicates) {
+                    duplicateIds.add(duplicate.getUserId());
+                }
+                return ResponseEntity.ok().header(DUPLICATES_HEADER, String.join(", ", duplicateIds)).body(addedUser);
+            } catch (AccessDeniedException e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Update some fields of a user. If-Match must carry the user's current ETag (or "*"); answers 428
+     * without it, and 409 with the current ETag if the user has changed since, or the new username is taken.
+     * Changing the type, username or password also needs {@link Action#MANAGE_ACCOUNT}.
+     */
+    @PatchMapping("/{userId}")
+    @Authorize(value = Action.UPDATE, target = "userId")
+    public CompletableFuture<ResponseEntity<User>> updateUser(@PathVariable String userId,
+                                                              @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                                                              @RequestBody UserPatch patch,
+                                                              @RequestParam(required = false) String reason,
+                                                              SessionPrincipal principal) {
+        return requests.submit(() -> {
+            if (ifMatch == null) {
+                return ResponseEntity.status(HttpStatus.PRECONDITION_REQUIRED).build();
+            }
+            try {
+                User updatedUser = userService.updateUser(userId, patch, ifMatch, principal.getUserId(), reason);
+                return ResponseEntity.ok().eTag(userService.getUserTag(userId)).cacheControl(REVALIDATE).body(updatedUser);
+            } catch (AccessDeniedException e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            } catch (UserConflictException e) {
+                ResponseEntity.BodyBuilder conflict = ResponseEntity.status(HttpStatus.CONFLICT);
+                if (e.getCurrentTag() != null) {
+                    conflict.eTag(e.getCurrentTag());
+                }
+                return conflict.build();
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.notFound().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Bulk import users from a CSV (text/csv) or NDJSON (application/x-ndjson) request body.
+     * The body is streamed, so uploads of any size are accepted; the report lists each rejected row,
+     * including any user but a patient when the requester lacks {@link Action#MANAGE_ACCOUNT}.
+     * With {@code prehashed=true} the passwords are PBKDF2 hashes exported from another instance and are
+     * stored as given; such a restore needs {@link Action#MANAGE_ACCOUNT} over every user, else 403.
+     */
+    @PostMapping(value = "/import", consumes = {"text/csv", "application/x-ndjson"})
+    @Authorize(Action.ADD)
+    public ResponseEntity<ImportReport> importUsers(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                                    InputStream body,
+                                                    @RequestParam(required = false) String reason,
+                                                    @RequestParam(defaultValue = "false") boolean prehashed,
+                                                    SessionPrincipal principal) {
         try {
-            User addedUser = userService.addUser(user, request.getRequesterId(), request.getReason());
-            return ResponseEntity.ok(addedUser);
+            ImportFormat format = ImportFormat.forContentType(contentType);
+            return ResponseEntity.ok(userImportService.importUsers(body, format, principal.getUserId(), reason,
+                    prehashed));
+        } catch (AccessDeniedException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         } catch (Exception e) {
@@ -64,56 +326,120 @@ public class UserController {
     }
 
     /**
-     * Remove a user.
+     * Remove a user. The request's requester_id is ignored.
      */
     @PostMapping("/remove")
-    public ResponseEntity<User> removeUser(@RequestBody UserRequest request) {
-        try {
-            User removedUser = userService.removeUser(request.getUserId(), request.getRequesterId(), request.getReason());
-            return ResponseEntity.ok(removedUser);
-        } catch (IllegalArgumentException e) {
-            return ResponseEntity.badRequest().build();
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().build();
-        }
+    @Authorize(Action.REMOVE)
+    public CompletableFuture<ResponseEntity<User>> removeUser(@RequestBody UserRequest request, SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                User removedUser = userService.removeUser(request.getUserId(), principal.getUserId(), request.getReason());
+                return ResponseEntity.ok(removedUser);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
     }
 
     /**
-     * Login endpoint.
+     * Get the userIds of the staff on a patient's care team.
+     */
+    @GetMapping("/{userId}/care-team")
+    @Authorize(value = Action.VIEW, target = "userId")
+    public CompletableFuture<ResponseEntity<Set<String>>> getCareTeam(@PathVariable String userId, SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                return ResponseEntity.ok(userService.getCareTeam(userId, principal.getUserId()));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.notFound().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Add a staff member to a patient's care team. Returns the care team.
+     */
+    @PutMapping("/{userId}/care-team/{memberId}")
+    @Authorize(value = Action.MANAGE_CARE_TEAM, target = "userId")
+    public CompletableFuture<ResponseEntity<Set<String>>> assignCareTeam(@PathVariable String userId, @PathVariable String memberId,
+                                                                         SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                return ResponseEntity.ok(userService.assignCareTeam(userId, memberId, principal.getUserId()));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Take a staff member off a patient's care team. Returns the care team.
+     */
+    @DeleteMapping("/{userId}/care-team/{memberId}")
+    @Authorize(value = Action.MANAGE_CARE_TEAM, target = "userId")
+    public CompletableFuture<ResponseEntity<Set<String>>> unassignCareTeam(@PathVariable String userId, @PathVariable String memberId,
+                                                                           SessionPrincipal principal) {
+        return requests.submit(() -> {
+            try {
+                return ResponseEntity.ok(userService.unassignCareTeam(userId, memberId, principal.getUserId()));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.notFound().build();
+            } catch (Exception e) {
+                return ResponseEntity.internalServerError().build();
+            }
+        }, UserController::failed);
+    }
+
+    /**
+     * Login endpoint. Completes asynchronously once the password has been checked, and opens a
+     * session (the {@value SessionManager#COOKIE} cookie) for the other endpoints. Answers 429 with
+     * Retry-After after repeated failures, and 503 with Retry-After when too many logins are already
+     * being verified.
      */
     @PostMapping("/login")
-    public ResponseEntity<User> login(@RequestParam String username, @RequestParam String password) {
-        try {
-            User user = userService.authenticate(username, password);
-            if (user != null) {
-                return ResponseEntity.ok(user);
-            } else {
-                return ResponseEntity.status(401).build();
+    @Anonymous
+    public CompletableFuture<ResponseEntity<User>> login(@RequestParam String username, @RequestParam String password,
+                                                         HttpServletRequest request, HttpServletResponse response) {
+        return userService.authenticate(username, password, request.getRemoteAddr(), requests.continuation()).handle((user, error) -> {
+            if (error == null) {
+                return user != null && sessions.login(user, response)
+                        ? ResponseEntity.ok(user) : ResponseEntity.status(401).<User>build();
             }
-        } catch (AuditLoggingException e) {
-            return ResponseEntity.internalServerError().build();
-        }
+            if (error instanceof CompletionException) {
+                error = error.getCause();
+            }
+            if (error instanceof LoginThrottledException) {
+                long retryAfter = ((LoginThrottledException) error).getRetryAfterSeconds();
+                return ResponseEntity.status(429).header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter)).<User>build();
+            }
+            if (error instanceof RejectedExecutionException) {
+                return ResponseEntity.status(503).header(HttpHeaders.RETRY_AFTER, "1").<User>build();
+            }
+            return ResponseEntity.internalServerError().<User>build();
+        });
     }
 
     /**
-     * Logout endpoint.
+     * Logout endpoint. Ends the request's session.
      */
     @PostMapping("/logout")
-    public ResponseEntity<String> logout(@RequestParam String username) {
+    @Anonymous
+    public ResponseEntity<String> logout(HttpServletRequest request, HttpServletResponse response) {
         try {
-            User user = null;
-            for (User u : userService.getAllUsers("system").values()) {
-                if (u.getUsername().equals(username)) {
-                    user = u;
-                    break;
-                }
-            }
+            SessionPrincipal principal = sessions.logout(request, response);
+            User user = principal == null ? null : sessions.resolve(principal);
             if (user != null) {
                 // Log the logout event using the service method
                 userService.logLogoutEvent(user);
                 return ResponseEntity.ok("Logout successful");
             } else {
-                return ResponseEntity.status(404).body("User not found");
+                return ResponseEntity.status(401).body("Not logged in");
             }
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body("Logout failed");
@@ -124,7 +450,49 @@ public class UserController {
      * Health check endpoint.
      */
     @GetMapping("/health")
+    @Anonymous
     public ResponseEntity<String> health() {
         return ResponseEntity.ok("EHR User Management Service is running!");
     }
-} 
\ No newline at end of file
+
+    /**
+     * Readiness check: 503 until users have been loaded and indexed at startup, 200 after.
+     */
+    @GetMapping("/ready")
+    @Anonymous
+    public ResponseEntity<String> ready() {
+        if (!readiness.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1")
+                    .body("Loading users");
+        }
+        return ResponseEntity.ok("Ready");
+    }
+
+    /**
+     * This node's replication role and position, and on a replica its lag behind the primary.
+     */
+    @GetMapping("/replication")
+    @Anonymous
+    public ResponseEntity<ReplicationStatus> replication() {
+        return ResponseEntity.ok().cacheControl(CacheControl.noStore()).body(replication.status());
+    }
+
+    /**
+     * The response for work the {@link RequestExecutor} could not run or complete: 503 if it was
+     * turned away, 500 if it failed.
+     */
+    private static <T> ResponseEntity<T> failed(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof RejectedExecutionException) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        return ResponseEntity.internalServerError().build();
+    }
+
+    // checkNotModified has already set the ETag on the response
+    private static <T> ResponseEntity<T> notModified() {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(REVALIDATE).build();
+    }
+}
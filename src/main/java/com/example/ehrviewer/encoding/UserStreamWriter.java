@@ -0,0 +1,44 @@
+package com.example.ehrviewer.encoding;
+
+import com.example.ehrviewer.model.User;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes users as one object keyed by userId, the shape of {@code Map<String, User>}, one user at
+ * a time, in whatever format the mapper's factory produces (JSON, Smile or CBOR).
+ *
+ * Nothing is built up in memory: each user is serialized into the generator's buffer, which goes
+ * out to the stream as it fills, so the cost is one user and one buffer however many are written.
+ */
+public class UserStreamWriter {
+    private final ObjectMapper mapper;
+    private final ObjectWriter userWriter;
+
+    public UserStreamWriter(ObjectMapper mapper) {
+        this.mapper = mapper;
+        // Flushing after every user would send a packet per user
+        this.userWriter = mapper.writerFor(User.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Write the users to the stream and flush it. The stream is left open.
+     */
+    public void write(Iterable<User> users, OutputStream out) throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            for (User user : users) {
+                generator.writeFieldName(user.getUserId());
+                userWriter.writeValue(generator, user);
+            }
+            generator.writeEndObject();
+        }
+        out.flush();
+    }
+}
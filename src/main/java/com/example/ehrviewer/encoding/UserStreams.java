@@ -0,0 +1,47 @@
+package com.example.ehrviewer.encoding;
+
+import com.example.ehrviewer.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.annotation.PostConstruct;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Response bodies that write users straight to the response, in each {@link WireFormat}, with the
+ * same object mappers as the message converters.
+ */
+@Component
+public class UserStreams {
+
+    @Autowired
+    private MappingJackson2HttpMessageConverter jsonConverter;
+
+    @Autowired
+    private MappingJackson2SmileHttpMessageConverter smileConverter;
+
+    @Autowired
+    private MappingJackson2CborHttpMessageConverter cborConverter;
+
+    private final Map<WireFormat, UserStreamWriter> writers = new EnumMap<>(WireFormat.class);
+
+    @PostConstruct
+    public void init() {
+        writers.put(WireFormat.JSON, new UserStreamWriter(jsonConverter.getObjectMapper()));
+        writers.put(WireFormat.SMILE, new UserStreamWriter(smileConverter.getObjectMapper()));
+        writers.put(WireFormat.CBOR, new UserStreamWriter(cborConverter.getObjectMapper()));
+    }
+
+    /**
+     * A body writing the users, read as it goes, as one object keyed by userId.
+     */
+    public StreamingResponseBody body(Iterable<User> users, WireFormat format) {
+        UserStreamWriter writer = writers.get(format);
+        return out -> writer.write(users, out);
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.ehrviewer.feed;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserChange;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-process stream of user additions, updates and removals, numbered by a sequence that
+ * increases by one per change.
+ *
+ * The last {@code ehr.feed.replay-capacity} changes are kept in a ring, so a reader can resume from
+ * any sequence still in it. Publishing is serialized; reading takes no lock. Each change is encoded
+ * to JSON once, when published, however many subscribers it is sent to.
+ */
+@Component
+public class ChangeFeed {
+
+    /**
+     * A published change and its JSON encoding.
+     */
+    public static final class Entry {
+        private final UserChange change;
+        private final String json;
+
+        Entry(UserChange change, String json) {
+            this.change = change;
+            this.json = json;
+        }
+
+        public UserChange getChange() { return change; }
+        public String getJson() { return json; }
+    }
+
+    @Value("${ehr.feed.replay-capacity:4096}")
+    private int replayCapacity;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private AtomicReferenceArray<Entry> ring;
+    private int mask;
+    // Last published sequence; written after its entry, so readers never see a sequence before its entry
+    private volatile long sequence;
+    private volatile Runnable publishListener;
+
+    @PostConstruct
+    public void init() {
+        if (replayCapacity <= 0 || Integer.bitCount(replayCapacity) != 1) {
+            throw new IllegalArgumentException("ehr.feed.replay-capacity must be a power of two: " + replayCapacity);
+        }
+        ring = new AtomicReferenceArray<>(replayCapacity);
+        mask = replayCapacity - 1;
+    }
+
+    /**
+     * Be told, on the publishing thread, after each change is published. Must not block.
+     */
+    public void setPublishListener(Runnable listener) {
+        this.publishListener = listener;
+    }
+
+    /**
+     * Publish an added user.
+     */
+    public void userAdded(User user) {
+        publish(UserChange.Type.ADDED, user.getUserId(), user);
+    }
+
+    /**
+     * Publish the new state of an updated user.
+     */
+    public void userUpdated(User user) {
+        publish(UserChange.Type.UPDATED, user.getUserId(), user);
+    }
+
+    /**
+     * Publish a removed user.
+     */
+    public void userRemoved(String userId) {
+        publish(UserChange.Type.REMOVED, userId, null);
+    }
+
+    private void publish(UserChange.Type type, String userId, User user) {
+        synchronized (this) {
+            long next = sequence + 1;
+            UserChange change = new UserChange(next, type, userId, user, Instant.now().toString());
+            ring.set((int) next & mask, new Entry(change, encode(change)));
+            sequence = next;
+        }
+        Runnable listener = publishListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * The sequence of the last published change, 0 before the first.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Up to {@code max} changes published after sequence {@code after}, in order. Returns null if
+     * some of them have already been dropped from the ring, so the reader must start over from a snapshot.
+     */
+    public List<Entry> since(long after, int max) {
+        long last = Math.min(sequence, after + max);
+        if (last <= after) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>((int) (last - after));
+        for (long next = after + 1; next <= last; next++) {
+            Entry entry = ring.get((int) next & mask);
+            // A slot holds an older change until first written, and a newer one once the ring wraps
+            if (entry == null || entry.change.getSequence() != next) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private String encode(UserChange change) {
+        try {
+            return objectMapper.writeValueAsString(change);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to encode change " + change, e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.ehrviewer.feed;
+
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-Sent Events subscriptions to the {@link ChangeFeed}.
+ *
+ * Each subscription is an async request with no thread of its own. When changes are published,
+ * every subscription with something to send is queued once on a small pool of
+ * {@code ehr.feed.sender-threads} senders, which writes it everything it is missing and moves on.
+ * A subscriber that falls so far behind that its next change has left the replay ring is sent a
+ * {@code reset} event and disconnected, instead of holding anything back for it.
+ *
+ * Writes block while the client is not reading. A watchdog drops a subscriber whose write has not
+ * completed within {@code ehr.feed.write-timeout-ms}, checking four times per timeout, and starts a
+ * spare sender in place of the blocked one, up to {@code ehr.feed.max-spare-senders} at a time. The
+ * blocked sender ends the stream and retires once the container fails or finishes its write. So a
+ * stuck client delays the other subscribers by at most about 1.25 times the write timeout, unless
+ * more than that many are stuck at once.
+ *
+ * Event ids are {@code epoch:sequence}, where the epoch identifies this process; a reconnecting
+ * client's Last-Event-ID from an earlier process also gets a {@code reset}. A reset carries the
+ * current position as its id, so a client that reloads its snapshot then reconnects from there.
+ */
+@Component
+public class ChangeStreams {
+    private static final Logger log = LoggerFactory.getLogger(ChangeStreams.class);
+
+    // Changes written to one subscriber before its sender moves on to the next
+    private static final int MAX_BATCH = 256;
+
+    @Value("${ehr.feed.sender-threads:2}")
+    private int senderThreads;
+
+    @Value("${ehr.feed.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${ehr.feed.heartbeat-seconds:15}")
+    private long heartbeatSeconds;
+
+    @Value("${ehr.feed.stream-timeout-minutes:30}")
+    private long streamTimeoutMinutes;
+
+    @Value("${ehr.feed.write-timeout-ms:10000}")
+    private long writeTimeoutMillis;
+
+    @Value("${ehr.feed.max-spare-senders:16}")
+    private int maxSpareSenders;
+
+    @Autowired
+    private ChangeFeed feed;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean fanOutQueued = new AtomicBoolean();
+    private ThreadPoolExecutor senders;
+    private int spareSenders; // guarded by this
+
+    // Heartbeats and the write watchdog
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-feed-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        // Unbounded, but each subscription is queued at most once, plus one fan-out task
+        senders = new ThreadPoolExecutor(senderThreads, senderThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "change-feed-sender-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        feed.setPublishListener(this::changePublished);
+        timer.scheduleAtFixedRate(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        long watchdogMillis = Math.max(1, writeTimeoutMillis / 4);
+        timer.scheduleAtFixedRate(this::checkWrites, watchdogMillis, watchdogMillis, TimeUnit.MILLISECONDS);
+        metrics.registerGauge("ehr_change_feed_subscribers", null, "Open change feed streams", subscriptions::size);
+        metrics.registerGauge("ehr_change_feed_spare_senders", null,
+                "Senders standing in for ones blocked on a stalled subscriber", this::spareSenders);
+        metrics.registerGauge("ehr_change_feed_sequence", null, "Sequence of the last published user change",
+                feed::getSequence);
+    }
+
+    @PreDestroy
+    public void close() {
+        timer.shutdownNow();
+        senders.shutdownNow();
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+            subscription.emitter.complete();
+        }
+    }
+
+    /**
+     * The current position in the feed, as an event id. Read it before taking a snapshot of the
+     * users, and resume from it: changes already in the snapshot may be sent again, but none are missed.
+     */
+    public String position() {
+        return epoch + ":" + feed.getSequence();
+    }
+
+    /**
+     * The sequence to start a stream from for an event id (null or empty to start at the current
+     * sequence), or -1 if the id is not from this process's feed.
+     */
+    public long resumeFrom(String eventId) {
+        if (eventId == null || eventId.isEmpty()) {
+            return feed.getSequence();
+        }
+        int colon = eventId.indexOf(':');
+        if (colon < 0 || !epoch.equals(eventId.substring(0, colon))) {
+            return -1;
+        }
+        try {
+            long after = Long.parseLong(eventId.substring(colon + 1));
+            return after >= 0 && after <= feed.getSequence() ? after : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Open a stream of the changes after sequence {@code after}; -1 sends a reset at once.
+     *
+     * @throws RejectedExecutionException if {@code ehr.feed.max-subscribers} streams are already open
+     */
+    public SseEmitter subscribe(long after) {
+        if (subscriptions.size() >= maxSubscribers) {
+            throw new RejectedExecutionException("Too many change feed subscribers");
+        }
+        SseEmitter emitter = new SseEmitter(TimeUnit.MINUTES.toMillis(streamTimeoutMinutes));
+        Subscription subscription = new Subscription(emitter, after);
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(error -> subscription.close());
+        subscriptions.add(subscription);
+        subscription.schedule();
+        return emitter;
+    }
+
+    private void changePublished() {
+        // Coalesce: one fan-out covers every change published before it runs
+        if (fanOutQueued.compareAndSet(false, true)) {
+            execute(() -> {
+                fanOutQueued.set(false);
+                for (Subscription subscription : subscriptions) {
+                    subscription.schedule();
+                }
+            });
+        }
+    }
+
+    private void heartbeat() {
+        for (Subscription subscription : subscriptions) {
+            subscription.heartbeatDue = true;
+            subscription.schedule();
+        }
+    }
+
+    private void checkWrites() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.abandonStalledWrite(now, timeout)) {
+                log.warn("Change feed subscriber has not taken a write for {} ms; dropping it", writeTimeoutMillis);
+                subscription.close();
+            }
+        }
+    }
+
+    private synchronized int spareSenders() {
+        return spareSenders;
+    }
+
+    // Run one more sender while one is blocked; false if the limit is reached
+    private synchronized boolean addSpareSender() {
+        if (spareSenders >= maxSpareSenders) {
+            return false;
+        }
+        spareSenders++;
+        // Max grows first and core shrinks first, so core never exceeds max
+        senders.setMaximumPoolSize(senderThreads + spareSenders);
+        senders.setCorePoolSize(senderThreads + spareSenders);
+        return true;
+    }
+
+    private synchronized void releaseSpareSender() {
+        spareSenders--;
+        senders.setCorePoolSize(senderThreads + spareSenders);
+        senders.setMaximumPoolSize(senderThreads + spareSenders);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            senders.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private final class Subscription {
+        final SseEmitter emitter;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // Only touched by the sender that holds the scheduled flag
+        long cursor;
+        volatile boolean heartbeatDue;
+        volatile boolean closed;
+        // Guarded by this: the write in progress, and whether the watchdog has given up on it
+        private boolean writing;
+        private long writeStarted;
+        private boolean abandoned;
+        private boolean spareAdded;
+
+        Subscription(SseEmitter emitter, long after) {
+            this.emitter = emitter;
+            this.cursor = after;
+        }
+
+        void schedule() {
+            if (!closed && scheduled.compareAndSet(false, true)) {
+                execute(this::drain);
+            }
+        }
+
+        void close() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+
+        void drain() {
+            try {
+                if (!send()) {
+                    return;
+                }
+            } catch (IOException | IllegalStateException e) {
+                // The client went away, or the stream was completed or timed out
+                close();
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            if (feed.getSequence() > cursor || heartbeatDue) {
+                schedule();
+            }
+        }
+
+        // Returns false once the stream has been ended
+        private boolean send() throws IOException {
+            List<ChangeFeed.Entry> entries = cursor < 0 ? null : feed.since(cursor, MAX_BATCH);
+            if (entries == null) {
+                if (cursor >= 0) {
+                    log.info("Change feed subscriber fell behind the replay buffer at sequence {}; sending reset", cursor);
+                }
+                // The id is where a client that reloads its snapshot now should resume
+                String position = position();
+                write(SseEmitter.event().id(position).name("reset").data(position));
+                close();
+                emitter.complete();
+                return false;
+            }
+            for (ChangeFeed.Entry entry : entries) {
+                long sequence = entry.getChange().getSequence();
+                write(SseEmitter.event()
+                        .id(epoch + ":" + sequence)
+                        .name("change")
+                        .data(entry.getJson(), MediaType.APPLICATION_JSON));
+                cursor = sequence;
+            }
+            if (entries.isEmpty() && heartbeatDue) {
+                heartbeatDue = false;
+                write(SseEmitter.event().comment("heartbeat"));
+            } else if (!entries.isEmpty()) {
+                heartbeatDue = false;
+            }
+            return true;
+        }
+
+        private void write(SseEmitter.SseEventBuilder event) throws IOException {
+            synchronized (this) {
+                writing = true;
+                writeStarted = System.nanoTime();
+            }
+            boolean gaveUp;
+            try {
+                emitter.send(event);
+            } finally {
+                boolean spare;
+                synchronized (this) {
+                    writing = false;
+                    gaveUp = abandoned;
+                    spare = spareAdded;
+                    spareAdded = false;
+                }
+                if (spare) {
+                    releaseSpareSender();
+                }
+            }
+            if (gaveUp) {
+                emitter.complete();
+                throw new IllegalStateException("Change feed subscriber was dropped after a stalled write");
+            }
+        }
+
+        /**
+         * Give up on the write in progress if it has been blocked longer than {@code timeout}, and let
+         * a spare sender take this one's place. The emitter cannot be completed while the write holds it.
+         */
+        synchronized boolean abandonStalledWrite(long now, long timeout) {
+            if (!writing || abandoned || now - writeStarted <= timeout) {
+                return false;
+            }
+            abandoned = true;
+            spareAdded = addSpareSender();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.ehrviewer.importer;
+
+import com.example.ehrviewer.model.User;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads users from RFC 4180 CSV with a header row naming the columns, e.g.
+ * user_id,name,dob,address,age,type,gender,contact_info,username,password.
+ * Quoted fields may contain commas, doubled quotes and line breaks.
+ */
+class CsvUserReader extends UserRowReader<String[]> {
+    private static final String[] REQUIRED_COLUMNS = {"user_id", "name", "type", "username"};
+
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final StringBuilder field = new StringBuilder();
+    private final List<String> fields = new ArrayList<>();
+    private long line = 1; // line the reader is currently on
+    private long rowLine;  // line the last returned row started on
+
+    CsvUserReader(Reader in) throws IOException {
+        super(in);
+        String[] header = next();
+        if (header == null) {
+            throw new IllegalArgumentException("CSV input has no header row");
+        }
+        for (int i = 0; i < header.length; i++) {
+            columns.put(header[i].trim().toLowerCase(Locale.ROOT), i);
+        }
+        for (String column : REQUIRED_COLUMNS) {
+            if (!columns.containsKey(column)) {
+                throw new IllegalArgumentException("CSV header is missing column: " + column);
+            }
+        }
+    }
+
+    @Override
+    String[] next() throws IOException {
+        String[] row;
+        do {
+            row = readRecord();
+        } while (row != null && row.length == 1 && row[0].isEmpty()); // skip blank lines
+        return row;
+    }
+
+    @Override
+    long lineNumber() {
+        return rowLine;
+    }
+
+    @Override
+    User parse(String[] row) {
+        if (row.length != columns.size()) {
+            throw new IllegalArgumentException("Expected " + columns.size() + " fields but found " + row.length);
+        }
+        return toUser(name -> {
+            Integer index = columns.get(name);
+            return index == null ? null : row[index];
+        });
+    }
+
+    private String[] readRecord() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+        rowLine = line;
+        fields.clear();
+        field.setLength(0);
+        while (true) {
+            if (c == '"' && field.length() == 0) {
+                // Quoted field: runs to the next lone quote, "" stands for a quote
+                while (true) {
+                    c = read();
+                    if (c == -1) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    } else if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                }
+                continue;
+            }
+            if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                if (c != -1) {
+                    line++;
+                }
+                fields.add(field.toString());
+                return fields.toArray(new String[0]);
+            } else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+}
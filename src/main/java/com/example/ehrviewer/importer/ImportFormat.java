@@ -0,0 +1,51 @@
+package com.example.ehrviewer.importer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Input formats accepted by the bulk user import, keyed by content type.
+ */
+public enum ImportFormat {
+    CSV("text/csv"),
+    NDJSON("application/x-ndjson");
+
+    private final String contentType;
+
+    ImportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Find the format for a Content-Type header value, ignoring parameters such as charset.
+     */
+    public static ImportFormat forContentType(String contentType) {
+        if (contentType != null) {
+            String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+            for (ImportFormat format : values()) {
+                if (format.contentType.equals(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported import content type: " + contentType);
+    }
+
+    UserRowReader<?> open(Reader in, ObjectMapper objectMapper) throws IOException {
+        switch (this) {
+            case CSV:
+                return new CsvUserReader(in);
+            case NDJSON:
+                return new NdjsonUserReader(in, objectMapper);
+            default:
+                throw new IllegalStateException("Unknown import format: " + this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.ehrviewer.importer;
+
+import com.example.ehrviewer.model.User;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads users from newline-delimited JSON, one object per line, using the same field names as
+ * the user JSON representation. Unlike that representation, a "password" field is accepted.
+ */
+class NdjsonUserReader extends UserRowReader<String> {
+    private final BufferedReader lines;
+    private final ObjectMapper objectMapper;
+    private long line;
+
+    NdjsonUserReader(Reader in, ObjectMapper objectMapper) {
+        super(in);
+        this.lines = new BufferedReader(in, 65536);
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    String next() throws IOException {
+        String row;
+        do {
+            row = lines.readLine();
+            line++;
+        } while (row != null && row.trim().isEmpty());
+        return row;
+    }
+
+    @Override
+    long lineNumber() {
+        return line;
+    }
+
+    @Override
+    User parse(String row) {
+        JsonNode node;
+        try {
+            node = objectMapper.readTree(row);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage());
+        }
+        if (!node.isObject()) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return toUser(name -> {
+            JsonNode value = node.get(name);
+            return value == null || value.isNull() ? null : value.asText();
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.ehrviewer.importer;
+
+import com.enterprise.audit.logging.exception.AuditLoggingException;
+import com.example.ehrviewer.model.ImportReport;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+
+/**
+ * Streams users from a CSV or NDJSON upload into the directory, one chunk at a time.
+ * Each chunk is validated in parallel, then added as one batch with one audit record. A chunk that
+ * arrives while password hashing is saturated is rejected whole, and the import moves on.
+ * A restore stores passwords already hashed as given, and is refused whole unless the requester may
+ * manage every account.
+ */
+@Service
+public class UserImportService {
+    static final int CHUNK_SIZE = 1000;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Import users from a stream. Only one chunk of rows is held in memory at a time. With
+     * {@code prehashed}, passwords are hashes exported from another instance and are stored as given.
+     *
+     * @throws com.example.ehrviewer.service.AccessDeniedException if {@code prehashed} and the requester
+     *         may not manage every account
+     */
+    public ImportReport importUsers(InputStream in, ImportFormat format, String requesterId, String reason,
+                                    boolean prehashed) throws IOException, AuditLoggingException {
+        try (UserRowReader<?> rows = format.open(new InputStreamReader(in, StandardCharsets.UTF_8), objectMapper)) {
+            return importRows(rows, requesterId, reason, prehashed);
+        }
+    }
+
+    private <T> ImportReport importRows(UserRowReader<T> rows, String requesterId, String reason, boolean prehashed)
+            throws IOException, AuditLoggingException {
+        ImportReport report = new ImportReport();
+        List<T> chunk = new ArrayList<>(CHUNK_SIZE);
+        long[] lines = new long[CHUNK_SIZE];
+        boolean more = true;
+        while (more) {
+            chunk.clear();
+            try {
+                while (chunk.size() < CHUNK_SIZE) {
+                    T row = rows.next();
+                    if (row == null) {
+                        more = false;
+                        break;
+                    }
+                    lines[chunk.size()] = rows.lineNumber();
+                    chunk.add(row);
+                }
+            } catch (IllegalArgumentException e) {
+                // The rest of the input cannot be split into rows; import what was read and stop
+                importChunk(rows, chunk, lines, report, requesterId, reason, prehashed);
+                report.addError(rows.lineNumber(), null, e.getMessage());
+                return report;
+            }
+            importChunk(rows, chunk, lines, report, requesterId, reason, prehashed);
+        }
+        return report;
+    }
+
+    private <T> void importChunk(UserRowReader<T> rows, List<T> chunk, long[] lines, ImportReport report,
+                                 String requesterId, String reason, boolean prehashed) throws AuditLoggingException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        User[] users = new User[chunk.size()];
+        String[] errors = new String[chunk.size()];
+        IntStream.range(0, chunk.size()).parallel().forEach(i -> {
+            try {
+                users[i] = rows.parse(chunk.get(i));
+            } catch (IllegalArgumentException e) {
+                errors[i] = e.getMessage();
+            }
+        });
+
+        List<User> valid = new ArrayList<>(users.length);
+        for (User user : users) {
+            if (user != null) {
+                valid.add(user);
+            }
+        }
+        List<String> results;
+        try {
+            results = valid.isEmpty() ? new ArrayList<>() : userService.addUsers(valid, requesterId, reason, prehashed);
+        } catch (RejectedExecutionException e) {
+            // Bulk password hashing is saturated: turn the chunk away whole, so its rows can be sent again
+            results = Collections.nCopies(valid.size(), "Server busy, row not imported; try again");
+        }
+
+        int next = 0;
+        for (int i = 0; i < users.length; i++) {
+            String error = users[i] == null ? errors[i] : results.get(next++);
+            if (error == null) {
+                report.addImported();
+            } else {
+                report.addError(lines[i], users[i] == null ? null : users[i].getUserId(), error);
+            }
+        }
+    }
+}
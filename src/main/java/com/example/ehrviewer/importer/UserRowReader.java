@@ -0,0 +1,113 @@
+package com.example.ehrviewer.importer;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+
+/**
+ * Splits an import stream into raw rows, and turns raw rows into validated users.
+ * Splitting is sequential; parsing is thread-safe so rows can be validated in parallel.
+ */
+abstract class UserRowReader<T> implements Closeable {
+    private static final int MAX_AGE = 150;
+
+    protected final Reader in;
+
+    protected UserRowReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next raw row, or null at the end of the input.
+     */
+    abstract T next() throws IOException;
+
+    /**
+     * Line on which the row last returned by next() starts.
+     */
+    abstract long lineNumber();
+
+    /**
+     * Parse and validate a raw row, throwing IllegalArgumentException if it is not a valid user.
+     */
+    abstract User parse(T row);
+
+    /**
+     * Build a user from named fields, using the same names as the JSON representation.
+     */
+    protected static User toUser(UnaryOperator<String> fields) {
+        String userId = required(fields, "user_id");
+        User user = new User();
+        user.setUserId(userId);
+        user.setName(required(fields, "name"));
+        user.setUsername(required(fields, "username"));
+        String password = fields.apply("password"); // kept as given, surrounding spaces included
+        user.setPassword(password == null || password.isEmpty() ? null : password);
+        user.setAddress(optional(fields, "address"));
+        user.setContactInfo(optional(fields, "contact_info"));
+        user.setGender(optional(fields, "gender"));
+
+        String type = required(fields, "type");
+        try {
+            user.setType(UserType.valueOf(type.toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown user type: " + type);
+        }
+
+        String dob = optional(fields, "dob");
+        LocalDate birthDate = null;
+        if (dob != null) {
+            try {
+                birthDate = LocalDate.parse(dob);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid dob, expected YYYY-MM-DD: " + dob);
+            }
+            user.setDob(dob);
+        }
+
+        String age = optional(fields, "age");
+        if (age != null) {
+            try {
+                user.setAge(Integer.parseInt(age));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid age: " + age);
+            }
+            if (user.getAge() < 0 || user.getAge() > MAX_AGE) {
+                throw new IllegalArgumentException("Age out of range: " + age);
+            }
+        } else if (birthDate != null) {
+            user.setAge(Period.between(birthDate, LocalDate.now()).getYears());
+        }
+        return user;
+    }
+
+    private static String required(UnaryOperator<String> fields, String name) {
+        String value = optional(fields, name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value;
+    }
+
+    private static String optional(UnaryOperator<String> fields, String name) {
+        String value = fields.apply(name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
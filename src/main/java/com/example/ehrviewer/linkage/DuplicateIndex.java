@@ -0,0 +1,258 @@
+package com.example.ehrviewer.linkage;
+
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.DuplicateCandidate;
+import com.example.ehrviewer.model.DuplicateCluster;
+import com.example.ehrviewer.model.DuplicateReport;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.store.UserDirectory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds patient records that are likely the same person, entered twice with a misspelled name,
+ * another address or similar.
+ *
+ * Patients are filed in blocks by the keys of their {@link MatchProfile}, which follow every directory
+ * add and remove, and only patients sharing a block are compared. A new patient is checked against
+ * the few others in its blocks as it is added; {@link #scan} compares all patients, block by block,
+ * on a fork-join pool of {@code ehr.duplicates.parallelism} workers.
+ *
+ * Each block is an array replaced on every change, so readers never lock. A block that outgrows
+ * {@code ehr.duplicates.max-block-size}, such as a date of birth shared by a large test population,
+ * is too common to tell patients apart by; it stops being tracked and is left out of comparisons,
+ * which the patients' other blocks still cover.
+ */
+@Component
+public class DuplicateIndex implements UserDirectory.Listener {
+    private static final String[] OVERSIZED = new String[0];
+    private static final int MAX_CANDIDATES = 10;
+
+    @Value("${ehr.duplicates.threshold:0.8}")
+    private double threshold;
+
+    @Value("${ehr.duplicates.max-block-size:500}")
+    private int maxBlockSize;
+
+    // 0 uses every available processor
+    @Value("${ehr.duplicates.parallelism:0}")
+    private int parallelism;
+
+    @Autowired
+    private UserDirectory directory;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private final Map<String, String[]> blocks = new ConcurrentHashMap<>();
+    private final AtomicInteger oversizedBlocks = new AtomicInteger();
+    private ForkJoinPool pool;
+
+    @PostConstruct
+    public void init() {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("ehr.duplicates.threshold must be above 0 and at most 1");
+        }
+        if (maxBlockSize < 2) {
+            throw new IllegalArgumentException("ehr.duplicates.max-block-size must be at least 2");
+        }
+        AtomicInteger threads = new AtomicInteger();
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(), p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("duplicate-scan-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        metrics.registerGauge("ehr_duplicate_blocks", null, "Blocks of patients compared for duplicates",
+                () -> blocks.size() - oversizedBlocks.get());
+        metrics.registerGauge("ehr_duplicate_oversized_blocks", null,
+                "Blocks too large to compare within, see ehr.duplicates.max-block-size", oversizedBlocks::get);
+        directory.addListener(this);
+    }
+
+    @PreDestroy
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void userAdded(User user) {
+        if (user.getType() != UserType.PATIENT) {
+            return;
+        }
+        String userId = user.getUserId();
+        for (String key : MatchProfile.of(user).keys()) {
+            blocks.compute(key, (k, ids) -> {
+                if (ids == null) {
+                    return new String[] {userId};
+                }
+                if (ids == OVERSIZED) {
+                    return ids;
+                }
+                if (ids.length >= maxBlockSize) {
+                    oversizedBlocks.incrementAndGet();
+                    return OVERSIZED;
+                }
+                String[] added = Arrays.copyOf(ids, ids.length + 1);
+                added[ids.length] = userId;
+                return added;
+            });
+        }
+    }
+
+    @Override
+    public void userRemoved(User user) {
+        if (user.getType() != UserType.PATIENT) {
+            return;
+        }
+        String userId = user.getUserId();
+        for (String key : MatchProfile.of(user).keys()) {
+            blocks.computeIfPresent(key, (k, ids) -> {
+                if (ids == OVERSIZED) {
+                    return ids;
+                }
+                int index = Arrays.asList(ids).indexOf(userId);
+                if (index < 0) {
+                    return ids;
+                }
+                if (ids.length == 1) {
+                    return null;
+                }
+                String[] removed = new String[ids.length - 1];
+                System.arraycopy(ids, 0, removed, 0, index);
+                System.arraycopy(ids, index + 1, removed, index, removed.length - index);
+                return removed;
+            });
+        }
+    }
+
+    /**
+     * Patients already in the directory that {@code user} may duplicate, closest first: those sharing
+     * a block with it that score at least {@code ehr.duplicates.threshold}. Only patients are checked;
+     * the user itself is skipped, so this can be asked before or after it is added.
+     */
+    public List<DuplicateCandidate> candidatesFor(User user) {
+        if (user.getType() != UserType.PATIENT) {
+            return Collections.emptyList();
+        }
+        MatchProfile profile = MatchProfile.of(user);
+        Set<String> seen = new HashSet<>();
+        seen.add(user.getUserId());
+        List<DuplicateCandidate> candidates = new ArrayList<>();
+        for (String key : profile.keys()) {
+            String[] ids = blocks.get(key);
+            if (ids == null) {
+                continue;
+            }
+            for (String userId : ids) {
+                if (!seen.add(userId)) {
+                    continue;
+                }
+                User other = directory.get(userId);
+                if (other == null || other.getType() != UserType.PATIENT) {
+                    continue;
+                }
+                double score = profile.score(MatchProfile.of(other), threshold);
+                if (score >= threshold) {
+                    candidates.add(new DuplicateCandidate(userId, other.getName(), other.getDob(), score));
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(DuplicateCandidate::getScore).reversed());
+        return candidates.size() > MAX_CANDIDATES ? new ArrayList<>(candidates.subList(0, MAX_CANDIDATES)) : candidates;
+    }
+
+    /**
+     * Compare all patients sharing a block, in parallel, and group the matching pairs into clusters of
+     * records that are likely one person. Returns the {@code limit} clusters with the strongest pairs.
+     */
+    public DuplicateReport scan(int limit) {
+        long start = System.nanoTime();
+        List<String> keys = new ArrayList<>();
+        List<String[]> members = new ArrayList<>();
+        for (Map.Entry<String, String[]> block : blocks.entrySet()) {
+            if (block.getValue().length > 1) {
+                keys.add(block.getKey());
+                members.add(block.getValue());
+            }
+        }
+        DuplicateScan scan = new DuplicateScan(directory, keys.toArray(new String[0]),
+                members.toArray(new String[0][]), threshold);
+        List<DuplicateScan.Pair> pairs = pool.invoke(scan);
+
+        // Union-find over the matching pairs; each root collects its cluster's pairs
+        Map<String, String> parents = new HashMap<>();
+        for (DuplicateScan.Pair pair : pairs) {
+            String root = root(parents, pair.userId);
+            String otherRoot = root(parents, pair.otherUserId);
+            if (!root.equals(otherRoot)) {
+                parents.put(otherRoot, root);
+            }
+        }
+        Map<String, List<DuplicateScan.Pair>> clustered = new HashMap<>();
+        for (DuplicateScan.Pair pair : pairs) {
+            clustered.computeIfAbsent(root(parents, pair.userId), r -> new ArrayList<>()).add(pair);
+        }
+        Comparator<DuplicateScan.Pair> strongestFirst = Comparator.comparingDouble((DuplicateScan.Pair p) -> p.score).reversed();
+        List<List<DuplicateScan.Pair>> ranked = new ArrayList<>(clustered.values());
+        for (List<DuplicateScan.Pair> cluster : ranked) {
+            cluster.sort(strongestFirst);
+        }
+        ranked.sort(Comparator.comparing((List<DuplicateScan.Pair> cluster) -> cluster.get(0), strongestFirst)
+                .thenComparing(Comparator.comparingInt((List<DuplicateScan.Pair> cluster) -> cluster.size()).reversed()));
+
+        List<DuplicateCluster> clusters = new ArrayList<>();
+        for (List<DuplicateScan.Pair> cluster : ranked) {
+            if (clusters.size() >= limit) {
+                break;
+            }
+            DuplicateCluster result = new DuplicateCluster(cluster.get(0).score);
+            Set<String> userIds = new HashSet<>();
+            for (DuplicateScan.Pair pair : cluster) {
+                result.addPair(pair.userId, pair.otherUserId, pair.score);
+                for (String userId : new String[] {pair.userId, pair.otherUserId}) {
+                    User user = userIds.add(userId) ? directory.get(userId) : null;
+                    if (user != null) {
+                        result.addUser(user);
+                    }
+                }
+            }
+            if (result.getUsers().size() > 1) {
+                clusters.add(result);
+            }
+        }
+        return new DuplicateReport(keys.size(), oversizedBlocks.get(), scan.getCompared(), pairs.size(),
+                clustered.size(), pool.getParallelism(), (System.nanoTime() - start) / 1_000_000, clusters);
+    }
+
+    private static String root(Map<String, String> parents, String userId) {
+        String root = userId;
+        String parent;
+        while ((parent = parents.get(root)) != null) {
+            root = parent;
+        }
+        // Point the path straight at the root, so later lookups take one step
+        while (!userId.equals(root)) {
+            userId = parents.put(userId, root);
+        }
+        return root;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.ehrviewer.linkage;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.store.UserDirectory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the patients within each of a snapshot of blocks, returning the pairs that score at
+ * least the threshold.
+ *
+ * Tasks split their range of blocks in two halves of about the same number of comparisons until
+ * few enough are left, so a fork-join pool keeps all its workers busy however unevenly the patients
+ * are spread across blocks. Each task reads its patients from the directory and keeps everything
+ * else to itself, so the work scales with the workers. Two patients sharing several blocks are only
+ * compared in the first of them that is being scanned.
+ */
+final class DuplicateScan extends RecursiveTask<List<DuplicateScan.Pair>> {
+    private static final long serialVersionUID = 1L;
+
+    // A task with no more comparisons than this does them itself instead of splitting
+    private static final long LEAF_COMPARISONS = 4096;
+
+    /**
+     * Two patients scoring at least the threshold.
+     */
+    static final class Pair {
+        final String userId;
+        final String otherUserId;
+        final double score;
+
+        Pair(String userId, String otherUserId, double score) {
+            this.userId = userId;
+            this.otherUserId = otherUserId;
+            this.score = score;
+        }
+    }
+
+    private final UserDirectory directory;
+    private final String[] keys;
+    private final String[][] members;
+    private final long[] comparisonsBefore; // comparisonsBefore[i]: most comparisons in blocks 0 to i - 1
+    private final Set<String> scanned;
+    private final double threshold;
+    private final LongAdder compared;
+    private final int from;
+    private final int to;
+
+    DuplicateScan(UserDirectory directory, String[] keys, String[][] members, double threshold) {
+        this.directory = directory;
+        this.keys = keys;
+        this.members = members;
+        this.comparisonsBefore = new long[keys.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            long size = members[i].length;
+            comparisonsBefore[i + 1] = comparisonsBefore[i] + size * (size - 1) / 2;
+        }
+        this.scanned = new HashSet<>(Arrays.asList(keys));
+        this.threshold = threshold;
+        this.compared = new LongAdder();
+        this.from = 0;
+        this.to = keys.length;
+    }
+
+    private DuplicateScan(DuplicateScan parent, int from, int to) {
+        this.directory = parent.directory;
+        this.keys = parent.keys;
+        this.members = parent.members;
+        this.comparisonsBefore = parent.comparisonsBefore;
+        this.scanned = parent.scanned;
+        this.threshold = parent.threshold;
+        this.compared = parent.compared;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Pairs of patients scored so far.
+     */
+    long getCompared() {
+        return compared.sum();
+    }
+
+    @Override
+    protected List<Pair> compute() {
+        if (to - from > 1 && comparisonsBefore[to] - comparisonsBefore[from] > LEAF_COMPARISONS) {
+            long half = (comparisonsBefore[from] + comparisonsBefore[to]) / 2;
+            int middle = Arrays.binarySearch(comparisonsBefore, from + 1, to, half);
+            middle = Math.max(from + 1, Math.min(to - 1, middle < 0 ? -middle - 1 : middle));
+            DuplicateScan left = new DuplicateScan(this, from, middle);
+            left.fork();
+            List<Pair> right = new DuplicateScan(this, middle, to).compute();
+            List<Pair> pairs = left.join();
+            pairs.addAll(right);
+            return pairs;
+        }
+        List<Pair> pairs = new ArrayList<>();
+        long comparisons = 0;
+        for (int block = from; block < to; block++) {
+            comparisons += compareWithin(block, pairs);
+        }
+        compared.add(comparisons);
+        return pairs;
+    }
+
+    private long compareWithin(int block, List<Pair> pairs) {
+        String key = keys[block];
+        String[] ids = members[block];
+        MatchProfile[] profiles = new MatchProfile[ids.length];
+        List<List<String>> profileKeys = new ArrayList<>(ids.length);
+        int count = 0;
+        for (String userId : ids) {
+            // Removed, or no longer a patient, since the blocks were taken
+            User user = directory.get(userId);
+            if (user != null && user.getType() == UserType.PATIENT) {
+                profiles[count] = MatchProfile.of(user);
+                profileKeys.add(profiles[count].keys());
+                count++;
+            }
+        }
+        long comparisons = 0;
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                if (!key.equals(firstShared(profileKeys.get(i), profileKeys.get(j)))) {
+                    continue;
+                }
+                comparisons++;
+                double score = profiles[i].score(profiles[j], threshold);
+                if (score >= threshold) {
+                    pairs.add(new Pair(profiles[i].userId, profiles[j].userId, score));
+                }
+            }
+        }
+        return comparisons;
+    }
+
+    private String firstShared(List<String> keys, List<String> otherKeys) {
+        for (String key : keys) {
+            if (scanned.contains(key) && otherKeys.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.ehrviewer.linkage;
+
+import com.example.ehrviewer.model.User;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A patient record normalized for matching, and the blocking keys it is filed under.
+ *
+ * Text is stripped of accents, lower-cased and split into alphanumeric words; names also lose titles
+ * and suffixes such as "Dr" or "Jr", and contact info is reduced to its digits. Records are filed
+ * under their date of birth, the Soundex codes of their first and last names, and their phone
+ * number, so duplicates with a typo in any one of these still share a key.
+ */
+final class MatchProfile {
+    private static final Set<String> NAME_NOISE = new HashSet<>(Arrays.asList(
+            "mr", "mrs", "ms", "miss", "dr", "prof", "jr", "sr", "ii", "iii", "iv"));
+    // Digits of a phone number compared and blocked on, leaving out country and area codes
+    private static final int PHONE_DIGITS = 7;
+
+    // Weights of the fields in a score; a field missing from either record is left out of both sums
+    private static final double NAME_WEIGHT = 0.5;
+    private static final double DOB_WEIGHT = 0.3;
+    private static final double PHONE_WEIGHT = 0.1;
+    private static final double ADDRESS_WEIGHT = 0.1;
+
+    final String userId;
+    final String[] name;
+    final String dob;
+    final String phone;
+    final String[] address;
+
+    private MatchProfile(String userId, String[] name, String dob, String phone, String[] address) {
+        this.userId = userId;
+        this.name = name;
+        this.dob = dob;
+        this.phone = phone;
+        this.address = address;
+    }
+
+    static MatchProfile of(User user) {
+        List<String> name = words(user.getName());
+        name.removeIf(NAME_NOISE::contains);
+        String dob = user.getDob() == null ? "" : user.getDob().trim();
+        String digits = digitsOf(user.getContactInfo());
+        String phone = digits.length() > PHONE_DIGITS ? digits.substring(digits.length() - PHONE_DIGITS) : digits;
+        return new MatchProfile(user.getUserId(), name.toArray(new String[0]), dob, phone,
+                words(user.getAddress()).toArray(new String[0]));
+    }
+
+    /**
+     * Keys of the blocks this record belongs in; records are only compared with others sharing one.
+     */
+    List<String> keys() {
+        List<String> keys = new ArrayList<>(3);
+        if (!dob.isEmpty()) {
+            keys.add("d:" + dob);
+        }
+        if (name.length > 0) {
+            // In either order, so names entered surname first share the block
+            String first = Similarity.soundex(name[0]);
+            String last = Similarity.soundex(name[name.length - 1]);
+            keys.add("n:" + (first.compareTo(last) <= 0 ? first + last : last + first));
+        }
+        if (phone.length() == PHONE_DIGITS) {
+            keys.add("p:" + phone);
+        }
+        return keys;
+    }
+
+    /**
+     * How likely the two records are to be the same person, from 0 to 1: the weighted similarity of
+     * their names, dates of birth, phone numbers and addresses. Dates of birth one typo apart, or
+     * with day and month swapped, count as nearly equal.
+     *
+     * The cheap fields are compared first, and once the score cannot reach {@code atLeast} whatever
+     * the rest, the highest score still possible is returned instead. Most pairs sharing a block are
+     * told apart by their dates of birth alone.
+     */
+    double score(MatchProfile other, double atLeast) {
+        double score = 0;
+        double weights = NAME_WEIGHT;
+        if (!dob.isEmpty() && !other.dob.isEmpty()) {
+            weights += DOB_WEIGHT;
+            if (dob.equals(other.dob)) {
+                score += DOB_WEIGHT;
+            } else if (Similarity.oneEditApart(dob, other.dob) || dayMonthSwapped(dob, other.dob)) {
+                score += DOB_WEIGHT * 0.8;
+            }
+        }
+        if (!phone.isEmpty() && !other.phone.isEmpty()) {
+            weights += PHONE_WEIGHT;
+            if (phone.equals(other.phone)) {
+                score += PHONE_WEIGHT;
+            }
+        }
+        double addressWeight = address.length > 0 && other.address.length > 0 ? ADDRESS_WEIGHT : 0;
+        weights += addressWeight;
+        double best = (score + NAME_WEIGHT + addressWeight) / weights;
+        if (best < atLeast) {
+            return best;
+        }
+        score += NAME_WEIGHT * Similarity.tokens(name, other.name);
+        best = (score + addressWeight) / weights;
+        if (best < atLeast || addressWeight == 0) {
+            return best;
+        }
+        return (score + addressWeight * Similarity.tokens(address, other.address)) / weights;
+    }
+
+    // YYYY-MM-DD against YYYY-DD-MM
+    private static boolean dayMonthSwapped(String a, String b) {
+        return a.length() == 10 && b.length() == 10 && a.regionMatches(0, b, 0, 5)
+                && a.regionMatches(5, b, 8, 2) && a.regionMatches(8, b, 5, 2);
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String folded = (ascii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD)).toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= folded.length(); i++) {
+            char c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\'') {
+                continue; // accents, and apostrophes as in O'Brien
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    private static boolean ascii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String digitsOf(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isDigit(text.charAt(i))) {
+                digits.append(text.charAt(i));
+            }
+        }
+        return digits.toString();
+    }
+}
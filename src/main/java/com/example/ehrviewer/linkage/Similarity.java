@@ -0,0 +1,143 @@
+package com.example.ehrviewer.linkage;
+
+/**
+ * String similarity and phonetic coding for comparing patient records. Similarities are in [0, 1],
+ * 1 meaning equal.
+ */
+public final class Similarity {
+    private static final String SOUNDEX_CODES = "01230120022455012623010202"; // a..z
+
+    private Similarity() {}
+
+    /**
+     * Jaro-Winkler similarity, which forgives transposed and missing letters and favours strings that
+     * agree at the start, as misspelled names usually do.
+     */
+    public static double jaroWinkler(String a, String b) {
+        if (a.equals(b)) {
+            return a.isEmpty() ? 0 : 1;
+        }
+        int lengthA = a.length();
+        int lengthB = b.length();
+        if (lengthA == 0 || lengthB == 0) {
+            return 0;
+        }
+        int window = Math.max(0, Math.max(lengthA, lengthB) / 2 - 1);
+        boolean[] matchedA = new boolean[lengthA];
+        boolean[] matchedB = new boolean[lengthB];
+        int matches = 0;
+        for (int i = 0; i < lengthA; i++) {
+            int from = Math.max(0, i - window);
+            int to = Math.min(lengthB - 1, i + window);
+            for (int j = from; j <= to; j++) {
+                if (!matchedB[j] && a.charAt(i) == b.charAt(j)) {
+                    matchedA[i] = true;
+                    matchedB[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0;
+        }
+        int transpositions = 0;
+        for (int i = 0, j = 0; i < lengthA; i++) {
+            if (matchedA[i]) {
+                while (!matchedB[j]) {
+                    j++;
+                }
+                if (a.charAt(i) != b.charAt(j)) {
+                    transpositions++;
+                }
+                j++;
+            }
+        }
+        double m = matches;
+        double jaro = (m / lengthA + m / lengthB + (m - transpositions / 2.0) / m) / 3;
+        int prefix = 0;
+        while (prefix < 4 && prefix < lengthA && prefix < lengthB && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        return jaro + prefix * 0.1 * (1 - jaro);
+    }
+
+    /**
+     * Symmetric Monge-Elkan similarity of two token lists: each token is paired with its most similar
+     * token on the other side by {@link #jaroWinkler}, and the best scores are averaged both ways.
+     * Reordered, extra or missing words cost only their share.
+     */
+    public static double tokens(String[] a, String[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        return (bestMatches(a, b) + bestMatches(b, a)) / 2;
+    }
+
+    private static double bestMatches(String[] from, String[] to) {
+        double sum = 0;
+        for (String token : from) {
+            double best = 0;
+            for (String other : to) {
+                best = Math.max(best, jaroWinkler(token, other));
+                if (best == 1) {
+                    break;
+                }
+            }
+            sum += best;
+        }
+        return sum / from.length;
+    }
+
+    /**
+     * Whether two strings of equal length differ in one character, or in two adjacent ones swapped.
+     */
+    public static boolean oneEditApart(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        int first = -1;
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                if (first < 0) {
+                    first = i;
+                } else if (i == first + 1 && a.charAt(first) == b.charAt(i) && a.charAt(i) == b.charAt(first)
+                        && a.regionMatches(i + 1, b, i + 1, a.length() - i - 1)) {
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * American Soundex code of a word, e.g. "r163" for both "Robert" and "Rupert"; letters other than
+     * a to z are skipped, and a word without any gives "".
+     */
+    public static String soundex(String word) {
+        StringBuilder code = new StringBuilder(4);
+        char last = 0;
+        for (int i = 0; i < word.length() && code.length() < 4; i++) {
+            char c = Character.toLowerCase(word.charAt(i));
+            if (c < 'a' || c > 'z') {
+                continue;
+            }
+            char digit = SOUNDEX_CODES.charAt(c - 'a');
+            if (code.length() == 0) {
+                code.append(c);
+            } else if (digit != '0' && digit != last) {
+                code.append(digit);
+            }
+            // h and w do not separate letters of the same code; vowels do
+            if (c != 'h' && c != 'w') {
+                last = digit;
+            }
+        }
+        while (code.length() > 0 && code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+}
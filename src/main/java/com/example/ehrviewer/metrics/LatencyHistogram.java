@@ -0,0 +1,96 @@
+package com.example.ehrviewer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, allocation-free latency histogram with HDR-style log-linear buckets.
+ *
+ * Values below 64 ns get one bucket each; above that, every power of two is
+ * split into 32 buckets, so any recorded value is reported within about 3%.
+ * Values of 2^37 ns (about 137 seconds) and above are counted in the last bucket.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int LINEAR = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = LINEAR / 2;
+    private static final int OCTAVES = 31;
+    private static final int BUCKETS = LINEAR + OCTAVES * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one value in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Get the value at a quantile (0..1) in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long quantileNanos(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int index = LINEAR + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int offset = index - LINEAR;
+        int shift = offset / HALF + 1;
+        long mantissa = offset % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
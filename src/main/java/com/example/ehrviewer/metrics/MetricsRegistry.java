@@ -0,0 +1,238 @@
+package com.example.ehrviewer.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics for the user service, audit pipeline and HTTP handlers.
+ *
+ * Recording never allocates once a metric exists: operations are enum-indexed,
+ * counters are {@link LongAdder}s and latencies go into {@link LatencyHistogram}s.
+ * Gauges are suppliers evaluated only when metrics are scraped.
+ */
+@Component
+public class MetricsRegistry {
+
+    /**
+     * UserService operations with their own latency histogram.
+     */
+    public enum Operation {
+        LOGIN,
+        LOGOUT,
+        GET_USER,
+        GET_ALL_USERS,
+        GET_USERS_PAGE,
+        SEARCH_USERS,
+        FIND_DUPLICATES,
+        ADD_USER,
+        ADD_USERS,
+        UPDATE_USER,
+        REMOVE_USER,
+        QUERY_AUDIT,
+        REVALIDATE
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final class Gauge {
+        final String name;
+        final String labels;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String labels, String help, LongSupplier value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private final Map<Operation, LatencyHistogram> operations = new EnumMap<>(Operation.class);
+    private final Map<String, LatencyHistogram> handlers = new ConcurrentHashMap<>();
+    private final LatencyHistogram auditEnqueue = new LatencyHistogram();
+    private final LatencyHistogram auditWrite = new LatencyHistogram();
+    private final LongAdder auditWriteErrors = new LongAdder();
+    private final LongAdder auditRejected = new LongAdder();
+    private final LongAdder loginSuccess = new LongAdder();
+    private final LongAdder loginFailure = new LongAdder();
+    private final LongAdder loginRejected = new LongAdder();
+    private final LongAdder loginThrottled = new LongAdder();
+    private final LongAdder accessDenied = new LongAdder();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public MetricsRegistry() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new LatencyHistogram());
+        }
+    }
+
+    public void recordOperation(Operation operation, long nanos) {
+        operations.get(operation).record(nanos);
+    }
+
+    public void recordLogin(boolean success) {
+        (success ? loginSuccess : loginFailure).increment();
+    }
+
+    /**
+     * A login turned away because credential verification was saturated.
+     */
+    public void recordLoginRejected() {
+        loginRejected.increment();
+    }
+
+    /**
+     * A login refused after repeated failures for its username or client.
+     */
+    public void recordLoginThrottled() {
+        loginThrottled.increment();
+    }
+
+    /**
+     * A request refused by the access policy.
+     */
+    public void recordAccessDenied() {
+        accessDenied.increment();
+    }
+
+    /**
+     * Time a request thread spent handing an event to the audit pipeline.
+     */
+    public void recordAuditEnqueue(long nanos) {
+        auditEnqueue.record(nanos);
+    }
+
+    /**
+     * Time the audit writer spent writing one event.
+     */
+    public void recordAuditWrite(long nanos) {
+        auditWrite.record(nanos);
+    }
+
+    public void recordAuditWriteError() {
+        auditWriteErrors.increment();
+    }
+
+    public void recordAuditRejected() {
+        auditRejected.increment();
+    }
+
+    /**
+     * Record the latency of one HTTP request, keyed by the matched handler pattern.
+     */
+    public void recordHandler(String pattern, long nanos) {
+        LatencyHistogram histogram = handlers.get(pattern);
+        if (histogram == null) {
+            histogram = handlers.computeIfAbsent(pattern, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Register a gauge evaluated at scrape time. Labels use Prometheus syntax without braces, e.g. {@code type="NURSE"}.
+     */
+    public void registerGauge(String name, String labels, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, labels, help, value));
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Map<String, LatencyHistogram> byOperation = new LinkedHashMap<>();
+        for (Map.Entry<Operation, LatencyHistogram> entry : operations.entrySet()) {
+            byOperation.put("operation=\"" + entry.getKey().name().toLowerCase(Locale.ROOT) + "\"", entry.getValue());
+        }
+        summaries(out, "ehr_operation_duration_seconds", "UserService operation latency", byOperation);
+        Map<String, LatencyHistogram> byHandler = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : handlers.entrySet()) {
+            byHandler.put("handler=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+        }
+        summaries(out, "ehr_http_request_duration_seconds", "HTTP request latency by handler pattern", byHandler);
+        summaries(out, "ehr_audit_enqueue_duration_seconds", "Time request threads spend submitting audit events",
+                Collections.singletonMap(null, auditEnqueue));
+        summaries(out, "ehr_audit_write_duration_seconds", "Time the audit writer spends writing one event",
+                Collections.singletonMap(null, auditWrite));
+
+        counter(out, "ehr_audit_write_errors_total", "Audit events the writer failed to write", auditWriteErrors);
+        counter(out, "ehr_audit_rejected_total", "Audit events rejected because the queue stayed full", auditRejected);
+        header(out, "ehr_logins_total", "Login attempts by outcome", "counter");
+        sample(out, "ehr_logins_total", "result=\"success\"", loginSuccess.sum());
+        sample(out, "ehr_logins_total", "result=\"failure\"", loginFailure.sum());
+        sample(out, "ehr_logins_total", "result=\"rejected\"", loginRejected.sum());
+        sample(out, "ehr_logins_total", "result=\"throttled\"", loginThrottled.sum());
+        counter(out, "ehr_access_denied_total", "Requests refused by the access policy", accessDenied);
+
+        String lastGauge = null;
+        for (Gauge gauge : gauges) {
+            if (!gauge.name.equals(lastGauge)) {
+                header(out, gauge.name, gauge.help, "gauge");
+                lastGauge = gauge.name;
+            }
+            sample(out, gauge.name, gauge.labels, gauge.value.getAsLong());
+        }
+    }
+
+    private static void header(Writer out, String name, String help, String type) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /**
+     * Write one summary family, followed by a gauge family with the maximum of each series.
+     */
+    private static void summaries(Writer out, String name, String help, Map<String, LatencyHistogram> series)
+            throws IOException {
+        header(out, name, help, "summary");
+        for (Map.Entry<String, LatencyHistogram> entry : series.entrySet()) {
+            String labels = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            String prefix = labels == null ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                out.write(name + "{" + prefix + "quantile=\"" + quantile + "\"} "
+                        + seconds(histogram.quantileNanos(quantile)) + "\n");
+            }
+            sample(out, name + "_sum", labels, seconds(histogram.sumNanos()));
+            sample(out, name + "_count", labels, Long.toString(histogram.count()));
+        }
+        header(out, name + "_max", "Maximum of " + name, "gauge");
+        for (Map.Entry<String, LatencyHistogram> entry : series.entrySet()) {
+            sample(out, name + "_max", entry.getKey(), seconds(entry.getValue().maxNanos()));
+        }
+    }
+
+    private static void counter(Writer out, String name, String help, LongAdder value) throws IOException {
+        header(out, name, help, "counter");
+        sample(out, name, null, value.sum());
+    }
+
+    private static void sample(Writer out, String name, String labels, long value) throws IOException {
+        sample(out, name, labels, Long.toString(value));
+    }
+
+    private static void sample(Writer out, String name, String labels, String value) throws IOException {
+        out.write(name + (labels == null ? "" : "{" + labels + "}") + " " + value + "\n");
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+
+/**
+ * One page of audit log entries in log order, with a cursor for the next page.
+ */
+public class AuditPage {
+    @JsonProperty("entries")
+    private List<JsonNode> entries; // entries exactly as written by the audit logger
+
+    @JsonProperty("next_cursor")
+    private String nextCursor; // null when there are no more pages
+
+    // Default constructor for JSON deserialization
+    public AuditPage() {}
+
+    public AuditPage(List<JsonNode> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    // Getters and Setters
+    public List<JsonNode> getEntries() { return entries; }
+    public void setEntries(List<JsonNode> entries) { this.entries = entries; }
+
+    public String getNextCursor() { return nextCursor; }
+    public void setNextCursor(String nextCursor) { this.nextCursor = nextCursor; }
+
+    @Override
+    public String toString() {
+        return "AuditPage{" +
+                "entries=" + entries.size() +
+                ", nextCursor='" + nextCursor + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.ehrviewer.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Filters and paging parameters for querying the audit log. All filters are optional.
+ */
+public class AuditQuery {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+
+    private Instant from; // inclusive
+    private Instant to;   // exclusive
+    private String resource;
+    private String userId;
+    private String eventType;
+    private String cursor; // opaque cursor returned as next_cursor by the previous page
+    private int limit = DEFAULT_LIMIT;
+
+    public AuditQuery() {}
+
+    public AuditQuery(Instant from, Instant to, String resource, String userId, String eventType, String cursor, int limit) {
+        this.from = from;
+        this.to = to;
+        this.resource = resource;
+        this.userId = userId;
+        this.eventType = eventType;
+        this.cursor = cursor;
+        this.limit = limit;
+    }
+
+    /**
+     * Parse a time bound given as an ISO-8601 instant, offset date-time, date (start of day UTC) or epoch millis.
+     */
+    public static Instant parseTime(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            if (value.chars().allMatch(Character::isDigit)) {
+                return Instant.ofEpochMilli(Long.parseLong(value));
+            }
+            if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+            return OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    // Getters and Setters
+    public Instant getFrom() { return from; }
+    public void setFrom(Instant from) { this.from = from; }
+
+    public Instant getTo() { return to; }
+    public void setTo(Instant to) { this.to = to; }
+
+    public String getResource() { return resource; }
+    public void setResource(String resource) { this.resource = resource; }
+
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+
+    public String getEventType() { return eventType; }
+    public void setEventType(String eventType) { this.eventType = eventType; }
+
+    public String getCursor() { return cursor; }
+    public void setCursor(String cursor) { this.cursor = cursor; }
+
+    public int getLimit() { return limit; }
+    public void setLimit(int limit) { this.limit = limit; }
+
+    @Override
+    public String toString() {
+        return "AuditQuery{" +
+                "from=" + from +
+                ", to=" + to +
+                ", resource='" + resource + '\'' +
+                ", userId='" + userId + '\'' +
+                ", eventType='" + eventType + '\'' +
+                ", cursor='" + cursor + '\'' +
+                ", limit=" + limit +
+                '}';
+    }
+}
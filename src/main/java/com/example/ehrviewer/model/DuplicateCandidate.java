@@ -0,0 +1,44 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * An existing patient that a newly added one may duplicate, with how closely the two records match.
+ */
+public class DuplicateCandidate {
+
+    @JsonProperty("user_id")
+    private String userId;
+
+    @JsonProperty("name")
+    private String name;
+
+    @JsonProperty("dob")
+    private String dob;
+
+    @JsonProperty("score")
+    private double score; // 0 to 1; see ehr.duplicates.threshold
+
+    public DuplicateCandidate() {}
+
+    public DuplicateCandidate(String userId, String name, String dob, double score) {
+        this.userId = userId;
+        this.name = name;
+        this.dob = dob;
+        this.score = score;
+    }
+
+    // Getters
+    public String getUserId() { return userId; }
+    public String getName() { return name; }
+    public String getDob() { return dob; }
+    public double getScore() { return score; }
+
+    @Override
+    public String toString() {
+        return "DuplicateCandidate{" +
+                "userId='" + userId + '\'' +
+                ", score=" + score +
+                '}';
+    }
+}
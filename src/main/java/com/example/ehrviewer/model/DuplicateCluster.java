@@ -0,0 +1,85 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Patient records that are likely the same person: each one matches at least one other in the
+ * cluster, as listed in its pairs, strongest first.
+ */
+public class DuplicateCluster {
+
+    @JsonProperty("score")
+    private double score; // of the strongest pair
+
+    @JsonProperty("users")
+    private List<User> users = new ArrayList<>();
+
+    @JsonProperty("pairs")
+    private List<Pair> pairs = new ArrayList<>();
+
+    public DuplicateCluster() {}
+
+    public DuplicateCluster(double score) {
+        this.score = score;
+    }
+
+    public void addUser(User user) {
+        users.add(user);
+    }
+
+    public void addPair(String userId, String otherUserId, double score) {
+        pairs.add(new Pair(userId, otherUserId, score));
+    }
+
+    // Getters
+    public double getScore() { return score; }
+    public List<User> getUsers() { return users; }
+    public List<Pair> getPairs() { return pairs; }
+
+    @Override
+    public String toString() {
+        return "DuplicateCluster{" +
+                "score=" + score +
+                ", users=" + users.size() +
+                ", pairs=" + pairs.size() +
+                '}';
+    }
+
+    /**
+     * Two records of the cluster that matched, and their score.
+     */
+    public static class Pair {
+        @JsonProperty("user_id")
+        private String userId;
+
+        @JsonProperty("other_user_id")
+        private String otherUserId;
+
+        @JsonProperty("score")
+        private double score;
+
+        public Pair() {}
+
+        public Pair(String userId, String otherUserId, double score) {
+            this.userId = userId;
+            this.otherUserId = otherUserId;
+            this.score = score;
+        }
+
+        public String getUserId() { return userId; }
+        public String getOtherUserId() { return otherUserId; }
+        public double getScore() { return score; }
+
+        @Override
+        public String toString() {
+            return "Pair{" +
+                    "userId='" + userId + '\'' +
+                    ", otherUserId='" + otherUserId + '\'' +
+                    ", score=" + score +
+                    '}';
+        }
+    }
+}
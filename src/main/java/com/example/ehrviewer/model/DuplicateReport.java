@@ -0,0 +1,73 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * Outcome of a scan of all patients for duplicates: the highest-scoring clusters, and what the scan
+ * compared to find them.
+ */
+public class DuplicateReport {
+
+    @JsonProperty("blocks")
+    private long blocks; // groups of patients sharing a date of birth, name sound or phone number
+
+    @JsonProperty("oversized_blocks")
+    private long oversizedBlocks; // too common to compare within; see ehr.duplicates.max-block-size
+
+    @JsonProperty("pairs_compared")
+    private long pairsCompared;
+
+    @JsonProperty("matches")
+    private long matches; // pairs scoring at least ehr.duplicates.threshold
+
+    @JsonProperty("total_clusters")
+    private long totalClusters;
+
+    @JsonProperty("parallelism")
+    private int parallelism;
+
+    @JsonProperty("elapsed_ms")
+    private long elapsedMillis;
+
+    @JsonProperty("clusters")
+    private List<DuplicateCluster> clusters; // at most the requested limit, highest score first
+
+    public DuplicateReport() {}
+
+    public DuplicateReport(long blocks, long oversizedBlocks, long pairsCompared, long matches, long totalClusters,
+                           int parallelism, long elapsedMillis, List<DuplicateCluster> clusters) {
+        this.blocks = blocks;
+        this.oversizedBlocks = oversizedBlocks;
+        this.pairsCompared = pairsCompared;
+        this.matches = matches;
+        this.totalClusters = totalClusters;
+        this.parallelism = parallelism;
+        this.elapsedMillis = elapsedMillis;
+        this.clusters = clusters;
+    }
+
+    // Getters
+    public long getBlocks() { return blocks; }
+    public long getOversizedBlocks() { return oversizedBlocks; }
+    public long getPairsCompared() { return pairsCompared; }
+    public long getMatches() { return matches; }
+    public long getTotalClusters() { return totalClusters; }
+    public int getParallelism() { return parallelism; }
+    public long getElapsedMillis() { return elapsedMillis; }
+    public List<DuplicateCluster> getClusters() { return clusters; }
+
+    @Override
+    public String toString() {
+        return "DuplicateReport{" +
+                "blocks=" + blocks +
+                ", oversizedBlocks=" + oversizedBlocks +
+                ", pairsCompared=" + pairsCompared +
+                ", matches=" + matches +
+                ", totalClusters=" + totalClusters +
+                ", parallelism=" + parallelism +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk user import, with an error entry for each rejected row.
+ */
+public class ImportReport {
+    public static final int MAX_ERRORS = 1000;
+
+    @JsonProperty("total_rows")
+    private long totalRows;
+
+    @JsonProperty("imported")
+    private long imported;
+
+    @JsonProperty("failed")
+    private long failed;
+
+    @JsonProperty("errors")
+    private List<RowError> errors = new ArrayList<>();
+
+    @JsonProperty("errors_truncated")
+    private boolean errorsTruncated; // true when more than MAX_ERRORS rows failed
+
+    public ImportReport() {}
+
+    public void addImported() {
+        totalRows++;
+        imported++;
+    }
+
+    public void addError(long line, String userId, String message) {
+        totalRows++;
+        failed++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(new RowError(line, userId, message));
+        } else {
+            errorsTruncated = true;
+        }
+    }
+
+    // Getters
+    public long getTotalRows() { return totalRows; }
+    public long getImported() { return imported; }
+    public long getFailed() { return failed; }
+    public List<RowError> getErrors() { return errors; }
+    public boolean isErrorsTruncated() { return errorsTruncated; }
+
+    @Override
+    public String toString() {
+        return "ImportReport{" +
+                "totalRows=" + totalRows +
+                ", imported=" + imported +
+                ", failed=" + failed +
+                ", errorsTruncated=" + errorsTruncated +
+                '}';
+    }
+
+    /**
+     * A rejected row, identified by the input line it starts on.
+     */
+    public static class RowError {
+        @JsonProperty("line")
+        private long line;
+
+        @JsonProperty("user_id")
+        private String userId; // null when the row could not be parsed far enough to have one
+
+        @JsonProperty("message")
+        private String message;
+
+        public RowError() {}
+
+        public RowError(long line, String userId, String message) {
+            this.line = line;
+            this.userId = userId;
+            this.message = message;
+        }
+
+        public long getLine() { return line; }
+        public String getUserId() { return userId; }
+        public String getMessage() { return message; }
+
+        @Override
+        public String toString() {
+            return "RowError{" +
+                    "line=" + line +
+                    ", userId='" + userId + '\'' +
+                    ", message='" + message + '\'' +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where this node stands in replication: on a primary, its latest sequence and how far behind each
+ * connected replica is; on a replica, the sequence it has applied and its lag behind the primary.
+ */
+public class ReplicationStatus {
+
+    @JsonProperty("role")
+    private String role; // NONE, PRIMARY or REPLICA
+
+    @JsonProperty("epoch")
+    private String epoch; // the primary's epoch in hex; sequences start over with each
+
+    @JsonProperty("sequence")
+    private long sequence; // the primary's latest change, or the last one a replica applied
+
+    @JsonProperty("connected")
+    private boolean connected; // replicas: whether connected to the primary
+
+    @JsonProperty("lag_records")
+    private long lagRecords; // replicas: changes known to be on the primary but not applied yet
+
+    @JsonProperty("lag_ms")
+    private long lagMillis; // replicas: how long ago the primary was in the state applied here
+
+    @JsonProperty("replicas")
+    private List<Replica> replicas = new ArrayList<>(); // primaries: the connected replicas
+
+    public ReplicationStatus() {}
+
+    public ReplicationStatus(String role, String epoch, long sequence, boolean connected, long lagRecords, long lagMillis) {
+        this.role = role;
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.connected = connected;
+        this.lagRecords = lagRecords;
+        this.lagMillis = lagMillis;
+    }
+
+    public void addReplica(String address, long ackedSequence, long lagRecords) {
+        replicas.add(new Replica(address, ackedSequence, lagRecords));
+    }
+
+    // Getters
+    public String getRole() { return role; }
+    public String getEpoch() { return epoch; }
+    public long getSequence() { return sequence; }
+    public boolean isConnected() { return connected; }
+    public long getLagRecords() { return lagRecords; }
+    public long getLagMillis() { return lagMillis; }
+    public List<Replica> getReplicas() { return replicas; }
+
+    @Override
+    public String toString() {
+        return "ReplicationStatus{" +
+                "role='" + role + '\'' +
+                ", epoch='" + epoch + '\'' +
+                ", sequence=" + sequence +
+                ", connected=" + connected +
+                ", lagRecords=" + lagRecords +
+                ", lagMillis=" + lagMillis +
+                ", replicas=" + replicas.size() +
+                '}';
+    }
+
+    /**
+     * A replica connected to this primary, as of its last acknowledgement.
+     */
+    public static class Replica {
+        @JsonProperty("address")
+        private String address;
+
+        @JsonProperty("acked_sequence")
+        private long ackedSequence;
+
+        @JsonProperty("lag_records")
+        private long lagRecords;
+
+        public Replica() {}
+
+        public Replica(String address, long ackedSequence, long lagRecords) {
+            this.address = address;
+            this.ackedSequence = ackedSequence;
+            this.lagRecords = lagRecords;
+        }
+
+        public String getAddress() { return address; }
+        public long getAckedSequence() { return ackedSequence; }
+        public long getLagRecords() { return lagRecords; }
+
+        @Override
+        public String toString() {
+            return "Replica{" +
+                    "address='" + address + '\'' +
+                    ", ackedSequence=" + ackedSequence +
+                    ", lagRecords=" + lagRecords +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One entry of the user change feed: a user added to, updated in or removed from the directory.
+ */
+public class UserChange {
+    /**
+     * What happened to the user.
+     */
+    public enum Type {
+        ADDED,
+        UPDATED,
+        REMOVED
+    }
+
+    @JsonProperty("sequence")
+    private long sequence; // increases by one with every change
+
+    @JsonProperty("type")
+    private Type type;
+
+    @JsonProperty("user_id")
+    private String userId;
+
+    @JsonProperty("user")
+    private User user; // the added or updated user; null for removals
+
+    @JsonProperty("timestamp")
+    private String timestamp; // ISO-8601 instant
+
+    // Default constructor for JSON deserialization
+    public UserChange() {}
+
+    public UserChange(long sequence, Type type, String userId, User user, String timestamp) {
+        this.sequence = sequence;
+        this.type = type;
+        this.userId = userId;
+        this.user = user;
+        this.timestamp = timestamp;
+    }
+
+    // Getters and Setters
+    public long getSequence() { return sequence; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
+    public Type getType() { return type; }
+    public void setType(Type type) { this.type = type; }
+
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+
+    public User getUser() { return user; }
+    public void setUser(User user) { this.user = user; }
+
+    public String getTimestamp() { return timestamp; }
+    public void setTimestamp(String timestamp) { this.timestamp = timestamp; }
+
+    @Override
+    public String toString() {
+        return "UserChange{" +
+                "sequence=" + sequence +
+                ", type=" + type +
+                ", userId='" + userId + '\'' +
+                ", timestamp='" + timestamp + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One page of users ordered by userId, with a cursor for the next page.
+ */
+public class UserPage {
+    @JsonProperty("users")
+    private List<User> users;
+
+    @JsonProperty("next_cursor")
+    private String nextCursor; // null when there are no more pages
+
+    // Default constructor for JSON deserialization
+    public UserPage() {}
+
+    public UserPage(List<User> users, String nextCursor) {
+        this.users = users;
+        this.nextCursor = nextCursor;
+    }
+
+    // Getters and Setters
+    public List<User> getUsers() { return users; }
+    public void setUsers(List<User> users) { this.users = users; }
+
+    public String getNextCursor() { return nextCursor; }
+    public void setNextCursor(String nextCursor) { this.nextCursor = nextCursor; }
+
+    @Override
+    public String toString() {
+        return "UserPage{" +
+                "users=" + users.size() +
+                ", nextCursor='" + nextCursor + '\'' +
+                '}';
+    }
+}
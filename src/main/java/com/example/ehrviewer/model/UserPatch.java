@@ -0,0 +1,81 @@
+package com.example.ehrviewer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Partial update of a user. Only the fields present (non-null) are changed; the userId cannot be.
+ */
+public class UserPatch {
+    @JsonProperty("name")
+    private String name;
+
+    @JsonProperty("dob")
+    private String dob;
+
+    @JsonProperty("address")
+    private String address;
+
+    @JsonProperty("age")
+    private Integer age;
+
+    @JsonProperty("type")
+    private UserType type;
+
+    @JsonProperty("gender")
+    private String gender;
+
+    @JsonProperty("contact_info")
+    private String contactInfo;
+
+    @JsonProperty("username")
+    private String username;
+
+    @JsonProperty("password")
+    private String password;
+
+    // Default constructor for JSON deserialization
+    public UserPatch() {}
+
+    // Getters and Setters
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public String getDob() { return dob; }
+    public void setDob(String dob) { this.dob = dob; }
+
+    public String getAddress() { return address; }
+    public void setAddress(String address) { this.address = address; }
+
+    public Integer getAge() { return age; }
+    public void setAge(Integer age) { this.age = age; }
+
+    public UserType getType() { return type; }
+    public void setType(UserType type) { this.type = type; }
+
+    public String getGender() { return gender; }
+    public void setGender(String gender) { this.gender = gender; }
+
+    public String getContactInfo() { return contactInfo; }
+    public void setContactInfo(String contactInfo) { this.contactInfo = contactInfo; }
+
+    public String getUsername() { return username; }
+    public void setUsername(String username) { this.username = username; }
+
+    public String getPassword() { return password; }
+    public void setPassword(String password) { this.password = password; }
+
+    @Override
+    public String toString() {
+        return "UserPatch{" +
+                "name='" + name + '\'' +
+                ", dob='" + dob + '\'' +
+                ", address='" + address + '\'' +
+                ", age=" + age +
+                ", type=" + type +
+                ", gender='" + gender + '\'' +
+                ", contactInfo='" + contactInfo + '\'' +
+                ", username='" + username + '\'' +
+                ", password=" + (password == null ? null : "[redacted]") +
+                '}';
+    }
+}
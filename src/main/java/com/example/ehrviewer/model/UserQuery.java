@@ -0,0 +1,68 @@
+package com.example.ehrviewer.model;
+
+/**
+ * Filters and paging parameters for listing users.
+ */
+public class UserQuery {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+
+    private UserType type;
+    private String gender;
+    private Integer minAge;
+    private Integer maxAge;
+    private String cursor; // opaque cursor returned as next_cursor by the previous page
+    private int limit = DEFAULT_LIMIT;
+
+    public UserQuery() {}
+
+    public UserQuery(UserType type, String gender, Integer minAge, Integer maxAge, String cursor, int limit) {
+        this.type = type;
+        this.gender = gender;
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        this.cursor = cursor;
+        this.limit = limit;
+    }
+
+    /**
+     * Check whether a gender and age match the filters. The type filter is applied by index.
+     */
+    public boolean matches(String userGender, int userAge) {
+        if (gender != null && !gender.equalsIgnoreCase(userGender)) return false;
+        if (minAge != null && userAge < minAge) return false;
+        if (maxAge != null && userAge > maxAge) return false;
+        return true;
+    }
+
+    // Getters and Setters
+    public UserType getType() { return type; }
+    public void setType(UserType type) { this.type = type; }
+
+    public String getGender() { return gender; }
+    public void setGender(String gender) { this.gender = gender; }
+
+    public Integer getMinAge() { return minAge; }
+    public void setMinAge(Integer minAge) { this.minAge = minAge; }
+
+    public Integer getMaxAge() { return maxAge; }
+    public void setMaxAge(Integer maxAge) { this.maxAge = maxAge; }
+
+    public String getCursor() { return cursor; }
+    public void setCursor(String cursor) { this.cursor = cursor; }
+
+    public int getLimit() { return limit; }
+    public void setLimit(int limit) { this.limit = limit; }
+
+    @Override
+    public String toString() {
+        return "UserQuery{" +
+                "type=" + type +
+                ", gender='" + gender + '\'' +
+                ", minAge=" + minAge +
+                ", maxAge=" + maxAge +
+                ", cursor='" + cursor + '\'' +
+                ", limit=" + limit +
+                '}';
+    }
+}
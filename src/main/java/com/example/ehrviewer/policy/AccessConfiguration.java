@@ -0,0 +1,34 @@
+package com.example.ehrviewer.policy;
+
+import com.example.ehrviewer.session.SessionPrincipalResolver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+/**
+ * Puts the user, audit and UI controllers behind the {@link AccessInterceptor}, and lets their
+ * handlers take the session's principal as a parameter.
+ */
+@Configuration
+public class AccessConfiguration implements WebMvcConfigurer {
+
+    @Autowired
+    private AccessInterceptor accessInterceptor;
+
+    @Autowired
+    private SessionPrincipalResolver principalResolver;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(accessInterceptor).addPathPatterns("/api/users/**", "/api/audit/**", "/ui/**");
+    }
+
+    @Override
+    public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+        resolvers.add(principalResolver);
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.ehrviewer.policy;
+
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.session.SessionManager;
+import com.example.ehrviewer.session.SessionPrincipal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks every request to the user, audit and UI controllers against the {@link AccessPolicy}
+ * before its handler runs, as declared by the handler's {@link Authorize} annotation.
+ *
+ * Requests without a valid session get 401 from the REST controllers and are sent to the login
+ * page by the UI. Refused requests get 403 and are audited as {@code ACCESS_DENIED}. Handlers
+ * marked neither {@link Authorize} nor {@link Anonymous} are always refused.
+ */
+@Component
+public class AccessInterceptor implements HandlerInterceptor {
+    private static final Logger log = LoggerFactory.getLogger(AccessInterceptor.class);
+
+    @Autowired
+    private SessionManager sessions;
+
+    @Autowired
+    private AccessPolicy policy;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    // Each handler's annotations, read once
+    private final Map<Method, Requirement> requirements = new ConcurrentHashMap<>();
+
+    private static final class Requirement {
+        final boolean anonymous;
+        final Authorize authorize;
+        final boolean rest;
+
+        Requirement(HandlerMethod handler) {
+            this.anonymous = handler.hasMethodAnnotation(Anonymous.class);
+            this.authorize = handler.getMethodAnnotation(Authorize.class);
+            this.rest = AnnotatedElementUtils.hasAnnotation(handler.getBeanType(), ResponseBody.class);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws IOException {
+        // Async results are dispatched back through here; the request was checked when it arrived
+        if (!(handler instanceof HandlerMethod) || request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        HandlerMethod handlerMethod = (HandlerMethod) handler;
+        Requirement requirement = requirements.computeIfAbsent(handlerMethod.getMethod(),
+                method -> new Requirement(handlerMethod));
+        if (requirement.anonymous) {
+            return true;
+        }
+        SessionPrincipal principal = sessions.principal(request, response);
+        if (principal == null) {
+            if (requirement.rest) {
+                response.sendError(HttpStatus.UNAUTHORIZED.value());
+            } else {
+                response.sendRedirect(request.getContextPath() + "/ui/login");
+            }
+            return false;
+        }
+        Authorize authorize = requirement.authorize;
+        if (authorize == null) {
+            log.warn("Refusing {}: handler {} declares no access rule", request.getRequestURI(), handlerMethod);
+            return deny(request, response, principal, null, "none");
+        }
+        String target = null;
+        boolean allowed;
+        if (!authorize.target().isEmpty()) {
+            target = pathVariable(request, authorize.target());
+            allowed = target != null && policy.allows(principal, authorize.value(), target);
+        } else if (authorize.narrowed()) {
+            allowed = policy.allowsAny(principal, authorize.value());
+        } else {
+            allowed = policy.allowsAll(principal, authorize.value());
+        }
+        return allowed || deny(request, response, principal, target, authorize.value().name());
+    }
+
+    private boolean deny(HttpServletRequest request, HttpServletResponse response, SessionPrincipal principal,
+                         String target, String action) throws IOException {
+        metrics.recordAccessDenied();
+        try {
+            userService.logAccessDenied(principal.getUserId(), action,
+                    target == null ? "user" : "user/" + target, request.getMethod() + " " + request.getRequestURI());
+        } catch (Exception e) {
+            log.warn("Failed to audit refused access by {}", principal.getUserId(), e);
+        }
+        response.sendError(HttpStatus.FORBIDDEN.value());
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String pathVariable(HttpServletRequest request, String name) {
+        Object variables = request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        return variables instanceof Map ? ((Map<String, String>) variables).get(name) : null;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.ehrviewer.policy;
+
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.session.SessionPrincipal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Role-based access decisions: may this principal perform this {@link Action} on this user?
+ *
+ * The rules, {@code ehr.policy.rules.<TYPE>} lists of {@code ACTION:SCOPE} grants per user type,
+ * are compiled at startup into one bitset per type, with a bit for each action and {@link Scope}.
+ * A user type without rules is granted nothing. {@code SELF} is a comparison of userIds; for
+ * {@code CARE_TEAM} the patients whose care team a principal is on are kept per principal until
+ * its session stamp or the {@link CareTeamIndex} changes. A decision is a few bit operations and
+ * at most two map lookups.
+ */
+@Component
+public class AccessPolicy {
+    private static final Logger log = LoggerFactory.getLogger(AccessPolicy.class);
+
+    private static final int SCOPES = Scope.values().length;
+    private static final long SCOPE_MASK = (1L << SCOPES) - 1;
+    private static final int SELF = 1 << Scope.SELF.ordinal();
+    private static final int CARE_TEAM = 1 << Scope.CARE_TEAM.ordinal();
+    private static final int ALL = 1 << Scope.ALL.ordinal();
+
+    static {
+        if (Action.values().length * SCOPES > Long.SIZE) {
+            throw new IllegalStateException("Too many actions for one grant bitset");
+        }
+    }
+
+    @Value("${ehr.policy.cache-size:100000}")
+    private int cacheSize;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private CareTeamIndex careTeams;
+
+    private final long[] grants = new long[UserType.values().length];
+    private final Map<String, Authority> authorities = new ConcurrentHashMap<>();
+
+    /**
+     * The patients one principal cares for, valid while its session stamp and the care team version are unchanged.
+     */
+    private static final class Authority {
+        final UserType type;
+        final int stamp;
+        final long careTeamVersion;
+        final Set<String> patients;
+
+        Authority(UserType type, int stamp, long careTeamVersion, Set<String> patients) {
+            this.type = type;
+            this.stamp = stamp;
+            this.careTeamVersion = careTeamVersion;
+            this.patients = patients;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        for (UserType type : UserType.values()) {
+            String rules = environment.getProperty("ehr.policy.rules." + type.name(), "");
+            grants[type.ordinal()] = compile(type, rules);
+            log.debug("Access rules for {}: {}", type, rules);
+        }
+    }
+
+    /**
+     * Whether the principal may perform the action on the user {@code targetId}.
+     */
+    public boolean allows(SessionPrincipal principal, Action action, String targetId) {
+        int scopes = scopes(grants(principal.getType()), action);
+        if ((scopes & ALL) != 0) {
+            return true;
+        }
+        if ((scopes & SELF) != 0 && principal.getUserId().equals(targetId)) {
+            return true;
+        }
+        return (scopes & CARE_TEAM) != 0 && authority(principal).patients.contains(targetId);
+    }
+
+    /**
+     * Whether the principal may perform the action on every user, and so on the directory as a whole.
+     */
+    public boolean allowsAll(SessionPrincipal principal, Action action) {
+        return (scopes(grants(principal.getType()), action) & ALL) != 0;
+    }
+
+    /**
+     * Whether the principal may perform the action on at least some users.
+     */
+    public boolean allowsAny(SessionPrincipal principal, Action action) {
+        return scopes(grants(principal.getType()), action) != 0;
+    }
+
+    private long grants(UserType type) {
+        return type == null ? 0 : grants[type.ordinal()];
+    }
+
+    private static int scopes(long grants, Action action) {
+        return (int) ((grants >>> (action.ordinal() * SCOPES)) & SCOPE_MASK);
+    }
+
+    private Authority authority(SessionPrincipal principal) {
+        long careTeamVersion = careTeams.getVersion();
+        Authority authority = authorities.get(principal.getUserId());
+        if (authority != null && authority.type == principal.getType() && authority.stamp == principal.getStamp()
+                && authority.careTeamVersion == careTeamVersion) {
+            return authority;
+        }
+        if (authorities.size() >= cacheSize) {
+            authorities.clear();
+        }
+        // Read the care team after its version, so a racing change can only make this entry look stale
+        authority = new Authority(principal.getType(), principal.getStamp(), careTeamVersion,
+                careTeams.patientsOf(principal.getUserId()));
+        authorities.put(principal.getUserId(), authority);
+        return authority;
+    }
+
+    /**
+     * Compile one user type's comma-separated {@code ACTION:SCOPE} grants; {@code *} stands for every action.
+     */
+    static long compile(UserType type, String rules) {
+        long bits = 0;
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int colon = rule.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Access rule for " + type + " must be ACTION:SCOPE: " + rule);
+            }
+            String actionName = rule.substring(0, colon).trim();
+            Scope scope = Scope.valueOf(rule.substring(colon + 1).trim());
+            for (Action action : Action.values()) {
+                if (actionName.equals("*") || actionName.equals(action.name())) {
+                    bits |= 1L << (action.ordinal() * SCOPES + scope.ordinal());
+                }
+            }
+            if (!actionName.equals("*")) {
+                Action.valueOf(actionName); // reject unknown actions
+            }
+        }
+        return bits;
+    }
+}
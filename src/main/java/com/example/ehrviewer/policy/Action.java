@@ -0,0 +1,16 @@
+package com.example.ehrviewer.policy;
+
+/**
+ * Something a user may be allowed to do, to one user or to the directory as a whole.
+ */
+public enum Action {
+    LIST,             // list, page through and search users
+    VIEW,             // read one user
+    WATCH,            // follow the change feed
+    ADD,              // add users, one at a time or by import
+    UPDATE,           // change a user's personal details
+    MANAGE_ACCOUNT,   // change a user's type, username or password, or add a user who is not a patient
+    REMOVE,           // remove a user
+    MANAGE_CARE_TEAM, // assign staff to, or unassign them from, a patient's care team
+    QUERY_AUDIT       // read the audit log
+}
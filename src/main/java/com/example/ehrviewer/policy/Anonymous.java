@@ -0,0 +1,17 @@
+package com.example.ehrviewer.policy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a handler method that needs no session, such as login. Handlers covered by the
+ * {@link AccessInterceptor} with neither this nor {@link Authorize} are refused.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Anonymous {
+}
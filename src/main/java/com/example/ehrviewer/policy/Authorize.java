@@ -0,0 +1,30 @@
+package com.example.ehrviewer.policy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The {@link Action} a handler method performs, checked by the {@link AccessInterceptor} before it runs.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Authorize {
+
+    Action value();
+
+    /**
+     * Name of the path variable holding the userId acted on. Without one the action is on the
+     * directory as a whole, which needs a grant with {@link Scope#ALL}.
+     */
+    String target() default "";
+
+    /**
+     * Also let in users granted the action for only some users; the handler must narrow what it
+     * does to those (see {@link AccessPolicy#allowsAll}).
+     */
+    boolean narrowed() default false;
+}
@@ -0,0 +1,171 @@
+package com.example.ehrviewer.policy;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.store.UserDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of care teams: which staff members are assigned to which patients, both ways round.
+ *
+ * Each member's patients and each patient's members are immutable sets, replaced on every change,
+ * so lookups take no lock and a set once read never changes under its reader. Changes are
+ * serialized and bump {@link #getVersion()}. A removed user leaves every care team, and takes
+ * their own with them. Initial assignments can be loaded from {@code ehr.policy.care-team-file},
+ * a CSV of {@code member_id,patient_id} lines.
+ */
+@Component
+public class CareTeamIndex implements UserDirectory.Listener {
+    private static final Logger log = LoggerFactory.getLogger(CareTeamIndex.class);
+
+    @Value("${ehr.policy.care-team-file:}")
+    private String careTeamFile;
+
+    @Autowired
+    private UserDirectory directory;
+
+    private final Map<String, Set<String>> patientsByMember = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> membersByPatient = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory.addListener(this);
+        if (careTeamFile.isEmpty()) {
+            return;
+        }
+        int assignments = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(careTeamFile), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("member_id")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException("Invalid care team line in " + careTeamFile + ": " + line);
+                }
+                if (assign(fields[0].trim(), fields[1].trim())) {
+                    assignments++;
+                }
+            }
+        }
+        log.info("Loaded {} care team assignments from {}", assignments, careTeamFile);
+    }
+
+    /**
+     * Add a staff member to a patient's care team. Returns false if they were already on it.
+     */
+    public synchronized boolean assign(String memberId, String patientId) {
+        Set<String> patients = patientsOf(memberId);
+        if (patients.contains(patientId)) {
+            return false;
+        }
+        patientsByMember.put(memberId, with(patients, patientId));
+        membersByPatient.put(patientId, with(membersOf(patientId), memberId));
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Take a staff member off a patient's care team. Returns false if they were not on it.
+     */
+    public synchronized boolean unassign(String memberId, String patientId) {
+        Set<String> patients = patientsOf(memberId);
+        if (!patients.contains(patientId)) {
+            return false;
+        }
+        replace(patientsByMember, memberId, without(patients, patientId));
+        replace(membersByPatient, patientId, without(membersOf(patientId), memberId));
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The patients whose care team includes a member; never null.
+     */
+    public Set<String> patientsOf(String memberId) {
+        return patientsByMember.getOrDefault(memberId, Collections.<String>emptySet());
+    }
+
+    /**
+     * The members of a patient's care team; never null.
+     */
+    public Set<String> membersOf(String patientId) {
+        return membersByPatient.getOrDefault(patientId, Collections.<String>emptySet());
+    }
+
+    /**
+     * Changes with every assignment and unassignment.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public void userAdded(User user) {
+    }
+
+    @Override
+    public synchronized void userRemoved(User user) {
+        String userId = user.getUserId();
+        Set<String> patients = patientsByMember.remove(userId);
+        Set<String> members = membersByPatient.remove(userId);
+        if (patients == null && members == null) {
+            return;
+        }
+        if (patients != null) {
+            for (String patientId : patients) {
+                replace(membersByPatient, patientId, without(membersOf(patientId), userId));
+            }
+        }
+        if (members != null) {
+            for (String memberId : members) {
+                replace(patientsByMember, memberId, without(patientsOf(memberId), userId));
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void userUpdated(User before, User after) {
+        // Same user, same care teams
+    }
+
+    private static Set<String> with(Set<String> set, String id) {
+        Set<String> copy = new HashSet<>(set);
+        copy.add(id);
+        return Collections.unmodifiableSet(copy);
+    }
+
+    private static Set<String> without(Set<String> set, String id) {
+        Set<String> copy = new HashSet<>(set);
+        copy.remove(id);
+        return Collections.unmodifiableSet(copy);
+    }
+
+    private static void replace(Map<String, Set<String>> index, String key, Set<String> set) {
+        if (set.isEmpty()) {
+            index.remove(key);
+        } else {
+            index.put(key, set);
+        }
+    }
+}
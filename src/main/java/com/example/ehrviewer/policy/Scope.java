@@ -0,0 +1,10 @@
+package com.example.ehrviewer.policy;
+
+/**
+ * Which users a grant of an {@link Action} covers, relative to the user granted it.
+ */
+public enum Scope {
+    SELF,      // the user's own record
+    CARE_TEAM, // patients whose care team includes the user
+    ALL        // every user, and the directory as a whole
+}
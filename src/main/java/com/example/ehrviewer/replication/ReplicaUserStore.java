@@ -0,0 +1,376 @@
+package com.example.ehrviewer.replication;
+
+import com.example.ehrviewer.feed.ChangeFeed;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.store.UserCodec;
+import com.example.ehrviewer.store.UserDirectory;
+import com.example.ehrviewer.store.UserStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A replica's store: its users are a copy of the primary's, kept current over the protocol in
+ * {@link ReplicationProtocol} by a receiver thread, and it rejects every change of its own.
+ *
+ * {@link #open} returns once the first snapshot from the primary has been loaded. After a lost
+ * connection the receiver reconnects and resumes after the last sequence it applied, or loads a
+ * new snapshot over the directory if the primary cannot resume from there. Changes are published
+ * to the change feed as they are applied, except for the first snapshot, which is this node's
+ * startup load; a later snapshot publishes only the users it changes.
+ *
+ * The primary only ships changes that are valid in its own order, but changes to different users
+ * may arrive in another order than they were made in, e.g. a user added with the username of a
+ * user whose removal comes later. Such a username is taken from its current holder, whose own
+ * change is then still to come.
+ */
+class ReplicaUserStore implements UserStore {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaUserStore.class);
+
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final byte[] secret;
+    private final int timeoutMillis;
+    private final ChangeFeed changeFeed;
+
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Object positionLock = new Object();
+    private UserDirectory directory;
+    private Thread receiver;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    // Written by the receiver only
+    private volatile boolean connected;
+    private volatile long epoch;
+    private volatile long applied;
+    private volatile long primarySequence;
+    // The primary's time of the newest state applied: of the last change, or of a heartbeat with nothing newer
+    private volatile long appliedAsOf;
+
+    ReplicaUserStore(String host, int port, byte[] secret, int timeoutMillis, ChangeFeed changeFeed) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        this.timeoutMillis = timeoutMillis;
+        this.changeFeed = changeFeed;
+    }
+
+    @Override
+    public boolean open(UserDirectory directory) throws IOException {
+        this.directory = directory;
+        receiver = new Thread(this::receive, "replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        log.info("Waiting for a snapshot from the primary at {}:{}", host, port);
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the primary");
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void logAdd(User user) throws IOException {
+        throw readOnly();
+    }
+
+    @Override
+    public void logAddAll(List<User> users) throws IOException {
+        throw readOnly();
+    }
+
+    @Override
+    public void logUpdate(User user) throws IOException {
+        throw readOnly();
+    }
+
+    @Override
+    public void logRemove(String userId) throws IOException {
+        throw readOnly();
+    }
+
+    private IOException readOnly() {
+        return new IOException("Read-only replica of " + host + ":" + port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+        if (receiver != null) {
+            receiver.interrupt();
+        }
+    }
+
+    boolean isConnected() { return connected; }
+    long getEpoch() { return epoch; }
+    long getApplied() { return applied; }
+
+    /**
+     * Changes known to be on the primary but not applied here yet.
+     */
+    long lagRecords() {
+        return Math.max(0, primarySequence - applied);
+    }
+
+    /**
+     * How long ago the primary was in the state this replica has applied, 0 before the first snapshot.
+     */
+    long lagMillis() {
+        long asOf = appliedAsOf;
+        return asOf == 0 ? 0 : Math.max(0, System.currentTimeMillis() - asOf);
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} until the changes up to {@code sequence} of the primary epoch
+     * {@code epoch} have been applied. Returns whether they have.
+     */
+    boolean await(long epoch, long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (positionLock) {
+            long remaining = timeoutMillis;
+            while ((this.epoch != epoch || applied < sequence) && remaining > 0) {
+                positionLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return this.epoch == epoch && applied >= sequence;
+        }
+    }
+
+    private void receive() {
+        while (!closed) {
+            try (Socket current = new Socket()) {
+                socket = current;
+                current.connect(new InetSocketAddress(host, port), timeoutMillis);
+                current.setTcpNoDelay(true);
+                current.setSoTimeout(timeoutMillis);
+                follow(current);
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Lost the primary at {}:{}: {}; reconnecting", host, port, e.getMessage());
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket current) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+        out.writeInt(ReplicationProtocol.MAGIC);
+        out.writeByte(ReplicationProtocol.VERSION);
+        byte[] nonce = ReplicationProtocol.nonce();
+        out.write(nonce);
+        out.flush();
+        byte[] primaryNonce = new byte[ReplicationProtocol.NONCE_BYTES];
+        byte[] primaryProof = new byte[ReplicationProtocol.PROOF_BYTES];
+        in.readFully(primaryNonce);
+        in.readFully(primaryProof);
+        if (!MessageDigest.isEqual(primaryProof,
+                ReplicationProtocol.proof(secret, ReplicationProtocol.PRIMARY_PROOF, nonce, primaryNonce))) {
+            throw new IOException("not the primary, or a different ehr.replication.secret");
+        }
+        out.write(ReplicationProtocol.proof(secret, ReplicationProtocol.REPLICA_PROOF, primaryNonce, nonce));
+        out.writeLong(epoch);
+        out.writeLong(applied);
+        out.flush();
+        connected = true;
+        while (!closed) {
+            byte frame = in.readByte();
+            switch (frame) {
+                case ReplicationProtocol.RESUME: {
+                    long resumedEpoch = in.readLong();
+                    long sequence = in.readLong();
+                    if (resumedEpoch != epoch || sequence != applied) {
+                        throw new IOException("Primary resumed from an unexpected position");
+                    }
+                    log.info("Resumed replication from {}:{} after sequence {}", host, port, sequence);
+                    break;
+                }
+                case ReplicationProtocol.SNAPSHOT_BEGIN:
+                    loadSnapshot(in);
+                    break;
+                case ReplicationProtocol.PUT: {
+                    long sequence = in.readLong();
+                    long timestamp = in.readLong();
+                    put(UserCodec.decode(ByteBuffer.wrap(readPayload(in))), true);
+                    advance(sequence, timestamp);
+                    break;
+                }
+                case ReplicationProtocol.REMOVE: {
+                    long sequence = in.readLong();
+                    long timestamp = in.readLong();
+                    remove(new String(readPayload(in), StandardCharsets.UTF_8), true);
+                    advance(sequence, timestamp);
+                    break;
+                }
+                case ReplicationProtocol.HEARTBEAT: {
+                    long sequence = in.readLong();
+                    long timestamp = in.readLong();
+                    primarySequence = sequence;
+                    if (applied >= sequence) {
+                        appliedAsOf = timestamp;
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unexpected frame " + frame);
+            }
+            // Acknowledge each batch once it is applied, and wake the readers waiting for it
+            if (in.available() == 0) {
+                out.writeByte(ReplicationProtocol.ACK);
+                out.writeLong(applied);
+                out.flush();
+                synchronized (positionLock) {
+                    positionLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void loadSnapshot(DataInputStream in) throws IOException {
+        long start = System.nanoTime();
+        long snapshotEpoch = in.readLong();
+        long sequence = in.readLong();
+        boolean first = loaded.getCount() > 0;
+        Set<String> received = new HashSet<>();
+        int changed = 0;
+        byte frame;
+        while ((frame = in.readByte()) == ReplicationProtocol.SNAPSHOT_USER) {
+            byte[] encoded = readPayload(in);
+            User user = UserCodec.decode(ByteBuffer.wrap(encoded));
+            received.add(user.getUserId());
+            User current = first ? null : directory.get(user.getUserId());
+            if (current == null || !Arrays.equals(UserCodec.encode(current), encoded)) {
+                put(user, !first);
+                changed++;
+            }
+        }
+        if (frame != ReplicationProtocol.SNAPSHOT_END) {
+            throw new IOException("Unexpected frame " + frame + " in snapshot");
+        }
+        long count = in.readLong();
+        if (count != received.size()) {
+            throw new IOException("Snapshot announced " + count + " users but held " + received.size());
+        }
+        List<String> gone = new ArrayList<>();
+        for (User user : directory.valuesInUserIdOrder()) {
+            if (!received.contains(user.getUserId())) {
+                gone.add(user.getUserId());
+            }
+        }
+        for (String userId : gone) {
+            remove(userId, !first);
+        }
+        synchronized (positionLock) {
+            epoch = snapshotEpoch;
+            applied = sequence;
+            primarySequence = sequence;
+            appliedAsOf = System.currentTimeMillis();
+        }
+        log.info("Loaded a snapshot of {} users at sequence {} from {}:{} ({} changed, {} removed) in {} ms",
+                count, sequence, host, port, changed, gone.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        loaded.countDown();
+    }
+
+    private void advance(long sequence, long timestamp) throws IOException {
+        if (sequence != applied + 1) {
+            throw new IOException("Expected sequence " + (applied + 1) + " but received " + sequence);
+        }
+        applied = sequence;
+        primarySequence = Math.max(primarySequence, sequence);
+        appliedAsOf = timestamp;
+    }
+
+    // Add the user or replace its record, taking its username from any other user that holds it
+    private void put(User user, boolean publish) {
+        String userId = user.getUserId();
+        while (true) {
+            long version = directory.getVersion(userId);
+            if (version == 0) {
+                UserDirectory.AddResult result = directory.add(user);
+                if (result == UserDirectory.AddResult.ADDED) {
+                    if (publish) {
+                        changeFeed.userAdded(user);
+                    }
+                    return;
+                }
+                if (result == UserDirectory.AddResult.DUPLICATE_USERNAME) {
+                    releaseUsername(user, publish);
+                }
+            } else {
+                UserDirectory.UpdateResult result = directory.update(user, version);
+                if (result == UserDirectory.UpdateResult.UPDATED) {
+                    if (publish) {
+                        changeFeed.userUpdated(user);
+                    }
+                    return;
+                }
+                if (result == UserDirectory.UpdateResult.DUPLICATE_USERNAME) {
+                    releaseUsername(user, publish);
+                }
+            }
+        }
+    }
+
+    private void releaseUsername(User user, boolean publish) {
+        User holder = directory.findByUsername(user.getUsername());
+        if (holder != null && !holder.getUserId().equals(user.getUserId())) {
+            remove(holder.getUserId(), publish);
+        }
+    }
+
+    private void remove(String userId, boolean publish) {
+        if (directory.remove(userId) != null && publish) {
+            changeFeed.userRemoved(userId);
+        }
+    }
+
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative payload length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.ehrviewer.replication;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.store.UserCodec;
+import com.example.ehrviewer.store.UserDirectory;
+import com.example.ehrviewer.store.UserStore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The primary's store: records each change in the local store, then appends it to the
+ * {@link ReplicationLog} for the replicas. The replication server starts once the local store has
+ * loaded the directory, so no replica takes a snapshot of a partial one.
+ *
+ * UserService logs each change after it is visible in the directory and under the user's write
+ * lock, so the log has every user's changes in order, and a directory read after the log reached
+ * a sequence holds every change up to it.
+ */
+class ReplicatingUserStore implements UserStore {
+    private final UserStore local;
+    private final ReplicationLog changes;
+    private final ReplicationServer server;
+
+    ReplicatingUserStore(UserStore local, ReplicationLog changes, ReplicationServer server) {
+        this.local = local;
+        this.changes = changes;
+        this.server = server;
+    }
+
+    @Override
+    public boolean open(UserDirectory directory) throws IOException {
+        boolean found = local.open(directory);
+        server.start(directory);
+        return found;
+    }
+
+    @Override
+    public void logAdd(User user) throws IOException {
+        local.logAdd(user);
+        changes.append(ReplicationProtocol.PUT, UserCodec.encode(user));
+    }
+
+    @Override
+    public void logAddAll(List<User> users) throws IOException {
+        local.logAddAll(users);
+        byte[][] encoded = new byte[users.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = UserCodec.encode(users.get(i));
+        }
+        changes.append(ReplicationProtocol.PUT, encoded);
+    }
+
+    @Override
+    public void logUpdate(User user) throws IOException {
+        local.logUpdate(user);
+        changes.append(ReplicationProtocol.PUT, UserCodec.encode(user));
+    }
+
+    @Override
+    public void logRemove(String userId) throws IOException {
+        local.logRemove(userId);
+        changes.append(ReplicationProtocol.REMOVE, userId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        local.close();
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.ehrviewer.replication;
+
+import com.example.ehrviewer.feed.ChangeFeed;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.ReplicationStatus;
+import com.example.ehrviewer.session.SessionManager;
+import com.example.ehrviewer.store.UserStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Primary/replica replication of the users, as set by {@code ehr.replication.role}.
+ *
+ * A primary ships every change it logs to its store to the replicas connected to
+ * {@code ehr.replication.port}. A replica loads the primary's users from {@code ehr.replication.primary}
+ * instead of a store of its own, applies the primary's changes as they come, and sends writes to
+ * {@code ehr.replication.primary-url} (see {@link ReplicationFilter}).
+ *
+ * Both ends prove they hold {@code ehr.replication.secret} before any user is sent, but the
+ * stream itself is not encrypted; it is meant for a private network or a TLS tunnel.
+ *
+ * Positions name a change on the primary as {@code <epoch>-<sequence>}, in hex, so a replica can tell
+ * whether it has applied it.
+ */
+@Component
+public class Replication {
+    private static final Logger log = LoggerFactory.getLogger(Replication.class);
+
+    @Value("${ehr.replication.role:NONE}")
+    private ReplicationRole role;
+
+    @Value("${ehr.replication.bind-address:127.0.0.1}")
+    private String bindAddress;
+
+    @Value("${ehr.replication.secret:}")
+    private String secret;
+
+    @Value("${ehr.replication.port:9091}")
+    private int port;
+
+    @Value("${ehr.replication.log-capacity:65536}")
+    private int logCapacity;
+
+    @Value("${ehr.replication.heartbeat-ms:500}")
+    private long heartbeatMillis;
+
+    @Value("${ehr.replication.primary:}")
+    private String primary;
+
+    @Value("${ehr.replication.primary-url:}")
+    private String primaryUrl;
+
+    @Value("${ehr.replication.timeout-ms:5000}")
+    private int timeoutMillis;
+
+    @Value("${ehr.replication.read-your-writes-timeout-ms:1000}")
+    private long readYourWritesTimeoutMillis;
+
+    @Value("${ehr.session.mode:REGISTRY}")
+    private SessionManager.Mode sessionMode;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private byte[] key;
+    private ReplicationLog changes;
+    private ReplicationServer server;
+    private ReplicaUserStore replica;
+
+    @PostConstruct
+    public void init() {
+        if (role != ReplicationRole.NONE && sessionMode != SessionManager.Mode.TOKEN) {
+            log.warn("Sessions are kept per node with ehr.session.mode={}; a user logged in on one node "
+                    + "is not logged in on the others, set ehr.session.mode=TOKEN", sessionMode);
+        }
+        if (role != ReplicationRole.NONE) {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+            if (key.length < ReplicationProtocol.MIN_SECRET_BYTES) {
+                throw new IllegalArgumentException("ehr.replication.secret must be at least "
+                        + ReplicationProtocol.MIN_SECRET_BYTES + " bytes, the same on the primary and its replicas");
+            }
+        }
+        if (role == ReplicationRole.REPLICA) {
+            if (primary.lastIndexOf(':') <= 0 || primaryUrl.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "A replica needs ehr.replication.primary (host:port) and ehr.replication.primary-url");
+            }
+            if (timeoutMillis <= heartbeatMillis) {
+                throw new IllegalArgumentException("ehr.replication.timeout-ms must exceed the primary's heartbeat");
+            }
+            while (primaryUrl.endsWith("/")) {
+                primaryUrl = primaryUrl.substring(0, primaryUrl.length() - 1);
+            }
+        }
+        if (role == ReplicationRole.PRIMARY) {
+            changes = new ReplicationLog(ThreadLocalRandom.current().nextLong(), logCapacity);
+            server = new ReplicationServer(changes, key, bindAddress, port, heartbeatMillis);
+            metrics.registerGauge("ehr_replication_sequence", null, "Sequence of the primary's latest change",
+                    changes::getSequence);
+            metrics.registerGauge("ehr_replication_replicas", null, "Connected replicas",
+                    () -> server.replicas().size());
+            metrics.registerGauge("ehr_replication_max_lag_records", null,
+                    "Changes not yet acknowledged by the furthest behind replica", () -> server.replicas().stream()
+                            .mapToLong(ReplicationServer.ReplicaState::getLag).max().orElse(0));
+        }
+    }
+
+    /**
+     * The store for this node's role, given the one configured by {@code ehr.store.type}: as is
+     * without replication, recording changes for the replicas on a primary, and replaced by the
+     * primary's users on a replica.
+     */
+    public UserStore store(UserStore local) {
+        switch (role) {
+            case PRIMARY:
+                return new ReplicatingUserStore(local, changes, server);
+            case REPLICA:
+                int colon = primary.lastIndexOf(':');
+                replica = new ReplicaUserStore(primary.substring(0, colon),
+                        Integer.parseInt(primary.substring(colon + 1)), key, timeoutMillis, changeFeed);
+                metrics.registerGauge("ehr_replication_sequence", null, "Sequence of the last change applied from the primary",
+                        replica::getApplied);
+                metrics.registerGauge("ehr_replication_connected", null, "1 while connected to the primary",
+                        () -> replica.isConnected() ? 1 : 0);
+                metrics.registerGauge("ehr_replication_lag_records", null,
+                        "Changes known to be on the primary but not yet applied", replica::lagRecords);
+                metrics.registerGauge("ehr_replication_lag_ms", null,
+                        "How long ago the primary was in the state applied here", replica::lagMillis);
+                return replica;
+            default:
+                return local;
+        }
+    }
+
+    public ReplicationRole getRole() {
+        return role;
+    }
+
+    /**
+     * Where a replica sends writes, and reads it cannot yet answer, e.g. {@code http://primary:8081}.
+     */
+    public String getPrimaryUrl() {
+        return primaryUrl;
+    }
+
+    /**
+     * On a primary, the position of its latest change; null otherwise.
+     */
+    public String position() {
+        return changes == null ? null : Long.toHexString(changes.getEpoch()) + "-" + Long.toHexString(changes.getSequence());
+    }
+
+    /**
+     * Whether this node has every change up to {@code position}, waiting up to
+     * {@code ehr.replication.read-your-writes-timeout-ms} on a replica that is catching up. A position
+     * of another primary epoch, or that cannot be parsed, is never reached.
+     */
+    public boolean reached(String position) throws InterruptedException {
+        int dash = position.indexOf('-');
+        long epoch;
+        long sequence;
+        try {
+            epoch = Long.parseUnsignedLong(position.substring(0, dash), 16);
+            sequence = Long.parseUnsignedLong(position.substring(dash + 1), 16);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        switch (role) {
+            case PRIMARY:
+                return epoch == changes.getEpoch() && sequence <= changes.getSequence();
+            case REPLICA:
+                return epoch == replica.getEpoch()
+                        && replica.await(epoch, sequence, readYourWritesTimeoutMillis);
+            default:
+                return true;
+        }
+    }
+
+    public ReplicationStatus status() {
+        switch (role) {
+            case PRIMARY: {
+                ReplicationStatus status = new ReplicationStatus(role.name(), Long.toHexString(changes.getEpoch()),
+                        changes.getSequence(), true, 0, 0);
+                for (ReplicationServer.ReplicaState state : server.replicas()) {
+                    status.addReplica(state.getAddress(), state.getAckedSequence(), state.getLag());
+                }
+                return status;
+            }
+            case REPLICA:
+                return new ReplicationStatus(role.name(), Long.toHexString(replica.getEpoch()), replica.getApplied(),
+                        replica.isConnected(), replica.lagRecords(), replica.lagMillis());
+            default:
+                return new ReplicationStatus(role.name(), null, 0, false, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.ehrviewer.replication;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Duration;
+
+/**
+ * Routes requests between a primary and its replicas behind one load balancer.
+ *
+ * A replica answers writes, other than logging in and out, with a 307 to the same URL on the
+ * primary, which repeats the request there. It does the same for care team reads, as care teams
+ * are kept on the primary only. A primary sets the {@value #COOKIE} cookie on the response
+ * to every write to the position of its latest change. A replica that gets a read with that cookie
+ * waits until it has applied the position, so the writer sees its own writes, or sends the read to the
+ * primary with a 307 if it does not catch up within {@code ehr.replication.read-your-writes-timeout-ms}.
+ * A primary clears a position of an earlier epoch, which no replica can reach.
+ *
+ * Sessions must be readable on every node, i.e. {@code ehr.session.mode=TOKEN} with a shared secret.
+ */
+@Component
+public class ReplicationFilter extends OncePerRequestFilter {
+    public static final String COOKIE = "EHR_REPLICATION_POSITION";
+
+    @Autowired
+    private Replication replication;
+
+    @Value("${ehr.session.cookie-secure:false}")
+    private boolean cookieSecure;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return replication.getRole() == ReplicationRole.NONE || path.equals("/api/users/health")
+                || path.equals("/api/users/ready") || path.equals("/api/users/replication") || path.equals("/metrics");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String method = request.getMethod();
+        boolean write = !method.equals("GET") && !method.equals("HEAD") && !method.equals("OPTIONS");
+        String position = position(request);
+        if (replication.getRole() == ReplicationRole.PRIMARY) {
+            if (!write && position != null && !reached(position)) {
+                setCookie(response, "", Duration.ZERO);
+            }
+            if (write) {
+                PositionResponse positioned = new PositionResponse(response);
+                chain.doFilter(request, positioned);
+                if (!request.isAsyncStarted()) {
+                    positioned.addPosition();
+                }
+                return;
+            }
+            chain.doFilter(request, response);
+            return;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        boolean session = path.equals("/api/users/login") || path.equals("/api/users/logout")
+                || path.equals("/ui/login") || path.equals("/ui/logout");
+        if ((write && !session) || path.contains("/care-team")
+                || (!write && position != null && !reached(position))) {
+            String query = request.getQueryString();
+            response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+            response.setHeader(HttpHeaders.LOCATION,
+                    replication.getPrimaryUrl() + request.getRequestURI() + (query == null ? "" : "?" + query));
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    private boolean reached(String position) throws IOException {
+        try {
+            return replication.reached(position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for replication", e);
+        }
+    }
+
+    private static String position(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void setCookie(HttpServletResponse response, String value, Duration maxAge) {
+        ResponseCookie.ResponseCookieBuilder cookie = ResponseCookie.from(COOKIE, value)
+                .path("/")
+                .httpOnly(true)
+                .secure(cookieSecure)
+                .sameSite("Lax");
+        if (maxAge != null) {
+            cookie.maxAge(maxAge);
+        }
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.build().toString());
+    }
+
+    /**
+     * Adds the position cookie when the response status or body is first set, which is after the write,
+     * also when the response is completed on another thread.
+     */
+    private final class PositionResponse extends HttpServletResponseWrapper {
+        private boolean added;
+
+        PositionResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        void addPosition() {
+            if (!added && !isCommitted()) {
+                added = true;
+                setCookie((HttpServletResponse) getResponse(), replication.position(), null);
+            }
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            addPosition();
+            super.setStatus(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            addPosition();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            addPosition();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            addPosition();
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            addPosition();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            addPosition();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            addPosition();
+            super.flushBuffer();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.ehrviewer.replication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The primary's recent changes, numbered by a sequence that increases by one per change, for the
+ * replication senders to ship.
+ *
+ * As in the change feed, the last {@code capacity} changes are kept in a ring and a reader can
+ * resume from any sequence still in it. Appending is serialized; reading takes no lock.
+ */
+final class ReplicationLog {
+
+    /**
+     * A change: a {@link ReplicationProtocol#PUT} with the encoded user, or a
+     * {@link ReplicationProtocol#REMOVE} with the UTF-8 userId.
+     */
+    static final class Entry {
+        final long sequence;
+        final long timestamp;
+        final byte op;
+        final byte[] payload;
+
+        Entry(long sequence, long timestamp, byte op, byte[] payload) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.op = op;
+            this.payload = payload;
+        }
+    }
+
+    private final long epoch;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    // Last appended sequence; written after its entry, so readers never see a sequence before its entry
+    private volatile long sequence;
+
+    ReplicationLog(long epoch, int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("ehr.replication.log-capacity must be a power of two: " + capacity);
+        }
+        this.epoch = epoch;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The sequence of the last appended change, 0 before the first.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Append changes in order and wake the senders waiting for them.
+     */
+    synchronized void append(byte op, byte[]... payloads) {
+        long now = System.currentTimeMillis();
+        long next = sequence;
+        for (byte[] payload : payloads) {
+            next++;
+            ring.set((int) next & mask, new Entry(next, now, op, payload));
+        }
+        sequence = next;
+        notifyAll();
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} for a change after sequence {@code after}. Returns whether there is one.
+     */
+    synchronized boolean await(long after, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (sequence <= after && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return sequence > after;
+    }
+
+    /**
+     * Up to {@code max} changes appended after sequence {@code after}, in order. Returns null if
+     * some of them have already been dropped from the ring, so the replica needs a snapshot.
+     */
+    List<Entry> since(long after, int max) {
+        long last = Math.min(sequence, after + max);
+        if (last <= after) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>((int) (last - after));
+        for (long next = after + 1; next <= last; next++) {
+            Entry entry = ring.get((int) next & mask);
+            // A slot holds an older change until first written, and a newer one once the ring wraps
+            if (entry == null || entry.sequence != next) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
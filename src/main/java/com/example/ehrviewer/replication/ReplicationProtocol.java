@@ -0,0 +1,83 @@
+package com.example.ehrviewer.replication;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Frames of the replication protocol, spoken over one TCP connection per replica. Numbers are
+ * big-endian, and users are encoded as by {@link com.example.ehrviewer.store.UserCodec}.
+ *
+ * <ul>
+ *   <li>The replica opens with {@code [int magic][byte version][nonce]}. The primary answers
+ *       {@code [nonce][proof]}, its proof over both nonces, and the replica sends its own
+ *       {@code [proof]} back, so each side knows the other holds {@code ehr.replication.secret}
+ *       before anything else is sent. A proof is HMAC-SHA256 under the secret of the sender's
+ *       role byte and the two nonces, its peer's first.</li>
+ *   <li>The replica then sends {@code [long epoch][long sequence]}: the primary epoch and the last
+ *       sequence it has applied, or 0 and 0 if it has none.</li>
+ *   <li>If it can, the primary answers {@code [RESUME][long epoch][long sequence]} and streams the
+ *       changes after that sequence. Otherwise it sends {@code [SNAPSHOT_BEGIN][long epoch][long sequence]},
+ *       one {@code [SNAPSHOT_USER][int length][user]} per user, {@code [SNAPSHOT_END][long count]},
+ *       and then streams the changes after the snapshot's sequence. A replica too far behind is sent
+ *       another snapshot in the middle of the stream.</li>
+ *   <li>Changes are {@code [PUT][long sequence][long timestamp][int length][user]} and
+ *       {@code [REMOVE][long sequence][long timestamp][int length][userId]}; the timestamp is when the
+ *       primary logged the change, in epoch milliseconds.</li>
+ *   <li>An idle primary sends {@code [HEARTBEAT][long sequence][long timestamp]} with its latest sequence.</li>
+ *   <li>The replica answers batches and heartbeats with {@code [ACK][long sequence]}, the last sequence applied.</li>
+ * </ul>
+ *
+ * The epoch is drawn at random when the primary starts, as sequences start over with it. Only the
+ * handshake is authenticated: the frames after it are neither encrypted nor signed.
+ */
+final class ReplicationProtocol {
+    static final int MAGIC = 0x45485252; // "EHRR"
+    static final byte VERSION = 2;
+
+    static final int NONCE_BYTES = 32;
+    static final int PROOF_BYTES = 32;
+    // Role bytes in proofs, so a proof cannot be sent back to the side that made it
+    static final byte PRIMARY_PROOF = 'P';
+    static final byte REPLICA_PROOF = 'R';
+    // The shortest accepted ehr.replication.secret
+    static final int MIN_SECRET_BYTES = 32;
+
+    static final byte RESUME = 1;
+    static final byte SNAPSHOT_BEGIN = 2;
+    static final byte SNAPSHOT_USER = 3;
+    static final byte SNAPSHOT_END = 4;
+    static final byte PUT = 5;
+    static final byte REMOVE = 6;
+    static final byte HEARTBEAT = 7;
+    static final byte ACK = 8;
+
+    // The size of an ACK frame
+    static final int ACK_BYTES = 9;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ReplicationProtocol() {}
+
+    static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * The proof that the side playing {@code role} holds the secret, given its peer's nonce and its own.
+     */
+    static byte[] proof(byte[] secret, byte role, byte[] peerNonce, byte[] ownNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(role);
+            mac.update(peerNonce);
+            return mac.doFinal(ownNonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.ehrviewer.replication;
+
+/**
+ * What this node is in a replicated deployment ({@code ehr.replication.role}).
+ */
+public enum ReplicationRole {
+    NONE,      // a single node
+    PRIMARY,   // takes every write and ships it to the replicas
+    REPLICA    // serves reads from a copy of the primary's users and sends writes to the primary
+}
@@ -0,0 +1,277 @@
+package com.example.ehrviewer.replication;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.store.UserCodec;
+import com.example.ehrviewer.store.UserDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The primary's end of replication: accepts replica connections on {@code ehr.replication.port}
+ * and ships the {@link ReplicationLog} to each on its own thread, as described in
+ * {@link ReplicationProtocol}.
+ *
+ * A replica that asks to resume from a sequence still in the log gets the changes after it;
+ * any other replica, and one that falls so far behind that the log has moved past it, gets a
+ * snapshot first. A snapshot is the directory read after noting the log's sequence, and the
+ * changes after that sequence are replayed over it, so it need not be taken at one instant.
+ * A connection that does not prove it holds the shared secret is closed before anything is sent
+ * but the primary's own proof.
+ */
+final class ReplicationServer {
+    private static final Logger log = LoggerFactory.getLogger(ReplicationServer.class);
+
+    private static final int BATCH = 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * A connected replica, as last heard from.
+     */
+    static final class ReplicaState {
+        private final String address;
+        private final long ackedSequence;
+        private final long lag;
+
+        ReplicaState(String address, long ackedSequence, long lag) {
+            this.address = address;
+            this.ackedSequence = ackedSequence;
+            this.lag = lag;
+        }
+
+        String getAddress() { return address; }
+        long getAckedSequence() { return ackedSequence; }
+        long getLag() { return lag; }
+    }
+
+    private final ReplicationLog changes;
+    private final byte[] secret;
+    private final String bindAddress;
+    private final int port;
+    private final long heartbeatMillis;
+
+    private final Set<Sender> senders = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger senderIds = new AtomicInteger();
+    private UserDirectory directory;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    ReplicationServer(ReplicationLog changes, byte[] secret, String bindAddress, int port, long heartbeatMillis) {
+        this.changes = changes;
+        this.secret = secret;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Start accepting replicas of the given, fully loaded directory.
+     */
+    void start(UserDirectory directory) throws IOException {
+        this.directory = directory;
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(bindAddress, port));
+        serverSocket = socket;
+        log.info("Accepting replicas on {} (epoch {})", socket.getLocalSocketAddress(),
+                Long.toHexString(changes.getEpoch()));
+        Thread acceptor = new Thread(this::accept, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * The connected replicas.
+     */
+    List<ReplicaState> replicas() {
+        long sequence = changes.getSequence();
+        List<ReplicaState> replicas = new ArrayList<>(senders.size());
+        for (Sender sender : senders) {
+            replicas.add(new ReplicaState(sender.address, sender.acked, sequence - sender.acked));
+        }
+        return replicas;
+    }
+
+    void close() {
+        closed = true;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the replication socket", e);
+            }
+        }
+        for (Sender sender : senders) {
+            sender.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Sender sender = new Sender(socket);
+                senders.add(sender);
+                Thread thread = new Thread(sender, "replication-sender-" + senderIds.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Failed to accept a replica", e);
+                }
+            }
+        }
+    }
+
+    private final class Sender implements Runnable {
+        private final Socket socket;
+        private final String address;
+        private volatile long acked;
+
+        Sender(Socket socket) {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                if (in.readInt() != ReplicationProtocol.MAGIC || in.readByte() != ReplicationProtocol.VERSION) {
+                    log.warn("Refused replication connection from {}: not a replica of this version", address);
+                    return;
+                }
+                if (!authenticate(in, out)) {
+                    log.warn("Refused replication connection from {}: wrong ehr.replication.secret", address);
+                    return;
+                }
+                long epoch = in.readLong();
+                long after = in.readLong();
+                long position;
+                if (epoch == changes.getEpoch() && after <= changes.getSequence() && changes.since(after, 1) != null) {
+                    out.writeByte(ReplicationProtocol.RESUME);
+                    out.writeLong(epoch);
+                    out.writeLong(after);
+                    acked = after;
+                    position = after;
+                    log.info("Replica {} resumed after sequence {}", address, after);
+                } else {
+                    position = sendSnapshot(out);
+                }
+                out.flush();
+                socket.setSoTimeout(0);
+                while (!closed) {
+                    readAcks(in);
+                    List<ReplicationLog.Entry> entries = changes.since(position, BATCH);
+                    if (entries == null) {
+                        log.info("Replica {} fell behind the replication log at sequence {}", address, position);
+                        position = sendSnapshot(out);
+                        continue;
+                    }
+                    if (entries.isEmpty()) {
+                        if (!changes.await(position, heartbeatMillis)) {
+                            out.writeByte(ReplicationProtocol.HEARTBEAT);
+                            out.writeLong(position);
+                            out.writeLong(System.currentTimeMillis());
+                            out.flush();
+                        }
+                        continue;
+                    }
+                    for (ReplicationLog.Entry entry : entries) {
+                        out.writeByte(entry.op);
+                        out.writeLong(entry.sequence);
+                        out.writeLong(entry.timestamp);
+                        out.writeInt(entry.payload.length);
+                        out.write(entry.payload);
+                    }
+                    out.flush();
+                    position = entries.get(entries.size() - 1).sequence;
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Replica {} disconnected: {}", address, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                senders.remove(this);
+                close();
+            }
+        }
+
+        // Prove to the replica that this is its primary, then check its proof in turn
+        private boolean authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+            byte[] replicaNonce = new byte[ReplicationProtocol.NONCE_BYTES];
+            in.readFully(replicaNonce);
+            byte[] nonce = ReplicationProtocol.nonce();
+            out.write(nonce);
+            out.write(ReplicationProtocol.proof(secret, ReplicationProtocol.PRIMARY_PROOF, replicaNonce, nonce));
+            out.flush();
+            byte[] proof = new byte[ReplicationProtocol.PROOF_BYTES];
+            in.readFully(proof);
+            return MessageDigest.isEqual(proof,
+                    ReplicationProtocol.proof(secret, ReplicationProtocol.REPLICA_PROOF, nonce, replicaNonce));
+        }
+
+        // Every user in the directory, followed by the changes after the sequence it returns
+        private long sendSnapshot(DataOutputStream out) throws IOException {
+            long start = System.nanoTime();
+            // Noted first: every change up to it is already in the directory
+            long sequence = changes.getSequence();
+            out.writeByte(ReplicationProtocol.SNAPSHOT_BEGIN);
+            out.writeLong(changes.getEpoch());
+            out.writeLong(sequence);
+            long count = 0;
+            for (User user : directory.valuesInUserIdOrder()) {
+                byte[] encoded = UserCodec.encode(user);
+                out.writeByte(ReplicationProtocol.SNAPSHOT_USER);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+                count++;
+            }
+            out.writeByte(ReplicationProtocol.SNAPSHOT_END);
+            out.writeLong(count);
+            out.flush();
+            log.info("Sent a snapshot of {} users at sequence {} to replica {} in {} ms", count, sequence, address,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return sequence;
+        }
+
+        private void readAcks(DataInputStream in) throws IOException {
+            while (in.available() >= ReplicationProtocol.ACK_BYTES) {
+                byte frame = in.readByte();
+                if (frame != ReplicationProtocol.ACK) {
+                    throw new IOException("Unexpected frame " + frame);
+                }
+                acked = in.readLong();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close replica connection {}", address, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.ehrviewer.service;
+
+/**
+ * A change the requester's user type is not granted, refused by the service whichever endpoint asked
+ * for it. The refusal has already been audited.
+ */
+public class AccessDeniedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public AccessDeniedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.ehrviewer.service;
+
+/**
+ * An update that lost to a concurrent change: the user is no longer at the version the caller
+ * expected, or the requested username is taken.
+ */
+public class UserConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String currentTag;
+
+    public UserConflictException(String message, String currentTag) {
+        super(message);
+        this.currentTag = currentTag;
+    }
+
+    /**
+     * Entity tag of the user's current record, to re-read and retry against; null if the user is gone.
+     */
+    public String getCurrentTag() {
+        return currentTag;
+    }
+}
@@ -1,194 +1,1252 @@
 package com.example.ehrviewer.service;
 
-import com.enterprise.audit.logging.config.AuditConfiguration;
 import com.enterprise.audit.logging.exception.AuditLoggingException;
 import com.enterprise.audit.logging.model.AuditEvent;
 import com.enterprise.audit.logging.model.AuditResult;
-import com.enterprise.audit.logging.service.FileSystemAuditLogger;
+import com.example.ehrviewer.audit.AuditContext;
+import com.example.ehrviewer.audit.AuditDurability;
+import com.example.ehrviewer.audit.AuditLogIndex;
+import com.example.ehrviewer.audit.AuditPipeline;
+import com.example.ehrviewer.audit.AuditSegments;
+import com.example.ehrviewer.audit.AuditTemplate;
+import com.example.ehrviewer.auth.CredentialService;
+import com.example.ehrviewer.auth.LoginThrottle;
+import com.example.ehrviewer.auth.LoginThrottledException;
+import com.example.ehrviewer.feed.ChangeFeed;
+import com.example.ehrviewer.linkage.DuplicateIndex;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.AuditPage;
+import com.example.ehrviewer.model.AuditQuery;
+import com.example.ehrviewer.model.DuplicateCandidate;
+import com.example.ehrviewer.model.DuplicateReport;
 import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserPage;
+import com.example.ehrviewer.model.UserPatch;
+import com.example.ehrviewer.model.UserQuery;
 import com.example.ehrviewer.model.UserRequest;
 import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.policy.AccessPolicy;
+import com.example.ehrviewer.policy.Action;
+import com.example.ehrviewer.policy.CareTeamIndex;
+import com.example.ehrviewer.session.SessionPrincipal;
+import com.example.ehrviewer.startup.StartupReadiness;
+import com.example.ehrviewer.store.CompactUser;
+import com.example.ehrviewer.store.UserDirectory;
+import com.example.ehrviewer.store.UserSearchIndex;
+import com.example.ehrviewer.store.UserStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Service layer for user management with audit logging in EHR.
  */
 @Service
 public class UserService {
-    private FileSystemAuditLogger auditLogger;
-    private final Map<String, User> users = new ConcurrentHashMap<>();
+    // Upper bound on users examined per page, so sparse filters cannot turn a page into a full scan
+    private static final int MAX_SCAN_PER_PAGE = 10_000;
+    private static final int WRITE_STRIPES = 64;
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final int MAX_DUPLICATE_CLUSTERS = 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(UserService.class);
+
+    // Audit events of the read paths, logged as records without building an AuditEvent
+    private static final AuditTemplate USER_VIEW = template("USER_VIEW", "VIEW", AuditResult.SUCCESS);
+    private static final AuditTemplate USER_VIEW_ALL = template("USER_VIEW_ALL", "VIEW_ALL", AuditResult.SUCCESS);
+    private static final AuditTemplate USER_VIEW_PAGE = template("USER_VIEW_PAGE", "VIEW_PAGE", AuditResult.SUCCESS);
+    private static final AuditTemplate USER_SEARCH = template("USER_SEARCH", "SEARCH", AuditResult.SUCCESS);
+    private static final AuditTemplate CARE_TEAM_VIEW = template("CARE_TEAM_VIEW", "VIEW", AuditResult.SUCCESS);
+    private static final AuditTemplate DUPLICATE_SCAN = template("USER_DUPLICATE_SCAN", "SCAN", AuditResult.SUCCESS);
+    private static final AuditTemplate USER_LOGIN = template("USER_LOGIN", "LOGIN", AuditResult.SUCCESS);
+    private static final AuditTemplate USER_LOGIN_FAILED = template("USER_LOGIN", "LOGIN", AuditResult.FAILURE);
+
+    private AuditPipeline auditLogger;
+
+    @Value("${ehr.audit.durability:FIRE_AND_FORGET}")
+    private AuditDurability auditDurability;
+
+    @Value("${ehr.audit.queue-capacity:8192}")
+    private int auditQueueCapacity;
+
+    @Value("${ehr.audit.batch-size:256}")
+    private int auditBatchSize;
+
+    @Value("${ehr.audit.offer-timeout-ms:1000}")
+    private long auditOfferTimeoutMs;
+
+    // Open the port while users load instead of after; requests get 503 until they have loaded
+    @Value("${ehr.startup.load-in-background:false}")
+    private boolean loadInBackground;
+
+    @Autowired
+    private UserDirectory directory;
+
+    @Autowired
+    private UserStore store;
+
+    @Autowired
+    private UserSearchIndex searchIndex;
+
+    @Autowired
+    private DuplicateIndex duplicates;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    @Autowired
+    private CredentialService credentials;
+
+    @Autowired
+    private LoginThrottle loginThrottle;
+
+    @Autowired
+    private ChangeFeed changeFeed;
+
+    @Autowired
+    private AuditSegments auditSegments;
+
+    @Autowired
+    private AuditLogIndex auditLogIndex;
+
+    @Autowired
+    private CareTeamIndex careTeams;
+
+    @Autowired
+    private AccessPolicy accessPolicy;
+
+    @Autowired
+    private StartupReadiness readiness;
+
+    // Distinguishes this process's entity tags from those handed out before a restart, when versions start over
+    private final String tagEpoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    // Templates for revalidations by event type, and for refusals by action
+    private final ConcurrentMap<String, AuditTemplate> revalidationTemplates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AuditTemplate> deniedTemplates = new ConcurrentHashMap<>();
+
+    private Thread loader;
+    private volatile boolean loadFailed;
+
+    // Serializes directory changes and their log records per userId, so the log replays in the same order
+    private final ReentrantLock[] writeLocks = new ReentrantLock[WRITE_STRIPES];
+
+    public UserService() {
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+    }
 
     @PostConstruct
-    public void init() throws AuditLoggingException {
+    public void init() throws AuditLoggingException, IOException {
         // Initialize audit logger
-        AuditConfiguration config = new AuditConfiguration();
-        config.setLogDirectory("./ehr-audit-logs");
-        config.setAutoCreateDirectory(true);
-        auditLogger = new FileSystemAuditLogger(config);
+        auditLogger = new AuditPipeline(auditSegments, auditDurability,
+                auditQueueCapacity, auditBatchSize, auditOfferTimeoutMs, metrics);
+        auditLogger.setBatchListener(auditLogIndex::requestRefresh);
+        loginThrottle.setSummaryListener(this::logThrottleSummary);
+        registerGauges();
 
-        // Initialize with some sample users
-        initializeSampleUsers();
+        if (loadInBackground) {
+            loader = new Thread(this::loadUsersInBackground, "user-store-load");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            loadUsers();
+        }
+    }
+
+    private void loadUsers() throws IOException {
+        long start = System.nanoTime();
+        // Restore persisted users, or start with some sample users
+        if (!store.open(directory)) {
+            initializeSampleUsers();
+        }
+        readiness.markReady(directory.size(), System.nanoTime() - start);
+    }
+
+    private void loadUsersInBackground() {
+        try {
+            loadUsers();
+        } catch (Exception e) {
+            // As a failed load in the foreground would, stop the application rather than serve without users
+            log.error("Failed to load users, shutting down", e);
+            loadFailed = true;
+            System.exit(1);
+        }
     }
 
     @PreDestroy
-    public void cleanup() throws AuditLoggingException {
+    public void cleanup() throws AuditLoggingException, IOException, InterruptedException {
+        // A store closed while it is still loading would snapshot a partial directory over the full one
+        if (loader != null && !loadFailed) {
+            loader.join();
+        }
+        // Flush the last throttle summary while the audit log is still open
+        loginThrottle.close();
+        store.close();
         if (auditLogger != null) {
             auditLogger.close();
         }
     }
 
+    private void registerGauges() {
+        metrics.registerGauge("ehr_users", "type=\"ALL\"", "Users in the directory by type", directory::size);
+        for (UserType type : UserType.values()) {
+            metrics.registerGauge("ehr_users", "type=\"" + type + "\"", "Users in the directory by type",
+                    () -> directory.countByType(type));
+        }
+        metrics.registerGauge("ehr_audit_queue_depth", null, "Audit events queued but not yet written",
+                auditLogger::pending);
+        metrics.registerGauge("ehr_credential_queue_depth", null, "Password verifications waiting for a worker",
+                credentials::pending);
+        metrics.registerGauge("ehr_ready", null, "1 once users have been loaded and indexed at startup",
+                () -> readiness.isReady() ? 1 : 0);
+    }
+
     private void initializeSampleUsers() {
-        users.put("PATIENT-001", new User("PATIENT-001", "John Doe", "1980-01-01", "123 Main St", 44, UserType.PATIENT, "M", "555-1234", "johndoe", "password1"));
-        users.put("DOCTOR-001", new User("DOCTOR-001", "Dr. Alice Smith", "1975-05-10", "456 Clinic Rd", 49, UserType.DOCTOR, "F", "555-5678", "alicesmith", "password2"));
-        users.put("NURSE-001", new User("NURSE-001", "Nurse Bob", "1985-09-15", "789 Hospital Ave", 39, UserType.NURSE, "M", "555-9012", "nursebob", "password3"));
-        users.put("ADMIN-001", new User("ADMIN-001", "Admin Jane", "1970-12-20", "101 Admin Blvd", 54, UserType.ADMIN, "F", "555-3456", "adminjane", "adminpass"));
+        List<User> samples = Arrays.asList(
+                new User("PATIENT-001", "John Doe", "1980-01-01", "123 Main St", 44, UserType.PATIENT, "M", "555-1234", "johndoe", "password1"),
+                new User("DOCTOR-001", "Dr. Alice Smith", "1975-05-10", "456 Clinic Rd", 49, UserType.DOCTOR, "F", "555-5678", "alicesmith", "password2"),
+                new User("NURSE-001", "Nurse Bob", "1985-09-15", "789 Hospital Ave", 39, UserType.NURSE, "M", "555-9012", "nursebob", "password3"),
+                new User("ADMIN-001", "Admin Jane", "1970-12-20", "101 Admin Blvd", 54, UserType.ADMIN, "F", "555-3456", "adminjane", "adminpass"));
+        // Hashing dominates, so hash on the bulk hashing workers and log the users as one group commit
+        try {
+            hashPasswords(samples);
+        } catch (RejectedExecutionException e) {
+            // Imports already fill the bulk workers; take no more of them
+            samples.forEach(user -> user.setPassword(credentials.hash(user.getPassword())));
+        }
+        insertAll(samples);
+    }
+
+    private void hashPasswords(List<User> users) {
+        List<String> passwords = new ArrayList<>(users.size());
+        for (User user : users) {
+            passwords.add(user.getPassword());
+        }
+        List<String> hashes = credentials.hashAll(passwords);
+        for (int i = 0; i < users.size(); i++) {
+            users.get(i).setPassword(hashes.get(i));
+        }
+    }
+
+    private static int stripeFor(String userId) {
+        return (userId.hashCode() & 0x7fffffff) % WRITE_STRIPES;
     }
 
     /**
-     * Add a new user.
+     * Add a user to the directory and log it to the store, undoing the add if it cannot be persisted.
+     * Changes are published to the change feed under the stripe lock, so each user's changes are in order.
+     */
+    private UserDirectory.AddResult insert(User user) {
+        ReentrantLock lock = writeLocks[stripeFor(user.getUserId())];
+        lock.lock();
+        try {
+            UserDirectory.AddResult result = directory.add(user);
+            if (result == UserDirectory.AddResult.ADDED) {
+                try {
+                    store.logAdd(user);
+                } catch (IOException e) {
+                    directory.remove(user.getUserId());
+                    logUndo(user.getUserId(), () -> store.logRemove(user.getUserId()));
+                    throw new UncheckedIOException("Failed to persist user: " + user.getUserId(), e);
+                }
+                changeFeed.userAdded(user);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a batch of users and log them to the store as one group commit. Duplicates are skipped and
+     * reported; if the batch cannot be persisted, none of it stays in the directory.
+     */
+    /**
+     * Whether the requester may add this user: anyone granted ADD may add a patient, but any other
+     * type of user needs MANAGE_ACCOUNT. The requester's type is read from the directory, not taken
+     * from the caller.
+     */
+    private boolean mayAdd(String requesterId, User user) {
+        return user.getType() == UserType.PATIENT || mayManageAccount(requesterId, user.getUserId());
+    }
+
+    private boolean mayRestore(String requesterId) {
+        CompactUser requester = requesterId == null ? null : directory.getRecord(requesterId);
+        return requester != null
+                && accessPolicy.allowsAll(SessionPrincipal.of(requesterId, requester), Action.MANAGE_ACCOUNT);
+    }
+
+    private boolean mayManageAccount(String requesterId, String userId) {
+        CompactUser requester = requesterId == null ? null : directory.getRecord(requesterId);
+        return requester != null
+                && accessPolicy.allows(SessionPrincipal.of(requesterId, requester), Action.MANAGE_ACCOUNT, userId);
+    }
+
+    private UserDirectory.AddResult[] insertAll(List<User> users) {
+        // Take every stripe the batch touches in index order, so concurrent batches cannot deadlock
+        boolean[] stripes = new boolean[WRITE_STRIPES];
+        for (User user : users) {
+            stripes[stripeFor(user.getUserId())] = true;
+        }
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            if (stripes[i]) {
+                writeLocks[i].lock();
+            }
+        }
+        try {
+            UserDirectory.AddResult[] results = new UserDirectory.AddResult[users.size()];
+            List<User> added = new ArrayList<>(users.size());
+            for (int i = 0; i < results.length; i++) {
+                results[i] = directory.add(users.get(i));
+                if (results[i] == UserDirectory.AddResult.ADDED) {
+                    added.add(users.get(i));
+                }
+            }
+            try {
+                store.logAddAll(added);
+            } catch (IOException e) {
+                for (User user : added) {
+                    directory.remove(user.getUserId());
+                    logUndo(user.getUserId(), () -> store.logRemove(user.getUserId()));
+                }
+                throw new UncheckedIOException("Failed to persist batch of " + added.size() + " users", e);
+            }
+            for (User user : added) {
+                changeFeed.userAdded(user);
+            }
+            return results;
+        } finally {
+            for (int i = WRITE_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    writeLocks[i].unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace a user's record if it is still at {@code expectedVersion} and log the new state to the
+     * store, restoring the old one if it cannot be persisted.
+     */
+    private UserDirectory.UpdateResult replace(User before, User after, long expectedVersion) {
+        ReentrantLock lock = writeLocks[stripeFor(after.getUserId())];
+        lock.lock();
+        try {
+            UserDirectory.UpdateResult result = directory.update(after, expectedVersion);
+            if (result == UserDirectory.UpdateResult.UPDATED) {
+                try {
+                    store.logUpdate(after);
+                } catch (IOException e) {
+                    // Changes to this user are serialized by the lock, so the current version is ours
+                    directory.update(before, directory.getVersion(after.getUserId()));
+                    logUndo(after.getUserId(), () -> store.logUpdate(directory.get(after.getUserId())));
+                    throw new UncheckedIOException("Failed to persist update of user: " + after.getUserId(), e);
+                }
+                changeFeed.userUpdated(after);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a user from the directory and log it to the store, restoring the user if it cannot be persisted.
+     */
+    private User delete(String userId) {
+        ReentrantLock lock = writeLocks[stripeFor(userId)];
+        lock.lock();
+        try {
+            User user = directory.remove(userId);
+            if (user != null) {
+                try {
+                    store.logRemove(userId);
+                } catch (IOException e) {
+                    directory.add(user);
+                    logUndo(userId, () -> store.logAdd(user));
+                    throw new UncheckedIOException("Failed to persist removal of user: " + userId, e);
+                }
+                changeFeed.userRemoved(userId);
+            }
+            return user;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Log the state a change that failed to persist was undone to. A snapshot written, or sent to a
+     * replica, while the change was in the directory may hold it, and the log it would have been
+     * replayed over may be gone; without this record it would come back on restart.
+     */
+    private void logUndo(String userId, StoreWrite write) {
+        try {
+            write.run();
+        } catch (IOException e) {
+            log.error("Failed to log the undoing of a change to user {}; a snapshot may still hold it", userId, e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StoreWrite {
+        void run() throws IOException;
+    }
+
+    /**
+     * Add a new user. Any user but a patient can sign in to staff views, so adding one needs
+     * {@link Action#MANAGE_ACCOUNT} as well as {@link Action#ADD}.
+     *
+     * @throws AccessDeniedException if the user is not a patient and the requester may not manage accounts
      */
     public User addUser(User user, String requesterId, String reason) throws AuditLoggingException {
-        if (users.containsKey(user.getUserId())) {
-            auditLogger.logFailure(
-                "USER_ADD",
-                "ADD",
-                "user/" + user.getUserId(),
-                "User already exists: " + user.getUserId()
-            );
-            throw new IllegalArgumentException("User already exists: " + user.getUserId());
+        return addUser(user, requesterId, reason, null);
+    }
+
+    /**
+     * Add a new user, and if it is a patient, collect into {@code possibleDuplicates} the patients
+     * already on record that it may duplicate, closest first. They are also noted in the audit event;
+     * the user is added all the same.
+     *
+     * @throws AccessDeniedException if the user is not a patient and the requester may not manage accounts
+     */
+    public User addUser(User user, String requesterId, String reason, List<DuplicateCandidate> possibleDuplicates)
+            throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            if (!mayAdd(requesterId, user)) {
+                String resource = "user/" + user.getUserId();
+                logAccessDenied(requesterId, Action.MANAGE_ACCOUNT.name(), resource, "add " + user.getType() + " user");
+                throw new AccessDeniedException("Adding a " + user.getType() + " user needs "
+                        + Action.MANAGE_ACCOUNT);
+            }
+            // Hash before taking the write lock; the cost is paid once per added user
+            user.setPassword(credentials.hash(user.getPassword()));
+            UserDirectory.AddResult result = insert(user);
+            if (result != UserDirectory.AddResult.ADDED) {
+                String message = result == UserDirectory.AddResult.DUPLICATE_USERNAME
+                        ? "Username already exists: " + user.getUsername()
+                        : "User already exists: " + user.getUserId();
+                auditLogger.logFailure(
+                    "USER_ADD",
+                    "ADD",
+                    "user/" + user.getUserId(),
+                    message
+                );
+                throw new IllegalArgumentException(message);
+            }
+            Map<String, Object> details = new HashMap<>();
+            details.put("reason", reason);
+            details.put("added_user_type", user.getType());
+            List<DuplicateCandidate> candidates = duplicates.candidatesFor(user);
+            if (!candidates.isEmpty()) {
+                List<String> candidateIds = new ArrayList<>(candidates.size());
+                for (DuplicateCandidate candidate : candidates) {
+                    candidateIds.add(candidate.getUserId());
+                }
+                details.put("possible_duplicates", candidateIds);
+                if (possibleDuplicates != null) {
+                    possibleDuplicates.addAll(candidates);
+                }
+            }
+            AuditEvent auditEvent = AuditEvent.builder()
+                    .eventType("USER_ADD")
+                    .userId(requesterId)
+                    .sessionId(AuditContext.currentSessionId())
+                    .application("EHRViewer")
+                    .component("UserService")
+                    .action("ADD")
+                    .resource("user/" + user.getUserId())
+                    .result(AuditResult.SUCCESS)
+                    .message("Added user: " + user.getName())
+                    .details(details)
+                    .correlationId(AuditContext.currentCorrelationId())
+                    .build();
+            auditLogger.logEvent(auditEvent);
+            return user;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.ADD_USER, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Add a batch of users with a single audit record. Returns one entry per user, in order:
+     * null if the user was added, otherwise the reason it was rejected. Users other than patients
+     * are rejected unless the requester may manage accounts, as for {@link #addUser}.
+     *
+     * @throws RejectedExecutionException if the bulk password hashing workers are saturated; no user is added
+     */
+    public List<String> addUsers(List<User> users, String requesterId, String reason) throws AuditLoggingException {
+        return addUsers(users, requesterId, reason, false);
+    }
+
+    /**
+     * Add a batch of users as {@link #addUsers(List, String, String)} does, or with {@code prehashed}
+     * restore them with passwords already hashed, as exported from another instance. A restore needs
+     * {@link Action#MANAGE_ACCOUNT} over every user, stores the hashes as given, and rejects any user
+     * whose password is not a hash in the accepted format and cost range.
+     *
+     * @throws AccessDeniedException if {@code prehashed} and the requester may not manage every account
+     * @throws RejectedExecutionException if the bulk password hashing workers are saturated; no user is added
+     */
+    public List<String> addUsers(List<User> users, String requesterId, String reason, boolean prehashed)
+            throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            if (prehashed && !mayRestore(requesterId)) {
+                logAccessDenied(requesterId, Action.MANAGE_ACCOUNT.name(), "user",
+                        "restore of " + users.size() + " users with hashed passwords");
+                throw new AccessDeniedException("Restoring hashed passwords needs " + Action.MANAGE_ACCOUNT
+                        + " over every user");
+            }
+            List<User> permitted = new ArrayList<>(users.size());
+            String[] refusals = new String[users.size()];
+            int refused = 0;
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                if (!mayAdd(requesterId, user)) {
+                    refusals[i] = "Adding a " + user.getType() + " user needs " + Action.MANAGE_ACCOUNT;
+                    refused++;
+                } else if (prehashed && user.getPassword() != null && !credentials.accepts(user.getPassword())) {
+                    refusals[i] = "Password is not an accepted PBKDF2 hash";
+                } else {
+                    permitted.add(user);
+                }
+            }
+            if (refused > 0) {
+                logAccessDenied(requesterId, Action.MANAGE_ACCOUNT.name(), "user",
+                        "bulk add of " + refused + " users who are not patients");
+            }
+            if (!prehashed) {
+                hashPasswords(permitted);
+            }
+            UserDirectory.AddResult[] results = insertAll(permitted);
+            List<String> errors = new ArrayList<>(users.size());
+            List<String> addedIds = new ArrayList<>();
+            Map<String, String> failures = new LinkedHashMap<>();
+            int next = 0;
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                String error = refusals[i];
+                if (error == null) {
+                    UserDirectory.AddResult result = results[next++];
+                    if (result == UserDirectory.AddResult.DUPLICATE_USERNAME) {
+                        error = "Username already exists: " + user.getUsername();
+                    } else if (result != UserDirectory.AddResult.ADDED) {
+                        error = "User already exists: " + user.getUserId();
+                    }
+                }
+                if (error == null) {
+                    addedIds.add(user.getUserId());
+                } else {
+                    failures.put(user.getUserId(), error);
+                }
+                errors.add(error);
+            }
+            Map<String, Object> details = new HashMap<>();
+            details.put("reason", reason);
+            details.put("requested", users.size());
+            details.put("added", addedIds.size());
+            details.put("failed", failures.size());
+            details.put("added_user_ids", addedIds);
+            details.put("failures", failures);
+            details.put("prehashed", prehashed);
+            AuditEvent auditEvent = AuditEvent.builder()
+                    .eventType("USER_BULK_ADD")
+                    .userId(requesterId)
+                    .sessionId(AuditContext.currentSessionId())
+                    .application("EHRViewer")
+                    .component("UserService")
+                    .action("BULK_ADD")
+                    .resource("user")
+                    .result(addedIds.isEmpty() && !users.isEmpty() ? AuditResult.FAILURE : AuditResult.SUCCESS)
+                    .message("Added " + addedIds.size() + " of " + users.size() + " users")
+                    .details(details)
+                    .correlationId(AuditContext.currentCorrelationId())
+                    .build();
+            auditLogger.logEvent(auditEvent);
+            return errors;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.ADD_USERS, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Apply a partial update to a user if it is still at the version named by {@code expectedTag}, an
+     * entity tag from {@link #getUserTag} ("*" accepts any version). The record is swapped by
+     * compare-and-set on its version, so of concurrent updates from one version exactly one succeeds
+     * and is audited. Changed fields are audited with their old and new values; a new password is
+     * hashed and only noted as changed.
+     *
+     * @throws IllegalArgumentException if there is no such user
+     * @throws UserConflictException if the user has changed since the tag was read, or the new username is taken
+     * @throws AccessDeniedException if the patch changes the type, username or password and the requester
+     *         may not manage this user's account
+     */
+    public User updateUser(String userId, UserPatch patch, String expectedTag, String requesterId, String reason)
+            throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            boolean accountChange = patch.getType() != null || patch.getUsername() != null
+                    || patch.getPassword() != null;
+            if (accountChange && !mayManageAccount(requesterId, userId)) {
+                logAccessDenied(requesterId, Action.MANAGE_ACCOUNT.name(), "user/" + userId,
+                        "update of type, username or password");
+                throw new AccessDeniedException("Changing a user's type, username or password needs "
+                        + Action.MANAGE_ACCOUNT);
+            }
+            // Hash before taking the write lock, as for adds
+            String password = patch.getPassword() == null ? null : credentials.hash(patch.getPassword());
+            boolean anyVersion = "*".equals(expectedTag);
+            while (true) {
+                CompactUser record = directory.getRecord(userId);
+                if (record == null) {
+                    auditLogger.logFailure(
+                        "USER_UPDATE",
+                        "UPDATE",
+                        "user/" + userId,
+                        "User not found: " + userId
+                    );
+                    throw new IllegalArgumentException("User not found: " + userId);
+                }
+                long expectedVersion = anyVersion ? record.getVersion() : versionOfTag(expectedTag);
+                User before = record.toUser(userId);
+                User after = record.toUser(userId);
+                Map<String, Object> changes = applyPatch(after, patch, password);
+                if (changes.isEmpty() && expectedVersion == record.getVersion()) {
+                    return before; // Nothing to change; keep the version, and so the client's tag
+                }
+                UserDirectory.UpdateResult result = replace(before, after, expectedVersion);
+                if (result == UserDirectory.UpdateResult.VERSION_CONFLICT && anyVersion) {
+                    continue; // Lost a race, but any version will do: patch the new one
+                }
+                if (result != UserDirectory.UpdateResult.UPDATED) {
+                    String message = result == UserDirectory.UpdateResult.DUPLICATE_USERNAME
+                            ? "Username already exists: " + after.getUsername()
+                            : result == UserDirectory.UpdateResult.NOT_FOUND
+                            ? "User not found: " + userId
+                            : "User " + userId + " has changed since version " + expectedTag;
+                    auditLogger.logFailure(
+                        "USER_UPDATE",
+                        "UPDATE",
+                        "user/" + userId,
+                        message
+                    );
+                    if (result == UserDirectory.UpdateResult.NOT_FOUND) {
+                        throw new IllegalArgumentException(message);
+                    }
+                    throw new UserConflictException(message, getUserTag(userId));
+                }
+                Map<String, Object> details = new HashMap<>();
+                details.put("reason", reason);
+                details.put("changes", changes);
+                AuditEvent auditEvent = AuditEvent.builder()
+                        .eventType("USER_UPDATE")
+                        .userId(requesterId)
+                        .sessionId(AuditContext.currentSessionId())
+                        .application("EHRViewer")
+                        .component("UserService")
+                        .action("UPDATE")
+                        .resource("user/" + userId)
+                        .result(AuditResult.SUCCESS)
+                        .message("Updated user: " + after.getName() + " (" + String.join(", ", changes.keySet()) + ")")
+                        .details(details)
+                        .correlationId(AuditContext.currentCorrelationId())
+                        .build();
+                auditLogger.logEvent(auditEvent);
+                return after;
+            }
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.UPDATE_USER, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Set the patched fields on a user and return the changes, field by field, as old and new values.
+     */
+    private static Map<String, Object> applyPatch(User user, UserPatch patch, String password) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        if (changed(changes, "name", user.getName(), patch.getName())) {
+            user.setName(patch.getName());
+        }
+        if (changed(changes, "dob", user.getDob(), patch.getDob())) {
+            user.setDob(patch.getDob());
+        }
+        if (changed(changes, "address", user.getAddress(), patch.getAddress())) {
+            user.setAddress(patch.getAddress());
+        }
+        if (changed(changes, "age", user.getAge(), patch.getAge())) {
+            user.setAge(patch.getAge());
+        }
+        if (changed(changes, "type", user.getType(), patch.getType())) {
+            user.setType(patch.getType());
+        }
+        if (changed(changes, "gender", user.getGender(), patch.getGender())) {
+            user.setGender(patch.getGender());
+        }
+        if (changed(changes, "contact_info", user.getContactInfo(), patch.getContactInfo())) {
+            user.setContactInfo(patch.getContactInfo());
+        }
+        if (changed(changes, "username", user.getUsername(), patch.getUsername())) {
+            user.setUsername(patch.getUsername());
+        }
+        if (password != null) {
+            // Never audit password values, not even hashed ones
+            changes.put("password", "changed");
+            user.setPassword(password);
+        }
+        return changes;
+    }
+
+    private static boolean changed(Map<String, Object> changes, String field, Object from, Object to) {
+        if (to == null || to.equals(from)) {
+            return false;
+        }
+        Map<String, Object> change = new LinkedHashMap<>();
+        change.put("from", from);
+        change.put("to", to);
+        changes.put(field, change);
+        return true;
+    }
+
+    /**
+     * The record version named by an entity tag from {@link #getUserTag}, or -1 if it is not one.
+     */
+    private long versionOfTag(String tag) {
+        String value = tag.trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        String prefix = tagEpoch + "-u";
+        if (!value.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(prefix.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        users.put(user.getUserId(), user);
-        Map<String, Object> details = new HashMap<>();
-        details.put("reason", reason);
-        details.put("added_user_type", user.getType());
-        AuditEvent auditEvent = AuditEvent.builder()
-                .eventType("USER_ADD")
-                .userId(requesterId)
-                .sessionId(UUID.randomUUID().toString())
-                .application("EHRViewer")
-                .component("UserService")
-                .action("ADD")
-                .resource("user/" + user.getUserId())
-                .result(AuditResult.SUCCESS)
-                .message("Added user: " + user.getName())
-                .details(details)
-                .correlationId(UUID.randomUUID().toString())
-                .build();
-        auditLogger.logEvent(auditEvent);
-        return user;
     }
 
     /**
      * Remove a user.
      */
     public User removeUser(String userId, String requesterId, String reason) throws AuditLoggingException {
-        User user = users.get(userId);
-        if (user == null) {
-            auditLogger.logFailure(
-                "USER_REMOVE",
-                "REMOVE",
-                "user/" + userId,
-                "User not found: " + userId
-            );
-            throw new IllegalArgumentException("User not found: " + userId);
+        long start = System.nanoTime();
+        try {
+            User user = delete(userId);
+            if (user == null) {
+                auditLogger.logFailure(
+                    "USER_REMOVE",
+                    "REMOVE",
+                    "user/" + userId,
+                    "User not found: " + userId
+                );
+                throw new IllegalArgumentException("User not found: " + userId);
+            }
+            Map<String, Object> details = new HashMap<>();
+            details.put("reason", reason);
+            details.put("removed_user_type", user.getType());
+            AuditEvent auditEvent = AuditEvent.builder()
+                    .eventType("USER_REMOVE")
+                    .userId(requesterId)
+                    .sessionId(AuditContext.currentSessionId())
+                    .application("EHRViewer")
+                    .component("UserService")
+                    .action("REMOVE")
+                    .resource("user/" + userId)
+                    .result(AuditResult.SUCCESS)
+                    .message("Removed user: " + user.getName())
+                    .details(details)
+                    .correlationId(AuditContext.currentCorrelationId())
+                    .build();
+            auditLogger.logEvent(auditEvent);
+            return user;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.REMOVE_USER, System.nanoTime() - start);
         }
-        users.remove(userId);
-        Map<String, Object> details = new HashMap<>();
-        details.put("reason", reason);
-        details.put("removed_user_type", user.getType());
-        AuditEvent auditEvent = AuditEvent.builder()
-                .eventType("USER_REMOVE")
-                .userId(requesterId)
-                .sessionId(UUID.randomUUID().toString())
-                .application("EHRViewer")
-                .component("UserService")
-                .action("REMOVE")
-                .resource("user/" + userId)
-                .result(AuditResult.SUCCESS)
-                .message("Removed user: " + user.getName())
-                .details(details)
-                .correlationId(UUID.randomUUID().toString())
-                .build();
-        auditLogger.logEvent(auditEvent);
-        return user;
     }
 
     /**
      * Get user details.
      */
     public User getUser(String userId, String requesterId) throws AuditLoggingException {
-        User user = users.get(userId);
-        if (user == null) {
+        long start = System.nanoTime();
+        try {
+            User user = directory.get(userId);
+            if (user == null) {
+                auditLogger.logFailure(
+                    "USER_VIEW",
+                    "VIEW",
+                    "user/" + userId,
+                    "User not found: " + userId
+                );
+                throw new IllegalArgumentException("User not found: " + userId);
+            }
+            // Record the viewer as the event's user so the audit log can be queried by who viewed a record
+            auditLogger.record(USER_VIEW)
+                    .user(requesterId)
+                    .resource("user/", userId)
+                    .text("User ").text(requesterId).text(" viewed user: ").text(user.getName())
+                    .commit();
+            return user;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.GET_USER, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Strong entity tag for the current state of all users. It changes with every add, remove and
+     * update, and is read before the data it validates, so it is never newer than that data.
+     */
+    public String getUsersTag() {
+        return tagEpoch + "-" + Long.toHexString(directory.getVersion());
+    }
+
+    /**
+     * Strong entity tag for a user's current record, or null if there is no such user.
+     */
+    public String getUserTag(String userId) {
+        long version = directory.getVersion(userId);
+        return version == 0 ? null : tagEpoch + "-u" + Long.toHexString(version);
+    }
+
+    /**
+     * Audit a view answered from the requester's cached copy, i.e. a conditional GET answered with
+     * 304 Not Modified. It is recorded like the full view, marked not_modified.
+     */
+    public void logRevalidation(String eventType, String action, String resource, String requesterId)
+            throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            AuditTemplate template = revalidationTemplates.get(eventType);
+            if (template == null) {
+                template = revalidationTemplates.computeIfAbsent(eventType,
+                        type -> template(type, action, AuditResult.SUCCESS, "not_modified"));
+            }
+            auditLogger.record(template)
+                    .user(requesterId)
+                    .resource(resource)
+                    .text("User ").text(requesterId).text(" revalidated a cached view of ").text(resource)
+                    .detail("not_modified", true)
+                    .commit();
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.REVALIDATE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Audit a request refused by the access policy.
+     */
+    public void logAccessDenied(String requesterId, String action, String resource, String request)
+            throws AuditLoggingException {
+        AuditTemplate template = deniedTemplates.get(action);
+        if (template == null) {
+            template = deniedTemplates.computeIfAbsent(action,
+                    denied -> template("ACCESS_DENIED", denied, AuditResult.FAILURE, "request"));
+        }
+        auditLogger.record(template)
+                .user(requesterId)
+                .resource(resource)
+                .text("User ").text(requesterId).text(" was refused ").text(action).text(" on ").text(resource)
+                .detail("request", request)
+                .commit();
+    }
+
+    /**
+     * Get the staff members on a patient's care team.
+     */
+    public Set<String> getCareTeam(String patientId, String requesterId) throws AuditLoggingException {
+        if (directory.getRecord(patientId) == null) {
+            throw new IllegalArgumentException("User not found: " + patientId);
+        }
+        auditLogger.record(CARE_TEAM_VIEW)
+                .user(requesterId)
+                .resource("user/", patientId)
+                .text("User ").text(requesterId).text(" viewed the care team of ").text(patientId)
+                .commit();
+        return careTeams.membersOf(patientId);
+    }
+
+    /**
+     * Add a staff member to a patient's care team, letting them act on the patient as the access
+     * rules allow for {@code CARE_TEAM}. Returns the care team.
+     */
+    public Set<String> assignCareTeam(String patientId, String memberId, String requesterId)
+            throws AuditLoggingException {
+        checkCareTeamMember(patientId, memberId, "CARE_TEAM_ASSIGN", "ASSIGN");
+        if (careTeams.assign(memberId, patientId)
+                && (directory.getRecord(patientId) == null || directory.getRecord(memberId) == null)) {
+            // Removed while being assigned; its removal may have missed the new assignment
+            careTeams.unassign(memberId, patientId);
+            throw new IllegalArgumentException("User not found: " + patientId + " or " + memberId);
+        }
+        auditLogger.logSuccess(
+            "CARE_TEAM_ASSIGN",
+            "ASSIGN",
+            "user/" + patientId,
+            "User " + requesterId + " assigned " + memberId + " to the care team of " + patientId
+        );
+        return careTeams.membersOf(patientId);
+    }
+
+    /**
+     * Take a staff member off a patient's care team. Returns the care team.
+     */
+    public Set<String> unassignCareTeam(String patientId, String memberId, String requesterId)
+            throws AuditLoggingException {
+        if (!careTeams.unassign(memberId, patientId)) {
             auditLogger.logFailure(
-                "USER_VIEW",
-                "VIEW",
-                "user/" + userId,
-                "User not found: " + userId
+                "CARE_TEAM_UNASSIGN",
+                "UNASSIGN",
+                "user/" + patientId,
+                memberId + " is not on the care team of " + patientId
             );
-            throw new IllegalArgumentException("User not found: " + userId);
+            throw new IllegalArgumentException(memberId + " is not on the care team of " + patientId);
         }
         auditLogger.logSuccess(
-            "USER_VIEW",
-            "VIEW",
-            "user/" + userId,
-            "User " + requesterId + " viewed user: " + user.getName()
+            "CARE_TEAM_UNASSIGN",
+            "UNASSIGN",
+            "user/" + patientId,
+            "User " + requesterId + " removed " + memberId + " from the care team of " + patientId
         );
-        return user;
+        return careTeams.membersOf(patientId);
+    }
+
+    private void checkCareTeamMember(String patientId, String memberId, String eventType, String action)
+            throws AuditLoggingException {
+        CompactUser patient = directory.getRecord(patientId);
+        CompactUser member = directory.getRecord(memberId);
+        String problem = patient == null || member == null ? "User not found: " + (patient == null ? patientId : memberId)
+                : patient.getType() != UserType.PATIENT ? "Not a patient: " + patientId
+                : member.getType() == UserType.PATIENT ? "Patients cannot be on a care team: " + memberId
+                : null;
+        if (problem != null) {
+            auditLogger.logFailure(
+                eventType,
+                action,
+                "user/" + patientId,
+                problem
+            );
+            throw new IllegalArgumentException(problem);
+        }
     }
 
     /**
-     * Get all users.
+     * Audit a subscription to the user change feed, which from then on delivers every added user.
      */
-    public Map<String, User> getAllUsers(String requesterId) throws AuditLoggingException {
+    public void logChangeFeedSubscription(String position, String requesterId) throws AuditLoggingException {
         auditLogger.logSuccess(
-            "USER_VIEW_ALL",
-            "VIEW_ALL",
+            "USER_WATCH",
+            "WATCH",
             "user",
-            "User " + requesterId + " viewed all users"
+            "User " + requesterId + " subscribed to user changes from " + (position == null ? "now" : position)
         );
-        return new HashMap<>(users);
     }
 
     /**
-     * Authenticate user by username and password.
+     * Get all users.
      */
-    public User authenticate(String username, String password) throws AuditLoggingException {
-        for (User user : users.values()) {
-            if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
-                auditLogger.logSuccess(
-                    "USER_LOGIN",
-                    "LOGIN",
-                    "user/" + user.getUserId(),
-                    "User " + username + " logged in successfully"
-                );
-                return user;
+    public Map<String, User> getAllUsers(String requesterId) throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            auditLogger.record(USER_VIEW_ALL)
+                    .user(requesterId)
+                    .resource("user")
+                    .text("User ").text(requesterId).text(" viewed all users")
+                    .commit();
+            return directory.snapshot();
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.GET_ALL_USERS, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Get a live view of all users, each read as the view is iterated, for writing them out without a copy.
+     * A user changed during the iteration may be seen before or after the change.
+     */
+    public Collection<User> listAllUsers(String requesterId) throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            auditLogger.record(USER_VIEW_ALL)
+                    .user(requesterId)
+                    .resource("user")
+                    .text("User ").text(requesterId).text(" viewed all users")
+                    .commit();
+            return directory.values();
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.GET_ALL_USERS, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Get one page of users in userId order, filtered by type, gender and age range.
+     */
+    public UserPage getUsersPage(UserQuery query, String requesterId) throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            int limit = Math.max(1, Math.min(query.getLimit(), UserQuery.MAX_LIMIT));
+            UserDirectory.ScanResult result = directory.scan(decodeCursor(query.getCursor()), query.getType(),
+                    record -> query.matches(record.getGender(), record.getAge()), limit, MAX_SCAN_PER_PAGE);
+            auditLogger.record(USER_VIEW_PAGE)
+                    .user(requesterId)
+                    .resource("user")
+                    .text("User ").text(requesterId).text(" viewed a page of users: ").text(query)
+                    .commit();
+            String nextCursor = result.isExhausted() ? null : encodeCursor(result.getLastScannedId());
+            return new UserPage(result.getUsers(), nextCursor);
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.GET_USERS_PAGE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Search users by name, address, contact info and username. The last query token matches as a prefix.
+     */
+    public List<User> searchUsers(String query, int limit, String requesterId) throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            List<User> results = searchIndex.search(query, Math.max(1, Math.min(limit, MAX_SEARCH_RESULTS)));
+            auditLogger.record(USER_SEARCH)
+                    .user(requesterId)
+                    .resource("user")
+                    .text("User ").text(requesterId).text(" searched users: '").text(query).text("' (")
+                    .text(results.size()).text(" results)")
+                    .commit();
+            return results;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.SEARCH_USERS, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Scan all patients for likely duplicate records and return the {@code limit} most likely clusters.
+     */
+    public DuplicateReport findDuplicates(int limit, String requesterId) throws AuditLoggingException {
+        long start = System.nanoTime();
+        try {
+            DuplicateReport report = duplicates.scan(Math.max(1, Math.min(limit, MAX_DUPLICATE_CLUSTERS)));
+            auditLogger.record(DUPLICATE_SCAN)
+                    .user(requesterId)
+                    .resource("user")
+                    .text("User ").text(requesterId).text(" scanned patients for duplicates (")
+                    .text(report.getTotalClusters()).text(" clusters)")
+                    .commit();
+            return report;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.FIND_DUPLICATES, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Query the audit log. The query itself is audited.
+     */
+    public AuditPage queryAuditLog(AuditQuery query, String requesterId) throws AuditLoggingException, IOException {
+        long start = System.nanoTime();
+        try {
+            AuditPage page = auditLogIndex.query(query);
+            auditLogger.logSuccess(
+                "AUDIT_QUERY",
+                "QUERY",
+                "audit",
+                "User " + requesterId + " queried the audit log: " + query + " (" + page.getEntries().size() + " results)"
+            );
+            return page;
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.QUERY_AUDIT, System.nanoTime() - start);
+        }
+    }
+
+    private static String encodeCursor(String userId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(userId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Authenticate user by username and password. The password is checked on the credential workers,
+     * and the rest of the login, its audit events and any rehash, runs on {@code continuation}, which
+     * the returned future completes on. It completes with null if the credentials do not match, and
+     * fails with a {@link LoginThrottledException} if the username or client (null if unknown) has
+     * failed too often recently, or with a {@link RejectedExecutionException} when the workers are saturated.
+     */
+    public CompletableFuture<User> authenticate(String username, String password, String client,
+                                                Executor continuation) {
+        long start = System.nanoTime();
+        // Throttled attempts cost no lookup, hashing or audit write of their own; they are summarized later
+        long retryAfter = loginThrottle.check(username, client);
+        if (retryAfter > 0) {
+            metrics.recordLoginThrottled();
+            metrics.recordOperation(MetricsRegistry.Operation.LOGIN, System.nanoTime() - start);
+            CompletableFuture<User> throttled = new CompletableFuture<>();
+            throttled.completeExceptionally(new LoginThrottledException(retryAfter));
+            return throttled;
+        }
+        User user = directory.findByUsername(username);
+        CompletableFuture<CredentialService.Verification> verification;
+        try {
+            verification = credentials.verify(user == null ? null : user.getPassword(), password);
+        } catch (RejectedExecutionException e) {
+            metrics.recordLoginRejected();
+            metrics.recordOperation(MetricsRegistry.Operation.LOGIN, System.nanoTime() - start);
+            CompletableFuture<User> rejected = new CompletableFuture<>();
+            try {
+                auditLogger.record(USER_LOGIN_FAILED)
+                        .resource("user/unknown")
+                        .text("Login rejected for username: ").text(username)
+                        .text(", credential verification is saturated")
+                        .commit();
+                rejected.completeExceptionally(e);
+            } catch (AuditLoggingException auditFailure) {
+                rejected.completeExceptionally(auditFailure);
             }
+            return rejected;
+        }
+        // Keep the credential workers for checking passwords
+        return verification.thenApplyAsync(result -> {
+            try {
+                if (result.isMatch()) {
+                    loginThrottle.recordSuccess(username);
+                    // A replica's users are the primary's; the user is rehashed at their next login there
+                    if (result.getRehash() != null && !store.isReadOnly()) {
+                        rehash(user, result.getRehash());
+                    }
+                    metrics.recordLogin(true);
+                    // Recorded with the request's correlation and session ids
+                    auditLogger.record(USER_LOGIN)
+                            .resource("user/", user.getUserId())
+                            .text("User ").text(username).text(" logged in successfully")
+                            .commit();
+                    return user;
+                }
+                metrics.recordLogin(false);
+                loginThrottle.recordFailure(username, client);
+                auditLogger.record(USER_LOGIN_FAILED)
+                        .resource("user/unknown")
+                        .text("Failed login attempt for username: ").text(username)
+                        .commit();
+                return (User) null;
+            } catch (AuditLoggingException e) {
+                throw new CompletionException(e);
+            }
+        }, continuation).whenComplete((result, error) ->
+                metrics.recordOperation(MetricsRegistry.Operation.LOGIN, System.nanoTime() - start));
+    }
+
+    /**
+     * Write one audit event for the login attempts refused by the throttle during the last interval.
+     */
+    private void logThrottleSummary(LoginThrottle.Summary summary) {
+        Map<String, Object> details = new HashMap<>();
+        details.put("interval_seconds", summary.getIntervalSeconds());
+        details.put("throttled", summary.getThrottled());
+        details.put("by_username", summary.getByUsername());
+        details.put("by_client", summary.getByClient());
+        details.put("untracked", summary.getUntracked());
+        AuditEvent auditEvent = AuditEvent.builder()
+                .eventType("USER_LOGIN_THROTTLED")
+                .sessionId(AuditContext.currentSessionId())
+                .application("EHRViewer")
+                .component("UserService")
+                .action("LOGIN")
+                .resource("user")
+                .result(AuditResult.FAILURE)
+                .message("Refused " + summary.getThrottled() + " login attempts in the last "
+                        + summary.getIntervalSeconds() + "s after repeated failures")
+                .details(details)
+                .correlationId(AuditContext.currentCorrelationId())
+                .build();
+        try {
+            auditLogger.logEvent(auditEvent);
+        } catch (AuditLoggingException e) {
+            log.warn("Failed to audit login throttle summary", e);
         }
-        auditLogger.logFailure(
-            "USER_LOGIN",
-            "LOGIN",
-            "user/unknown",
-            "Failed login attempt for username: " + username
-        );
-        return null;
+    }
+
+    /**
+     * Store a password hash at the current cost in place of the one a user just logged in with.
+     * Skipped if the password changed concurrently; a failure to persist leaves the old hash in place.
+     */
+    private void rehash(User user, String password) {
+        ReentrantLock lock = writeLocks[stripeFor(user.getUserId())];
+        lock.lock();
+        try {
+            if (!directory.replacePassword(user.getUserId(), user.getPassword(), password)) {
+                return;
+            }
+            User updated = directory.get(user.getUserId());
+            try {
+                store.logUpdate(updated);
+            } catch (IOException e) {
+                directory.replacePassword(user.getUserId(), password, user.getPassword());
+                logUndo(user.getUserId(), () -> store.logUpdate(directory.get(user.getUserId())));
+                log.warn("Failed to persist rehashed password for user {}", user.getUserId(), e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find a user by username without auditing a view, e.g. to resolve the subject of a logout.
+     */
+    public User findByUsername(String username) {
+        return directory.findByUsername(username);
     }
 
     /**
      * Log a logout event for a user.
      */
     public void logLogoutEvent(User user) throws AuditLoggingException {
-        auditLogger.logSuccess(
-            "USER_LOGOUT",
-            "LOGOUT",
-            "user/" + user.getUserId(),
-            "User " + user.getUsername() + " logged out successfully"
-        );
+        long start = System.nanoTime();
+        try {
+            auditLogger.logSuccess(
+                "USER_LOGOUT",
+                "LOGOUT",
+                "user/" + user.getUserId(),
+                "User " + user.getUsername() + " logged out successfully"
+            );
+        } finally {
+            metrics.recordOperation(MetricsRegistry.Operation.LOGOUT, System.nanoTime() - start);
+        }
+    }
+
+    private static AuditTemplate template(String eventType, String action, AuditResult result, String... detailKeys) {
+        return AuditTemplate.of(eventType, "EHRViewer", "UserService", action, result, detailKeys);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+package com.example.ehrviewer.session;
+
+import com.example.ehrviewer.audit.AuditContext;
+import com.example.ehrviewer.metrics.MetricsRegistry;
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.store.CompactUser;
+import com.example.ehrviewer.store.UserDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login sessions for the UI and REST controllers, carried in the {@value #COOKIE} cookie.
+ *
+ * In {@code REGISTRY} mode (the default) the cookie holds a random id into the {@link SessionRegistry}.
+ * In {@code TOKEN} mode it holds a signed {@link SessionTokens token} with the principal itself, so
+ * any node sharing {@code ehr.session.token-secret} can serve any request without sticky sessions;
+ * tokens are reissued as they are used, so they too expire after {@code ehr.session.idle-timeout-minutes}
+ * of inactivity. Either way a session only remembers a {@link SessionPrincipal}, checked against the
+ * user's current record on every request.
+ */
+@Component
+public class SessionManager {
+    private static final Logger log = LoggerFactory.getLogger(SessionManager.class);
+
+    public static final String COOKIE = "EHR_SESSION";
+    private static final String PRINCIPAL_ATTRIBUTE = SessionManager.class.getName() + ".principal";
+    private static final int MIN_SECRET_BYTES = 32;
+
+    /**
+     * Where session state lives.
+     */
+    public enum Mode {
+        REGISTRY,
+        TOKEN
+    }
+
+    @Value("${ehr.session.mode:REGISTRY}")
+    private Mode mode;
+
+    @Value("${ehr.session.idle-timeout-minutes:30}")
+    private long idleTimeoutMinutes;
+
+    @Value("${ehr.session.token-secret:}")
+    private String tokenSecret;
+
+    @Value("${ehr.session.cookie-secure:false}")
+    private boolean cookieSecure;
+
+    @Autowired
+    private SessionRegistry registry;
+
+    @Autowired
+    private UserDirectory directory;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private SessionTokens tokens;
+    private long idleTimeoutMs;
+
+    @PostConstruct
+    public void init() {
+        idleTimeoutMs = TimeUnit.MINUTES.toMillis(idleTimeoutMinutes);
+        if (mode == Mode.TOKEN) {
+            byte[] key = tokenSecret.getBytes(StandardCharsets.UTF_8);
+            if (tokenSecret.isEmpty()) {
+                key = new byte[MIN_SECRET_BYTES];
+                new SecureRandom().nextBytes(key);
+                log.warn("ehr.session.token-secret is not set; session tokens will not be accepted by other "
+                        + "nodes or after a restart");
+            } else if (key.length < MIN_SECRET_BYTES) {
+                throw new IllegalArgumentException("ehr.session.token-secret must be at least "
+                        + MIN_SECRET_BYTES + " bytes");
+            }
+            tokens = new SessionTokens(key);
+        }
+        metrics.registerGauge("ehr_sessions", null, "Open server-side sessions", registry::size);
+    }
+
+    /**
+     * Open a session for a user who just logged in. Returns false if the user has been removed since.
+     */
+    public boolean login(User user, HttpServletResponse response) {
+        CompactUser record = directory.getRecord(user.getUserId());
+        if (record == null) {
+            return false;
+        }
+        SessionPrincipal principal = SessionPrincipal.of(user.getUserId(), record);
+        String value = mode == Mode.TOKEN
+                ? tokens.issue(principal, System.currentTimeMillis() + idleTimeoutMs)
+                : registry.create(principal);
+        setCookie(response, value, null);
+        return true;
+    }
+
+    /**
+     * The principal of the request's session, or null if it has none or the session is no longer
+     * valid. Resolved once per request.
+     */
+    public SessionPrincipal principal(HttpServletRequest request, HttpServletResponse response) {
+        Object cached = request.getAttribute(PRINCIPAL_ATTRIBUTE);
+        if (cached != null) {
+            return (SessionPrincipal) cached;
+        }
+        String value = cookieValue(request);
+        if (value == null) {
+            return null;
+        }
+        SessionPrincipal principal;
+        if (mode == Mode.TOKEN) {
+            long now = System.currentTimeMillis();
+            SessionTokens.Verified verified = tokens.verify(value, now);
+            principal = verified == null ? null : verified.principal;
+            if (principal != null && verified.expiresAt - now < idleTimeoutMs / 2) {
+                setCookie(response, tokens.issue(principal, now + idleTimeoutMs), null);
+            }
+        } else {
+            principal = registry.get(value);
+        }
+        if (principal != null && !principal.matches(directory.getRecord(principal.getUserId()))) {
+            if (mode == Mode.REGISTRY) {
+                registry.remove(value);
+            }
+            principal = null;
+        }
+        if (principal == null) {
+            setCookie(response, "", Duration.ZERO);
+            return null;
+        }
+        AuditContext.bindSession(value);
+        request.setAttribute(PRINCIPAL_ATTRIBUTE, principal);
+        return principal;
+    }
+
+    /**
+     * The user behind a principal, read from the directory; null if it has been removed.
+     */
+    public User resolve(SessionPrincipal principal) {
+        return directory.get(principal.getUserId());
+    }
+
+    /**
+     * End the request's session. Returns its principal, or null if it had none.
+     * A token stays valid until it expires, since there is no server-side state to remove.
+     */
+    public SessionPrincipal logout(HttpServletRequest request, HttpServletResponse response) {
+        SessionPrincipal principal = principal(request, response);
+        String value = cookieValue(request);
+        if (mode == Mode.REGISTRY && value != null) {
+            registry.remove(value);
+        }
+        request.removeAttribute(PRINCIPAL_ATTRIBUTE);
+        setCookie(response, "", Duration.ZERO);
+        return principal;
+    }
+
+    private static String cookieValue(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void setCookie(HttpServletResponse response, String value, Duration maxAge) {
+        ResponseCookie.ResponseCookieBuilder cookie = ResponseCookie.from(COOKIE, value)
+                .path("/")
+                .httpOnly(true)
+                .secure(cookieSecure)
+                .sameSite("Lax");
+        if (maxAge != null) {
+            cookie.maxAge(maxAge);
+        }
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.build().toString());
+    }
+}
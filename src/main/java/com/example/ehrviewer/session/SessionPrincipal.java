@@ -0,0 +1,59 @@
+package com.example.ehrviewer.session;
+
+import com.example.ehrviewer.model.UserType;
+import com.example.ehrviewer.store.CompactUser;
+
+import java.util.Objects;
+
+/**
+ * What a session remembers about its user: the userId, the user type and a stamp of the
+ * credentials it was opened with. The user itself is looked up from the directory when needed,
+ * so edits are seen at once and no password is kept in the session.
+ */
+public final class SessionPrincipal {
+    private final String userId;
+    private final UserType type;
+    private final int stamp;
+
+    public SessionPrincipal(String userId, UserType type, int stamp) {
+        this.userId = userId;
+        this.type = type;
+        this.stamp = stamp;
+    }
+
+    /**
+     * Principal for a user's current record.
+     */
+    public static SessionPrincipal of(String userId, CompactUser record) {
+        return new SessionPrincipal(userId, record.getType(), stamp(record));
+    }
+
+    /**
+     * Version of a record's type and password. A session whose stamp no longer matches its user's
+     * record, because the user was removed, re-added, changed type or changed password, is ended.
+     */
+    public static int stamp(CompactUser record) {
+        UserType type = record.getType();
+        return 31 * Objects.hashCode(record.getPassword()) + (type == null ? -1 : type.ordinal());
+    }
+
+    /**
+     * Whether this principal still describes the given record (null if the user no longer exists).
+     */
+    boolean matches(CompactUser record) {
+        return record != null && record.getType() == type && stamp(record) == stamp;
+    }
+
+    public String getUserId() { return userId; }
+    public UserType getType() { return type; }
+    public int getStamp() { return stamp; }
+
+    @Override
+    public String toString() {
+        return "SessionPrincipal{" +
+                "userId='" + userId + '\'' +
+                ", type=" + type +
+                ", stamp=" + stamp +
+                '}';
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.ehrviewer.session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Supplies handler method parameters of type {@link SessionPrincipal}: the principal of the
+ * request's session, or null if it has none.
+ */
+@Component
+public class SessionPrincipalResolver implements HandlerMethodArgumentResolver {
+
+    @Autowired
+    private SessionManager sessions;
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return parameter.getParameterType() == SessionPrincipal.class;
+    }
+
+    @Override
+    public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer container,
+                                  NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+        return sessions.principal(webRequest.getNativeRequest(HttpServletRequest.class),
+                webRequest.getNativeResponse(HttpServletResponse.class));
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.ehrviewer.session;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side sessions: a map from random session id to {@link SessionPrincipal}, with idle eviction.
+ *
+ * An entry is the principal and a last-access time, around a hundred bytes, so even 100k sessions
+ * take a few megabytes. Sessions idle for {@code ehr.session.idle-timeout-minutes} are refused
+ * when next used and swept in the background.
+ */
+@Component
+public class SessionRegistry {
+    private static final int ID_BYTES = 18;
+    // Last-access times are only written back when they move by at least this much
+    private static final long TOUCH_GRANULARITY_MS = 1000;
+
+    private static final class Entry {
+        final SessionPrincipal principal;
+        volatile long lastAccess;
+
+        Entry(SessionPrincipal principal, long lastAccess) {
+            this.principal = principal;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    @Value("${ehr.session.idle-timeout-minutes:30}")
+    private long idleTimeoutMinutes;
+
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private long idleTimeoutMs;
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        idleTimeoutMs = TimeUnit.MINUTES.toMillis(idleTimeoutMinutes);
+        long sweepSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(idleTimeoutMs) / 4);
+        sweeper.scheduleWithFixedDelay(() -> evictIdle(System.currentTimeMillis()), sweepSeconds, sweepSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Open a session and return its id.
+     */
+    public String create(SessionPrincipal principal) {
+        byte[] bytes = new byte[ID_BYTES];
+        random.nextBytes(bytes);
+        String id = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(id, new Entry(principal, System.currentTimeMillis()));
+        return id;
+    }
+
+    /**
+     * Look up a session and mark it used. Returns null if there is no such session or it has been idle too long.
+     */
+    public SessionPrincipal get(String id) {
+        Entry entry = sessions.get(id);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long lastAccess = entry.lastAccess;
+        if (now - lastAccess > idleTimeoutMs) {
+            sessions.remove(id, entry);
+            return null;
+        }
+        if (now - lastAccess >= TOUCH_GRANULARITY_MS) {
+            entry.lastAccess = now;
+        }
+        return entry.principal;
+    }
+
+    /**
+     * End a session. Returns its principal, or null if there was none.
+     */
+    public SessionPrincipal remove(String id) {
+        Entry entry = sessions.remove(id);
+        return entry == null ? null : entry.principal;
+    }
+
+    /**
+     * Open sessions, including idle ones not yet swept.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Drop every session idle since before {@code now} minus the idle timeout.
+     */
+    void evictIdle(long now) {
+        Iterator<Entry> entries = sessions.values().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().lastAccess > idleTimeoutMs) {
+                entries.remove();
+            }
+        }
+    }
+}
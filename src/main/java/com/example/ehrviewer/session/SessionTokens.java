@@ -0,0 +1,108 @@
+package com.example.ehrviewer.session;
+
+import com.example.ehrviewer.model.UserType;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Stateless session tokens: a principal and an expiry time, signed with HMAC-SHA256.
+ *
+ * A token is {@code base64url(payload).base64url(mac)}, where the payload is the user type, stamp,
+ * expiry (epoch millis) and userId separated by newlines. Any node holding the same key can check
+ * a token without shared state.
+ */
+final class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final UserType[] TYPES = UserType.values();
+
+    /**
+     * A token that verified: its principal and when it expires.
+     */
+    static final class Verified {
+        final SessionPrincipal principal;
+        final long expiresAt;
+
+        Verified(SessionPrincipal principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final SecretKeySpec key;
+    // Mac instances are not thread-safe, and creating one per request costs more than the MAC itself
+    private final ThreadLocal<Mac> macs;
+
+    SessionTokens(byte[] key) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        newMac(); // fail at startup rather than on the first request
+    }
+
+    /**
+     * Sign a token for a principal, valid until {@code expiresAt}.
+     */
+    String issue(SessionPrincipal principal, long expiresAt) {
+        UserType type = principal.getType();
+        String payload = (type == null ? -1 : type.ordinal()) + "\n" + principal.getStamp() + "\n"
+                + expiresAt + "\n" + principal.getUserId();
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(mac(bytes));
+    }
+
+    /**
+     * Check a token's signature and expiry. Returns null if it is malformed, forged or expired.
+     */
+    Verified verify(String token, long now) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(mac(payload), signature)) {
+            return null;
+        }
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split("\n", 4);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            int ordinal = Integer.parseInt(fields[0]);
+            long expiresAt = Long.parseLong(fields[2]);
+            if (expiresAt <= now || ordinal < -1 || ordinal >= TYPES.length) {
+                return null;
+            }
+            UserType type = ordinal < 0 ? null : TYPES[ordinal];
+            return new Verified(new SessionPrincipal(fields[3], type, Integer.parseInt(fields[1])), expiresAt);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+}
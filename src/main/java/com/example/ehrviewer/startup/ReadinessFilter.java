@@ -0,0 +1,42 @@
+package com.example.ehrviewer.startup;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Answers 503 with Retry-After to every request but the health, readiness and replication checks and
+ * {@code /metrics} while users are still loading, so no request sees a partial directory, e.g. a login
+ * failing for a user not yet loaded.
+ */
+@Component
+public class ReadinessFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private StartupReadiness readiness;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return readiness.isReady() || path.equals("/api/users/health") || path.equals("/api/users/ready")
+                || path.equals("/api/users/replication") || path.equals("/metrics");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (readiness.isReady()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Starting up");
+    }
+}
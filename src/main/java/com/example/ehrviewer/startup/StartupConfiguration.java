@@ -0,0 +1,25 @@
+package com.example.ehrviewer.startup;
+
+import com.example.ehrviewer.service.UserService;
+import com.example.ehrviewer.store.UserDirectory;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Startup settings for the {@code fast-startup} profile.
+ */
+@Configuration
+public class StartupConfiguration {
+
+    /**
+     * With {@code spring.main.lazy-initialization}, beans are created on first use, so controllers, the
+     * template engine and most web infrastructure wait for the first request. The user service and the
+     * directory listeners stay eager: the service starts loading users, and a listener created later would
+     * miss the users added before it registered.
+     */
+    @Bean
+    static LazyInitializationExcludeFilter eagerStartupBeans() {
+        return LazyInitializationExcludeFilter.forBeanTypes(UserService.class, UserDirectory.Listener.class);
+    }
+}
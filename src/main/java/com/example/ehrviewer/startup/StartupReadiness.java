@@ -0,0 +1,39 @@
+package com.example.ehrviewer.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whether the application can serve requests: it becomes ready once the user directory has been
+ * loaded and all its indexes built, and stays ready. Until then {@link ReadinessFilter} answers
+ * requests with 503, and {@code GET /api/users/ready} reports it to load balancers and orchestrators.
+ */
+@Component
+public class StartupReadiness {
+    private static final Logger log = LoggerFactory.getLogger(StartupReadiness.class);
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Report that the directory is complete, holding {@code users} users after {@code loadNanos} of loading.
+     */
+    public void markReady(int users, long loadNanos) {
+        log.info("Ready: {} users loaded and indexed in {} ms", users, TimeUnit.NANOSECONDS.toMillis(loadNanos));
+        ready.countDown();
+    }
+
+    /**
+     * Wait until ready. Returns false if the timeout elapses first.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+}
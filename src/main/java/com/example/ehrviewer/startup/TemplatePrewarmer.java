@@ -0,0 +1,93 @@
+package com.example.ehrviewer.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.TemplateSpec;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.engine.TemplateManager;
+import org.thymeleaf.templatemode.TemplateMode;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With {@code ehr.startup.prewarm-templates}, parses every page template into the template cache on a
+ * background thread once the application has started, instead of on the first request for each page.
+ * It also loads the classes of the template engine and its expression evaluation ahead of use.
+ */
+@Component
+public class TemplatePrewarmer {
+    private static final Logger log = LoggerFactory.getLogger(TemplatePrewarmer.class);
+
+    @Autowired
+    private ITemplateEngine templateEngine;
+
+    @Value("${ehr.startup.prewarm-templates:false}")
+    private boolean enabled;
+
+    @Value("${spring.thymeleaf.prefix:classpath:/templates/}")
+    private String prefix;
+
+    @Value("${spring.thymeleaf.suffix:.html}")
+    private String suffix;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            done.complete(null);
+            return;
+        }
+        Thread thread = new Thread(this::prewarm, "template-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Completes once every template has been parsed, or at once if pre-warming is off.
+     */
+    public CompletableFuture<Void> done() {
+        return done;
+    }
+
+    private void prewarm() {
+        long start = System.nanoTime();
+        int count = 0;
+        TemplateManager templates = templateEngine.getConfiguration().getTemplateManager();
+        try {
+            for (Resource template : new PathMatchingResourcePatternResolver().getResources(prefix + "*" + suffix)) {
+                String filename = template.getFilename();
+                if (filename == null) {
+                    continue;
+                }
+                // As a page request would, but through the template manager, which unlike the engine does not
+                // log the error rendering ends in without a request and model: the template is cached by then
+                TemplateSpec spec = new TemplateSpec(filename.substring(0, filename.length() - suffix.length()),
+                        null, (TemplateMode) null, null);
+                try {
+                    templates.parseAndProcess(spec, new Context(Locale.ROOT), new StringWriter());
+                } catch (RuntimeException expected) {
+                    // The first link or missing variable
+                }
+                count++;
+            }
+            log.info("Pre-warmed {} templates in {} ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            log.warn("Could not list templates to pre-warm: {}", e.getMessage());
+        } finally {
+            done.complete(null);
+        }
+    }
+}
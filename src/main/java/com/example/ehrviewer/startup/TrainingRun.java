@@ -0,0 +1,98 @@
+package com.example.ehrviewer.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With {@code ehr.startup.training-run}, exercises the application once it is ready and then exits.
+ * It waits for the users and templates, then logs in as the sample admin and requests the main pages
+ * and REST endpoints. The {@code fast-startup} Maven profile runs the application this way under
+ * {@code -XX:ArchiveClassesAtExit}, so the class-data-sharing archive holds every class that startup
+ * and a first request load.
+ */
+@Component
+@ConditionalOnProperty(name = "ehr.startup.training-run", havingValue = "true")
+public class TrainingRun {
+    private static final Logger log = LoggerFactory.getLogger(TrainingRun.class);
+
+    private static final String[] PAGES = {"/ui/users", "/ui/user/ADMIN-001", "/ui/add-user",
+            "/api/users/page", "/api/users/ADMIN-001", "/api/users/search?q=jane", "/api/audit?limit=10"};
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Autowired
+    private StartupReadiness readiness;
+
+    @Autowired
+    private TemplatePrewarmer templates;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread thread = new Thread(this::run, "training-run");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        int status = 0;
+        try {
+            if (!readiness.await(10, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Users did not load in time");
+            }
+            templates.done().get(1, TimeUnit.MINUTES);
+            String base = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+            request(base + "/api/users/ready", "GET", null);
+            request(base + "/ui/login", "GET", null);
+            String cookie = request(base + "/api/users/login?username=adminjane&password=adminpass", "POST", null);
+            if (cookie == null) {
+                throw new IllegalStateException("Training login as the sample admin failed");
+            }
+            for (String page : PAGES) {
+                request(base + page, "GET", cookie);
+            }
+            log.info("Training run complete");
+        } catch (Exception e) {
+            log.error("Training run failed", e);
+            status = 1;
+        }
+        int exitCode = status;
+        System.exit(SpringApplication.exit(context, () -> exitCode));
+    }
+
+    // Returns the session cookie the response sets, if any
+    private static String request(String url, String method, String cookie) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        int status = connection.getResponseCode();
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                byte[] discard = new byte[8192];
+                while (in.read(discard) >= 0) {
+                    // Read to the end so the whole response is rendered
+                }
+            }
+        }
+        log.info("Training request {} {}: {}", method, url, status);
+        String setCookie = connection.getHeaderField("Set-Cookie");
+        return setCookie == null ? null : setCookie.split(";", 2)[0];
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap-compact form of a {@link User} as held by the {@link UserDirectory}.
+ *
+ * A record is two objects: this instance and one byte array holding the text
+ * fields as varint-length-prefixed UTF-8. The dob is an epoch day, type an enum
+ * ordinal and gender a code into a shared dictionary. The userId is not stored
+ * here because the directory already holds it as the map key. Values that do
+ * not fit the compact form, such as a non-ISO dob or a gender beyond the
+ * dictionary's capacity, fall back to text slots. Every field therefore
+ * round-trips exactly.
+ *
+ * Records are immutable; each carries the directory version at which it was
+ * written, so a changed user always has a new version.
+ */
+public final class CompactUser {
+    private static final UserType[] TYPES = UserType.values();
+    private static final int NO_EPOCH_DAY = Integer.MIN_VALUE;
+    private static final int NO_CODE = -1;
+
+    private static final int NAME = 0;
+    private static final int ADDRESS = 1;
+    private static final int CONTACT_INFO = 2;
+    private static final int USERNAME = 3;
+    private static final int PASSWORD = 4;
+    private static final int DOB_TEXT = 5;
+    private static final int GENDER_TEXT = 6;
+    private static final int SLOTS = 7;
+
+    private final byte[] text;
+    private final long version;
+    private final int dobEpochDay;
+    private final int age;
+    private final byte type;
+    private final byte gender;
+
+    private CompactUser(byte[] text, long version, int dobEpochDay, int age, byte type, byte gender) {
+        this.text = text;
+        this.version = version;
+        this.dobEpochDay = dobEpochDay;
+        this.age = age;
+        this.type = type;
+        this.gender = gender;
+    }
+
+    /**
+     * Encode a user at a given version. The userId is not retained.
+     */
+    public static CompactUser of(User user, long version) {
+        int epochDay = toEpochDay(user.getDob());
+        int genderCode = Genders.codeOf(user.getGender());
+        String[] slots = new String[SLOTS];
+        slots[NAME] = user.getName();
+        slots[ADDRESS] = user.getAddress();
+        slots[CONTACT_INFO] = user.getContactInfo();
+        slots[USERNAME] = user.getUsername();
+        slots[PASSWORD] = user.getPassword();
+        slots[DOB_TEXT] = epochDay == NO_EPOCH_DAY ? user.getDob() : null;
+        slots[GENDER_TEXT] = genderCode == NO_CODE ? user.getGender() : null;
+        byte type = (byte) (user.getType() == null ? NO_CODE : user.getType().ordinal());
+        return new CompactUser(pack(slots), version, epochDay, user.getAge(), type, (byte) genderCode);
+    }
+
+    /**
+     * Materialize a full {@link User} for the API boundary.
+     */
+    public User toUser(String userId) {
+        String[] slots = unpack();
+        String dob = dobEpochDay == NO_EPOCH_DAY ? slots[DOB_TEXT] : LocalDate.ofEpochDay(dobEpochDay).toString();
+        return new User(userId, slots[NAME], dob, slots[ADDRESS], age, getType(), gender(slots),
+                slots[CONTACT_INFO], slots[USERNAME], slots[PASSWORD]);
+    }
+
+    /**
+     * The directory version at which this record was written.
+     */
+    public long getVersion() { return version; }
+
+    public int getAge() { return age; }
+
+    public UserType getType() { return type == NO_CODE ? null : TYPES[type]; }
+
+    /**
+     * Get the gender; allocation-free unless the value overflowed the dictionary.
+     */
+    public String getGender() { return gender == NO_CODE ? slot(GENDER_TEXT) : Genders.valueOf(gender); }
+
+    public String getUsername() { return slot(USERNAME); }
+
+    public String getPassword() { return slot(PASSWORD); }
+
+    private String gender(String[] slots) {
+        return gender == NO_CODE ? slots[GENDER_TEXT] : Genders.valueOf(gender);
+    }
+
+    private static int toEpochDay(String dob) {
+        if (dob == null) {
+            return NO_EPOCH_DAY;
+        }
+        try {
+            LocalDate date = LocalDate.parse(dob);
+            // Only use the compact form if it formats back to exactly the same string
+            return date.toString().equals(dob) ? (int) date.toEpochDay() : NO_EPOCH_DAY;
+        } catch (DateTimeParseException e) {
+            return NO_EPOCH_DAY;
+        }
+    }
+
+    // Each slot is varint(length + 1) followed by UTF-8 bytes; 0 marks null
+    private static byte[] pack(String[] slots) {
+        byte[][] encoded = new byte[SLOTS][];
+        int size = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots[i] != null) {
+                encoded[i] = slots[i].getBytes(StandardCharsets.UTF_8);
+                size += encoded[i].length;
+            }
+            size += varintSize(encoded[i] == null ? 0 : encoded[i].length + 1);
+        }
+        byte[] packed = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            if (encoded[i] == null) {
+                packed[pos++] = 0;
+                continue;
+            }
+            pos = writeVarint(packed, pos, encoded[i].length + 1);
+            System.arraycopy(encoded[i], 0, packed, pos, encoded[i].length);
+            pos += encoded[i].length;
+        }
+        return packed;
+    }
+
+    private String[] unpack() {
+        String[] slots = new String[SLOTS];
+        int pos = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            int header = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = text[pos++];
+                header |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (header > 0) {
+                slots[i] = new String(text, pos, header - 1, StandardCharsets.UTF_8);
+                pos += header - 1;
+            }
+        }
+        return slots;
+    }
+
+    private String slot(int slot) {
+        int pos = 0;
+        for (int i = 0; ; i++) {
+            int header = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = text[pos++];
+                header |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (i == slot) {
+                return header == 0 ? null : new String(text, pos, header - 1, StandardCharsets.UTF_8);
+            }
+            pos += Math.max(0, header - 1);
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Process-wide dictionary of gender values. Codes are assigned on first use
+     * and never reused; once the dictionary is full, new values are kept as text.
+     */
+    static final class Genders {
+        private static final int CAPACITY = 127;
+        private static final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private static final String[] values = new String[CAPACITY];
+
+        private Genders() {}
+
+        static int codeOf(String gender) {
+            if (gender == null) {
+                return NO_CODE;
+            }
+            Integer code = codes.get(gender);
+            if (code != null) {
+                return code;
+            }
+            synchronized (values) {
+                code = codes.get(gender);
+                if (code != null) {
+                    return code;
+                }
+                int next = codes.size();
+                if (next >= CAPACITY) {
+                    return NO_CODE;
+                }
+                values[next] = gender;
+                codes.put(gender, next);
+                return next;
+            }
+        }
+
+        static String valueOf(int code) {
+            return values[code];
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * File-backed store: a checksummed write-ahead log plus periodic compacted snapshots.
+ *
+ * Layout of the store directory:
+ * <ul>
+ *   <li>{@code wal-<generation>.log}: records {@code [int length][int crc32][byte op][payload]}</li>
+ *   <li>{@code snapshot-<generation>.bin}: {@code [magic][version][generation]}, then
+ *       {@code [int length][user]} records, then {@code [-1][long count][long crc32]}</li>
+ * </ul>
+ * A snapshot of generation g holds every change logged in WAL files older than g,
+ * so recovery maps the newest valid snapshot and replays WAL files from g onwards.
+ * Replay is idempotent per userId, which lets snapshots be written while the
+ * directory keeps changing.
+ *
+ * Snapshots list users in userId order, as inserting into the directory's
+ * sorted indexes in order is several times faster than in random order.
+ * Recovery first checks the snapshot's checksum in one pass over its record
+ * lengths, which also cuts it into chunks, and collects the changes logged since.
+ * The chunks are then decoded and added to the directory on {@code loadThreads}
+ * threads, skipping users whose latest state is in the WAL, which is added last.
+ *
+ * Appends are group-committed: each writer appends under a short lock, then the
+ * first writer to reach the sync point forces the channel once for everything
+ * appended so far, and the writers queued behind it find their records already durable.
+ */
+public class FileUserStore implements UserStore {
+    private static final Logger log = LoggerFactory.getLogger(FileUserStore.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x45485253; // "EHRS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 16;
+    private static final int END_OF_RECORDS = -1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int WAL_HEADER = 8;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final long LOAD_CHUNK = 4L << 20;
+
+    private final Path directory;
+    private final long snapshotEvery;
+    private final boolean sync;
+    private final int loadThreads;
+
+    private UserDirectory users;
+
+    private final Object appendLock = new Object();
+    private FileChannel wal;
+    private long walGeneration;
+    private long appended;
+    private long sinceSnapshot;
+
+    private final Object syncLock = new Object();
+    private volatile long durable;
+
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "user-store-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+
+    public FileUserStore(Path directory, long snapshotEvery, boolean sync) {
+        this(directory, snapshotEvery, sync, 1);
+    }
+
+    /**
+     * @param loadThreads threads decoding the snapshot into the directory at startup; 0 uses all cores
+     */
+    public FileUserStore(Path directory, long snapshotEvery, boolean sync, int loadThreads) {
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        this.sync = sync;
+        this.loadThreads = loadThreads > 0 ? loadThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public boolean open(UserDirectory directory) throws IOException {
+        this.users = directory;
+        Files.createDirectories(this.directory);
+        long start = System.nanoTime();
+
+        Snapshot snapshot = null;
+        for (Path path : list("snapshot-", ".bin", true)) {
+            try {
+                snapshot = scanSnapshot(path);
+                break;
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable snapshot {}: {}", path, e.getMessage());
+            }
+        }
+        long snapshotGeneration = snapshot == null ? 0 : snapshot.generation;
+
+        // The latest state of each user changed since the snapshot; null if it was removed
+        Map<String, User> changes = new HashMap<>();
+        long lastGeneration = snapshotGeneration;
+        long replayed = 0;
+        List<Path> logs = list("wal-", ".log", false);
+        for (int i = 0; i < logs.size(); i++) {
+            long generation = generationOf(logs.get(i));
+            lastGeneration = Math.max(lastGeneration, generation);
+            if (generation >= snapshotGeneration) {
+                replayed += replayWal(logs.get(i), changes);
+            }
+        }
+        boolean found = snapshot != null || replayed > 0;
+
+        long recovered = snapshot == null ? 0 : loadSnapshot(snapshot, changes, directory);
+        for (User user : changes.values()) {
+            if (user != null && directory.add(user) == UserDirectory.AddResult.ADDED) {
+                recovered++;
+            }
+        }
+        log.info("Recovered {} users from {} ({} WAL records replayed, {} snapshot chunks on {} threads) in {} ms",
+                recovered, this.directory, replayed, snapshot == null ? 0 : snapshot.chunks.size(),
+                snapshot == null ? 0 : Math.min(loadThreads, snapshot.chunks.size()),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        synchronized (appendLock) {
+            walGeneration = lastGeneration + 1;
+            wal = openWal(walGeneration);
+        }
+        return found;
+    }
+
+    @Override
+    public void logAdd(User user) throws IOException {
+        append(OP_PUT, UserCodec.encode(user));
+    }
+
+    @Override
+    public void logAddAll(List<User> users) throws IOException {
+        if (users.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] records = new ByteBuffer[users.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = record(OP_PUT, UserCodec.encode(users.get(i)));
+        }
+        append(records);
+    }
+
+    @Override
+    public void logUpdate(User user) throws IOException {
+        // A put replays as an upsert, so the new state simply replaces the old one
+        append(OP_PUT, UserCodec.encode(user));
+    }
+
+    @Override
+    public void logRemove(String userId) throws IOException {
+        append(OP_REMOVE, userId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (wal == null) {
+            return;
+        }
+        snapshot();
+        synchronized (appendLock) {
+            wal.force(false);
+            wal.close();
+        }
+    }
+
+    /**
+     * Rotate the WAL and write a compacted snapshot of the directory, then drop
+     * the WAL files and snapshots it supersedes.
+     */
+    public void snapshot() throws IOException {
+        long generation;
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                wal.force(false);
+                wal.close();
+                durable = appended;
+                walGeneration++;
+                wal = openWal(walGeneration);
+                sinceSnapshot = 0;
+                generation = walGeneration;
+            }
+        }
+
+        long start = System.nanoTime();
+        Path target = directory.resolve(String.format("snapshot-%016d.bin", generation));
+        Path tmp = directory.resolve(target.getFileName() + ".tmp");
+        long count = 0;
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(generation);
+            // In userId order, so that loading inserts into the directory's sorted indexes in order
+            for (User user : users.valuesInUserIdOrder()) {
+                byte[] record = UserCodec.encode(user);
+                out.writeInt(record.length);
+                out.write(record);
+                crc.update(record);
+                count++;
+            }
+            out.writeInt(END_OF_RECORDS);
+            out.writeLong(count);
+            out.writeLong(crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (Path old : list("snapshot-", ".bin", false)) {
+            if (generationOf(old) < generation) {
+                Files.deleteIfExists(old);
+            }
+        }
+        for (Path old : list("wal-", ".log", false)) {
+            if (generationOf(old) < generation) {
+                Files.deleteIfExists(old);
+            }
+        }
+        log.info("Wrote snapshot {} with {} users in {} ms", target.getFileName(), count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void append(byte op, byte[] payload) throws IOException {
+        append(record(op, payload));
+    }
+
+    private static ByteBuffer record(byte op, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(WAL_HEADER + 1 + payload.length);
+        record.putInt(1 + payload.length).putInt((int) crc.getValue()).put(op).put(payload).flip();
+        return record;
+    }
+
+    /**
+     * Append records with one gathering write, then wait for them to become durable.
+     */
+    private void append(ByteBuffer... records) throws IOException {
+        long sequence;
+        synchronized (appendLock) {
+            ByteBuffer last = records[records.length - 1];
+            while (last.hasRemaining()) {
+                wal.write(records);
+            }
+            appended += records.length;
+            sequence = appended;
+            sinceSnapshot += records.length;
+            if (sinceSnapshot >= snapshotEvery && snapshotPending.compareAndSet(false, true)) {
+                snapshotter.execute(this::backgroundSnapshot);
+            }
+        }
+        if (sync) {
+            awaitDurable(sequence);
+        }
+    }
+
+    /**
+     * Group commit: one force covers every record appended before it started.
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        if (durable >= sequence) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable >= sequence) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (appendLock) {
+                target = appended;
+                channel = wal;
+            }
+            channel.force(false);
+            durable = target;
+        }
+    }
+
+    private void backgroundSnapshot() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            log.error("Failed to write user store snapshot", e);
+        } finally {
+            snapshotPending.set(false);
+        }
+    }
+
+    private FileChannel openWal(long generation) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("wal-%016d.log", generation)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * A snapshot whose checksum has been verified, cut into chunks of whole records.
+     */
+    private static final class Snapshot {
+        final Path path;
+        final long generation;
+        // Start and end file offsets of each chunk's [length][user] records
+        final List<long[]> chunks;
+
+        Snapshot(Path path, long generation, List<long[]> chunks) {
+            this.path = path;
+            this.generation = generation;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * Verify a snapshot's checksum without decoding its users, and cut it into chunks of about
+     * {@value #LOAD_CHUNK} bytes.
+     */
+    private Snapshot scanSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedRegion in = new MappedRegion(channel);
+            in.require(SNAPSHOT_HEADER);
+            if (in.buffer.getInt() != SNAPSHOT_MAGIC || in.buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a user store snapshot");
+            }
+            long generation = in.buffer.getLong();
+            List<long[]> chunks = new ArrayList<>();
+            long chunkStart = in.position();
+            CRC32 crc = new CRC32();
+            long count = 0;
+            while (true) {
+                long recordStart = in.position();
+                if (recordStart - chunkStart >= LOAD_CHUNK) {
+                    chunks.add(new long[]{chunkStart, recordStart});
+                    chunkStart = recordStart;
+                }
+                in.require(4);
+                int length = in.buffer.getInt();
+                if (length == END_OF_RECORDS) {
+                    in.require(16);
+                    if (in.buffer.getLong() != count || in.buffer.getLong() != crc.getValue()) {
+                        throw new IOException("Snapshot checksum mismatch");
+                    }
+                    if (recordStart > chunkStart) {
+                        chunks.add(new long[]{chunkStart, recordStart});
+                    }
+                    return new Snapshot(path, generation, chunks);
+                }
+                if (length < 0) {
+                    throw new IOException("Corrupt snapshot record length " + length + " at offset " + recordStart);
+                }
+                in.require(length);
+                crc.update(in.slice(length));
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Add a scanned snapshot's users to the directory, except those in {@code changes}.
+     * Returns the number added.
+     */
+    private long loadSnapshot(Snapshot snapshot, Map<String, User> changes, UserDirectory into) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.path, StandardOpenOption.READ)) {
+            int threads = Math.min(loadThreads, snapshot.chunks.size());
+            if (threads <= 1) {
+                long added = 0;
+                for (long[] chunk : snapshot.chunks) {
+                    added += loadChunk(channel, chunk, changes, into);
+                }
+                return added;
+            }
+            AtomicInteger counter = new AtomicInteger();
+            ExecutorService loaders = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "user-store-load-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<Long>> results = new ArrayList<>(snapshot.chunks.size());
+                for (long[] chunk : snapshot.chunks) {
+                    results.add(loaders.submit(() -> loadChunk(channel, chunk, changes, into)));
+                }
+                long added = 0;
+                for (Future<Long> result : results) {
+                    added += result.get();
+                }
+                return added;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading " + snapshot.path);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("Failed to load " + snapshot.path, e.getCause());
+            } finally {
+                loaders.shutdownNow();
+            }
+        }
+    }
+
+    private static long loadChunk(FileChannel channel, long[] chunk, Map<String, User> changes, UserDirectory into)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+        long added = 0;
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            ByteBuffer record = buffer.slice();
+            record.limit(length);
+            buffer.position(buffer.position() + length);
+            User user = UserCodec.decode(record);
+            if (!changes.containsKey(user.getUserId()) && into.add(user) == UserDirectory.AddResult.ADDED) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Replay one WAL file into the latest state by userId, null for a removal, truncating it at the
+     * first torn or corrupt record.
+     */
+    private long replayWal(Path path, Map<String, User> into) throws IOException {
+        long replayed = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedRegion in = new MappedRegion(channel);
+            CRC32 crc = new CRC32();
+            while (in.remaining() > 0) {
+                long recordStart = in.position();
+                if (in.remaining() < WAL_HEADER) {
+                    truncate(channel, path, recordStart);
+                    break;
+                }
+                in.require(WAL_HEADER);
+                int length = in.buffer.getInt();
+                int checksum = in.buffer.getInt();
+                if (length <= 0 || in.remaining() < length) {
+                    truncate(channel, path, recordStart);
+                    break;
+                }
+                in.require(length);
+                ByteBuffer record = in.slice(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    truncate(channel, path, recordStart);
+                    break;
+                }
+                byte op = record.get();
+                if (op == OP_PUT) {
+                    User user = UserCodec.decode(record);
+                    into.put(user.getUserId(), user);
+                } else {
+                    into.put(StandardCharsets.UTF_8.decode(record).toString(), null);
+                }
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private static void truncate(FileChannel channel, Path path, long size) throws IOException {
+        log.warn("Truncating torn WAL tail of {} at offset {}", path.getFileName(), size);
+        channel.truncate(size);
+    }
+
+    private List<Path> list(String prefix, String suffix, boolean newestFirst) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // Zero-padded generations sort lexicographically
+        Collections.sort(files);
+        if (newestFirst) {
+            Collections.reverse(files);
+        }
+        return files;
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    }
+
+    /**
+     * Sequential reader over a memory-mapped file that remaps in windows of up
+     * to 1 GB, so files larger than a single mapping can be read.
+     */
+    private static final class MappedRegion {
+        private final FileChannel channel;
+        private final long size;
+        private long base;
+        MappedByteBuffer buffer;
+
+        MappedRegion(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        long position() {
+            return base + buffer.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (remaining() < bytes) {
+                throw new IOException("Unexpected end of file at offset " + position());
+            }
+            map(position());
+        }
+
+        ByteBuffer slice(int length) {
+            ByteBuffer slice = buffer.slice();
+            slice.limit(length);
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+
+        private void map(long position) throws IOException {
+            base = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+        }
+    }
+}
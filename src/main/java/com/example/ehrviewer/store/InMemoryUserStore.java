@@ -0,0 +1,36 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+
+import java.util.List;
+
+/**
+ * Store that persists nothing; users are reset on every restart.
+ */
+public class InMemoryUserStore implements UserStore {
+
+    @Override
+    public boolean open(UserDirectory directory) {
+        return false;
+    }
+
+    @Override
+    public void logAdd(User user) {
+    }
+
+    @Override
+    public void logAddAll(List<User> users) {
+    }
+
+    @Override
+    public void logUpdate(User user) {
+    }
+
+    @Override
+    public void logRemove(String userId) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.replication.Replication;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Paths;
+
+/**
+ * Selects the {@link UserStore} implementation from {@code ehr.store.type}, and adapts it to the
+ * node's replication role.
+ */
+@Configuration
+public class StoreConfiguration {
+
+    // UserService closes the store itself, before the audit logger, so Spring must not close it again
+    @Bean(destroyMethod = "")
+    public UserStore userStore(@Value("${ehr.store.type:memory}") String type,
+                               @Value("${ehr.store.directory:./ehr-data}") String directory,
+                               @Value("${ehr.store.snapshot-every:100000}") long snapshotEvery,
+                               @Value("${ehr.store.sync:true}") boolean sync,
+                               @Value("${ehr.store.load-threads:1}") int loadThreads,
+                               Replication replication) {
+        return replication.store(localStore(type, directory, snapshotEvery, sync, loadThreads));
+    }
+
+    private static UserStore localStore(String type, String directory, long snapshotEvery, boolean sync, int loadThreads) {
+        switch (type) {
+            case "memory":
+                return new InMemoryUserStore();
+            case "file":
+                return new FileUserStore(Paths.get(directory), snapshotEvery, sync, loadThreads);
+            default:
+                throw new IllegalArgumentException("Unknown ehr.store.type: " + type);
+        }
+    }
+}
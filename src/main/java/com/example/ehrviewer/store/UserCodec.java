@@ -0,0 +1,80 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link User}: length-prefixed UTF-8 strings
+ * (length -1 for null), age as an int and type as a single ordinal byte.
+ */
+public final class UserCodec {
+    private static final UserType[] TYPES = UserType.values();
+
+    private UserCodec() {}
+
+    public static byte[] encode(User user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeString(out, user.getUserId());
+            writeString(out, user.getName());
+            writeString(out, user.getDob());
+            writeString(out, user.getAddress());
+            out.writeInt(user.getAge());
+            out.writeByte(user.getType() == null ? -1 : user.getType().ordinal());
+            writeString(out, user.getGender());
+            writeString(out, user.getContactInfo());
+            writeString(out, user.getUsername());
+            writeString(out, user.getPassword());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static User decode(ByteBuffer in) {
+        String userId = readString(in);
+        String name = readString(in);
+        String dob = readString(in);
+        String address = readString(in);
+        int age = in.getInt();
+        byte type = in.get();
+        String gender = readString(in);
+        String contactInfo = readString(in);
+        String username = readString(in);
+        String password = readString(in);
+        return new User(userId, name, dob, address, age, type < 0 ? null : TYPES[type], gender, contactInfo, username, password);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
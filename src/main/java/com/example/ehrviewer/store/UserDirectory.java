@@ -0,0 +1,412 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+import com.example.ehrviewer.model.UserType;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory user directory keyed by userId, with secondary indexes for
+ * username and user type lookups. userIds are also kept in sorted order,
+ * overall and per type, so listings can resume from a cursor.
+ *
+ * Records are held as {@link CompactUser}s and materialized into {@link User}
+ * objects only when handed out, so callers always receive a private copy.
+ *
+ * Writers never take a global lock: the username index doubles as the
+ * uniqueness reservation, so a user becomes visible only after both its
+ * username and its userId have been claimed.
+ *
+ * Every written record carries a new version, and the directory version is
+ * incremented after each change has become visible. A version read before the
+ * data it describes is therefore never newer than that data, which makes
+ * versions safe to use as cache validators.
+ */
+@Component
+public class UserDirectory {
+
+    /**
+     * Outcome of {@link #add(User)}.
+     */
+    public enum AddResult {
+        ADDED,
+        DUPLICATE_USER_ID,
+        DUPLICATE_USERNAME
+    }
+
+    /**
+     * Outcome of {@link #update(User, long)}.
+     */
+    public enum UpdateResult {
+        UPDATED,
+        NOT_FOUND,
+        VERSION_CONFLICT,
+        DUPLICATE_USERNAME
+    }
+
+    /**
+     * Callback for components that maintain derived state, such as extra indexes.
+     * Listeners run synchronously on the writing thread once a change is visible.
+     */
+    public interface Listener {
+        void userAdded(User user);
+
+        void userRemoved(User user);
+
+        /**
+         * A user's record was replaced. By default treated as a remove followed by an add.
+         */
+        default void userUpdated(User before, User after) {
+            userRemoved(before);
+            userAdded(after);
+        }
+    }
+
+    /**
+     * Result of {@link #scan}: the matching users and the last userId examined.
+     */
+    public static class ScanResult {
+        private final List<User> users;
+        private final String lastScannedId;
+        private final boolean exhausted;
+
+        ScanResult(List<User> users, String lastScannedId, boolean exhausted) {
+            this.users = users;
+            this.lastScannedId = lastScannedId;
+            this.exhausted = exhausted;
+        }
+
+        public List<User> getUsers() { return users; }
+        public String getLastScannedId() { return lastScannedId; }
+        public boolean isExhausted() { return exhausted; }
+    }
+
+    private final Map<String, CompactUser> users = new ConcurrentHashMap<>();
+    private final NavigableSet<String> sortedIds = new ConcurrentSkipListSet<>();
+    private final Map<String, String> usernameIndex = new ConcurrentHashMap<>();
+    private final Map<UserType, NavigableSet<String>> typeIndex = new EnumMap<>(UserType.class);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong recordVersions = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+
+    public UserDirectory() {
+        for (UserType type : UserType.values()) {
+            typeIndex.put(type, new ConcurrentSkipListSet<>());
+        }
+    }
+
+    /**
+     * Register a listener for subsequent adds, removes and updates.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Add a user if both its userId and username are unused.
+     */
+    public AddResult add(User user) {
+        String userId = user.getUserId();
+        String username = user.getUsername();
+        if (username != null && usernameIndex.putIfAbsent(username, userId) != null) {
+            return AddResult.DUPLICATE_USERNAME;
+        }
+        long recordVersion = recordVersions.incrementAndGet();
+        if (users.putIfAbsent(userId, CompactUser.of(user, recordVersion)) != null) {
+            if (username != null) {
+                usernameIndex.remove(username, userId);
+            }
+            return AddResult.DUPLICATE_USER_ID;
+        }
+        sortedIds.add(userId);
+        if (user.getType() != null) {
+            typeIndex.get(user.getType()).add(userId);
+        }
+        version.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.userAdded(user);
+        }
+        return AddResult.ADDED;
+    }
+
+    /**
+     * Remove a user. Returns the removed user, or null if no such user exists.
+     * Only one of several concurrent callers removing the same user sees it.
+     */
+    public User remove(String userId) {
+        CompactUser record = users.remove(userId);
+        if (record == null) {
+            return null;
+        }
+        User user = record.toUser(userId);
+        sortedIds.remove(userId);
+        if (user.getType() != null) {
+            typeIndex.get(user.getType()).remove(userId);
+        }
+        if (user.getUsername() != null) {
+            usernameIndex.remove(user.getUsername(), userId);
+        }
+        version.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.userRemoved(user);
+        }
+        return user;
+    }
+
+    /**
+     * Replace a user's record with {@code user} if the record is still at {@code expectedVersion}.
+     * Of several concurrent updates from the same version exactly one succeeds; the others see
+     * VERSION_CONFLICT. A new username is claimed before the record is swapped, as in {@link #add}.
+     * The type index assumes changes to one user do not race with each other, as in UserService.
+     */
+    public UpdateResult update(User user, long expectedVersion) {
+        String userId = user.getUserId();
+        CompactUser record = users.get(userId);
+        if (record == null) {
+            return UpdateResult.NOT_FOUND;
+        }
+        if (record.getVersion() != expectedVersion) {
+            return UpdateResult.VERSION_CONFLICT;
+        }
+        User before = record.toUser(userId);
+        String username = user.getUsername();
+        boolean renamed = !Objects.equals(before.getUsername(), username);
+        if (renamed && username != null && usernameIndex.putIfAbsent(username, userId) != null) {
+            return UpdateResult.DUPLICATE_USERNAME;
+        }
+        if (!users.replace(userId, record, CompactUser.of(user, recordVersions.incrementAndGet()))) {
+            if (renamed && username != null) {
+                usernameIndex.remove(username, userId);
+            }
+            return users.containsKey(userId) ? UpdateResult.VERSION_CONFLICT : UpdateResult.NOT_FOUND;
+        }
+        if (renamed && before.getUsername() != null) {
+            usernameIndex.remove(before.getUsername(), userId);
+        }
+        if (before.getType() != user.getType()) {
+            if (user.getType() != null) {
+                typeIndex.get(user.getType()).add(userId);
+            }
+            if (before.getType() != null) {
+                typeIndex.get(before.getType()).remove(userId);
+            }
+        }
+        version.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.userUpdated(before, user);
+        }
+        return UpdateResult.UPDATED;
+    }
+
+    /**
+     * Replace a user's stored password if it is still {@code expected}. Returns false if the user
+     * was removed or its password changed in the meantime. No listener is told, as no indexed field changes.
+     */
+    public boolean replacePassword(String userId, String expected, String password) {
+        CompactUser record = users.get(userId);
+        if (record == null || !Objects.equals(record.getPassword(), expected)) {
+            return false;
+        }
+        User user = record.toUser(userId);
+        user.setPassword(password);
+        long recordVersion = recordVersions.incrementAndGet();
+        if (!users.replace(userId, record, CompactUser.of(user, recordVersion))) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The directory version: it increases with every add, remove and update, once the change is visible.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * The version of a user's current record, or 0 if there is no such user.
+     */
+    public long getVersion(String userId) {
+        CompactUser record = users.get(userId);
+        return record == null ? 0 : record.getVersion();
+    }
+
+    /**
+     * Look up a user by userId.
+     */
+    public User get(String userId) {
+        CompactUser record = users.get(userId);
+        return record == null ? null : record.toUser(userId);
+    }
+
+    /**
+     * Look up a user's compact record without materializing it, e.g. to check a single field.
+     */
+    public CompactUser getRecord(String userId) {
+        return users.get(userId);
+    }
+
+    /**
+     * Look up a user by username.
+     */
+    public User findByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        String userId = usernameIndex.get(username);
+        if (userId == null) {
+            return null;
+        }
+        CompactUser record = users.get(userId);
+        // The index may briefly point at a user that is being removed or re-added.
+        return record != null && username.equals(record.getUsername()) ? record.toUser(userId) : null;
+    }
+
+    /**
+     * Get the userIds of all users of a given type.
+     */
+    public Set<String> getUserIdsByType(UserType type) {
+        return Collections.unmodifiableSet(typeIndex.get(type));
+    }
+
+    /**
+     * Walk users in userId order, starting after {@code afterUserId} (or from the
+     * beginning when null), optionally restricted to one type. Stops once
+     * {@code limit} users match or {@code maxScan} users have been examined, so
+     * the cost of a call is bounded regardless of directory size. The filter runs
+     * on the compact records; only matches are materialized.
+     */
+    public ScanResult scan(String afterUserId, UserType type, Predicate<CompactUser> filter, int limit, int maxScan) {
+        NavigableSet<String> ids = type != null ? typeIndex.get(type) : sortedIds;
+        if (afterUserId != null) {
+            ids = ids.tailSet(afterUserId, false);
+        }
+        List<User> matches = new ArrayList<>(Math.min(limit, 64));
+        String lastScanned = null;
+        int scanned = 0;
+        Iterator<String> it = ids.iterator();
+        while (it.hasNext()) {
+            if (matches.size() >= limit || scanned >= maxScan) {
+                return new ScanResult(matches, lastScanned, false);
+            }
+            String userId = it.next();
+            scanned++;
+            lastScanned = userId;
+            CompactUser record = users.get(userId);
+            if (record != null && filter.test(record)) {
+                matches.add(record.toUser(userId));
+            }
+        }
+        return new ScanResult(matches, lastScanned, true);
+    }
+
+    /**
+     * Get the number of users of a given type.
+     */
+    public int countByType(UserType type) {
+        return typeIndex.get(type).size();
+    }
+
+    /**
+     * Get the total number of users.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Get a live, read-only view of all users, materialized one at a time during iteration.
+     */
+    public Collection<User> values() {
+        return new AbstractCollection<User>() {
+            @Override
+            public Iterator<User> iterator() {
+                Iterator<Map.Entry<String, CompactUser>> entries = users.entrySet().iterator();
+                return new Iterator<User>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public User next() {
+                        Map.Entry<String, CompactUser> entry = entries.next();
+                        return entry.getValue().toUser(entry.getKey());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return users.size();
+            }
+        };
+    }
+
+    /**
+     * Get a live, read-only view of all users in userId order, materialized one at a time during iteration.
+     * A user added or removed during iteration may or may not be seen.
+     */
+    public Iterable<User> valuesInUserIdOrder() {
+        return () -> new Iterator<User>() {
+            private final Iterator<String> ids = sortedIds.iterator();
+            private User next = advance();
+
+            private User advance() {
+                while (ids.hasNext()) {
+                    String userId = ids.next();
+                    CompactUser record = users.get(userId);
+                    if (record != null) {
+                        return record.toUser(userId);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public User next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                User user = next;
+                next = advance();
+                return user;
+            }
+        };
+    }
+
+    /**
+     * Get a point-in-time copy of all users keyed by userId.
+     */
+    public Map<String, User> snapshot() {
+        Map<String, User> copy = new HashMap<>(users.size() * 4 / 3 + 1);
+        for (Map.Entry<String, CompactUser> entry : users.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().toUser(entry.getKey()));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Inverted index over user name, address, contact info and username.
+ *
+ * Text is lower-cased and split into alphanumeric tokens; contact info is also
+ * indexed as its bare digits so "5551234" finds "555-1234". Postings live in a
+ * hash map for exact token lookups, and the tokens are also kept sorted so a
+ * prefix expands to a contiguous range of terms. The index follows every
+ * directory add and remove.
+ */
+@Component
+public class UserSearchIndex implements UserDirectory.Listener {
+    // Past this many expansions, a prefix is checked against each candidate's own fields instead
+    private static final int MAX_PREFIX_TERMS = 256;
+
+    @Autowired
+    private UserDirectory directory;
+
+    private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+    private final NavigableSet<String> terms = new ConcurrentSkipListSet<>();
+
+    @PostConstruct
+    public void init() {
+        directory.addListener(this);
+    }
+
+    @Override
+    public void userAdded(User user) {
+        for (String token : tokensOf(user)) {
+            postings.compute(token, (term, ids) -> {
+                if (ids == null) {
+                    ids = ConcurrentHashMap.newKeySet();
+                    terms.add(term);
+                }
+                ids.add(user.getUserId());
+                return ids;
+            });
+        }
+    }
+
+    @Override
+    public void userRemoved(User user) {
+        for (String token : tokensOf(user)) {
+            postings.computeIfPresent(token, (term, ids) -> {
+                ids.remove(user.getUserId());
+                if (ids.isEmpty()) {
+                    terms.remove(term);
+                    return null;
+                }
+                return ids;
+            });
+        }
+    }
+
+    /**
+     * Find users matching every token of the query. All tokens but the last must
+     * match a whole indexed token; the last one matches as a prefix, for type-ahead.
+     * Results are sorted by name.
+     */
+    public List<User> search(String query, int limit) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        String prefix = tokens.get(tokens.size() - 1);
+        List<Set<String>> exact = new ArrayList<>();
+        for (String token : tokens.subList(0, tokens.size() - 1)) {
+            Set<String> ids = postings.get(token);
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            exact.add(ids);
+        }
+        NavigableSet<String> prefixTerms = terms.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+        List<User> results = new ArrayList<>();
+        if (exact.isEmpty()) {
+            // Single-token query: walk the prefix range until enough users are found
+            Set<String> seen = new LinkedHashSet<>();
+            for (String term : prefixTerms) {
+                Set<String> ids = postings.get(term);
+                if (ids == null) continue;
+                for (String userId : ids) {
+                    if (seen.size() >= limit) break;
+                    seen.add(userId);
+                }
+                if (seen.size() >= limit) break;
+            }
+            for (String userId : seen) {
+                addIfPresent(results, userId);
+            }
+        } else {
+            List<Set<String>> prefixed = new ArrayList<>();
+            boolean expanded = true;
+            for (String term : prefixTerms) {
+                if (prefixed.size() == MAX_PREFIX_TERMS) {
+                    expanded = false;
+                    break;
+                }
+                Set<String> ids = postings.get(term);
+                if (ids != null) {
+                    prefixed.add(ids);
+                }
+            }
+            exact.sort(Comparator.comparingInt(Set::size));
+            long prefixSize = 0;
+            for (Set<String> ids : prefixed) {
+                prefixSize += ids.size();
+            }
+            if (expanded && prefixSize < exact.get(0).size()) {
+                // The prefix is rarer than any whole token: drive from its postings
+                Set<String> seen = new LinkedHashSet<>();
+                for (Set<String> ids : prefixed) {
+                    for (String userId : ids) {
+                        if (seen.size() >= limit) break;
+                        if (exact.get(0).contains(userId) && containedInAll(userId, exact)) {
+                            seen.add(userId);
+                        }
+                    }
+                }
+                for (String userId : seen) {
+                    addIfPresent(results, userId);
+                }
+            } else {
+                // Drive from the rarest whole token and probe the others
+                for (String userId : exact.get(0)) {
+                    if (results.size() >= limit) break;
+                    if (containedInAll(userId, exact) && matchesPrefix(userId, prefix, prefixed, expanded)) {
+                        addIfPresent(results, userId);
+                    }
+                }
+            }
+        }
+        results.sort(Comparator.comparing(User::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)));
+        return results;
+    }
+
+    private void addIfPresent(List<User> results, String userId) {
+        User user = directory.get(userId);
+        if (user != null) {
+            results.add(user);
+        }
+    }
+
+    private static boolean containedInAll(String userId, List<Set<String>> sets) {
+        for (int i = 1; i < sets.size(); i++) {
+            if (!sets.get(i).contains(userId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesPrefix(String userId, String prefix, List<Set<String>> prefixed, boolean expanded) {
+        if (expanded) {
+            for (Set<String> ids : prefixed) {
+                if (ids.contains(userId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        User user = directory.get(userId);
+        if (user == null) {
+            return false;
+        }
+        for (String token : tokensOf(user)) {
+            if (token.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> tokensOf(User user) {
+        Set<String> tokens = new LinkedHashSet<>();
+        tokens.addAll(tokenize(user.getName()));
+        tokens.addAll(tokenize(user.getAddress()));
+        tokens.addAll(tokenize(user.getContactInfo()));
+        tokens.addAll(tokenize(user.getUsername()));
+        String digits = digitsOf(user.getContactInfo());
+        if (digits.length() > 0) {
+            tokens.add(digits);
+        }
+        return tokens;
+    }
+
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String digitsOf(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isDigit(text.charAt(i))) {
+                digits.append(text.charAt(i));
+            }
+        }
+        return digits.toString();
+    }
+}
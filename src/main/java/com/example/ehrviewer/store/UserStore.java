@@ -0,0 +1,53 @@
+package com.example.ehrviewer.store;
+
+import com.example.ehrviewer.model.User;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persistence backend for the {@link UserDirectory}.
+ *
+ * The directory stays the source of truth for reads; a store only records
+ * mutations so the directory can be rebuilt after a restart.
+ */
+public interface UserStore {
+
+    /**
+     * Load persisted users into the directory and start recording changes to it.
+     * Returns true if any persisted state was found.
+     */
+    boolean open(UserDirectory directory) throws IOException;
+
+    /**
+     * Record that a user was added. Returns once the change is durable.
+     */
+    void logAdd(User user) throws IOException;
+
+    /**
+     * Record that several users were added, as one group commit. Returns once all changes are durable.
+     */
+    void logAddAll(List<User> users) throws IOException;
+
+    /**
+     * Record the new state of an existing user. Returns once the change is durable.
+     */
+    void logUpdate(User user) throws IOException;
+
+    /**
+     * Record that a user was removed. Returns once the change is durable.
+     */
+    void logRemove(String userId) throws IOException;
+
+    /**
+     * Whether this store rejects changes, as on a replica whose users come from another node.
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Flush and release all resources.
+     */
+    void close() throws IOException;
+}